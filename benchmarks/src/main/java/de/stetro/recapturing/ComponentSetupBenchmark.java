@@ -0,0 +1,147 @@
+package de.stetro.recapturing;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDMatch;
+import org.opencv.core.MatOfKeyPoint;
+import org.opencv.features2d.DescriptorExtractor;
+import org.opencv.features2d.DescriptorMatcher;
+import org.opencv.features2d.FeatureDetector;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.stetro.recapturing.feature.FeatureComponentRegistry;
+import de.stetro.recapturing.quality.QualityLevel;
+
+/**
+ * Compares detection, description and matching with a
+ * {@link FeatureDetector}, {@link DescriptorExtractor} and
+ * {@link DescriptorMatcher} created for every frame against the cached
+ * instances of a {@link FeatureComponentRegistry}, per stage and for the
+ * whole frame. The uncached detector reads its configuration file on every
+ * frame like the processor did before the registry.
+ * 
+ * @author Steffen Troester
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ComponentSetupBenchmark {
+
+	static {
+		nu.pattern.OpenCV.loadLocally();
+	}
+
+	private FeatureComponentRegistry registry;
+	private String detectorConfiguration;
+	private Mat frame;
+	private MatOfKeyPoint frameKeyPoints;
+	private Mat frameDescriptors;
+	private Mat templateDescriptors;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		frame = SyntheticScenes.texturedFrame(680, 460, 400, new Random(7));
+		File configurationFile = File.createTempFile("orb", ".xml");
+		configurationFile.deleteOnExit();
+		detectorConfiguration = configurationFile.getAbsolutePath();
+		RecapturingProcessor.writeFile(detectorConfiguration, "<?xml version=\"1.0\"?>\n<opencv_storage>\n<nFeatures>" + QualityLevel.DEFAULT.getMaxKeyPoints()
+				+ "</nFeatures>\n<nLevels>" + QualityLevel.DEFAULT.getPyramidLevels() + "</nLevels>\n</opencv_storage>\n");
+		registry = new FeatureComponentRegistry();
+		registry.configure(FeatureDetector.ORB, detectorConfiguration, DescriptorExtractor.ORB, null, DescriptorMatcher.BRUTEFORCE_HAMMING);
+		frameKeyPoints = new MatOfKeyPoint();
+		frameDescriptors = new Mat();
+		registry.getDetector().detect(frame, frameKeyPoints);
+		registry.getExtractor().compute(frame, frameKeyPoints, frameDescriptors);
+		templateDescriptors = frameDescriptors.clone();
+	}
+
+	@Benchmark
+	public MatOfKeyPoint uncachedDetect() {
+		FeatureDetector detector = FeatureDetector.create(FeatureDetector.ORB);
+		detector.read(detectorConfiguration);
+		MatOfKeyPoint keyPoints = new MatOfKeyPoint();
+		detector.detect(frame, keyPoints);
+		return keyPoints;
+	}
+
+	@Benchmark
+	public MatOfKeyPoint cachedDetect() {
+		MatOfKeyPoint keyPoints = new MatOfKeyPoint();
+		registry.getComponents().getDetector().detect(frame, keyPoints);
+		return keyPoints;
+	}
+
+	@Benchmark
+	public Mat uncachedDescribe() {
+		DescriptorExtractor extractor = DescriptorExtractor.create(DescriptorExtractor.ORB);
+		Mat descriptors = new Mat();
+		extractor.compute(frame, frameKeyPoints, descriptors);
+		return descriptors;
+	}
+
+	@Benchmark
+	public Mat cachedDescribe() {
+		Mat descriptors = new Mat();
+		registry.getComponents().getExtractor().compute(frame, frameKeyPoints, descriptors);
+		return descriptors;
+	}
+
+	@Benchmark
+	public MatOfDMatch uncachedMatch() {
+		DescriptorMatcher matcher = DescriptorMatcher.create(DescriptorMatcher.BRUTEFORCE_HAMMING);
+		MatOfDMatch matches = new MatOfDMatch();
+		matcher.match(templateDescriptors, frameDescriptors, matches);
+		return matches;
+	}
+
+	@Benchmark
+	public MatOfDMatch cachedMatch() {
+		MatOfDMatch matches = new MatOfDMatch();
+		registry.getComponents().getMatcher().match(templateDescriptors, frameDescriptors, matches);
+		return matches;
+	}
+
+	@Benchmark
+	public MatOfDMatch uncachedComponents() {
+		FeatureDetector detector = FeatureDetector.create(FeatureDetector.ORB);
+		detector.read(detectorConfiguration);
+		MatOfKeyPoint keyPoints = new MatOfKeyPoint();
+		detector.detect(frame, keyPoints);
+		DescriptorExtractor extractor = DescriptorExtractor.create(DescriptorExtractor.ORB);
+		Mat descriptors = new Mat();
+		extractor.compute(frame, keyPoints, descriptors);
+		DescriptorMatcher matcher = DescriptorMatcher.create(DescriptorMatcher.BRUTEFORCE_HAMMING);
+		MatOfDMatch matches = new MatOfDMatch();
+		matcher.match(templateDescriptors, descriptors, matches);
+		return matches;
+	}
+
+	@Benchmark
+	public MatOfDMatch cachedComponents() {
+		FeatureComponentRegistry.Components components = registry.getComponents();
+		MatOfKeyPoint keyPoints = new MatOfKeyPoint();
+		components.getDetector().detect(frame, keyPoints);
+		Mat descriptors = new Mat();
+		components.getExtractor().compute(frame, keyPoints, descriptors);
+		MatOfDMatch matches = new MatOfDMatch();
+		components.getMatcher().match(templateDescriptors, descriptors, matches);
+		return matches;
+	}
+}
@@ -0,0 +1,226 @@
+package de.stetro.recapturing;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.opencv.calib3d.Calib3d;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint2f;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.stetro.recapturing.registration.HoughConsistencyFilter;
+
+/**
+ * Compares OpenCV RANSAC on all matches with RANSAC on the matches kept by
+ * the {@link HoughConsistencyFilter} for falling inlier ratios, and measures
+ * the filter alone. The synthetic matches carry ORB like key point sizes and
+ * orientations; inliers follow a random similarity with a small perspective,
+ * outliers are random. The filter reorders the matches in place, so every
+ * path starts with a copy of the frame's matches.
+ * 
+ * The auxiliary counters report the quality: inliers / matches is the inlier
+ * ratio handed to RANSAC, cornerError / estimated the mean corner error.
+ * 
+ * @author Steffen Troester
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ConsistencyFilterBenchmark {
+
+	static {
+		nu.pattern.OpenCV.loadLocally();
+	}
+
+	private static final int FRAME_WIDTH = 680;
+	private static final int FRAME_HEIGHT = 460;
+	private static final int TEMPLATE_WIDTH = 340;
+	private static final int TEMPLATE_HEIGHT = 230;
+	private static final int FRAMES = 64;
+	private static final int MATCHES = 300;
+	private static final double THRESHOLD = 10;
+
+	@Param({ "0.5", "0.3", "0.2", "0.1" })
+	public double inlierRatio;
+
+	private float[][] frameObject;
+	private float[][] frameScene;
+	private float[][] frameObjectShapes;
+	private float[][] frameSceneShapes;
+	private boolean[][] frameInliers;
+	private double[][] truths;
+	private int next;
+
+	private float[] object = new float[MATCHES * 2];
+	private float[] scene = new float[MATCHES * 2];
+	private float[] objectShapes = new float[MATCHES * 2];
+	private float[] sceneShapes = new float[MATCHES * 2];
+	private float[] distances = new float[MATCHES];
+	private double[] estimate = new double[9];
+	private HoughConsistencyFilter filter = new HoughConsistencyFilter();
+	private MatOfPoint2f objectMat = new MatOfPoint2f();
+	private MatOfPoint2f sceneMat = new MatOfPoint2f();
+
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class Accuracy {
+
+		/**
+		 * matches handed to RANSAC
+		 */
+		public long matches;
+
+		/**
+		 * true inliers among them
+		 */
+		public long inliers;
+
+		/**
+		 * summed mean corner distance to the ground truth in pixels
+		 */
+		public double cornerError;
+
+		public long estimated;
+
+		public long failures;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			matches = 0;
+			inliers = 0;
+			cornerError = 0;
+			estimated = 0;
+			failures = 0;
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		Random random = new Random(7);
+		frameObject = new float[FRAMES][MATCHES * 2];
+		frameScene = new float[FRAMES][MATCHES * 2];
+		frameObjectShapes = new float[FRAMES][MATCHES * 2];
+		frameSceneShapes = new float[FRAMES][MATCHES * 2];
+		frameInliers = new boolean[FRAMES][MATCHES];
+		truths = new double[FRAMES][];
+		for (int i = 0; i < FRAMES; i++) {
+			double angle = Math.toRadians(random.nextDouble() * 360);
+			double scale = 0.7 + random.nextDouble() * 0.6;
+			double cos = Math.cos(angle) * scale, sin = Math.sin(angle) * scale;
+			double tx = FRAME_WIDTH / 2.0 - (cos * TEMPLATE_WIDTH - sin * TEMPLATE_HEIGHT) / 2;
+			double ty = FRAME_HEIGHT / 2.0 - (sin * TEMPLATE_WIDTH + cos * TEMPLATE_HEIGHT) / 2;
+			truths[i] = new double[] { cos, -sin, tx, sin, cos, ty, 2e-5, -2e-5, 1 };
+			createMatches(i, Math.toDegrees(angle), scale, random);
+		}
+	}
+
+	@Benchmark
+	public double[] ransac(Accuracy accuracy) {
+		int frame = nextFrame();
+		return estimate(accuracy, frame, MATCHES);
+	}
+
+	@Benchmark
+	public double[] filteredRansac(Accuracy accuracy) {
+		int frame = nextFrame();
+		int kept = filter.filter(object, scene, objectShapes, sceneShapes, distances, MATCHES);
+		return estimate(accuracy, frame, kept);
+	}
+
+	@Benchmark
+	public int filter() {
+		nextFrame();
+		return filter.filter(object, scene, objectShapes, sceneShapes, distances, MATCHES);
+	}
+
+	/**
+	 * Copies the matches of the next frame into the working arrays
+	 * 
+	 * @return frame index
+	 */
+	private int nextFrame() {
+		next = (next + 1) % FRAMES;
+		System.arraycopy(frameObject[next], 0, object, 0, object.length);
+		System.arraycopy(frameScene[next], 0, scene, 0, scene.length);
+		System.arraycopy(frameObjectShapes[next], 0, objectShapes, 0, objectShapes.length);
+		System.arraycopy(frameSceneShapes[next], 0, sceneShapes, 0, sceneShapes.length);
+		for (int i = 0; i < MATCHES; i++) {
+			distances[i] = i;
+		}
+		return next;
+	}
+
+	private double[] estimate(Accuracy accuracy, int frame, int count) {
+		accuracy.matches += count;
+		// the distances carry the match index, so the kept matches can be
+		// identified after the filter reordered them
+		for (int i = 0; i < count; i++) {
+			if (frameInliers[frame][(int) distances[i]])
+				accuracy.inliers++;
+		}
+		if (count < 4) {
+			accuracy.failures++;
+			return estimate;
+		}
+		objectMat.create(count, 1, CvType.CV_32FC2);
+		objectMat.put(0, 0, object);
+		sceneMat.create(count, 1, CvType.CV_32FC2);
+		sceneMat.put(0, 0, scene);
+		Mat homography = Calib3d.findHomography(objectMat, sceneMat, Calib3d.RANSAC, THRESHOLD);
+		if (homography.empty()) {
+			accuracy.failures++;
+		} else {
+			homography.get(0, 0, estimate);
+			accuracy.estimated++;
+			accuracy.cornerError += SyntheticScenes.cornerError(estimate, truths[frame], TEMPLATE_WIDTH, TEMPLATE_HEIGHT);
+		}
+		return estimate;
+	}
+
+	private void createMatches(int frame, double rotation, double scale, Random random) {
+		double[] h = truths[frame];
+		float[] object = frameObject[frame];
+		float[] scene = frameScene[frame];
+		float[] objectShapes = frameObjectShapes[frame];
+		float[] sceneShapes = frameSceneShapes[frame];
+		boolean[] inlier = frameInliers[frame];
+		for (int i = 0; i < MATCHES; i++) {
+			double x = random.nextDouble() * TEMPLATE_WIDTH;
+			double y = random.nextDouble() * TEMPLATE_HEIGHT;
+			object[i * 2] = (float) x;
+			object[i * 2 + 1] = (float) y;
+			// ORB patch size on one of 8 pyramid levels with scale factor 1.2
+			objectShapes[i * 2] = (float) (31 * Math.pow(1.2, random.nextInt(8)));
+			objectShapes[i * 2 + 1] = (float) (random.nextDouble() * 360);
+			inlier[i] = random.nextDouble() < inlierRatio;
+			if (inlier[i]) {
+				double w = h[6] * x + h[7] * y + h[8];
+				scene[i * 2] = (float) ((h[0] * x + h[1] * y + h[2]) / w + random.nextGaussian());
+				scene[i * 2 + 1] = (float) ((h[3] * x + h[4] * y + h[5]) / w + random.nextGaussian());
+				sceneShapes[i * 2] = (float) (objectShapes[i * 2] * scale * (1 + random.nextGaussian() * 0.1));
+				sceneShapes[i * 2 + 1] = (float) ((objectShapes[i * 2 + 1] + rotation + random.nextGaussian() * 5 + 720) % 360);
+			} else {
+				scene[i * 2] = (float) (random.nextDouble() * FRAME_WIDTH);
+				scene[i * 2 + 1] = (float) (random.nextDouble() * FRAME_HEIGHT);
+				sceneShapes[i * 2] = (float) (31 * Math.pow(1.2, random.nextInt(8)));
+				sceneShapes[i * 2 + 1] = (float) (random.nextDouble() * 360);
+			}
+		}
+	}
+}
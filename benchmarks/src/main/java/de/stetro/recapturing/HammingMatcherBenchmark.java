@@ -0,0 +1,158 @@
+package de.stetro.recapturing;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDMatch;
+import org.opencv.core.MatOfKeyPoint;
+import org.opencv.features2d.DMatch;
+import org.opencv.features2d.DescriptorExtractor;
+import org.opencv.features2d.DescriptorMatcher;
+import org.opencv.features2d.FeatureDetector;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.stetro.recapturing.feature.MatchBuffer;
+import de.stetro.recapturing.feature.PackedDescriptors;
+import de.stetro.recapturing.feature.PackedHammingMatcher;
+
+/**
+ * Compares OpenCV's BRUTEFORCE_HAMMING matcher with the
+ * {@link PackedHammingMatcher}, plain, with the ratio test on a k = 2 knnMatch
+ * and with a cross check of the matches in both directions. The setup fails
+ * if both disagree on a template index, scene index or distance.
+ * 
+ * @author Steffen Troester
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HammingMatcherBenchmark {
+
+	static {
+		nu.pattern.OpenCV.loadLocally();
+	}
+
+	private static final float RATIO = 0.8f;
+
+	/**
+	 * none, ratio or crossCheck
+	 */
+	@Param({ "none", "ratio", "crossCheck" })
+	public String filter;
+
+	private Mat templateDescriptors;
+	private Mat sceneDescriptors;
+	private DescriptorMatcher opencvMatcher;
+	private PackedHammingMatcher packedMatcher;
+	private PackedDescriptors template;
+	private PackedDescriptors scene;
+	private MatOfDMatch opencvMatches;
+	private MatOfDMatch reverseMatches;
+	private List<MatOfDMatch> knnMatches;
+	private MatchBuffer opencvFiltered;
+	private MatchBuffer forwardBuffer;
+	private MatchBuffer reverseBuffer;
+	private MatchBuffer packedMatches;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		Random random = new Random(7);
+		templateDescriptors = describe(SyntheticScenes.texturedFrame(680, 460, 400, random));
+		sceneDescriptors = describe(SyntheticScenes.texturedFrame(680, 460, 400, random));
+		opencvMatcher = DescriptorMatcher.create(DescriptorMatcher.BRUTEFORCE_HAMMING);
+		packedMatcher = new PackedHammingMatcher();
+		packedMatcher.setRatio("ratio".equals(filter) ? RATIO : 0);
+		packedMatcher.setCrossCheck("crossCheck".equals(filter));
+		template = new PackedDescriptors().pack(templateDescriptors);
+		scene = new PackedDescriptors();
+		opencvMatches = new MatOfDMatch();
+		reverseMatches = new MatOfDMatch();
+		knnMatches = new ArrayList<MatOfDMatch>();
+		opencvFiltered = new MatchBuffer();
+		forwardBuffer = new MatchBuffer();
+		reverseBuffer = new MatchBuffer();
+		packedMatches = new MatchBuffer();
+
+		MatchBuffer expected = opencvMatch();
+		packedMatch();
+		if (expected.size() != packedMatches.size())
+			throw new IllegalStateException("packed matcher returned " + packedMatches.size() + " of " + expected.size() + " matches with filter " + filter);
+		for (int i = 0; i < expected.size(); i++) {
+			if (expected.getTemplateIndex(i) != packedMatches.getTemplateIndex(i) || expected.getSceneIndex(i) != packedMatches.getSceneIndex(i)
+					|| expected.getDistance(i) != packedMatches.getDistance(i))
+				throw new IllegalStateException("packed matcher disagrees on match " + i + " with filter " + filter);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		packedMatcher.shutdown();
+	}
+
+	private static Mat describe(Mat gray) {
+		MatOfKeyPoint keyPoints = new MatOfKeyPoint();
+		FeatureDetector.create(FeatureDetector.ORB).detect(gray, keyPoints);
+		Mat descriptors = new Mat();
+		DescriptorExtractor.create(DescriptorExtractor.ORB).compute(gray, keyPoints, descriptors);
+		return descriptors;
+	}
+
+	/**
+	 * OpenCV matching with the filter done on the Java side, the result is
+	 * read into a {@link MatchBuffer} like the packed matches
+	 */
+	@Benchmark
+	public MatchBuffer opencvMatch() {
+		if ("ratio".equals(filter)) {
+			opencvMatcher.knnMatch(templateDescriptors, sceneDescriptors, knnMatches, 2);
+			opencvFiltered.clear();
+			opencvFiltered.ensureCapacity(knnMatches.size());
+			for (int i = 0; i < knnMatches.size(); i++) {
+				DMatch[] nearest = knnMatches.get(i).toArray();
+				if (nearest.length == 2 && nearest[0].distance < RATIO * nearest[1].distance)
+					opencvFiltered.add(nearest[0].queryIdx, nearest[0].trainIdx, nearest[0].distance);
+			}
+		} else if ("crossCheck".equals(filter)) {
+			opencvMatcher.match(templateDescriptors, sceneDescriptors, opencvMatches);
+			opencvMatcher.match(sceneDescriptors, templateDescriptors, reverseMatches);
+			MatchBuffer forward = forwardBuffer.read(opencvMatches);
+			reverseBuffer.read(reverseMatches);
+			opencvFiltered.clear();
+			opencvFiltered.ensureCapacity(forward.size());
+			for (int i = 0; i < forward.size(); i++) {
+				// the reverse matches are indexed by scene row
+				if (reverseBuffer.getSceneIndex(forward.getSceneIndex(i)) == forward.getTemplateIndex(i))
+					opencvFiltered.add(forward.getTemplateIndex(i), forward.getSceneIndex(i), forward.getDistance(i));
+			}
+		} else {
+			opencvMatcher.match(templateDescriptors, sceneDescriptors, opencvMatches);
+			opencvFiltered.read(opencvMatches);
+		}
+		return opencvFiltered;
+	}
+
+	@Benchmark
+	public MatchBuffer packedMatch() {
+		// packing the scene is part of the per frame cost
+		packedMatcher.match(template, scene.pack(sceneDescriptors), packedMatches);
+		return packedMatches;
+	}
+}
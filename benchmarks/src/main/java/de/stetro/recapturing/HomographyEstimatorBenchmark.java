@@ -0,0 +1,221 @@
+package de.stetro.recapturing;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.opencv.calib3d.Calib3d;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint2f;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.stetro.recapturing.registration.ProsacHomographyEstimator;
+
+/**
+ * Compares OpenCV RANSAC, uniform sampling and the
+ * {@link ProsacHomographyEstimator} on synthetic matches of a slowly moving
+ * template. Outliers have higher descriptor distances on average, like the
+ * matches of the feature based mode. The sampled hypotheses and the corner
+ * error are reported through the auxiliary counters, the mean corner error is
+ * cornerError / estimated.
+ * 
+ * @author Steffen Troester
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HomographyEstimatorBenchmark {
+
+	static {
+		nu.pattern.OpenCV.loadLocally();
+	}
+
+	private static final int FRAME_WIDTH = 680;
+	private static final int FRAME_HEIGHT = 460;
+	private static final int TEMPLATE_WIDTH = 340;
+	private static final int TEMPLATE_HEIGHT = 230;
+	private static final int FRAMES = 64;
+	private static final int MATCHES = 300;
+	private static final double THRESHOLD = 10;
+
+	@Param({ "0.4", "0.2" })
+	public double inlierRatio;
+
+	private float[][] object;
+	private float[][] scene;
+	private float[][] distances;
+	private double[][] truths;
+	private MatOfPoint2f[] objectMats;
+	private MatOfPoint2f[] sceneMats;
+	private byte[] mask = new byte[MATCHES];
+	private double[] estimate = new double[9];
+	private double[] previous = new double[9];
+	private boolean previousValid;
+	private int next;
+
+	private ProsacHomographyEstimator uniform;
+	private ProsacHomographyEstimator prosac;
+	private ProsacHomographyEstimator seeded;
+
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class Accuracy {
+
+		/**
+		 * summed mean corner distance to the ground truth in pixels
+		 */
+		public double cornerError;
+
+		public long estimated;
+
+		public long failures;
+
+		/**
+		 * sampled hypotheses, OpenCV does not report them
+		 */
+		public long hypotheses;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			cornerError = 0;
+			estimated = 0;
+			failures = 0;
+			hypotheses = 0;
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		uniform = new ProsacHomographyEstimator();
+		uniform.setProgressive(false);
+		uniform.setThreshold(THRESHOLD);
+		prosac = new ProsacHomographyEstimator();
+		prosac.setThreshold(THRESHOLD);
+		seeded = new ProsacHomographyEstimator();
+		seeded.setThreshold(THRESHOLD);
+
+		Random random = new Random(7);
+		object = new float[FRAMES][MATCHES * 2];
+		scene = new float[FRAMES][MATCHES * 2];
+		distances = new float[FRAMES][MATCHES];
+		truths = new double[FRAMES][];
+		objectMats = new MatOfPoint2f[FRAMES];
+		sceneMats = new MatOfPoint2f[FRAMES];
+		double angle = 0, scale = 1, tx = (FRAME_WIDTH - TEMPLATE_WIDTH) / 2.0, ty = (FRAME_HEIGHT - TEMPLATE_HEIGHT) / 2.0;
+		for (int i = 0; i < FRAMES; i++) {
+			// small motion between the frames, like a hand held camera
+			angle += Math.toRadians(random.nextGaussian());
+			scale = Math.max(0.7, Math.min(1.2, scale + random.nextGaussian() * 0.01));
+			tx += random.nextGaussian() * 3;
+			ty += random.nextGaussian() * 3;
+			double cos = Math.cos(angle) * scale;
+			double sin = Math.sin(angle) * scale;
+			truths[i] = new double[] { cos, -sin, tx, sin, cos, ty, 5e-5, -5e-5, 1 };
+			createMatches(truths[i], random, object[i], scene[i], distances[i]);
+			objectMats[i] = new MatOfPoint2f();
+			objectMats[i].create(MATCHES, 1, CvType.CV_32FC2);
+			objectMats[i].put(0, 0, object[i]);
+			sceneMats[i] = new MatOfPoint2f();
+			sceneMats[i].create(MATCHES, 1, CvType.CV_32FC2);
+			sceneMats[i].put(0, 0, scene[i]);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		uniform.shutdown();
+		prosac.shutdown();
+		seeded.shutdown();
+	}
+
+	@Benchmark
+	public double[] opencvRansac(Accuracy accuracy) {
+		int frame = nextFrame();
+		Mat homography = Calib3d.findHomography(objectMats[frame], sceneMats[frame], Calib3d.RANSAC, THRESHOLD);
+		if (homography.empty())
+			return count(accuracy, 0, 0, frame);
+		homography.get(0, 0, estimate);
+		return count(accuracy, 1, 0, frame);
+	}
+
+	@Benchmark
+	public double[] uniform(Accuracy accuracy) {
+		int frame = nextFrame();
+		int inliers = uniform.estimate(object[frame], scene[frame], distances[frame], MATCHES, null, estimate, mask);
+		return count(accuracy, inliers, uniform.getIterations(), frame);
+	}
+
+	@Benchmark
+	public double[] prosac(Accuracy accuracy) {
+		int frame = nextFrame();
+		int inliers = prosac.estimate(object[frame], scene[frame], distances[frame], MATCHES, null, estimate, mask);
+		return count(accuracy, inliers, prosac.getIterations(), frame);
+	}
+
+	@Benchmark
+	public double[] prosacSeeded(Accuracy accuracy) {
+		int frame = nextFrame();
+		// the trajectory jumps back on the first frame
+		boolean seed = previousValid && frame > 0;
+		int inliers = seeded.estimate(object[frame], scene[frame], distances[frame], MATCHES, seed ? previous : null, estimate, mask);
+		previousValid = inliers > 0;
+		if (previousValid)
+			System.arraycopy(estimate, 0, previous, 0, 9);
+		return count(accuracy, inliers, seeded.getIterations(), frame);
+	}
+
+	private int nextFrame() {
+		next = (next + 1) % FRAMES;
+		return next;
+	}
+
+	private double[] count(Accuracy accuracy, int inliers, int iterations, int frame) {
+		accuracy.hypotheses += iterations;
+		if (inliers > 0) {
+			accuracy.estimated++;
+			accuracy.cornerError += SyntheticScenes.cornerError(estimate, truths[frame], TEMPLATE_WIDTH, TEMPLATE_HEIGHT);
+		} else {
+			accuracy.failures++;
+		}
+		return estimate;
+	}
+
+	/**
+	 * Inliers get gaussian noise and mostly low distances, outliers random
+	 * scene positions and mostly high distances
+	 */
+	private void createMatches(double[] h, Random random, float[] object, float[] scene, float[] distances) {
+		for (int i = 0; i < distances.length; i++) {
+			double x = random.nextDouble() * TEMPLATE_WIDTH;
+			double y = random.nextDouble() * TEMPLATE_HEIGHT;
+			object[i * 2] = (float) x;
+			object[i * 2 + 1] = (float) y;
+			if (random.nextDouble() < inlierRatio) {
+				double w = h[6] * x + h[7] * y + h[8];
+				scene[i * 2] = (float) ((h[0] * x + h[1] * y + h[2]) / w + random.nextGaussian());
+				scene[i * 2 + 1] = (float) ((h[3] * x + h[4] * y + h[5]) / w + random.nextGaussian());
+				distances[i] = random.nextInt(16);
+			} else {
+				scene[i * 2] = (float) (random.nextDouble() * FRAME_WIDTH);
+				scene[i * 2 + 1] = (float) (random.nextDouble() * FRAME_HEIGHT);
+				distances[i] = 6 + random.nextInt(15);
+			}
+		}
+	}
+}
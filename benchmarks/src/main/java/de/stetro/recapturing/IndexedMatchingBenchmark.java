@@ -0,0 +1,167 @@
+package de.stetro.recapturing;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.stetro.recapturing.feature.MatchBuffer;
+import de.stetro.recapturing.feature.MultiIndexHashingIndex;
+import de.stetro.recapturing.feature.PackedDescriptors;
+import de.stetro.recapturing.feature.PackedHammingMatcher;
+
+/**
+ * Compares the {@link MultiIndexHashingIndex} with brute force matching for
+ * growing template sizes. Uses random 256 bit descriptors: the queries are
+ * noisy copies of template descriptors plus unrelated distractors, similar to
+ * ORB matches of a recaptured scene. The recall of the index is reported as
+ * the ratio of the hits and nearest counters. Needs no OpenCV.
+ * 
+ * @author Steffen Troester
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class IndexedMatchingBenchmark {
+
+	private static final int WORDS = 4;
+	private static final int QUERIES = 500;
+	private static final int FLIPPED_BITS = 12;
+
+	@Param({ "500", "2000", "10000", "50000" })
+	public int templateSize;
+
+	/**
+	 * substring bits and probe radius of the index
+	 */
+	@Param({ "16/0", "16/1", "8/0" })
+	public String index;
+
+	private PackedDescriptors template;
+	private PackedDescriptors scene;
+	private PackedHammingMatcher bruteForce;
+	private MultiIndexHashingIndex hashingIndex;
+	private MultiIndexHashingIndex.Search search = new MultiIndexHashingIndex.Search();
+	private MatchBuffer expected;
+	private MatchBuffer actual;
+	private int[] found;
+
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class Recall {
+
+		/**
+		 * queries whose nearest template distance was found by the index
+		 */
+		public long hits;
+
+		/**
+		 * queries with a nearest template descriptor
+		 */
+		public long nearest;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			hits = 0;
+			nearest = 0;
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		Random random = new Random(42);
+		template = randomDescriptors(templateSize, random);
+		scene = noisyQueries(template, random);
+		bruteForce = new PackedHammingMatcher(1);
+		String[] parameters = index.split("/");
+		hashingIndex = new MultiIndexHashingIndex(Integer.parseInt(parameters[0]), Integer.parseInt(parameters[1]));
+		hashingIndex.build(template);
+		actual = new MatchBuffer();
+		found = new int[QUERIES];
+
+		// brute force with the scene as query gives the true nearest template
+		// descriptor per scene descriptor
+		expected = new MatchBuffer();
+		bruteForce.match(scene, template, expected);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		bruteForce.shutdown();
+	}
+
+	@Benchmark
+	public MatchBuffer bruteForce() {
+		bruteForce.match(scene, template, actual);
+		return actual;
+	}
+
+	@Benchmark
+	public MatchBuffer indexed(Recall recall) {
+		hashingIndex.match(search, scene, actual);
+		countHits(recall);
+		return actual;
+	}
+
+	private void countHits(Recall recall) {
+		for (int i = 0; i < QUERIES; i++) {
+			found[i] = Integer.MAX_VALUE;
+		}
+		for (int i = 0; i < actual.size(); i++) {
+			found[actual.getSceneIndex(i)] = (int) actual.getDistance(i);
+		}
+		for (int i = 0; i < expected.size(); i++) {
+			// brute force was called with the scene as query
+			if (found[expected.getTemplateIndex(i)] == (int) expected.getDistance(i))
+				recall.hits++;
+		}
+		recall.nearest += expected.size();
+	}
+
+	private static PackedDescriptors randomDescriptors(int rows, Random random) {
+		long[] words = new long[rows * WORDS];
+		for (int i = 0; i < words.length; i++) {
+			words[i] = random.nextLong();
+		}
+		return new PackedDescriptors().wrap(words, rows, WORDS);
+	}
+
+	/**
+	 * Three quarters of the queries are template descriptors with flipped
+	 * bits, the rest is random
+	 */
+	private static PackedDescriptors noisyQueries(PackedDescriptors template, Random random) {
+		long[] words = new long[QUERIES * WORDS];
+		for (int q = 0; q < QUERIES; q++) {
+			if (q % 4 == 3) {
+				for (int w = 0; w < WORDS; w++) {
+					words[q * WORDS + w] = random.nextLong();
+				}
+				continue;
+			}
+			int source = random.nextInt(template.getRows());
+			System.arraycopy(template.getWords(), source * WORDS, words, q * WORDS, WORDS);
+			for (int f = 0; f < FLIPPED_BITS; f++) {
+				int bit = random.nextInt(WORDS * 64);
+				words[q * WORDS + bit / 64] ^= 1L << (bit % 64);
+			}
+		}
+		return new PackedDescriptors().wrap(words, QUERIES, WORDS);
+	}
+}
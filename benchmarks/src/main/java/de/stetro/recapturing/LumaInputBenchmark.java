@@ -0,0 +1,128 @@
+package de.stetro.recapturing;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.opencv.core.Mat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.stetro.recapturing.frame.LumaFrame;
+import de.stetro.recapturing.frame.Nv21Frame;
+import de.stetro.recapturing.replay.Nv21DumpSource;
+
+/**
+ * Compares the RGBA input path of the old camera listener (NV21 to RGBA, then
+ * RGBA to gray in the processor) with the luma input path on NV21 frames,
+ * with the processor running without a template. The NV21 to RGBA conversion
+ * is also measured alone.
+ * 
+ * Uses synthetic frames of the frame size, or the frames of the NV21 dump
+ * given by the system property recapturing.nv21dump. The synthetic frame is
+ * restored before every path, because the processor draws into it.
+ * 
+ * @author Steffen Troester
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class LumaInputBenchmark {
+
+	static {
+		nu.pattern.OpenCV.loadLocally();
+	}
+
+	/**
+	 * ignored when a dump is replayed
+	 */
+	@Param({ "680x460", "1280x720" })
+	public String frameSize;
+
+	private Nv21DumpSource source;
+	private Nv21Frame synthetic;
+	private byte[] nv21;
+	private RecapturingProcessor rgbaProcessor;
+	private RecapturingProcessor lumaProcessor;
+	private Mat rgba = new Mat();
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		String[] dimensions = frameSize.split("x");
+		int width = Integer.parseInt(dimensions[0]);
+		int height = Integer.parseInt(dimensions[1]);
+		String dump = System.getProperty("recapturing.nv21dump");
+		if (dump != null) {
+			source = new Nv21DumpSource(new File(dump));
+			width = source.getWidth();
+			height = source.getHeight();
+		}
+		synthetic = new Nv21Frame(width, height);
+		nv21 = new byte[Nv21Frame.getFrameSize(width, height)];
+		new Random(7).nextBytes(nv21);
+
+		rgbaProcessor = new RecapturingProcessor();
+		rgbaProcessor.prepareViewSize(width, height);
+		lumaProcessor = new RecapturingProcessor();
+		lumaProcessor.prepareViewSize(width, height);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		if (source != null)
+			source.close();
+	}
+
+	@Benchmark
+	public Mat rgbaConversion() throws IOException {
+		nextFrame().rgba().copyTo(rgba);
+		return rgba;
+	}
+
+	@Benchmark
+	public Mat rgbaInput() throws IOException {
+		// the old listener converted every frame to RGBA before processing
+		nextFrame().rgba().copyTo(rgba);
+		rgbaProcessor.process(rgba);
+		return rgba;
+	}
+
+	@Benchmark
+	public LumaFrame lumaInput() throws IOException {
+		LumaFrame frame = nextFrame();
+		lumaProcessor.process(frame);
+		return frame;
+	}
+
+	/**
+	 * @return next frame of the dump, rewound at its end, or the synthetic
+	 *         frame restored from the bytes
+	 */
+	private LumaFrame nextFrame() throws IOException {
+		if (source == null) {
+			synthetic.put(nv21);
+			return synthetic;
+		}
+		LumaFrame frame = source.nextLuma();
+		if (frame == null) {
+			source.rewind();
+			frame = source.nextLuma();
+		}
+		return frame;
+	}
+}
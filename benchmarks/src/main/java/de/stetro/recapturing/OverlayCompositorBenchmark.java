@@ -0,0 +1,156 @@
+package de.stetro.recapturing;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.stetro.recapturing.overlay.OverlayCompositor;
+
+/**
+ * Compares the full frame warp and blend of the template with the region
+ * limited {@link OverlayCompositor} for growing template coverage: with a
+ * moving and with a static homography and without background dimming. Every
+ * path starts with a copy of the frame, so the differences are the cost of
+ * the blend. The setup fails if the compositor is not bit exact to the full
+ * frame path.
+ * 
+ * @author Steffen Troester
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class OverlayCompositorBenchmark {
+
+	static {
+		nu.pattern.OpenCV.loadLocally();
+	}
+
+	private static final int WIDTH = 1280;
+	private static final int HEIGHT = 720;
+	private static final int HOMOGRAPHIES = 16;
+
+	/**
+	 * fraction of the frame covered by the projected template
+	 */
+	@Param({ "0.02", "0.05", "0.1", "0.2", "0.4", "0.8" })
+	public double coverage;
+
+	private Mat frame;
+	private Mat template;
+	private Mat composed = new Mat();
+	private Mat blit = new Mat(HEIGHT, WIDTH, CvType.CV_8UC1);
+	private Mat homographyMat = new Mat(3, 3, CvType.CV_64FC1);
+	private double[][] homographies;
+	private double[] fixed;
+	private int next;
+
+	private OverlayCompositor moving;
+	private OverlayCompositor still;
+	private OverlayCompositor undimmed;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		Random random = new Random(7);
+		frame = new Mat(HEIGHT, WIDTH, CvType.CV_8UC1);
+		Core.randu(frame, 0, 256);
+		// square template whose projection covers the fraction of the frame
+		int size = (int) Math.sqrt(coverage * WIDTH * HEIGHT);
+		template = new Mat(size, size, CvType.CV_8UC1);
+		Core.randu(template, 0, 256);
+		homographies = new double[HOMOGRAPHIES][];
+		for (int i = 0; i < HOMOGRAPHIES; i++) {
+			homographies[i] = homography(size, 1, random);
+		}
+		fixed = homography(size, 0, random);
+
+		moving = new OverlayCompositor();
+		moving.setTemplate(template);
+		moving.setTolerance(0);
+		still = new OverlayCompositor();
+		still.setTemplate(template);
+		undimmed = new OverlayCompositor();
+		undimmed.setTemplate(template);
+		undimmed.setTolerance(0);
+		undimmed.setDimBackground(false);
+
+		Mat reference = new Mat();
+		Mat difference = new Mat();
+		for (int i = 0; i < HOMOGRAPHIES; i++) {
+			homographyMat.put(0, 0, homographies[i]);
+			frame.copyTo(reference);
+			Imgproc.warpPerspective(template, blit, homographyMat, blit.size());
+			Core.addWeighted(reference, 0.5, blit, 0.5, 0.0, reference);
+			frame.copyTo(composed);
+			moving.composite(composed, homographies[i]);
+			Core.absdiff(reference, composed, difference);
+			double maximum = Core.minMaxLoc(difference).maxVal;
+			if (maximum > 0)
+				throw new IllegalStateException("compositor differs by " + maximum + " from the full frame blend");
+		}
+	}
+
+	@Benchmark
+	public Mat fullFrame() {
+		homographyMat.put(0, 0, nextHomography());
+		frame.copyTo(composed);
+		Imgproc.warpPerspective(template, blit, homographyMat, blit.size());
+		Core.addWeighted(composed, 0.5, blit, 0.5, 0.0, composed);
+		return composed;
+	}
+
+	@Benchmark
+	public Mat movingHomography() {
+		frame.copyTo(composed);
+		moving.composite(composed, nextHomography());
+		return composed;
+	}
+
+	@Benchmark
+	public Mat staticHomography() {
+		frame.copyTo(composed);
+		still.composite(composed, fixed);
+		return composed;
+	}
+
+	@Benchmark
+	public Mat movingUndimmed() {
+		frame.copyTo(composed);
+		undimmed.composite(composed, nextHomography());
+		return composed;
+	}
+
+	private double[] nextHomography() {
+		next = (next + 1) % HOMOGRAPHIES;
+		return homographies[next];
+	}
+
+	/**
+	 * Centered template with a small rotation and jitter in pixels
+	 */
+	private static double[] homography(int size, double jitter, Random random) {
+		double angle = Math.toRadians(5 + random.nextGaussian() * jitter);
+		double cos = Math.cos(angle), sin = Math.sin(angle);
+		double tx = (WIDTH - size) / 2.0 + random.nextGaussian() * jitter;
+		double ty = (HEIGHT - size) / 2.0 + random.nextGaussian() * jitter;
+		return new double[] { cos, -sin, tx, sin, cos, ty, 1e-5, 1e-5, 1 };
+	}
+}
@@ -0,0 +1,232 @@
+package de.stetro.recapturing;
+
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.opencv.calib3d.Calib3d;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDMatch;
+import org.opencv.core.MatOfKeyPoint;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.features2d.DescriptorExtractor;
+import org.opencv.features2d.DescriptorMatcher;
+import org.opencv.features2d.FeatureDetector;
+import org.opencv.highgui.Highgui;
+import org.opencv.imgproc.Imgproc;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.stetro.recapturing.feature.FeatureComponentRegistry;
+import de.stetro.recapturing.feature.MatchBuffer;
+import de.stetro.recapturing.pojo.FramePackage;
+import de.stetro.recapturing.registration.PhaseCorrelationRegistration;
+import de.stetro.recapturing.registration.PyramidRegistration;
+import de.stetro.recapturing.template.TemplateFeatures;
+
+/**
+ * Compares the single scale feature registration, the
+ * {@link PyramidRegistration} and the area based
+ * {@link PhaseCorrelationRegistration} on synthetic frames: the launcher icon
+ * warped with known random homographies onto a flat background. The accuracy
+ * is reported through the auxiliary counters, the mean corner error is
+ * cornerError / registered.
+ * 
+ * The icon is read relative to the system property recapturing.root
+ * (default: working directory = repository root).
+ * 
+ * @author Steffen Troester
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PyramidRegistrationBenchmark {
+
+	static {
+		nu.pattern.OpenCV.loadLocally();
+	}
+
+	private static final int FRAME_WIDTH = 680;
+	private static final int FRAME_HEIGHT = 460;
+	private static final int FRAMES = 16;
+	private static final int DISTANCE_LIMIT = 20;
+
+	@Param({ "2", "3" })
+	public int levels;
+
+	private FeatureComponentRegistry registry;
+	private PyramidRegistration pyramid;
+	private PhaseCorrelationRegistration phaseCorrelation;
+	private Mat template;
+	private MatOfKeyPoint templateKeyPoints;
+	private Mat templateDescriptors;
+	private Mat[] frames;
+	private double[][] truths;
+	private int next;
+	private FramePackage fp = new FramePackage();
+
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class Accuracy {
+
+		/**
+		 * summed mean corner distance to the ground truth in pixels
+		 */
+		public double cornerError;
+
+		public long registered;
+
+		public long failures;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			cornerError = 0;
+			registered = 0;
+			failures = 0;
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		File root = new File(System.getProperty("recapturing.root", "."));
+		File icon = new File(root, "ic_launcher-web.png");
+		Mat templateGray = Highgui.imread(icon.getAbsolutePath(), Highgui.CV_LOAD_IMAGE_GRAYSCALE);
+		if (templateGray.empty())
+			throw new IllegalStateException("Could not read " + icon + ", set -Drecapturing.root");
+		template = new Mat();
+		double scale = FRAME_WIDTH / 2.0 / templateGray.cols();
+		Imgproc.resize(templateGray, template, new Size(templateGray.cols() * scale, templateGray.rows() * scale));
+
+		registry = new FeatureComponentRegistry();
+		registry.configure(FeatureDetector.ORB, null, DescriptorExtractor.ORB, null, DescriptorMatcher.BRUTEFORCE_HAMMING);
+		templateKeyPoints = new MatOfKeyPoint();
+		templateDescriptors = new Mat();
+		registry.getDetector().detect(template, templateKeyPoints);
+		registry.getExtractor().compute(template, templateKeyPoints, templateDescriptors);
+		pyramid = new PyramidRegistration(registry);
+		pyramid.setLevels(levels);
+		pyramid.setDistanceLimit(DISTANCE_LIMIT);
+		pyramid.setTemplate(new TemplateFeatures("benchmark", template, templateKeyPoints, templateDescriptors));
+		phaseCorrelation = new PhaseCorrelationRegistration();
+		phaseCorrelation.setFrameSize(FRAME_WIDTH, FRAME_HEIGHT);
+		phaseCorrelation.setTemplate(template);
+
+		Random random = new Random(7);
+		frames = new Mat[FRAMES];
+		truths = new double[FRAMES][];
+		for (int i = 0; i < FRAMES; i++) {
+			truths[i] = randomHomography(template.cols(), template.rows(), random);
+			Mat truth = new Mat(3, 3, CvType.CV_64FC1);
+			truth.put(0, 0, truths[i]);
+			frames[i] = new Mat(FRAME_HEIGHT, FRAME_WIDTH, CvType.CV_8UC1, new Scalar(96));
+			Imgproc.warpPerspective(template, frames[i], truth, frames[i].size(), Imgproc.INTER_LINEAR, Imgproc.BORDER_TRANSPARENT, new Scalar(0));
+		}
+	}
+
+	@Benchmark
+	public Mat singleScale(Accuracy accuracy) {
+		int frame = nextFrame();
+		return count(accuracy, registerSingleScale(frames[frame]), frame);
+	}
+
+	@Benchmark
+	public Mat pyramid(Accuracy accuracy) {
+		int frame = nextFrame();
+		return count(accuracy, pyramid.register(frames[frame], fp), frame);
+	}
+
+	@Benchmark
+	public Mat phaseCorrelation(Accuracy accuracy) {
+		int frame = nextFrame();
+		return count(accuracy, phaseCorrelation.register(frames[frame], fp), frame);
+	}
+
+	private int nextFrame() {
+		next = (next + 1) % FRAMES;
+		return next;
+	}
+
+	private Mat count(Accuracy accuracy, Mat homography, int frame) {
+		if (homography == null) {
+			accuracy.failures++;
+		} else {
+			accuracy.registered++;
+			accuracy.cornerError += SyntheticScenes.cornerError(SyntheticScenes.toArray(homography), truths[frame], template.cols(), template.rows());
+		}
+		return homography;
+	}
+
+	/**
+	 * The registration of the feature based mode of the processor
+	 */
+	private Mat registerSingleScale(Mat frame) {
+		MatOfKeyPoint keyPoints = new MatOfKeyPoint();
+		Mat descriptors = new Mat();
+		MatOfDMatch matches = new MatOfDMatch();
+		registry.getDetector().detect(frame, keyPoints);
+		registry.getExtractor().compute(frame, keyPoints, descriptors);
+		registry.getMatcher().match(templateDescriptors, descriptors, matches);
+		MatchBuffer buffer = new MatchBuffer().read(matches);
+		float[] scene = new float[keyPoints.rows() * 7];
+		float[] object = new float[templateKeyPoints.rows() * 7];
+		if (scene.length == 0)
+			return null;
+		keyPoints.get(0, 0, scene);
+		templateKeyPoints.get(0, 0, object);
+		float[] objectPoints = new float[buffer.size() * 2];
+		float[] scenePoints = new float[buffer.size() * 2];
+		int count = 0;
+		for (int i = 0; i < buffer.size(); i++) {
+			if (buffer.getDistance(i) <= DISTANCE_LIMIT) {
+				objectPoints[count * 2] = object[buffer.getTemplateIndex(i) * 7];
+				objectPoints[count * 2 + 1] = object[buffer.getTemplateIndex(i) * 7 + 1];
+				scenePoints[count * 2] = scene[buffer.getSceneIndex(i) * 7];
+				scenePoints[count * 2 + 1] = scene[buffer.getSceneIndex(i) * 7 + 1];
+				count++;
+			}
+		}
+		if (count < 4)
+			return null;
+		MatOfPoint2f objectMat = new MatOfPoint2f();
+		objectMat.create(count, 1, CvType.CV_32FC2);
+		objectMat.put(0, 0, objectPoints);
+		MatOfPoint2f sceneMat = new MatOfPoint2f();
+		sceneMat.create(count, 1, CvType.CV_32FC2);
+		sceneMat.put(0, 0, scenePoints);
+		Mat homography = Calib3d.findHomography(objectMat, sceneMat, Calib3d.RANSAC, 10);
+		return homography.empty() ? null : homography;
+	}
+
+	/**
+	 * Small rotation, scale, translation and perspective that keeps the
+	 * template mostly inside the frame
+	 */
+	private static double[] randomHomography(int width, int height, Random random) {
+		double angle = Math.toRadians(random.nextDouble() * 20 - 10);
+		double scale = 0.8 + random.nextDouble() * 0.3;
+		double cos = Math.cos(angle) * scale;
+		double sin = Math.sin(angle) * scale;
+		double tx = (FRAME_WIDTH - width * scale) / 2 + (random.nextDouble() - 0.5) * 80;
+		double ty = (FRAME_HEIGHT - height * scale) / 2 + (random.nextDouble() - 0.5) * 60;
+		double px = (random.nextDouble() - 0.5) * 2e-4;
+		double py = (random.nextDouble() - 0.5) * 2e-4;
+		return new double[] { cos, -sin, tx, sin, cos, ty, px, py, 1 };
+	}
+}
@@ -0,0 +1,225 @@
+package de.stetro.recapturing;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfKeyPoint;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.features2d.DescriptorExtractor;
+import org.opencv.features2d.DescriptorMatcher;
+import org.opencv.features2d.FeatureDetector;
+import org.opencv.features2d.KeyPoint;
+import org.opencv.highgui.Highgui;
+import org.opencv.imgproc.Imgproc;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.stetro.recapturing.memory.MatArena;
+import de.stetro.recapturing.pojo.FramePackage;
+import de.stetro.recapturing.quality.QualityLevel;
+import de.stetro.recapturing.template.TemplateFeatures;
+
+/**
+ * Benchmarks each stage of the feature based registration of the
+ * {@link RecapturingProcessor} on frames built from the checked in images:
+ * the launcher icon is the template, warped with a fixed homography onto the
+ * preview picture. The frame stages run per frame size, the stages after the
+ * detection additionally per amount of strongest scene key points.
+ * 
+ * The images are read relative to the system property recapturing.root
+ * (default: working directory = repository root).
+ * 
+ * @author Steffen Troester
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StageBenchmark {
+
+	/**
+	 * fixed template to frame homography for a 680x460 frame, scaled for the
+	 * other sizes
+	 */
+	private static final double[] HOMOGRAPHY = { 0.52, -0.08, 190, 0.07, 0.5, 80, 0.00008, -0.00005, 1 };
+
+	/**
+	 * default quality with a detector budget that covers the largest key point
+	 * count of the {@link MatchState}
+	 */
+	private static final QualityLevel QUALITY = new QualityLevel(1000, 130, 8, 1.0, 60);
+
+	@State(Scope.Thread)
+	public static class FrameState {
+
+		static {
+			// the Mat fields of the states need the native library
+			nu.pattern.OpenCV.loadLocally();
+		}
+
+		@Param({ "320x240", "680x460", "1280x720" })
+		public String frameSize;
+
+		RecapturingProcessor processor;
+		TemplateFeatures template;
+		Mat rgbaFrame;
+		Mat grayFrame = new Mat();
+		MatOfKeyPoint keyPoints = new MatOfKeyPoint();
+		FramePackage fp = new FramePackage();
+
+		@Setup(Level.Trial)
+		public void setUp() {
+			String[] dimensions = frameSize.split("x");
+			int width = Integer.parseInt(dimensions[0]);
+			int height = Integer.parseInt(dimensions[1]);
+			File root = new File(System.getProperty("recapturing.root", "."));
+			Mat icon = read(new File(root, "ic_launcher-web.png"));
+			Mat background = read(new File(root, "res/drawable-xxhdpi/picture_preview.png"));
+
+			rgbaFrame = new Mat();
+			Imgproc.resize(background, rgbaFrame, new Size(width, height));
+			double scale = width / 680.0;
+			Mat homography = new Mat(3, 3, CvType.CV_64FC1);
+			homography.put(0, 0, HOMOGRAPHY[0] * scale, HOMOGRAPHY[1] * scale, HOMOGRAPHY[2] * scale, HOMOGRAPHY[3] * scale, HOMOGRAPHY[4] * scale, HOMOGRAPHY[5] * scale,
+					HOMOGRAPHY[6], HOMOGRAPHY[7], HOMOGRAPHY[8]);
+			Imgproc.warpPerspective(icon, rgbaFrame, homography, rgbaFrame.size(), Imgproc.INTER_LINEAR, Imgproc.BORDER_TRANSPARENT, new Scalar(0));
+
+			processor = new RecapturingProcessor();
+			processor.setQualityLevel(QUALITY);
+			processor.setTemplateQualityLevel(QUALITY);
+			processor.setFeatureMethods(FeatureDetector.ORB, DescriptorExtractor.ORB, DescriptorMatcher.BRUTEFORCE_HAMMING);
+			processor.prepareViewSize(width, height);
+			template = processor.createTemplateFeatures(icon, "launcher icon");
+			processor.setTemplate(template);
+			// the stages read the template from the applied configuration
+			processor.applyCurrentConfiguration(fp);
+			RecapturingProcessor.convertToGrayScaleImage(rgbaFrame, grayFrame);
+			processor.detectFeatures(grayFrame, keyPoints, fp);
+		}
+
+		private static Mat read(File file) {
+			Mat picture = Highgui.imread(file.getAbsolutePath(), Highgui.CV_LOAD_IMAGE_COLOR);
+			if (picture.empty())
+				throw new IllegalStateException("Could not read " + file + ", set -Drecapturing.root");
+			Imgproc.cvtColor(picture, picture, Imgproc.COLOR_BGR2RGBA);
+			return picture;
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class MatchState {
+
+		static {
+			nu.pattern.OpenCV.loadLocally();
+		}
+
+		@Param({ "250", "500", "1000" })
+		public int keyPointCount;
+
+		MatOfKeyPoint keyPoints = new MatOfKeyPoint();
+		Mat descriptors = new Mat();
+		Mat drawPicture = new Mat();
+		int filteredMatches;
+
+		@Setup(Level.Trial)
+		public void setUp(FrameState frame) {
+			List<KeyPoint> strongest = frame.keyPoints.toList();
+			Collections.sort(strongest, new Comparator<KeyPoint>() {
+				@Override
+				public int compare(KeyPoint a, KeyPoint b) {
+					return Float.compare(b.response, a.response);
+				}
+			});
+			keyPoints.fromList(strongest.subList(0, Math.min(keyPointCount, strongest.size())));
+			frame.processor.computeDescriptors(frame.grayFrame, keyPoints, descriptors, frame.fp);
+			frame.grayFrame.copyTo(drawPicture);
+			MatArena arena = frame.processor.getMatArena();
+			arena.beginFrame();
+			try {
+				frame.processor.findDescriptorMatches(descriptors, frame.template.getDescriptors(), frame.fp);
+				filteredMatches = frame.processor.filterBestMatches(frame.processor.getMatchBuffer(), keyPoints, drawPicture, frame.fp);
+			} finally {
+				arena.endFrame();
+			}
+		}
+	}
+
+	@Benchmark
+	public Mat grayScaleConversion(FrameState frame) {
+		RecapturingProcessor.convertToGrayScaleImage(frame.rgbaFrame, frame.grayFrame);
+		return frame.grayFrame;
+	}
+
+	@Benchmark
+	public MatOfKeyPoint detectFeatures(FrameState frame) {
+		MatOfKeyPoint keyPoints = new MatOfKeyPoint();
+		frame.processor.detectFeatures(frame.grayFrame, keyPoints, frame.fp);
+		return keyPoints;
+	}
+
+	@Benchmark
+	public Mat computeDescriptors(FrameState frame, MatchState match) {
+		Mat descriptors = new Mat();
+		frame.processor.computeDescriptors(frame.grayFrame, match.keyPoints, descriptors, frame.fp);
+		return descriptors;
+	}
+
+	/**
+	 * the stages take their Mats from the arena of the processor like inside
+	 * processFrame, so every call runs in its own arena frame
+	 */
+	@Benchmark
+	public Object findDescriptorMatches(FrameState frame, MatchState match) {
+		MatArena arena = frame.processor.getMatArena();
+		arena.beginFrame();
+		try {
+			frame.processor.findDescriptorMatches(match.descriptors, frame.template.getDescriptors(), frame.fp);
+		} finally {
+			arena.endFrame();
+		}
+		return frame.processor.getMatchBuffer();
+	}
+
+	@Benchmark
+	public int filterBestMatches(FrameState frame, MatchState match) {
+		MatArena arena = frame.processor.getMatArena();
+		arena.beginFrame();
+		try {
+			return frame.processor.filterBestMatches(frame.processor.getMatchBuffer(), match.keyPoints, match.drawPicture, frame.fp);
+		} finally {
+			arena.endFrame();
+		}
+	}
+
+	/**
+	 * RANSAC homography, warpPerspective and addWeighted
+	 */
+	@Benchmark
+	public Mat calculateHomography(FrameState frame, MatchState match) {
+		MatArena arena = frame.processor.getMatArena();
+		arena.beginFrame();
+		try {
+			frame.processor.calculateHomography(match.drawPicture, frame.fp, match.filteredMatches);
+		} finally {
+			arena.endFrame();
+		}
+		return match.drawPicture;
+	}
+}
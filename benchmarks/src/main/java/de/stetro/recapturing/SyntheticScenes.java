@@ -0,0 +1,63 @@
+package de.stetro.recapturing;
+
+import java.util.Random;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+
+/**
+ * Synthetic frames and homography checks shared by the benchmarks that do not
+ * read the checked in images
+ * 
+ * @author Steffen Troester
+ */
+final class SyntheticScenes {
+
+	private SyntheticScenes() {
+	}
+
+	/**
+	 * @return gray frame with weak noise and textured discs, so detectors
+	 *         find key points on every scale
+	 */
+	static Mat texturedFrame(int width, int height, int discs, Random random) {
+		Mat frame = new Mat(height, width, CvType.CV_8UC1);
+		Core.randn(frame, 128, 6);
+		Scalar color = new Scalar(0);
+		Point center = new Point();
+		for (int i = 0; i < discs; i++) {
+			color.val[0] = random.nextInt(256);
+			center.x = random.nextInt(width);
+			center.y = random.nextInt(height);
+			Core.circle(frame, center, 2 + random.nextInt(12), color, -1);
+		}
+		return frame;
+	}
+
+	/**
+	 * @return mean distance of the template corners projected by the
+	 *         homography and by the ground truth
+	 */
+	static double cornerError(double[] h, double[] truth, int width, int height) {
+		double error = 0;
+		for (int corner = 0; corner < 4; corner++) {
+			double x = (corner & 1) == 0 ? 0 : width;
+			double y = (corner & 2) == 0 ? 0 : height;
+			double w1 = h[6] * x + h[7] * y + h[8];
+			double w2 = truth[6] * x + truth[7] * y + truth[8];
+			double dx = (h[0] * x + h[1] * y + h[2]) / w1 - (truth[0] * x + truth[1] * y + truth[2]) / w2;
+			double dy = (h[3] * x + h[4] * y + h[5]) / w1 - (truth[3] * x + truth[4] * y + truth[5]) / w2;
+			error += Math.sqrt(dx * dx + dy * dy);
+		}
+		return error / 4;
+	}
+
+	static double[] toArray(Mat homography) {
+		double[] h = new double[9];
+		homography.get(0, 0, h);
+		return h;
+	}
+}
@@ -0,0 +1,164 @@
+package de.stetro.recapturing;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfKeyPoint;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.features2d.FeatureDetector;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.stetro.recapturing.feature.TiledFeatureDetector;
+
+/**
+ * Compares ORB on the whole frame with the {@link TiledFeatureDetector} for
+ * growing grids on a frame whose texture is concentrated in one corner. The
+ * spread of the key points is reported through the auxiliary counters:
+ * coveredCells / detections is the mean amount of cells of an 8x8 grid that
+ * contain key points.
+ * 
+ * @author Steffen Troester
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TiledDetectionBenchmark {
+
+	static {
+		nu.pattern.OpenCV.loadLocally();
+	}
+
+	private static final int WIDTH = 680;
+	private static final int HEIGHT = 460;
+	private static final int KEY_POINTS = 500;
+	private static final int COVERAGE_GRID = 8;
+
+	/**
+	 * columns x rows of the tiled detector
+	 */
+	@Param({ "2x2", "4x3", "6x4" })
+	public String grid;
+
+	private Mat frame;
+	private FeatureDetector orb;
+	private TiledFeatureDetector tiled;
+	private MatOfKeyPoint detected = new MatOfKeyPoint();
+	private float[] buffer = new float[0];
+	private boolean[] covered = new boolean[COVERAGE_GRID * COVERAGE_GRID];
+
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class Spread {
+
+		public long detections;
+
+		public long keyPoints;
+
+		public long coveredCells;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			detections = 0;
+			keyPoints = 0;
+			coveredCells = 0;
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		frame = createFrame(new Random(7));
+		orb = FeatureDetector.create(FeatureDetector.ORB);
+		String[] dimensions = grid.split("x");
+		int columns = Integer.parseInt(dimensions[0]), rows = Integer.parseInt(dimensions[1]);
+		tiled = new TiledFeatureDetector(columns, rows, 32, Runtime.getRuntime().availableProcessors());
+		// twice the cell share of the budget, like the processor
+		int cellFeatures = 2 * ((KEY_POINTS + columns * rows - 1) / (columns * rows));
+		File configuration = File.createTempFile("OpenCV", ".yml");
+		configuration.deleteOnExit();
+		FileWriter writer = new FileWriter(configuration);
+		try {
+			writer.write("<?xml version=\"1.0\"?>\n<opencv_storage>\n<nFeatures>" + cellFeatures + "</nFeatures>\n</opencv_storage>\n");
+		} finally {
+			writer.close();
+		}
+		tiled.configure(FeatureDetector.ORB, configuration.getAbsolutePath());
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		tiled.shutdown();
+	}
+
+	@Benchmark
+	public MatOfKeyPoint wholeFrame(Spread spread) {
+		orb.detect(frame, detected);
+		return count(spread);
+	}
+
+	@Benchmark
+	public MatOfKeyPoint tiled(Spread spread) {
+		tiled.detect(frame, detected, KEY_POINTS);
+		return count(spread);
+	}
+
+	private MatOfKeyPoint count(Spread spread) {
+		int size = detected.rows();
+		if (buffer.length < size * 7)
+			buffer = new float[size * 7];
+		if (size > 0)
+			detected.get(0, 0, buffer);
+		for (int i = 0; i < covered.length; i++) {
+			covered[i] = false;
+		}
+		for (int i = 0; i < size; i++) {
+			int column = Math.min(COVERAGE_GRID - 1, (int) (buffer[i * 7] * COVERAGE_GRID / WIDTH));
+			int row = Math.min(COVERAGE_GRID - 1, (int) (buffer[i * 7 + 1] * COVERAGE_GRID / HEIGHT));
+			if (!covered[row * COVERAGE_GRID + column]) {
+				covered[row * COVERAGE_GRID + column] = true;
+				spread.coveredCells++;
+			}
+		}
+		spread.detections++;
+		spread.keyPoints += size;
+		return detected;
+	}
+
+	/**
+	 * Weak noise everywhere and strong texture in the upper left quarter
+	 */
+	private static Mat createFrame(Random random) {
+		Mat frame = new Mat(HEIGHT, WIDTH, CvType.CV_8UC1);
+		Core.randn(frame, 128, 6);
+		Mat corner = frame.submat(0, HEIGHT / 2, 0, WIDTH / 2);
+		Scalar color = new Scalar(0);
+		for (int i = 0; i < 400; i++) {
+			color.val[0] = random.nextInt(256);
+			Point center = new Point(random.nextInt(WIDTH / 2), random.nextInt(HEIGHT / 2));
+			Core.circle(corner, center, 2 + random.nextInt(12), color, -1);
+		}
+		return frame;
+	}
+}
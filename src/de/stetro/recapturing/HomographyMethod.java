@@ -0,0 +1,19 @@
+package de.stetro.recapturing;
+
+/**
+ * Robust homography estimation of the {@link RecapturingProcessor}
+ * 
+ * @author Steffen Troester
+ * 
+ */
+public enum HomographyMethod {
+	/**
+	 * OpenCV {@link org.opencv.calib3d.Calib3d#findHomography} with RANSAC
+	 */
+	OPENCV_RANSAC,
+	/**
+	 * pure Java progressive sampling in match distance order, seeded with the
+	 * homography of the previous frame
+	 */
+	PROSAC
+}
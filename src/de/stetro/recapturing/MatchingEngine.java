@@ -0,0 +1,23 @@
+package de.stetro.recapturing;
+
+/**
+ * Descriptor matching implementations of the {@link RecapturingProcessor}
+ * 
+ * @author Steffen Troester
+ * 
+ */
+public enum MatchingEngine {
+	/**
+	 * OpenCV {@link org.opencv.features2d.DescriptorMatcher}
+	 */
+	OPENCV_BRUTEFORCE,
+	/**
+	 * pure Java multi core brute force on packed binary descriptors
+	 */
+	PACKED_HAMMING,
+	/**
+	 * multi index hashing over the template descriptors, built once per
+	 * template
+	 */
+	INDEXED_HAMMING
+}
@@ -0,0 +1,145 @@
+package de.stetro.recapturing;
+
+import de.stetro.recapturing.template.PreparedTemplate;
+import de.stetro.recapturing.template.TemplateLibrary;
+
+/**
+ * Immutable parameters and template of a {@link RecapturingProcessor}.
+ * Changes create a new configuration that the processor publishes
+ * atomically; a frame reads the configuration once when it starts and uses
+ * it until it is finished, so a change never blocks or tears a frame.
+ * 
+ * @author Steffen Troester
+ * 
+ */
+public final class ProcessorConfiguration {
+
+	public static final ProcessorConfiguration DEFAULT = new ProcessorConfiguration(RecapturingMode.FEAUTURE_BASED, MatchingEngine.OPENCV_BRUTEFORCE,
+			HomographyMethod.OPENCV_RANSAC, 20, 16, 1, false, null, null);
+
+	private final RecapturingMode mode;
+	private final MatchingEngine matchingEngine;
+	private final HomographyMethod homographyMethod;
+	private final int distanceLimit;
+	private final int indexSubstringBits;
+	private final int indexProbeRadius;
+	private final boolean consistencyFilter;
+	private final PreparedTemplate template;
+	private final TemplateLibrary templateLibrary;
+
+	private ProcessorConfiguration(RecapturingMode mode, MatchingEngine matchingEngine, HomographyMethod homographyMethod, int distanceLimit, int indexSubstringBits,
+			int indexProbeRadius, boolean consistencyFilter, PreparedTemplate template, TemplateLibrary templateLibrary) {
+		this.mode = mode;
+		this.matchingEngine = matchingEngine;
+		this.homographyMethod = homographyMethod;
+		this.distanceLimit = distanceLimit;
+		this.indexSubstringBits = indexSubstringBits;
+		this.indexProbeRadius = indexProbeRadius;
+		this.consistencyFilter = consistencyFilter;
+		this.template = template;
+		this.templateLibrary = templateLibrary;
+	}
+
+	public ProcessorConfiguration withMode(RecapturingMode mode) {
+		return new ProcessorConfiguration(mode, matchingEngine, homographyMethod, distanceLimit, indexSubstringBits, indexProbeRadius, consistencyFilter, template, templateLibrary);
+	}
+
+	/**
+	 * {@link MatchingEngine#INDEXED_HAMMING} needs a template with the index,
+	 * see {@link #withTemplate(PreparedTemplate)}
+	 */
+	public ProcessorConfiguration withMatchingEngine(MatchingEngine matchingEngine) {
+		return new ProcessorConfiguration(mode, matchingEngine, homographyMethod, distanceLimit, indexSubstringBits, indexProbeRadius, consistencyFilter, template, templateLibrary);
+	}
+
+	public ProcessorConfiguration withHomographyMethod(HomographyMethod homographyMethod) {
+		return new ProcessorConfiguration(mode, matchingEngine, homographyMethod, distanceLimit, indexSubstringBits, indexProbeRadius, consistencyFilter, template, templateLibrary);
+	}
+
+	public ProcessorConfiguration withDistanceLimit(int distanceLimit) {
+		return new ProcessorConfiguration(mode, matchingEngine, homographyMethod, distanceLimit, indexSubstringBits, indexProbeRadius, consistencyFilter, template, templateLibrary);
+	}
+
+	/**
+	 * The template has to be indexed again with the parameters if the indexed
+	 * matching is selected, see {@link #withTemplate(PreparedTemplate)}
+	 */
+	public ProcessorConfiguration withIndexParameters(int substringBits, int probeRadius) {
+		return new ProcessorConfiguration(mode, matchingEngine, homographyMethod, distanceLimit, substringBits, probeRadius, consistencyFilter, template, templateLibrary);
+	}
+
+	/**
+	 * @param consistencyFilter
+	 *            true removes matches that disagree with the dominant
+	 *            similarity transform before the homography estimation
+	 */
+	public ProcessorConfiguration withConsistencyFilter(boolean consistencyFilter) {
+		return new ProcessorConfiguration(mode, matchingEngine, homographyMethod, distanceLimit, indexSubstringBits, indexProbeRadius, consistencyFilter, template, templateLibrary);
+	}
+
+	/**
+	 * Does not build the index, so the configuration can be created inside a
+	 * compare and set loop
+	 * 
+	 * @param template
+	 *            template or null to register against no template, indexed
+	 *            with {@link PreparedTemplate#withIndex(int, int)} if the
+	 *            indexed matching is selected
+	 */
+	public ProcessorConfiguration withTemplate(PreparedTemplate template) {
+		return new ProcessorConfiguration(mode, matchingEngine, homographyMethod, distanceLimit, indexSubstringBits, indexProbeRadius, consistencyFilter, template, templateLibrary);
+	}
+
+	/**
+	 * @param templateLibrary
+	 *            library or null to disable the recognition
+	 */
+	public ProcessorConfiguration withTemplateLibrary(TemplateLibrary templateLibrary) {
+		return new ProcessorConfiguration(mode, matchingEngine, homographyMethod, distanceLimit, indexSubstringBits, indexProbeRadius, consistencyFilter, template, templateLibrary);
+	}
+
+	public RecapturingMode getMode() {
+		return mode;
+	}
+
+	public MatchingEngine getMatchingEngine() {
+		return matchingEngine;
+	}
+
+	public HomographyMethod getHomographyMethod() {
+		return homographyMethod;
+	}
+
+	/**
+	 * @return maximum descriptor distance of a good match
+	 */
+	public int getDistanceLimit() {
+		return distanceLimit;
+	}
+
+	public int getIndexSubstringBits() {
+		return indexSubstringBits;
+	}
+
+	public int getIndexProbeRadius() {
+		return indexProbeRadius;
+	}
+
+	public boolean isConsistencyFilter() {
+		return consistencyFilter;
+	}
+
+	/**
+	 * @return active template or null
+	 */
+	public PreparedTemplate getTemplate() {
+		return template;
+	}
+
+	/**
+	 * @return library whose templates are recognized or null
+	 */
+	public TemplateLibrary getTemplateLibrary() {
+		return templateLibrary;
+	}
+}
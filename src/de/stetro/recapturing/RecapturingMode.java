@@ -7,5 +7,14 @@ package de.stetro.recapturing;
  * 
  */
 public enum RecapturingMode {
-	AREA_BASED, FEAUTURE_BASED
+	AREA_BASED, FEAUTURE_BASED,
+	/**
+	 * feature registration on keyframes, optical flow tracking in between
+	 */
+	KLT_TRACKING,
+	/**
+	 * coarse registration on a downscaled pyramid level, refined at full
+	 * resolution in the predicted template region
+	 */
+	PYRAMID
 }
@@ -5,10 +5,8 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 
-import org.opencv.android.Utils;
 import org.opencv.calib3d.Calib3d;
 import org.opencv.core.Core;
 import org.opencv.core.CvType;
@@ -18,18 +16,40 @@ import org.opencv.core.MatOfKeyPoint;
 import org.opencv.core.MatOfPoint2f;
 import org.opencv.core.Point;
 import org.opencv.core.Scalar;
-import org.opencv.features2d.DMatch;
+import org.opencv.core.Size;
 import org.opencv.features2d.DescriptorExtractor;
 import org.opencv.features2d.DescriptorMatcher;
 import org.opencv.features2d.FeatureDetector;
 import org.opencv.features2d.Features2d;
-import org.opencv.features2d.KeyPoint;
 import org.opencv.imgproc.Imgproc;
 
-import android.graphics.Bitmap;
-import android.util.Log;
-import de.stetro.recapturing.main.MainActivity;
+import de.stetro.recapturing.diagnostics.AllocationCounter;
+import de.stetro.recapturing.diagnostics.RecapturingLog;
+import de.stetro.recapturing.feature.FeatureComponentRegistry;
+import de.stetro.recapturing.feature.MatchBuffer;
+import de.stetro.recapturing.feature.MultiIndexHashingIndex;
+import de.stetro.recapturing.feature.PackedDescriptors;
+import de.stetro.recapturing.feature.PackedHammingMatcher;
+import de.stetro.recapturing.feature.TiledFeatureDetector;
+import de.stetro.recapturing.frame.LumaFrame;
+import de.stetro.recapturing.memory.MatArena;
+import de.stetro.recapturing.metrics.StageMetrics;
+import de.stetro.recapturing.metrics.TelemetryRecorder;
+import de.stetro.recapturing.overlay.OverlayCompositor;
+import de.stetro.recapturing.pipeline.PipelinedProcessor;
 import de.stetro.recapturing.pojo.FramePackage;
+import de.stetro.recapturing.quality.AdaptiveQualityController;
+import de.stetro.recapturing.quality.QualityLevel;
+import de.stetro.recapturing.registration.HoughConsistencyFilter;
+import de.stetro.recapturing.registration.PhaseCorrelationRegistration;
+import de.stetro.recapturing.registration.ProsacHomographyEstimator;
+import de.stetro.recapturing.registration.PyramidRegistration;
+import de.stetro.recapturing.template.PreparedTemplate;
+import de.stetro.recapturing.template.TemplateFeatureCache;
+import de.stetro.recapturing.template.TemplateFeatures;
+import de.stetro.recapturing.template.TemplateLibrary;
+import de.stetro.recapturing.tracking.KeyframeTracker;
+import de.stetro.recapturing.tracking.MotionGate;
 
 /**
  * Image registration process with time measurement of each operation
@@ -41,58 +61,351 @@ public class RecapturingProcessor {
 	private static final String TAG = "Recapturing Processor";
 	private boolean registrationMethod = true;
 	private Mat grayPicture;
-	private Mat templateDescriptors;
-	private Mat templateGrayPicture;
-	private MatOfKeyPoint templateMatOfKeyPoint;
-	private MatOfDMatch matOfDMatchesOfSceneAndObject;
-	private Mat blitPicture;
-
-	private static final RecapturingMode MODE = RecapturingMode.FEAUTURE_BASED;
-
-	private static int DISTANCE_LIMIT = 20;
-	private static final int DESCRIPTOR_MATCHING_METHOD = DescriptorMatcher.BRUTEFORCE_HAMMING;
-	private static final int DESCRIPTOR_EXTRATOR_METHOD = DescriptorExtractor.ORB;
-	private static final int FEATURE_DETECTOR_METHOD = FeatureDetector.ORB;
-	private Mat templateMat;
+	/**
+	 * parameters and template, replaced atomically by the setters
+	 */
+	private final AtomicReference<ProcessorConfiguration> configuration = new AtomicReference<ProcessorConfiguration>(ProcessorConfiguration.DEFAULT);
+	/**
+	 * configuration of the frame in progress, only used by the frame stages
+	 * under the processor lock
+	 */
+	private ProcessorConfiguration active = ProcessorConfiguration.DEFAULT;
+	private final MatchBuffer matchBuffer = new MatchBuffer();
+	private final PackedDescriptors scenePackedDescriptors = new PackedDescriptors();
+	private final MultiIndexHashingIndex.Search indexSearch = new MultiIndexHashingIndex.Search();
+	private volatile PackedHammingMatcher packedHammingMatcher;
+	private int libraryTemplateId = -1;
+	private static final int LIBRARY_MINIMUM_VOTES = 8;
+	private final OverlayCompositor compositor = new OverlayCompositor();
+
+	private final KeyframeTracker tracker = new KeyframeTracker();
+	private volatile MotionGate motionGate;
+	/**
+	 * the {@link OverlayCompositor} holds the warped template of the last
+	 * registered frame, read by the feature stage without the processor lock
+	 */
+	private volatile boolean overlayValid;
+	private final double[] lastHomography = new double[9];
+	private long lastMatches;
+	private long lastInliers;
+	private final FeatureComponentRegistry featureComponents = new FeatureComponentRegistry();
+	/**
+	 * components of the template detection, configured with the template
+	 * quality level, so a template never gets the reduced feature set of a
+	 * lowered frame quality
+	 */
+	private final FeatureComponentRegistry templateComponents = new FeatureComponentRegistry();
+	private final PyramidRegistration pyramidRegistration = new PyramidRegistration(featureComponents);
+	private final PhaseCorrelationRegistration phaseCorrelation = new PhaseCorrelationRegistration();
+	/**
+	 * margin around every detection cell, covers the ORB border of 31 pixels
+	 */
+	private static final int TILE_MARGIN = 32;
+	/**
+	 * key points an ORB cell detector ranks per key point of its share of the
+	 * budget, the rest of the share is taken from denser cells
+	 */
+	private static final int TILE_FEATURE_FACTOR = 2;
+	/**
+	 * grid detection of the frames, null detects the whole frame at once
+	 */
+	private volatile TiledFeatureDetector tiledDetector;
+
+	private int descriptorMatchingMethod = DescriptorMatcher.BRUTEFORCE_HAMMING;
+	private int descriptorExtractorMethod = DescriptorExtractor.ORB;
+	private int featureDetectorMethod = FeatureDetector.ORB;
 	private final Scalar whitecolor = new Scalar(0xFF, 0xFF, 0xFF, 0xFF);
-	private static String filenameDetection;
-	private static String filename;;
+	/**
+	 * x, y, size, angle, response, octave and class id of a native key point
+	 */
+	private static final int KEY_POINT_FLOATS = 7;
+	private float[] sceneKeyPointBuffer = new float[0];
+	private float[] objectPointBuffer = new float[0];
+	private float[] scenePointBuffer = new float[0];
+	private float[] matchDistanceBuffer = new float[0];
+	private float[] objectShapeBuffer = new float[0];
+	private float[] sceneShapeBuffer = new float[0];
+	private final HoughConsistencyFilter consistencyFilter = new HoughConsistencyFilter();
+	private byte[] inlierMaskBuffer = new byte[0];
+	private volatile ProsacHomographyEstimator prosacEstimator;
+	private final double[] estimatedHomography = new double[9];
+	private final double[] previousHomography = new double[9];
+	private boolean previousHomographyValid;
+	private final MatOfPoint2f bestSceneKeyPoint = new MatOfPoint2f();
+	private final MatOfPoint2f bestObjectKeyPoint = new MatOfPoint2f();
+	private final Mat inlierMask = new Mat();
+	/**
+	 * native Mats of the frame, recycled when the frame is finished
+	 */
+	private final MatArena matArena = new MatArena();
+	private final Point circleCenter = new Point();
+	private AllocationCounter allocationCounter;
+	private final StageMetrics metrics = new StageMetrics();
+	private volatile TelemetryRecorder telemetryRecorder;
+	private volatile AdaptiveQualityController qualityController;
+	private volatile QualityLevel quality = QualityLevel.DEFAULT;
+	private volatile QualityLevel templateQuality = QualityLevel.DEFAULT;
+	/**
+	 * scale of the frame for detection and description, read by the feature
+	 * stage of the {@link PipelinedProcessor} without the processor lock
+	 */
+	private volatile double processingScale = 1;
+	/**
+	 * scaled frame of {@link #processFrame}, the feature stage of the
+	 * {@link PipelinedProcessor} passes its own buffer per frame slot
+	 */
+	private final Mat scaledGrayPicture = new Mat();
+	/**
+	 * empty destination size, the scaled size follows from the scale factors
+	 */
+	private static final Size SCALE_FACTOR_SIZE = new Size();
+	private String filenameDetection;
+	private String filename;
+	private String filenameTiles;
+	private String filenameTemplate;
+	private File configurationDirectory = new File(System.getProperty("java.io.tmpdir"));
+	/**
+	 * detector and extractor types with the configuration of the template
+	 * detection, part of the {@link TemplateFeatureCache} key
+	 */
+	private volatile String featureConfiguration;
+	private volatile TemplateFeatureCache templateFeatureCache;
 
 	/**
-	 * Prepares and allocate the gray scale {@link Mat} images
+	 * Prepares and allocate the gray scale {@link Mat} images and the feature
+	 * components used for every frame
 	 * 
 	 * @param width
 	 * @param height
 	 */
 	public synchronized void prepareViewSize(int width, int height) {
 		grayPicture = new Mat(height, width, CvType.CV_8UC1);
-		blitPicture = new Mat(height, width, CvType.CV_8UC1);
+		phaseCorrelation.setFrameSize(width, height);
+		configureFeatureComponents();
+	}
+
+	/**
+	 * Changes the feature detection, description and matching methods. The
+	 * cached components are replaced before the next frame is processed.
+	 * 
+	 * @param featureDetectorMethod
+	 *            {@link FeatureDetector} type
+	 * @param descriptorExtractorMethod
+	 *            {@link DescriptorExtractor} type
+	 * @param descriptorMatchingMethod
+	 *            {@link DescriptorMatcher} type
+	 */
+	public synchronized void setFeatureMethods(int featureDetectorMethod, int descriptorExtractorMethod, int descriptorMatchingMethod) {
+		this.featureDetectorMethod = featureDetectorMethod;
+		this.descriptorExtractorMethod = descriptorExtractorMethod;
+		this.descriptorMatchingMethod = descriptorMatchingMethod;
+		configureFeatureComponents();
+	}
+
+	/**
+	 * Writes the configuration files and (re)builds the cached
+	 * {@link FeatureDetector}, {@link DescriptorExtractor} and
+	 * {@link DescriptorMatcher} of the frames and the template
+	 */
+	private void configureFeatureComponents() {
+		configureFrameComponents();
+		configureTemplateComponents();
+	}
+
+	/**
+	 * Configures the components of the frames with the current
+	 * {@link QualityLevel}
+	 */
+	private void configureFrameComponents() {
 		setUpConfigurationFiles();
+		featureComponents.configure(featureDetectorMethod, filename, descriptorExtractorMethod, extractorConfigurationFile(), descriptorMatchingMethod);
+		if (tiledDetector != null)
+			configureTiledDetector(tiledDetector);
+	}
+
+	/**
+	 * Configures the components of the template detection with the template
+	 * quality level
+	 */
+	private void configureTemplateComponents() {
+		if (filenameTemplate == null)
+			filenameTemplate = getConfigurationFileName("yml");
+		String detectorConfiguration = writeConfiguration(filenameTemplate, detectorConfiguration(templateQuality));
+		// the extractor file is shared with and written by the frame components
+		String extractorConfiguration = extractorConfiguration();
+		templateComponents.configure(featureDetectorMethod, filenameTemplate, descriptorExtractorMethod, extractorConfigurationFile(), descriptorMatchingMethod);
+		featureConfiguration = featureDetectorMethod + "\n" + detectorConfiguration + descriptorExtractorMethod + "\n" + (extractorConfiguration == null ? "" : extractorConfiguration);
+	}
+
+	private String extractorConfigurationFile() {
+		return descriptorExtractorMethod == DescriptorExtractor.FREAK ? filenameDetection : null;
+	}
+
+	/**
+	 * Configures the cell detectors of the tiled detection. An ORB cell
+	 * detector ranks a small multiple of the cell share of the key point
+	 * budget instead of the budget of the whole frame.
+	 * 
+	 * @param tiled
+	 */
+	private void configureTiledDetector(TiledFeatureDetector tiled) {
+		if (featureDetectorMethod != FeatureDetector.ORB) {
+			tiled.configure(featureDetectorMethod, filename);
+			return;
+		}
+		if (filenameTiles == null)
+			filenameTiles = getConfigurationFileName("yml");
+		int cells = tiled.getColumns() * tiled.getRows();
+		int share = (quality.getMaxKeyPoints() + cells - 1) / cells;
+		writeFile(filenameTiles, orbConfiguration(share * TILE_FEATURE_FACTOR, quality.getPyramidLevels()));
+		tiled.configure(featureDetectorMethod, filenameTiles);
+	}
+
+	/**
+	 * Detects the frames in a grid of cells on all cores and spreads the key
+	 * point budget of the {@link QualityLevel} evenly over the cells. The
+	 * template is still detected as a whole.
+	 * 
+	 * @param columns
+	 *            cells per row, 0 detects the whole frame at once
+	 * @param rows
+	 *            cells per column, 0 detects the whole frame at once
+	 */
+	public synchronized void setTiledDetection(int columns, int rows) {
+		TiledFeatureDetector previous = tiledDetector;
+		if (columns > 0 && rows > 0) {
+			TiledFeatureDetector next = new TiledFeatureDetector(columns, rows, TILE_MARGIN, Runtime.getRuntime().availableProcessors());
+			if (featureComponents.isConfigured())
+				configureTiledDetector(next);
+			tiledDetector = next;
+		} else {
+			tiledDetector = null;
+		}
+		if (previous != null)
+			previous.shutdown();
+	}
+
+	public TiledFeatureDetector getTiledDetector() {
+		return tiledDetector;
 	}
 
 	/**
 	 * Generates configuration files for each {@link FeatureDetector} or
-	 * {@link DescriptorExtractor}
+	 * {@link DescriptorExtractor}. The paths are chosen once per processor
+	 * and directory and overwritten by every configuration.
 	 */
 	private void setUpConfigurationFiles() {
-		filename = MainActivity.getTempFileName("yml");
-		filenameDetection = MainActivity.getTempFileName("xml");
-		switch (FEATURE_DETECTOR_METHOD) {
+		if (filename == null) {
+			filename = getConfigurationFileName("yml");
+			filenameDetection = getConfigurationFileName("xml");
+		}
+		writeConfiguration(filename, detectorConfiguration(quality));
+		writeConfiguration(filenameDetection, extractorConfiguration());
+	}
+
+	/**
+	 * Writes a configuration file or deletes it if there is no configuration,
+	 * so the reused path never holds the settings of another component
+	 * 
+	 * @return the configuration or an empty string
+	 */
+	private static String writeConfiguration(String path, String configuration) {
+		if (configuration == null) {
+			new File(path).delete();
+			return "";
+		}
+		writeFile(path, configuration);
+		return configuration;
+	}
+
+	/**
+	 * @return configuration of the {@link FeatureDetector} for a quality
+	 *         level, null if the detector is not configured
+	 */
+	private String detectorConfiguration(QualityLevel level) {
+		switch (featureDetectorMethod) {
 		case FeatureDetector.FAST:
-			writeFile(filename, "<?xml version=\"1.0\"?>\n<opencv_storage>\n<threshold>130</threshold>\n<nonmaxSuppression>1</nonmaxSuppression>\n</opencv_storage>\n");
-			break;
+			return "<?xml version=\"1.0\"?>\n<opencv_storage>\n<threshold>" + level.getFastThreshold() + "</threshold>\n<nonmaxSuppression>1</nonmaxSuppression>\n</opencv_storage>\n";
 		case FeatureDetector.ORB:
-			writeFile(filename, "<?xml version=\"1.0\"?>\n<opencv_storage>\n<threshold>130</threshold>\n<nonmaxSuppression>1</nonmaxSuppression>\n</opencv_storage>\n");
-			break;
+			return orbConfiguration(level.getMaxKeyPoints(), level.getPyramidLevels());
 		case FeatureDetector.BRISK:
-			writeFile(filename, "%YAML:1.0\n" + "radiusList: 3.0\n" + "numberList: 3.0\n" + "dMax: 5.85\n" + "dMin: 8.2\n" + "indexChanges: 30\n" + "threshold: 10\n" + "octaves: 1\n");
-			break;
+			return "%YAML:1.0\n" + "radiusList: 3.0\n" + "numberList: 3.0\n" + "dMax: 5.85\n" + "dMin: 8.2\n" + "indexChanges: 30\n" + "threshold: 10\n" + "octaves: 1\n";
+		default:
+			return null;
 		}
-		switch (DESCRIPTOR_EXTRATOR_METHOD) {
+	}
+
+	/**
+	 * @return configuration of the {@link DescriptorExtractor}, null if the
+	 *         extractor is not configured
+	 */
+	private String extractorConfiguration() {
+		switch (descriptorExtractorMethod) {
 		case DescriptorExtractor.FREAK:
-			writeFile(filenameDetection, "%YAML:1.0\n" + "radiusList: 3.0\n" + "numberList: 3.0\n" + "dMax: 5.85\n" + "dMin: 8.2\n" + "indexChanges: 30\n" + "threshold: 10\n" + "nOctaves: 1\n");
-			break;
+			return "%YAML:1.0\n" + "radiusList: 3.0\n" + "numberList: 3.0\n" + "dMax: 5.85\n" + "dMin: 8.2\n" + "indexChanges: 30\n" + "threshold: 10\n" + "nOctaves: 1\n";
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * @param features
+	 *            maximum number of key points
+	 * @param levels
+	 *            scale pyramid levels
+	 * @return ORB detector configuration
+	 */
+	private static String orbConfiguration(int features, int levels) {
+		return "<?xml version=\"1.0\"?>\n<opencv_storage>\n<nFeatures>" + features + "</nFeatures>\n<nLevels>" + levels + "</nLevels>\n</opencv_storage>\n";
+	}
+
+	/**
+	 * Get a new file path in the configuration directory with a specific file
+	 * extension.
+	 * 
+	 * @param extension
+	 * @return String file path
+	 */
+	private String getConfigurationFileName(String extension) {
+		try {
+			File file = File.createTempFile("OpenCV", "." + extension, configurationDirectory);
+			String path = file.getAbsolutePath();
+			file.delete();
+			return path;
+		} catch (IOException e) {
+			RecapturingLog.e(TAG, "Failed to get configuration file name: " + e.getMessage());
 		}
+		return null;
+	}
+
+	/**
+	 * Directory of the generated detector and extractor configuration files,
+	 * the application cache directory on Android
+	 * 
+	 * @param configurationDirectory
+	 */
+	public synchronized void setConfigurationDirectory(File configurationDirectory) {
+		this.configurationDirectory = configurationDirectory;
+		deleteConfigurationFiles();
+	}
+
+	/**
+	 * Deletes the generated configuration files, the next configuration
+	 * chooses new paths
+	 */
+	private void deleteConfigurationFiles() {
+		if (filename != null)
+			new File(filename).delete();
+		if (filenameDetection != null)
+			new File(filenameDetection).delete();
+		if (filenameTiles != null)
+			new File(filenameTiles).delete();
+		if (filenameTemplate != null)
+			new File(filenameTemplate).delete();
+		filename = null;
+		filenameDetection = null;
+		filenameTiles = null;
+		filenameTemplate = null;
 	}
 
 	/**
@@ -120,131 +433,794 @@ public class RecapturingProcessor {
 	}
 
 	/**
-	 * Main process routine with input Image from {@link MainActivity} (Camera
+	 * Main process routine with an RGBA input image (camera frame or replayed
 	 * frame)
 	 * 
 	 * @param inputPicture
 	 * @return
 	 */
 	public synchronized FramePackage process(Mat inputPicture) {
+		long start = System.nanoTime();
+		convertToGrayScaleImage(inputPicture, grayPicture);
+		return processGray(grayPicture, start);
+	}
+
+	/**
+	 * Main process routine with a luma frame. Works directly on the luma plane
+	 * of the frame without a color conversion or copy, the template is drawn
+	 * into it, so {@link LumaFrame#rgba()} afterwards returns the composited
+	 * frame.
+	 * 
+	 * @param frame
+	 *            camera or replayed frame of the prepared view size
+	 * @return
+	 */
+	public synchronized FramePackage process(LumaFrame frame) {
+		long start = System.nanoTime();
+		return processGray(frame.gray(), start);
+	}
+
+	private FramePackage processGray(Mat grayPicture, long start) {
 		FramePackage fp = new FramePackage();
-		long start = System.currentTimeMillis();
+		processFrame(grayPicture, fp);
+		long end = System.nanoTime();
+		fp.setTotalNanos(end - start);
+		recordFrame(fp, end);
+		fp.setFrame(grayPicture);
+		return fp;
+	}
+
+	/**
+	 * Runs all stages of the current mode on a gray scale frame without
+	 * recording it. Used by the {@link PipelinedProcessor} for the modes that
+	 * are not split into a feature and a registration stage.
+	 * 
+	 * @param grayPicture
+	 *            gray scale frame, the template is drawn into it
+	 * @param fp
+	 */
+	public synchronized void processFrame(Mat grayPicture, FramePackage fp) {
+		applyConfiguration(frameConfiguration(fp));
+		RecapturingMode mode = active.getMode();
+		matArena.beginFrame();
+		try {
+			if (mode == RecapturingMode.FEAUTURE_BASED) {
+				MatOfKeyPoint matOfKeyPoint = matArena.acquireKeyPoints();
+				Mat descriptors = matArena.acquire();
+				extractFeatures(grayPicture, scaledGrayPicture, matOfKeyPoint, descriptors, fp);
+				registerFeatures(grayPicture, matOfKeyPoint, descriptors, fp);
+			} else if (mode == RecapturingMode.KLT_TRACKING) {
+				tracker.setFrame(grayPicture);
+				if (!trackTemplate(grayPicture, fp)) {
+					MatOfKeyPoint matOfKeyPoint = matArena.acquireKeyPoints();
+					Mat descriptors = matArena.acquire();
+					describeFrame(grayPicture, scaledGrayPicture, matOfKeyPoint, descriptors, fp);
+					registerFeatures(grayPicture, matOfKeyPoint, descriptors, fp);
+				}
+			} else if (mode == RecapturingMode.PYRAMID) {
+				if (skipRegistration(grayPicture, fp)) {
+					reuseOverlay(grayPicture, fp);
+				} else if (active.getTemplate() != null) {
+					pyramidRegistration.setDistanceLimit(active.getDistanceLimit());
+					Mat homography = matArena.adopt(pyramidRegistration.register(grayPicture, fp));
+					if (homography != null)
+						blendTemplate(grayPicture, homography, fp);
+					updateOverlay(fp);
+				}
+			} else {
+				if (skipRegistration(grayPicture, fp)) {
+					reuseOverlay(grayPicture, fp);
+				} else if (active.getTemplate() != null) {
+					Mat homography = phaseCorrelation.register(grayPicture, fp);
+					if (homography != null)
+						blendTemplate(grayPicture, homography, fp);
+					updateOverlay(fp);
+				}
+			}
+		} finally {
+			matArena.endFrame();
+		}
+	}
+
+	/**
+	 * First processing stage: gray scale conversion, feature detection and (if
+	 * a template is set) description. Only uses the cached feature components,
+	 * so it can run concurrently to {@link #registerFeatures}. Static frames
+	 * are only converted and marked as skipped.
+	 * 
+	 * @param inputPicture
+	 *            RGBA camera frame
+	 * @param grayPicture
+	 *            preallocated gray scale destination
+	 * @param scaledPicture
+	 *            reused destination of the frame at the processing scale
+	 * @param matOfKeyPoint
+	 *            reused key point destination
+	 * @param descriptors
+	 *            reused descriptor destination
+	 * @param fp
+	 */
+	public void extractFeatures(Mat inputPicture, Mat grayPicture, Mat scaledPicture, MatOfKeyPoint matOfKeyPoint, Mat descriptors, FramePackage fp) {
 		convertToGrayScaleImage(inputPicture, grayPicture);
-		if (MODE == RecapturingMode.FEAUTURE_BASED) {
-			MatOfKeyPoint matOfKeyPoint = detectFeatures(grayPicture, fp);
-			if (templateDescriptors != null) {
-				Mat descriptors = computeDescriptors(grayPicture, matOfKeyPoint, fp);
-				matOfDMatchesOfSceneAndObject = findDescriptorMatches(descriptors, templateDescriptors, fp);
+		extractFeatures(grayPicture, scaledPicture, matOfKeyPoint, descriptors, fp);
+	}
+
+	/**
+	 * First processing stage for a frame that is already gray scale, e.g. the
+	 * luma plane of a {@link LumaFrame}
+	 * 
+	 * @param grayPicture
+	 * @param scaledPicture
+	 *            reused destination of the frame at the processing scale
+	 * @param matOfKeyPoint
+	 *            reused key point destination
+	 * @param descriptors
+	 *            reused descriptor destination
+	 * @param fp
+	 */
+	public void extractFeatures(Mat grayPicture, Mat scaledPicture, MatOfKeyPoint matOfKeyPoint, Mat descriptors, FramePackage fp) {
+		frameConfiguration(fp);
+		if (!skipRegistration(grayPicture, fp))
+			describeFrame(grayPicture, scaledPicture, matOfKeyPoint, descriptors, fp);
+	}
+
+	/**
+	 * @return configuration of the frame, the current one if the frame has
+	 *         none yet
+	 */
+	private ProcessorConfiguration frameConfiguration(FramePackage fp) {
+		ProcessorConfiguration frameConfiguration = fp.getConfiguration();
+		if (frameConfiguration == null) {
+			frameConfiguration = configuration.get();
+			fp.setConfiguration(frameConfiguration);
+		}
+		return frameConfiguration;
+	}
+
+	/**
+	 * Makes the configuration of a frame the active one and updates the
+	 * state that depends on the template or the mode
+	 */
+	private void applyConfiguration(ProcessorConfiguration next) {
+		ProcessorConfiguration previous = active;
+		if (next == previous)
+			return;
+		active = next;
+		PreparedTemplate template = next.getTemplate();
+		PreparedTemplate previousTemplate = previous.getTemplate();
+		boolean templateChanged = template == null ? previousTemplate != null : previousTemplate == null
+				|| template.getFeatures() != previousTemplate.getFeatures();
+		boolean modeChanged = next.getMode() != previous.getMode();
+		if (templateChanged) {
+			compositor.setTemplate(template == null ? null : template.getFeatures().getGrayPicture());
+			previousHomographyValid = false;
+		}
+		if (templateChanged || modeChanged) {
+			tracker.reset();
+			overlayValid = false;
+			if (template != null && next.getMode() == RecapturingMode.PYRAMID)
+				pyramidRegistration.setTemplate(template.getFeatures());
+			if (template != null && next.getMode() == RecapturingMode.AREA_BASED)
+				phaseCorrelation.setTemplate(template.getFeatures().getGrayPicture());
+		}
+		if (next.getHomographyMethod() != previous.getHomographyMethod())
+			previousHomographyValid = false;
+		if (next.getTemplateLibrary() != previous.getTemplateLibrary())
+			libraryTemplateId = -1;
+	}
+
+	/**
+	 * Asks the {@link MotionGate} whether the registration of the frame can
+	 * be skipped, which needs an overlay of a previous frame
+	 * 
+	 * @return true if the frame is marked as skipped
+	 */
+	private boolean skipRegistration(Mat grayPicture, FramePackage fp) {
+		MotionGate gate = motionGate;
+		if (gate == null || !overlayValid || !gate.isStatic(grayPicture, System.nanoTime()))
+			return false;
+		fp.setRegistrationSkipped(true);
+		return true;
+	}
 
-				filterBestMatches(matOfDMatchesOfSceneAndObject, matOfKeyPoint, templateMatOfKeyPoint, grayPicture, fp);
+	/**
+	 * Blends the warped template of the last registered frame and copies its
+	 * homography and counts
+	 */
+	private void reuseOverlay(Mat grayPicture, FramePackage fp) {
+		if (!overlayValid)
+			return;
+		compositor.compositeLast(grayPicture);
+		fp.setHomography(lastHomography);
+		fp.setMatches(lastMatches);
+		fp.setInliers(lastInliers);
+	}
+
+	/**
+	 * Keeps the result of a registered frame for the following static frames
+	 */
+	private void updateOverlay(FramePackage fp) {
+		overlayValid = fp.isHomographyValid();
+		if (overlayValid) {
+			lastMatches = fp.getMatches();
+			lastInliers = fp.getInliers();
+		} else {
+			MotionGate gate = motionGate;
+			if (gate != null)
+				gate.invalidate();
+		}
+	}
+
+	/**
+	 * Detects and describes at the processing scale of the current
+	 * {@link QualityLevel}, the scale is stored in the frame package to map
+	 * the key points back to frame coordinates. The scaled picture belongs to
+	 * the caller, so the feature stage and the processor lock never share it.
+	 */
+	private void describeFrame(Mat grayPicture, Mat scaledPicture, MatOfKeyPoint matOfKeyPoint, Mat descriptors, FramePackage fp) {
+		double scale = processingScale;
+		Mat picture = grayPicture;
+		if (scale < 1) {
+			Imgproc.resize(grayPicture, scaledPicture, SCALE_FACTOR_SIZE, scale, scale, Imgproc.INTER_AREA);
+			picture = scaledPicture;
+		}
+		fp.setProcessingScale(scale);
+		detectFeatures(picture, matOfKeyPoint, fp);
+		ProcessorConfiguration frameConfiguration = fp.getConfiguration();
+		if (frameConfiguration.getTemplate() != null || frameConfiguration.getTemplateLibrary() != null) {
+			computeDescriptors(picture, matOfKeyPoint, descriptors, fp);
+		} else {
+			descriptors.release();
+		}
+	}
+
+	/**
+	 * Second processing stage: matching against the template, filtering and
+	 * homography. Draws the result into the gray picture.
+	 * 
+	 * @param grayPicture
+	 *            gray scale frame of {@link #extractFeatures}
+	 * @param matOfKeyPoint
+	 *            detected key points of the frame
+	 * @param descriptors
+	 *            descriptors of the frame, may be empty
+	 * @param fp
+	 */
+	public synchronized void registerFeatures(Mat grayPicture, MatOfKeyPoint matOfKeyPoint, Mat descriptors, FramePackage fp) {
+		applyConfiguration(frameConfiguration(fp));
+		if (fp.isRegistrationSkipped()) {
+			reuseOverlay(grayPicture, fp);
+			return;
+		}
+		matArena.beginFrame();
+		try {
+			if (active.getTemplateLibrary() != null && !descriptors.empty())
+				recognizeLibraryTemplate(descriptors, fp);
+			if (active.getTemplate() != null && !descriptors.empty()) {
+				findDescriptorMatches(descriptors, active.getTemplate().getFeatures().getDescriptors(), fp);
+				int count = filterBestMatches(matchBuffer, matOfKeyPoint, grayPicture, fp);
+				count = filterConsistentMatches(fp, count);
+				calculateHomography(grayPicture, fp, count);
 			} else {
 				Features2d.drawKeypoints(grayPicture, matOfKeyPoint, grayPicture);
 			}
+		} finally {
+			matArena.endFrame();
+		}
+		updateOverlay(fp);
+	}
+
+	/**
+	 * Lets the frame descriptors vote for a template of the library and
+	 * activates it for this and the following frames
+	 * 
+	 * @param descriptors
+	 * @param fp
+	 */
+	private void recognizeLibraryTemplate(Mat descriptors, FramePackage fp) {
+		TemplateLibrary templateLibrary = active.getTemplateLibrary();
+		scenePackedDescriptors.pack(descriptors);
+		int id = templateLibrary.recognize(scenePackedDescriptors, active.getDistanceLimit(), LIBRARY_MINIMUM_VOTES);
+		if (id >= 0 && id != libraryTemplateId) {
+			RecapturingLog.i(TAG, "recognized template " + templateLibrary.getName(id) + " with " + templateLibrary.getVotes(id) + " votes");
+			ProcessorConfiguration next = publishTemplate(new PreparedTemplate(templateLibrary.getTemplate(id)), false);
+			fp.setConfiguration(next);
+			applyConfiguration(next);
+			libraryTemplateId = id;
+		}
+	}
+
+	/**
+	 * Updates the homography of the last keyframe with optical flow
+	 * 
+	 * @param grayPicture
+	 * @param fp
+	 * @return false if a full registration is necessary
+	 */
+	private boolean trackTemplate(Mat grayPicture, FramePackage fp) {
+		if (active.getTemplate() == null || !tracker.isTracking())
+			return false;
+		long begin = System.nanoTime();
+		Mat homography = matArena.adopt(tracker.track());
+		if (homography == null) {
+			RecapturingLog.i(TAG, "Tracking lost, detecting features");
+			return false;
+		}
+		fp.setMatches(tracker.getTrackedPoints());
+		blendTemplate(grayPicture, homography, fp);
+		fp.setHomographyNanos(System.nanoTime() - begin);
+		return true;
+	}
+
+	/*
+	 * The timed stages are package private for the stage benchmarks
+	 */
+
+	void computeDescriptors(Mat grayPicture2, MatOfKeyPoint matOfKeyPoint, Mat descriptors, FramePackage fp) {
+		long begin = System.nanoTime();
+		computeDescriptors(grayPicture2, matOfKeyPoint, descriptors);
+		fp.setDescriptionNanos(System.nanoTime() - begin);
+	}
+
+	void findDescriptorMatches(Mat descriptors, Mat templateDescriptors2, FramePackage fp) {
+		long begin = System.nanoTime();
+		MatchingEngine matchingEngine = active.getMatchingEngine();
+		if (matchingEngine == MatchingEngine.PACKED_HAMMING) {
+			scenePackedDescriptors.pack(descriptors);
+			packedHammingMatcher.match(active.getTemplate().getPackedDescriptors(), scenePackedDescriptors, matchBuffer);
+		} else if (matchingEngine == MatchingEngine.INDEXED_HAMMING) {
+			scenePackedDescriptors.pack(descriptors);
+			active.getTemplate().getIndex().match(indexSearch, scenePackedDescriptors, matchBuffer);
 		} else {
-			if (templateGrayPicture != null) {
-				Point phaseCorrelate = Imgproc.phaseCorrelate(inputPicture, templateMat);
-				Core.line(grayPicture, phaseCorrelate, phaseCorrelate, whitecolor);
+			matchBuffer.read(findDescriptorMatches(descriptors, templateDescriptors2));
+		}
+		fp.setMatchingNanos(System.nanoTime() - begin);
+	}
+
+	void detectFeatures(Mat grayPicture2, MatOfKeyPoint matOfKeyPoint, FramePackage fp) {
+		long begin = System.nanoTime();
+		TiledFeatureDetector tiled = tiledDetector;
+		if (tiled != null && tiled.isConfigured())
+			tiled.detect(grayPicture2, matOfKeyPoint, quality.getMaxKeyPoints());
+		else
+			detectFeatures(grayPicture2, matOfKeyPoint);
+		fp.setDetectionNanos(System.nanoTime() - begin);
+		fp.setKeyPoints(matOfKeyPoint.rows());
+	}
+
+	/**
+	 * Keeps the matches below the distance limit. Reads the key points from
+	 * their native buffers into reused arrays, so no Java objects are created
+	 * per frame. Scene key points of a downscaled frame are scaled back to
+	 * frame coordinates.
+	 * 
+	 * @return amount of matches below the distance limit
+	 */
+	int filterBestMatches(MatchBuffer matchesOfBoth, MatOfKeyPoint matOfSceneKeyPoint, Mat grayPicture, FramePackage fp) {
+		long begin = System.nanoTime();
+		if (allocationCounter != null)
+			allocationCounter.begin();
+		sceneKeyPointBuffer = readKeyPoints(matOfSceneKeyPoint, sceneKeyPointBuffer);
+		float inverseScale = (float) (1 / fp.getProcessingScale());
+		int size = matchesOfBoth.size();
+		if (objectPointBuffer.length < size * 2) {
+			objectPointBuffer = new float[size * 2];
+			scenePointBuffer = new float[size * 2];
+			matchDistanceBuffer = new float[size];
+			objectShapeBuffer = new float[size * 2];
+			sceneShapeBuffer = new float[size * 2];
+		}
+		float[] templateKeyPointBuffer = active.getTemplate().getKeyPoints();
+		int distanceLimit = active.getDistanceLimit();
+		int count = 0;
+		for (int i = 0; i < size; i++) {
+			if (matchesOfBoth.getDistance(i) <= distanceLimit) {
+				int scene = matchesOfBoth.getSceneIndex(i) * KEY_POINT_FLOATS;
+				int object = matchesOfBoth.getTemplateIndex(i) * KEY_POINT_FLOATS;
+				scenePointBuffer[count * 2] = sceneKeyPointBuffer[scene] * inverseScale;
+				scenePointBuffer[count * 2 + 1] = sceneKeyPointBuffer[scene + 1] * inverseScale;
+				objectPointBuffer[count * 2] = templateKeyPointBuffer[object];
+				objectPointBuffer[count * 2 + 1] = templateKeyPointBuffer[object + 1];
+				matchDistanceBuffer[count] = matchesOfBoth.getDistance(i);
+				objectShapeBuffer[count * 2] = templateKeyPointBuffer[object + 2];
+				objectShapeBuffer[count * 2 + 1] = templateKeyPointBuffer[object + 3];
+				sceneShapeBuffer[count * 2] = sceneKeyPointBuffer[scene + 2] * inverseScale;
+				sceneShapeBuffer[count * 2 + 1] = sceneKeyPointBuffer[scene + 3];
+				if (grayPicture != null) {
+					circleCenter.x = scenePointBuffer[count * 2];
+					circleCenter.y = scenePointBuffer[count * 2 + 1];
+					Core.circle(grayPicture, circleCenter, 5, whitecolor);
+				}
+				count++;
 			}
 		}
-		fp.setDisplayRate(1000 / (System.currentTimeMillis() - start));
-		fp.setFrame(grayPicture);
-		return fp;
+		if (allocationCounter != null) {
+			fp.setFilterAllocations(allocationCounter.end());
+			metrics.recordAllocations(fp.getFilterAllocations());
+		}
+		fp.setFilterNanos(System.nanoTime() - begin);
+		return count;
+	}
+
+	/**
+	 * Removes the matches that disagree with the dominant similarity
+	 * transform of the {@link HoughConsistencyFilter}, if enabled. The time
+	 * is part of the filter stage.
+	 * 
+	 * @return amount of kept matches
+	 */
+	int filterConsistentMatches(FramePackage fp, int count) {
+		if (!active.isConsistencyFilter()) {
+			fp.setRejectedMatches(0);
+			return count;
+		}
+		long begin = System.nanoTime();
+		int kept = consistencyFilter.filter(objectPointBuffer, scenePointBuffer, objectShapeBuffer, sceneShapeBuffer, matchDistanceBuffer, count);
+		fp.setRejectedMatches(consistencyFilter.getRejected());
+		fp.setFilterNanos(fp.getFilterNanos() + System.nanoTime() - begin);
+		return kept;
 	}
 
-	private Mat computeDescriptors(Mat grayPicture2, MatOfKeyPoint matOfKeyPoint, FramePackage fp) {
-		Long begin = System.currentTimeMillis();
-		Mat computeDescriptors = computeDescriptors(grayPicture2, matOfKeyPoint);
-		fp.setDescriptionTime(System.currentTimeMillis() - begin);
-		return computeDescriptors;
-	}
-
-	private MatOfDMatch findDescriptorMatches(Mat descriptors, Mat templateDescriptors2, FramePackage fp) {
-		Long begin = System.currentTimeMillis();
-		MatOfDMatch findDescriptorMatches = findDescriptorMatches(descriptors, templateDescriptors2);
-		fp.setMatchingTime(System.currentTimeMillis() - begin);
-		return findDescriptorMatches;
-	}
-
-	private MatOfKeyPoint detectFeatures(Mat grayPicture2, FramePackage fp) {
-		Long begin = System.currentTimeMillis();
-		MatOfKeyPoint detectFeatures = detectFeatures(grayPicture2);
-		fp.setDetectionTime(System.currentTimeMillis() - begin);
-		return detectFeatures;
-	}
-
-	private void filterBestMatches(MatOfDMatch matchesOfBoth, MatOfKeyPoint matOfSceneKeyPoint, MatOfKeyPoint matOfObjectKeyPoint, Mat grayPicture, FramePackage fp) {
-		Long begin = System.currentTimeMillis();
-		List<DMatch> matchesList = matchesOfBoth.toList();
-		List<KeyPoint> sceneKeyPoints = matOfSceneKeyPoint.toList();
-		List<KeyPoint> objectKeyPoint = matOfObjectKeyPoint.toList();
-		List<Point> matchedPointsInScene = new ArrayList<Point>();
-		List<Point> matchedPointsInObject = new ArrayList<Point>();
-		for (int i = 0; i < matchesList.size(); i++) {
-			if (matchesList.get(i).distance <= DISTANCE_LIMIT) {
-				Point scenePoint = sceneKeyPoints.get(matchesList.get(i).trainIdx).pt;
-				Point objectPoint = objectKeyPoint.get(matchesList.get(i).queryIdx).pt;
-				matchedPointsInScene.add(scenePoint);
-				matchedPointsInObject.add(objectPoint);
-				if (grayPicture != null)
-					Core.circle(grayPicture, scenePoint, 5, new Scalar(0xFF, 0xFF, 0xFF, 0xFF));
+	/**
+	 * Estimates the homography from the first count matched points, which are
+	 * written into the preallocated {@link MatOfPoint2f}s
+	 * {@link #bestObjectKeyPoint} and {@link #bestSceneKeyPoint}
+	 */
+	void calculateHomography(Mat grayPicture, FramePackage fp, int count) {
+		long begin;
+		fp.setMatches(count);
+		if (count >= 4) {
+			bestSceneKeyPoint.create(count, 1, CvType.CV_32FC2);
+			bestSceneKeyPoint.put(0, 0, scenePointBuffer);
+			bestObjectKeyPoint.create(count, 1, CvType.CV_32FC2);
+			bestObjectKeyPoint.put(0, 0, objectPointBuffer);
+			begin = System.nanoTime();
+			Mat homography;
+			if (active.getHomographyMethod() == HomographyMethod.PROSAC) {
+				homography = estimateProsacHomography(count);
+			} else {
+				homography = matArena.adopt(Calib3d.findHomography(bestObjectKeyPoint, bestSceneKeyPoint, Calib3d.RANSAC, 10, inlierMask));
+				// Mat homography = Calib3d.findHomography(bestObjectKeyPoint,
+				// bestSceneKeyPoint, Calib3d.LMEDS,10);
 			}
+			fp.setInliers(homography.empty() ? 0 : Core.countNonZero(inlierMask));
+			if (active.getMode() == RecapturingMode.KLT_TRACKING && !homography.empty())
+				tracker.startTracking(bestObjectKeyPoint, bestSceneKeyPoint, inlierMask);
+			if (!homography.empty())
+				blendTemplate(grayPicture, homography, fp);
+			fp.setHomographyNanos(System.nanoTime() - begin);
 		}
-		fp.setFilterTime(System.currentTimeMillis() - begin);
+	}
 
-		calculateHomography(grayPicture, fp, matchedPointsInScene, matchedPointsInObject);
+	/**
+	 * Runs the {@link ProsacHomographyEstimator} on the filtered matches,
+	 * seeded with the homography of the previous frame
+	 * 
+	 * @return homography or an empty {@link Mat}
+	 */
+	private Mat estimateProsacHomography(int count) {
+		if (inlierMaskBuffer.length < count)
+			inlierMaskBuffer = new byte[matchDistanceBuffer.length];
+		int inliers = prosacEstimator.estimate(objectPointBuffer, scenePointBuffer, matchDistanceBuffer, count, previousHomographyValid ? previousHomography : null,
+				estimatedHomography, inlierMaskBuffer);
+		previousHomographyValid = inliers > 0;
+		if (!previousHomographyValid)
+			return matArena.adopt(new Mat());
+		System.arraycopy(estimatedHomography, 0, previousHomography, 0, 9);
+		inlierMask.create(count, 1, CvType.CV_8UC1);
+		inlierMask.put(0, 0, inlierMaskBuffer);
+		Mat homography = matArena.acquire(3, 3, CvType.CV_64FC1);
+		homography.put(0, 0, estimatedHomography);
+		return homography;
+	}
 
+	private static float[] readKeyPoints(MatOfKeyPoint keyPoints, float[] buffer) {
+		int size = keyPoints.rows() * KEY_POINT_FLOATS;
+		if (buffer.length < size)
+			buffer = new float[size];
+		if (size > 0)
+			keyPoints.get(0, 0, buffer);
+		return buffer;
 	}
 
-	private void calculateHomography(Mat grayPicture, FramePackage fp, List<Point> matchedPointsInScene, List<Point> matchedPointsInObject) {
-		Long begin;
-		fp.setMatches(matchedPointsInScene.size());
-		if (matchedPointsInScene.size() >= 4) {
-			begin = System.currentTimeMillis();
-			MatOfPoint2f bestSceneKeyPoint = new MatOfPoint2f();
-			bestSceneKeyPoint.fromList(matchedPointsInScene);
-			MatOfPoint2f bestObjectKeyPoint = new MatOfPoint2f();
-			bestObjectKeyPoint.fromList(matchedPointsInObject);
-			Mat homography = Calib3d.findHomography(bestObjectKeyPoint, bestSceneKeyPoint, Calib3d.RANSAC, 10);
-			// Mat homography = Calib3d.findHomography(bestObjectKeyPoint,
-			// bestSceneKeyPoint, Calib3d.LMEDS,10);
-			Imgproc.warpPerspective(templateGrayPicture, blitPicture, homography, blitPicture.size());
-			Core.addWeighted(grayPicture, 0.5, blitPicture, 0.5, 0.0, grayPicture);
-			fp.setDltTime(System.currentTimeMillis() - begin);
-		}
+	private void blendTemplate(Mat grayPicture, Mat homography, FramePackage fp) {
+		if (homography.empty())
+			return;
+		fp.setHomography(homography);
+		System.arraycopy(fp.getHomography(), 0, lastHomography, 0, 9);
+		compositor.composite(grayPicture, fp.getHomography());
 	}
 
-	private static MatOfDMatch findDescriptorMatches(Mat descriptors, Mat templateDescriptors) {
-		DescriptorMatcher descriptorMatcher = DescriptorMatcher.create(DESCRIPTOR_MATCHING_METHOD);
-		MatOfDMatch matches = new MatOfDMatch();
+	private MatOfDMatch findDescriptorMatches(Mat descriptors, Mat templateDescriptors) {
+		MatOfDMatch matches = matArena.acquireMatches();
 		try {
-			descriptorMatcher.match(templateDescriptors, descriptors, matches);
+			featureComponents.getMatcher().match(templateDescriptors, descriptors, matches);
 		} catch (Exception e) {
-			Log.e(TAG, "Feature Matching was not successfully");
+			RecapturingLog.e(TAG, "Feature Matching was not successfully");
 		}
 		return matches;
 	}
 
-	private static Mat computeDescriptors(Mat inputPicture, MatOfKeyPoint matOfKeyPoint) {
-		Mat descriptors = new Mat();
-		DescriptorExtractor descriptorExtractor = DescriptorExtractor.create(DESCRIPTOR_EXTRATOR_METHOD);
-		// descriptorExtractor.read(filenameDetection);
-		descriptorExtractor.compute(inputPicture, matOfKeyPoint, descriptors);
-		return descriptors;
+	private void computeDescriptors(Mat inputPicture, MatOfKeyPoint matOfKeyPoint, Mat descriptors) {
+		synchronized (featureComponents) {
+			featureComponents.getExtractor().compute(inputPicture, matOfKeyPoint, descriptors);
+		}
 	}
 
-	private static MatOfKeyPoint detectFeatures(Mat inputPicture) {
-
-		FeatureDetector featureDetector = FeatureDetector.create(FEATURE_DETECTOR_METHOD);
-		featureDetector.read(filename);
-		MatOfKeyPoint matOfKeyPoint = new MatOfKeyPoint();
-		featureDetector.detect(inputPicture, matOfKeyPoint);
-		return matOfKeyPoint;
+	private void detectFeatures(Mat inputPicture, MatOfKeyPoint matOfKeyPoint) {
+		synchronized (featureComponents) {
+			featureComponents.getDetector().detect(inputPicture, matOfKeyPoint);
+		}
 	}
 
-	private static void convertToGrayScaleImage(Mat inputPicture, Mat destinationPicture) {
+	static void convertToGrayScaleImage(Mat inputPicture, Mat destinationPicture) {
 		Imgproc.cvtColor(inputPicture, destinationPicture, Imgproc.COLOR_RGB2GRAY);
 	}
 
+	/**
+	 * Switches the registration mode, the next frame starts with a full
+	 * registration
+	 * 
+	 * @param mode
+	 */
+	public void setMode(RecapturingMode mode) {
+		ProcessorConfiguration current;
+		do {
+			current = configuration.get();
+		} while (!configuration.compareAndSet(current, current.withMode(mode)));
+	}
+
+	public RecapturingMode getMode() {
+		return configuration.get().getMode();
+	}
+
+	/**
+	 * @return current parameters and template, the running frame may still
+	 *         use the previous ones
+	 */
+	public ProcessorConfiguration getConfiguration() {
+		return configuration.get();
+	}
+
+	/**
+	 * Forgets everything carried over from previous frames (tracked key
+	 * frame, reused overlay and homography seed), so the next frame is
+	 * registered independently, e.g. for unrelated pictures of a batch
+	 */
+	public synchronized void resetHistory() {
+		tracker.reset();
+		overlayValid = false;
+		previousHomographyValid = false;
+		MotionGate gate = motionGate;
+		if (gate != null)
+			gate.invalidate();
+	}
+
+	/**
+	 * Switches the descriptor matching implementation
+	 * 
+	 * @param matchingEngine
+	 */
+	public void setMatchingEngine(final MatchingEngine matchingEngine) {
+		if (matchingEngine == MatchingEngine.PACKED_HAMMING && packedHammingMatcher == null) {
+			synchronized (configuration) {
+				if (packedHammingMatcher == null)
+					packedHammingMatcher = new PackedHammingMatcher();
+			}
+		}
+		publishIndexed(new ConfigurationUpdate() {
+			@Override
+			public ProcessorConfiguration apply(ProcessorConfiguration current) {
+				return current.withMatchingEngine(matchingEngine);
+			}
+		});
+	}
+
+	/**
+	 * Switches the robust homography estimation
+	 * 
+	 * @param homographyMethod
+	 */
+	public void setHomographyMethod(HomographyMethod homographyMethod) {
+		if (homographyMethod == HomographyMethod.PROSAC && prosacEstimator == null) {
+			synchronized (configuration) {
+				if (prosacEstimator == null)
+					prosacEstimator = new ProsacHomographyEstimator();
+			}
+		}
+		ProcessorConfiguration current;
+		do {
+			current = configuration.get();
+		} while (!configuration.compareAndSet(current, current.withHomographyMethod(homographyMethod)));
+	}
+
+	public HomographyMethod getHomographyMethod() {
+		return configuration.get().getHomographyMethod();
+	}
+
+	/**
+	 * @return the estimator to configure threshold and confidence, null until
+	 *         {@link HomographyMethod#PROSAC} was selected
+	 */
+	public ProsacHomographyEstimator getProsacEstimator() {
+		return prosacEstimator;
+	}
+
+	/**
+	 * Tunes recall against speed of {@link MatchingEngine#INDEXED_HAMMING}, see
+	 * {@link MultiIndexHashingIndex}
+	 * 
+	 * @param substringBits
+	 *            8 or 16 bits per hash table key
+	 * @param probeRadius
+	 *            0 or 1
+	 */
+	public void setIndexParameters(final int substringBits, final int probeRadius) {
+		// validates the parameters before they are published
+		new MultiIndexHashingIndex(substringBits, probeRadius);
+		publishIndexed(new ConfigurationUpdate() {
+			@Override
+			public ProcessorConfiguration apply(ProcessorConfiguration current) {
+				return current.withIndexParameters(substringBits, probeRadius);
+			}
+		});
+	}
+
+	/**
+	 * Records a finished frame in the {@link StageMetrics} and the telemetry
+	 * log and sets its display rate
+	 * 
+	 * @param fp
+	 *            finished frame
+	 * @param completionNanos
+	 *            {@link System#nanoTime()} when the frame was finished
+	 */
+	public void recordFrame(FramePackage fp, long completionNanos) {
+		metrics.recordFrame(fp, completionNanos);
+		fp.setDisplayRate(metrics.getFramesPerSecond());
+		TelemetryRecorder recorder = telemetryRecorder;
+		if (recorder != null) {
+			ProcessorConfiguration frameConfiguration = fp.getConfiguration() != null ? fp.getConfiguration() : configuration.get();
+			recorder.record(fp, completionNanos, frameConfiguration.getMode().ordinal(), frameConfiguration.getMatchingEngine().ordinal(), featureDetectorMethod,
+					descriptorExtractorMethod, descriptorMatchingMethod, frameConfiguration.getDistanceLimit());
+		}
+		AdaptiveQualityController controller = qualityController;
+		if (controller != null) {
+			QualityLevel level = controller.onFrame(fp);
+			if (level != null) {
+				RecapturingLog.i(TAG, "quality level " + controller.getLevelIndex() + ": " + level);
+				setQualityLevel(level);
+			}
+		}
+	}
+
+	/**
+	 * Applies the key point count, FAST threshold and pyramid levels to the
+	 * detector, the processing scale to the following frames and the keyframe
+	 * interval to the tracker
+	 * 
+	 * @param quality
+	 */
+	public synchronized void setQualityLevel(QualityLevel quality) {
+		QualityLevel previous = this.quality;
+		this.quality = quality;
+		processingScale = quality.getProcessingScale();
+		tracker.setMaximumFramesBetweenKeyframes(quality.getKeyframeInterval());
+		if (previous.differsInDetection(quality) && featureComponents.isConfigured())
+			configureFrameComponents();
+	}
+
+	public synchronized QualityLevel getQualityLevel() {
+		return quality;
+	}
+
+	/**
+	 * Sets the key point count, FAST threshold and pyramid levels of the
+	 * template detection. Templates keep this level while the
+	 * {@link AdaptiveQualityController} lowers the quality of the frames.
+	 * 
+	 * @param templateQuality
+	 *            {@link QualityLevel#DEFAULT} if not set
+	 */
+	public synchronized void setTemplateQualityLevel(QualityLevel templateQuality) {
+		this.templateQuality = templateQuality;
+		if (featureComponents.isConfigured())
+			configureTemplateComponents();
+	}
+
+	/**
+	 * Lets a controller adapt the {@link QualityLevel} to its frame budget
+	 * after every recorded frame
+	 * 
+	 * @param qualityController
+	 *            controller or null to keep the current level
+	 */
+	public void setQualityController(AdaptiveQualityController qualityController) {
+		this.qualityController = qualityController;
+	}
+
+	public AdaptiveQualityController getQualityController() {
+		return qualityController;
+	}
+
+	/**
+	 * @return the compositor to configure the warp cache tolerance and the
+	 *         background dimming
+	 */
+	public OverlayCompositor getCompositor() {
+		return compositor;
+	}
+
+	/**
+	 * Skips the registration of frames without motion and reuses the overlay
+	 * of the last registered frame. The KLT tracking mode is not gated, its
+	 * tracking is already cheap.
+	 * 
+	 * @param motionGate
+	 *            gate or null to register every frame
+	 */
+	public void setMotionGate(MotionGate motionGate) {
+		this.motionGate = motionGate;
+	}
+
+	public MotionGate getMotionGate() {
+		return motionGate;
+	}
+
+	/**
+	 * Appends a record of every finished frame to a telemetry ring file
+	 * 
+	 * @param telemetryRecorder
+	 *            recorder or null to disable
+	 */
+	public void setTelemetryRecorder(TelemetryRecorder telemetryRecorder) {
+		this.telemetryRecorder = telemetryRecorder;
+	}
+
+	/**
+	 * @return latency histograms and counts of all processed frames, also
+	 *         recorded by the {@link PipelinedProcessor}
+	 */
+	public StageMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * @return pool of the native Mats of the frames, with their native bytes
+	 *         and leak counts
+	 */
+	public MatArena getMatArena() {
+		return matArena;
+	}
+
+	/**
+	 * Applies the current configuration like the start of
+	 * {@link #processFrame(Mat, FramePackage)}, for callers of the single
+	 * stages
+	 * 
+	 * @param fp
+	 *            frame that takes the configuration
+	 */
+	synchronized void applyCurrentConfiguration(FramePackage fp) {
+		fp.setConfiguration(null);
+		applyConfiguration(frameConfiguration(fp));
+	}
+
+	/**
+	 * @return matches of the last {@link #findDescriptorMatches} call
+	 */
+	MatchBuffer getMatchBuffer() {
+		return matchBuffer;
+	}
+
+	/**
+	 * @return the pure Java matcher to configure ratio test and cross check,
+	 *         null until {@link MatchingEngine#PACKED_HAMMING} was selected
+	 */
+	public PackedHammingMatcher getPackedHammingMatcher() {
+		return packedHammingMatcher;
+	}
+
 	public void toggleRegistrationMethod() {
 		registrationMethod = !registrationMethod;
 	}
@@ -253,17 +1229,243 @@ public class RecapturingProcessor {
 
 	}
 
-	public void setTemplateBitmap(Bitmap bitmap) {
-		templateMat = new Mat();
-		Utils.bitmapToMat(bitmap, templateMat);
-		templateGrayPicture = new Mat(bitmap.getHeight(), bitmap.getWidth(), CvType.CV_8UC1);
-		convertToGrayScaleImage(templateMat, templateGrayPicture);
-		templateMatOfKeyPoint = detectFeatures(templateGrayPicture);
-		Log.i(TAG, "loaded image has " + templateMatOfKeyPoint.toList().size() + " Keypoints");
-		templateDescriptors = computeDescriptors(templateGrayPicture, templateMatOfKeyPoint);
+	/**
+	 * Sets a single RGBA template picture and leaves the template library
+	 * 
+	 * @param rgbaPicture
+	 */
+	public void setTemplatePicture(Mat rgbaPicture) {
+		setPreparedTemplate(prepareTemplate(rgbaPicture, "picture"));
+	}
+
+	/**
+	 * Computes or loads the template features of a RGBA picture without
+	 * activating them, so it can run on a background thread while frames are
+	 * processed
+	 * 
+	 * @param rgbaPicture
+	 * @param name
+	 * @return template for {@link #setPreparedTemplate(PreparedTemplate)}
+	 */
+	public PreparedTemplate prepareTemplate(Mat rgbaPicture, String name) {
+		return new PreparedTemplate(loadTemplateFeatures(rgbaPicture, name));
+	}
+
+	/**
+	 * Activates a prepared template with the next frame and leaves the
+	 * template library
+	 * 
+	 * @param template
+	 */
+	public void setPreparedTemplate(PreparedTemplate template) {
+		publishTemplate(template, true);
+	}
+
+	/**
+	 * Loads template features from the {@link TemplateFeatureCache} or
+	 * computes and caches them on a miss
+	 * 
+	 * @param rgbaPicture
+	 * @param name
+	 * @return template features
+	 */
+	private TemplateFeatures loadTemplateFeatures(Mat rgbaPicture, String name) {
+		TemplateFeatureCache templateFeatureCache = this.templateFeatureCache;
+		if (templateFeatureCache == null)
+			return createTemplateFeatures(rgbaPicture, name);
+		ensureConfigured();
+		String key = templateFeatureCache.key(rgbaPicture, featureConfiguration);
+		TemplateFeatures template = templateFeatureCache.get(key);
+		if (template == null) {
+			template = createTemplateFeatures(rgbaPicture, name);
+			try {
+				templateFeatureCache.put(key, template);
+			} catch (IOException e) {
+				RecapturingLog.e(TAG, "Template features could not be cached: " + e.getMessage());
+			}
+		}
+		RecapturingLog.i(TAG, "template feature cache hits: " + templateFeatureCache.getHits() + " misses: " + templateFeatureCache.getMisses());
+		return template;
+	}
+
+	/**
+	 * Caches template features on disk, keyed by template content and feature
+	 * configuration
+	 * 
+	 * @param templateFeatureCache
+	 *            cache or null to disable
+	 */
+	public void setTemplateFeatureCache(TemplateFeatureCache templateFeatureCache) {
+		this.templateFeatureCache = templateFeatureCache;
 	}
 
+	/**
+	 * Converts a RGBA template image and computes its key points and
+	 * descriptors with the template quality level. Uses its own feature
+	 * components, not the ones of the frames or the processor lock.
+	 * 
+	 * @param rgbaPicture
+	 * @param name
+	 * @return template features, e.g. to write a {@link TemplateLibrary}
+	 */
+	public TemplateFeatures createTemplateFeatures(Mat rgbaPicture, String name) {
+		ensureConfigured();
+		Mat grayTemplate = new Mat(rgbaPicture.rows(), rgbaPicture.cols(), CvType.CV_8UC1);
+		convertToGrayScaleImage(rgbaPicture, grayTemplate);
+		MatOfKeyPoint keyPoints = new MatOfKeyPoint();
+		Mat descriptors = new Mat();
+		synchronized (templateComponents) {
+			FeatureComponentRegistry.Components components = templateComponents.getComponents();
+			components.getDetector().detect(grayTemplate, keyPoints);
+			RecapturingLog.i(TAG, "loaded image has " + keyPoints.rows() + " Keypoints");
+			components.getExtractor().compute(grayTemplate, keyPoints, descriptors);
+		}
+		return new TemplateFeatures(name, grayTemplate, keyPoints, descriptors);
+	}
+
+	/**
+	 * Activates precomputed template features with the next frame
+	 * 
+	 * @param template
+	 */
+	public void setTemplate(TemplateFeatures template) {
+		publishTemplate(new PreparedTemplate(template), false);
+	}
+
+	/**
+	 * Publishes a prepared template, the index is built by the calling thread
+	 * if the indexed matching is selected
+	 * 
+	 * @param template
+	 * @param leaveLibrary
+	 *            true to also stop the recognition of library templates
+	 * @return published configuration
+	 */
+	private ProcessorConfiguration publishTemplate(final PreparedTemplate template, final boolean leaveLibrary) {
+		return publishIndexed(new ConfigurationUpdate() {
+			@Override
+			public ProcessorConfiguration apply(ProcessorConfiguration current) {
+				ProcessorConfiguration next = current.withTemplate(template);
+				return leaveLibrary ? next.withTemplateLibrary(null) : next;
+			}
+		});
+	}
+
+	/**
+	 * Publishes an update that may need the index of the template. The index
+	 * is built before the compare and set, so a failed attempt only swaps
+	 * references; it is built again only if another thread published a
+	 * different template or index in between.
+	 * 
+	 * @param update
+	 * @return published configuration
+	 */
+	private ProcessorConfiguration publishIndexed(ConfigurationUpdate update) {
+		ProcessorConfiguration current = configuration.get();
+		ProcessorConfiguration next = update.apply(current);
+		ProcessorConfiguration indexed = next;
+		PreparedTemplate template = withIndex(next);
+		ProcessorConfiguration published = next.withTemplate(template);
+		while (!configuration.compareAndSet(current, published)) {
+			current = configuration.get();
+			next = update.apply(current);
+			if (next.getTemplate() != indexed.getTemplate() || next.getMatchingEngine() != indexed.getMatchingEngine()
+					|| next.getIndexSubstringBits() != indexed.getIndexSubstringBits() || next.getIndexProbeRadius() != indexed.getIndexProbeRadius()) {
+				indexed = next;
+				template = withIndex(next);
+			}
+			published = next.withTemplate(template);
+		}
+		return published;
+	}
+
+	/**
+	 * @return template of the configuration with the index of its parameters
+	 *         if the indexed matching is selected
+	 */
+	private static PreparedTemplate withIndex(ProcessorConfiguration configuration) {
+		PreparedTemplate template = configuration.getTemplate();
+		if (template == null || configuration.getMatchingEngine() != MatchingEngine.INDEXED_HAMMING)
+			return template;
+		return template.withIndex(configuration.getIndexSubstringBits(), configuration.getIndexProbeRadius());
+	}
+
+	/**
+	 * Configures the feature components on first use
+	 */
+	private void ensureConfigured() {
+		if (!featureComponents.isConfigured()) {
+			synchronized (this) {
+				if (!featureComponents.isConfigured())
+					configureFeatureComponents();
+			}
+		}
+	}
+
+	/**
+	 * @param levels
+	 *            pyramid levels of {@link RecapturingMode#PYRAMID}
+	 */
+	public synchronized void setPyramidLevels(int levels) {
+		pyramidRegistration.setLevels(levels);
+	}
+
+	/**
+	 * Recognizes and registers against the templates of a library instead of a
+	 * single template
+	 * 
+	 * @param templateLibrary
+	 *            opened library or null to disable
+	 */
+	public void setTemplateLibrary(TemplateLibrary templateLibrary) {
+		ProcessorConfiguration current;
+		do {
+			current = configuration.get();
+		} while (!configuration.compareAndSet(current, current.withTemplateLibrary(templateLibrary)));
+	}
+
+	/**
+	 * Counts the Java allocations of the match filter stage of each frame, see
+	 * {@link FramePackage#getFilterAllocations()}. Counting slows down the
+	 * runtime and should only be enabled to check the steady state.
+	 * 
+	 * @param allocationCounter
+	 *            counter or null to disable
+	 */
+	public synchronized void setAllocationCounter(AllocationCounter allocationCounter) {
+		this.allocationCounter = allocationCounter;
+	}
+
+	/**
+	 * @param enabled
+	 *            true removes matches that disagree with the dominant
+	 *            similarity transform of key point scale and orientation
+	 *            before the homography estimation
+	 */
+	public void setConsistencyFilter(boolean enabled) {
+		ProcessorConfiguration current;
+		do {
+			current = configuration.get();
+		} while (!configuration.compareAndSet(current, current.withConsistencyFilter(enabled)));
+	}
+
+	/**
+	 * @param distance
+	 *            maximum descriptor distance of a good match, used from the
+	 *            next frame on
+	 */
 	public void setDistance(int distance) {
-		DISTANCE_LIMIT = distance;
+		ProcessorConfiguration current;
+		do {
+			current = configuration.get();
+		} while (!configuration.compareAndSet(current, current.withDistanceLimit(distance)));
+	}
+
+	/**
+	 * Change of the {@link ProcessorConfiguration}, applied again to the
+	 * latest configuration if the compare and set fails
+	 */
+	private interface ConfigurationUpdate {
+		ProcessorConfiguration apply(ProcessorConfiguration current);
 	}
 }
@@ -0,0 +1,51 @@
+package de.stetro.recapturing.batch;
+
+import java.io.File;
+
+/**
+ * One (template, scene) pair of a {@link BatchManifest}
+ * 
+ * @author Steffen Troester
+ * 
+ */
+public class BatchJob {
+
+	private final String id;
+	private final File template;
+	private final File scene;
+	private final File output;
+
+	/**
+	 * @param id
+	 *            unique key of the pair, used to resume a batch
+	 * @param template
+	 * @param scene
+	 * @param output
+	 *            blended picture destination or null
+	 */
+	public BatchJob(String id, File template, File scene, File output) {
+		this.id = id;
+		this.template = template;
+		this.scene = scene;
+		this.output = output;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public File getTemplate() {
+		return template;
+	}
+
+	public File getScene() {
+		return scene;
+	}
+
+	/**
+	 * @return blended picture destination or null if no picture is written
+	 */
+	public File getOutput() {
+		return output;
+	}
+}
@@ -0,0 +1,64 @@
+package de.stetro.recapturing.batch;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+
+/**
+ * Reads the jobs of a batch line by line, so manifests of any size are never
+ * held in memory. Each line is a tab separated pair with an optional output
+ * picture, relative paths are resolved against the manifest directory:
+ * 
+ * <pre>
+ * # template	scene	[blended output]
+ * originals/0001.jpg	rephotos/0001.jpg	blended/0001.png
+ * </pre>
+ * 
+ * Empty lines and lines starting with '#' are ignored. The id of a job is its
+ * template and scene as written in the manifest.
+ * 
+ * @author Steffen Troester
+ * 
+ */
+public class BatchManifest {
+
+	private final File directory;
+	private final BufferedReader reader;
+	private int line;
+
+	public BatchManifest(File manifest) throws IOException {
+		directory = manifest.getAbsoluteFile().getParentFile();
+		reader = new BufferedReader(new InputStreamReader(new FileInputStream(manifest), "UTF-8"));
+	}
+
+	/**
+	 * @return next job or null at the end of the manifest
+	 * @throws IOException
+	 *             if the manifest can not be read or a line is malformed
+	 */
+	public BatchJob next() throws IOException {
+		String text;
+		while ((text = reader.readLine()) != null) {
+			line++;
+			if (text.trim().length() == 0 || text.startsWith("#"))
+				continue;
+			String[] columns = text.split("\t");
+			if (columns.length < 2 || columns.length > 3)
+				throw new IOException("Manifest line " + line + " needs template, scene and an optional output separated by tabs");
+			File output = columns.length == 3 ? resolve(columns[2]) : null;
+			return new BatchJob(columns[0] + "\t" + columns[1], resolve(columns[0]), resolve(columns[1]), output);
+		}
+		return null;
+	}
+
+	private File resolve(String path) {
+		File file = new File(path);
+		return file.isAbsolute() ? file : new File(directory, path);
+	}
+
+	public void close() throws IOException {
+		reader.close();
+	}
+}
@@ -0,0 +1,151 @@
+package de.stetro.recapturing.batch;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Results file of a batch with one JSON line per job, which is also the
+ * progress of the batch: opening an existing file collects the ids of the
+ * recorded jobs, so a restarted batch skips them and appends the rest. A line
+ * cut off by a crash is truncated. Every line is flushed when it is written.
+ * 
+ * @author Steffen Troester
+ * 
+ */
+public class BatchProgressLog implements BatchResultListener {
+
+	private static final String ID_PREFIX = "{\"id\": \"";
+
+	private final Set<String> completed = new HashSet<String>();
+	private final Writer writer;
+	private final boolean retryFailed;
+
+	/**
+	 * @param file
+	 *            results file, created or continued
+	 * @param retryFailed
+	 *            true to process failed jobs of the previous run again
+	 * @throws IOException
+	 */
+	public BatchProgressLog(File file, boolean retryFailed) throws IOException {
+		this.retryFailed = retryFailed;
+		if (file.exists())
+			readCompleted(file);
+		writer = new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8");
+	}
+
+	/**
+	 * Collects the ids of the complete lines and cuts off an incomplete last
+	 * line
+	 */
+	private void readCompleted(File file) throws IOException {
+		long complete = 0;
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			RandomAccessFile raw = new RandomAccessFile(file, "r");
+			long length;
+			try {
+				length = raw.length();
+				// only lines terminated by a line feed are complete
+				long position = length - 1;
+				while (position >= 0) {
+					raw.seek(position);
+					if (raw.read() == '\n')
+						break;
+					position--;
+				}
+				complete = position + 1;
+			} finally {
+				raw.close();
+			}
+			String line;
+			long read = 0;
+			while (read < complete && (line = reader.readLine()) != null) {
+				read += line.getBytes("UTF-8").length + 1;
+				String id = parseId(line);
+				if (id != null && (!retryFailed || line.indexOf("\"status\": \"error\"") < 0))
+					completed.add(id);
+			}
+			if (complete < length) {
+				RandomAccessFile truncate = new RandomAccessFile(file, "rw");
+				try {
+					truncate.setLength(complete);
+				} finally {
+					truncate.close();
+				}
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * @return unescaped id of a line written by {@link BatchResult#toJson()}
+	 *         or null
+	 */
+	static String parseId(String line) {
+		if (!line.startsWith(ID_PREFIX))
+			return null;
+		StringBuilder id = new StringBuilder();
+		for (int i = ID_PREFIX.length(); i < line.length(); i++) {
+			char c = line.charAt(i);
+			if (c == '"')
+				return id.toString();
+			if (c != '\\') {
+				id.append(c);
+				continue;
+			}
+			if (++i >= line.length())
+				return null;
+			c = line.charAt(i);
+			if (c == 't')
+				id.append('\t');
+			else if (c == 'n')
+				id.append('\n');
+			else if (c == 'r')
+				id.append('\r');
+			else if (c == 'u' && i + 4 < line.length())
+				id.append((char) Integer.parseInt(line.substring(i + 1, i + 5), 16));
+			else
+				id.append(c);
+			if (c == 'u')
+				i += 4;
+		}
+		return null;
+	}
+
+	/**
+	 * @param job
+	 * @return true if the job is recorded and needs no processing
+	 */
+	public boolean isCompleted(BatchJob job) {
+		return completed.contains(job.getId());
+	}
+
+	/**
+	 * @return number of recorded jobs when the log was opened
+	 */
+	public int getCompletedCount() {
+		return completed.size();
+	}
+
+	@Override
+	public void onResult(BatchResult result) throws IOException {
+		writer.write(result.toJson());
+		writer.write('\n');
+		writer.flush();
+	}
+
+	public void close() throws IOException {
+		writer.close();
+	}
+}
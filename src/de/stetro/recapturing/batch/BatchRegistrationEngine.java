@@ -0,0 +1,261 @@
+package de.stetro.recapturing.batch;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.opencv.core.Mat;
+import org.opencv.highgui.Highgui;
+import org.opencv.imgproc.Imgproc;
+
+import de.stetro.recapturing.RecapturingProcessor;
+import de.stetro.recapturing.diagnostics.RecapturingLog;
+import de.stetro.recapturing.pojo.FramePackage;
+
+/**
+ * Registers the (template, scene) pairs of a {@link BatchManifest} offline on
+ * several worker threads. Every worker owns a {@link RecapturingProcessor},
+ * so the workers never contend for the processor lock, and keeps the template
+ * features while consecutive jobs share the template. The manifest is read
+ * while the workers run and at most two jobs per worker are waiting, so the
+ * memory is bounded by one scene and one template per worker, independent of
+ * the manifest size. Results are streamed to the {@link BatchProgressLog} as
+ * they finish; jobs it already recorded are skipped.
+ * 
+ * @author Steffen Troester
+ * 
+ */
+public class BatchRegistrationEngine {
+
+	private static final String TAG = "Batch Registration";
+	/**
+	 * marks the end of the manifest, one per worker
+	 */
+	private static final BatchJob END = new BatchJob(null, null, null, null);
+
+	/**
+	 * Creates and configures the processor of a worker
+	 */
+	public interface ProcessorFactory {
+		RecapturingProcessor create();
+	}
+
+	private final int workers;
+	private final ProcessorFactory factory;
+	private final BlockingQueue<BatchJob> jobs;
+	private final Object resultLock = new Object();
+	private final AtomicInteger registered = new AtomicInteger();
+	private final AtomicInteger unregistered = new AtomicInteger();
+	private final AtomicInteger failed = new AtomicInteger();
+	private int skipped;
+	private BatchProgressLog progressLog;
+	private BatchResultListener listener;
+	private volatile IOException failure;
+
+	/**
+	 * @param workers
+	 *            number of worker threads, e.g. the available processors
+	 * @param factory
+	 *            called once on every worker thread
+	 */
+	public BatchRegistrationEngine(int workers, ProcessorFactory factory) {
+		this.workers = workers;
+		this.factory = factory;
+		jobs = new ArrayBlockingQueue<BatchJob>(workers * 2);
+	}
+
+	/**
+	 * @param listener
+	 *            additionally receives every result, e.g. to report the
+	 *            progress, or null
+	 */
+	public void setListener(BatchResultListener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Processes all jobs of the manifest that are not recorded in the
+	 * progress log and waits for the workers to finish
+	 * 
+	 * @param manifest
+	 * @param progressLog
+	 *            receives the results
+	 * @throws IOException
+	 *             if the manifest could not be read or a result could not be
+	 *             written
+	 * @throws InterruptedException
+	 */
+	public void run(BatchManifest manifest, BatchProgressLog progressLog) throws IOException, InterruptedException {
+		this.progressLog = progressLog;
+		jobs.clear();
+		failure = null;
+		Thread[] threads = new Thread[workers];
+		for (int i = 0; i < workers; i++) {
+			threads[i] = new Thread(new Worker(), "batch-worker-" + i);
+			threads[i].start();
+		}
+		try {
+			BatchJob job;
+			while (failure == null && (job = manifest.next()) != null) {
+				if (progressLog.isCompleted(job)) {
+					skipped++;
+					continue;
+				}
+				while (failure == null && !jobs.offer(job, 100, TimeUnit.MILLISECONDS)) {
+				}
+			}
+		} catch (IOException e) {
+			failure = e;
+		} finally {
+			for (int i = 0; i < workers && failure == null; i++) {
+				while (failure == null && !jobs.offer(END, 100, TimeUnit.MILLISECONDS)) {
+				}
+			}
+			if (failure != null) {
+				// workers stop after their current job
+				for (Thread thread : threads) {
+					thread.interrupt();
+				}
+			}
+			for (Thread thread : threads) {
+				thread.join();
+			}
+		}
+		if (failure != null)
+			throw failure;
+	}
+
+	/**
+	 * Hands a result to the progress log and the listener, one at a time
+	 */
+	private void publish(BatchResult result) {
+		if (result.isFailed())
+			failed.incrementAndGet();
+		else if (result.getHomography() != null)
+			registered.incrementAndGet();
+		else
+			unregistered.incrementAndGet();
+		synchronized (resultLock) {
+			if (failure != null)
+				return;
+			try {
+				progressLog.onResult(result);
+				if (listener != null)
+					listener.onResult(result);
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+	}
+
+	/**
+	 * @return jobs with a homography
+	 */
+	public int getRegistered() {
+		return registered.get();
+	}
+
+	/**
+	 * @return processed jobs without a homography
+	 */
+	public int getUnregistered() {
+		return unregistered.get();
+	}
+
+	/**
+	 * @return jobs that could not be processed, e.g. undecodable pictures
+	 */
+	public int getFailed() {
+		return failed.get();
+	}
+
+	/**
+	 * @return jobs skipped because the progress log already recorded them
+	 */
+	public int getSkipped() {
+		return skipped;
+	}
+
+	private class Worker implements Runnable {
+
+		private RecapturingProcessor processor;
+		private File template;
+		private int width;
+		private int height;
+
+		@Override
+		public void run() {
+			try {
+				processor = factory.create();
+				while (failure == null) {
+					BatchJob job = jobs.take();
+					if (job == END)
+						break;
+					publish(register(job));
+				}
+			} catch (InterruptedException e) {
+				RecapturingLog.i(TAG, Thread.currentThread().getName() + " stopped");
+			} catch (RuntimeException e) {
+				synchronized (resultLock) {
+					if (failure == null)
+						failure = new IOException("Worker failed: " + e.getMessage(), e);
+				}
+			}
+		}
+
+		private BatchResult register(BatchJob job) {
+			BatchResult result = new BatchResult(job, Thread.currentThread().getName());
+			long begin = System.nanoTime();
+			try {
+				Mat scene = decode(job.getScene());
+				Mat templatePicture = null;
+				if (!job.getTemplate().equals(template)) {
+					template = null;
+					templatePicture = decode(job.getTemplate());
+				}
+				long decoded = System.nanoTime();
+				result.setDecodeNanos(decoded - begin);
+				if (scene.cols() != width || scene.rows() != height) {
+					width = scene.cols();
+					height = scene.rows();
+					processor.prepareViewSize(width, height);
+				}
+				if (templatePicture != null) {
+					processor.setTemplatePicture(templatePicture);
+					templatePicture.release();
+					template = job.getTemplate();
+				}
+				processor.resetHistory();
+				FramePackage fp = processor.process(scene);
+				result.setFramePackage(fp);
+				scene.release();
+				if (job.getOutput() != null) {
+					long write = System.nanoTime();
+					File directory = job.getOutput().getAbsoluteFile().getParentFile();
+					if (directory != null)
+						directory.mkdirs();
+					if (!Highgui.imwrite(job.getOutput().getAbsolutePath(), fp.getFrame()))
+						throw new IOException("Could not write " + job.getOutput());
+					result.setWriteNanos(System.nanoTime() - write);
+				}
+			} catch (IOException e) {
+				result.setError(e.getMessage());
+			} catch (RuntimeException e) {
+				result.setError(e.getClass().getSimpleName() + ": " + e.getMessage());
+			}
+			result.setTotalNanos(System.nanoTime() - begin);
+			return result;
+		}
+
+		private Mat decode(File file) throws IOException {
+			Mat picture = Highgui.imread(file.getAbsolutePath(), Highgui.CV_LOAD_IMAGE_COLOR);
+			if (picture.empty())
+				throw new IOException("Could not decode " + file);
+			Imgproc.cvtColor(picture, picture, Imgproc.COLOR_BGR2RGBA);
+			return picture;
+		}
+	}
+}
@@ -0,0 +1,167 @@
+package de.stetro.recapturing.batch;
+
+import java.util.Locale;
+
+import de.stetro.recapturing.pojo.FramePackage;
+
+/**
+ * Registration result of one {@link BatchJob}, written as one JSON line
+ * 
+ * @author Steffen Troester
+ * 
+ */
+public class BatchResult {
+
+	private final BatchJob job;
+	private final String worker;
+	private String error;
+	private double[] homography;
+	private long keyPoints;
+	private long matches;
+	private long inliers;
+	private long decodeNanos;
+	private long detectionNanos;
+	private long descriptionNanos;
+	private long matchingNanos;
+	private long filterNanos;
+	private long homographyNanos;
+	private long registrationNanos;
+	private long writeNanos;
+	private long totalNanos;
+
+	public BatchResult(BatchJob job, String worker) {
+		this.job = job;
+		this.worker = worker;
+	}
+
+	/**
+	 * Copies counts, stage timings and the homography (if valid) of the
+	 * processed scene
+	 * 
+	 * @param fp
+	 */
+	public void setFramePackage(FramePackage fp) {
+		keyPoints = fp.getKeyPoints();
+		matches = fp.getMatches();
+		inliers = fp.getInliers();
+		detectionNanos = fp.getDetectionNanos();
+		descriptionNanos = fp.getDescriptionNanos();
+		matchingNanos = fp.getMatchingNanos();
+		filterNanos = fp.getFilterNanos();
+		homographyNanos = fp.getHomographyNanos();
+		registrationNanos = fp.getTotalNanos();
+		homography = fp.isHomographyValid() ? fp.getHomography().clone() : null;
+	}
+
+	public BatchJob getJob() {
+		return job;
+	}
+
+	/**
+	 * @return message of the failure or null if the job was processed
+	 */
+	public String getError() {
+		return error;
+	}
+
+	public void setError(String error) {
+		this.error = error;
+	}
+
+	public boolean isFailed() {
+		return error != null;
+	}
+
+	/**
+	 * @return row major homography from template to scene or null if the
+	 *         registration found none
+	 */
+	public double[] getHomography() {
+		return homography;
+	}
+
+	public long getInliers() {
+		return inliers;
+	}
+
+	public long getMatches() {
+		return matches;
+	}
+
+	public void setDecodeNanos(long decodeNanos) {
+		this.decodeNanos = decodeNanos;
+	}
+
+	public void setWriteNanos(long writeNanos) {
+		this.writeNanos = writeNanos;
+	}
+
+	public long getTotalNanos() {
+		return totalNanos;
+	}
+
+	public void setTotalNanos(long totalNanos) {
+		this.totalNanos = totalNanos;
+	}
+
+	/**
+	 * @return single line JSON object, starting with the job id
+	 */
+	public String toJson() {
+		StringBuilder json = new StringBuilder();
+		json.append("{\"id\": ").append(quote(job.getId()));
+		json.append(", \"template\": ").append(quote(job.getTemplate().getPath()));
+		json.append(", \"scene\": ").append(quote(job.getScene().getPath()));
+		if (job.getOutput() != null)
+			json.append(", \"output\": ").append(quote(job.getOutput().getPath()));
+		json.append(", \"worker\": ").append(quote(worker));
+		json.append(", \"status\": ").append(quote(error != null ? "error" : (homography != null ? "registered" : "unregistered")));
+		if (error != null)
+			json.append(", \"error\": ").append(quote(error));
+		json.append(", \"homography\": ");
+		if (homography == null) {
+			json.append("null");
+		} else {
+			json.append('[');
+			for (int i = 0; i < homography.length; i++) {
+				if (i > 0)
+					json.append(", ");
+				json.append(String.format(Locale.US, "%.9g", homography[i]));
+			}
+			json.append(']');
+		}
+		json.append(", \"keyPoints\": ").append(keyPoints);
+		json.append(", \"matches\": ").append(matches);
+		json.append(", \"inliers\": ").append(inliers);
+		json.append(", \"timesUs\": {\"decode\": ").append(decodeNanos / 1000);
+		json.append(", \"detection\": ").append(detectionNanos / 1000);
+		json.append(", \"description\": ").append(descriptionNanos / 1000);
+		json.append(", \"matching\": ").append(matchingNanos / 1000);
+		json.append(", \"filter\": ").append(filterNanos / 1000);
+		json.append(", \"homography\": ").append(homographyNanos / 1000);
+		json.append(", \"registration\": ").append(registrationNanos / 1000);
+		json.append(", \"write\": ").append(writeNanos / 1000);
+		json.append(", \"total\": ").append(totalNanos / 1000).append("}}");
+		return json.toString();
+	}
+
+	static String quote(String value) {
+		StringBuilder quoted = new StringBuilder(value.length() + 2).append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\')
+				quoted.append('\\').append(c);
+			else if (c == '\t')
+				quoted.append("\\t");
+			else if (c == '\n')
+				quoted.append("\\n");
+			else if (c == '\r')
+				quoted.append("\\r");
+			else if (c < 0x20)
+				quoted.append(String.format("\\u%04x", (int) c));
+			else
+				quoted.append(c);
+		}
+		return quoted.append('"').toString();
+	}
+}
@@ -0,0 +1,20 @@
+package de.stetro.recapturing.batch;
+
+import java.io.IOException;
+
+/**
+ * Receives the results of a {@link BatchRegistrationEngine} as soon as they
+ * finish, in completion order. Calls are serialized by the engine.
+ * 
+ * @author Steffen Troester
+ * 
+ */
+public interface BatchResultListener {
+
+	/**
+	 * @param result
+	 * @throws IOException
+	 *             aborts the batch
+	 */
+	void onResult(BatchResult result) throws IOException;
+}
@@ -0,0 +1,135 @@
+package de.stetro.recapturing.batch;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+
+import org.opencv.core.Core;
+import org.opencv.features2d.DescriptorExtractor;
+import org.opencv.features2d.DescriptorMatcher;
+import org.opencv.features2d.FeatureDetector;
+
+import de.stetro.recapturing.HomographyMethod;
+import de.stetro.recapturing.MatchingEngine;
+import de.stetro.recapturing.RecapturingMode;
+import de.stetro.recapturing.RecapturingProcessor;
+import de.stetro.recapturing.template.TemplateFeatureCache;
+
+/**
+ * Registers the pairs of a manifest with the desktop OpenCV Java bindings
+ * and appends one JSON line per pair to the results file. Running it again
+ * with the same results file resumes the batch:
+ * 
+ * <pre>
+ * java -Djava.library.path=... BatchRunner &lt;manifest&gt; &lt;results.jsonl&gt;
+ *     [--threads cores] [--mode FEAUTURE_BASED] [--engine OPENCV_BRUTEFORCE] [--detector 5]
+ *     [--extractor 3] [--matcher 4] [--distance 20] [--homography OPENCV_RANSAC]
+ *     [--feature-cache directory] [--retry-failed false]
+ * </pre>
+ * 
+ * Detector, extractor and matcher are the OpenCV type constants. The feature
+ * cache keeps the template features of the workers on disk, which helps when
+ * the templates are spread over the manifest.
+ * 
+ * @author Steffen Troester
+ * 
+ */
+public class BatchRunner {
+
+	private static final long FEATURE_CACHE_BYTES = 256L * 1024 * 1024;
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		if (args.length < 2) {
+			System.err.println("usage: BatchRunner <manifest> <results.jsonl> [--threads n] [--mode m] [--engine e] [--detector d] [--extractor x] [--matcher m] [--distance n] [--homography h] [--feature-cache dir] [--retry-failed true|false]");
+			System.exit(1);
+		}
+		System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+		int threads = Runtime.getRuntime().availableProcessors();
+		boolean retryFailed = false;
+		final Configuration configuration = new Configuration();
+		for (int i = 2; i + 1 < args.length; i += 2) {
+			String option = args[i];
+			String value = args[i + 1];
+			if (option.equals("--threads"))
+				threads = Integer.parseInt(value);
+			else if (option.equals("--mode"))
+				configuration.mode = RecapturingMode.valueOf(value);
+			else if (option.equals("--engine"))
+				configuration.engine = MatchingEngine.valueOf(value);
+			else if (option.equals("--detector"))
+				configuration.detector = Integer.parseInt(value);
+			else if (option.equals("--extractor"))
+				configuration.extractor = Integer.parseInt(value);
+			else if (option.equals("--matcher"))
+				configuration.matcher = Integer.parseInt(value);
+			else if (option.equals("--distance"))
+				configuration.distance = Integer.parseInt(value);
+			else if (option.equals("--homography"))
+				configuration.homography = HomographyMethod.valueOf(value);
+			else if (option.equals("--feature-cache"))
+				configuration.featureCache = new File(value);
+			else if (option.equals("--retry-failed"))
+				retryFailed = Boolean.parseBoolean(value);
+			else
+				throw new IllegalArgumentException("Unknown option " + option);
+		}
+
+		BatchManifest manifest = new BatchManifest(new File(args[0]));
+		BatchProgressLog progressLog = new BatchProgressLog(new File(args[1]), retryFailed);
+		BatchRegistrationEngine engine = new BatchRegistrationEngine(threads, configuration);
+		final long begin = System.nanoTime();
+		engine.setListener(new BatchResultListener() {
+			private int results;
+
+			@Override
+			public void onResult(BatchResult result) {
+				if (result.isFailed())
+					System.err.println(result.getJob().getScene() + ": " + result.getError());
+				if (++results % 100 == 0)
+					System.err.println(String.format(Locale.US, "%d pairs, %.1f pairs/s", results, results * 1e9 / (System.nanoTime() - begin)));
+			}
+		});
+		System.err.println(threads + " workers, " + progressLog.getCompletedCount() + " pairs recorded");
+		try {
+			engine.run(manifest, progressLog);
+		} finally {
+			manifest.close();
+			progressLog.close();
+		}
+		int processed = engine.getRegistered() + engine.getUnregistered() + engine.getFailed();
+		double seconds = (System.nanoTime() - begin) / 1e9;
+		System.err.println(String.format(Locale.US, "registered: %d, unregistered: %d, failed: %d, skipped: %d, %.1f pairs/s", engine.getRegistered(), engine.getUnregistered(),
+				engine.getFailed(), engine.getSkipped(), processed / seconds));
+	}
+
+	/**
+	 * Processor configuration of all workers
+	 */
+	private static class Configuration implements BatchRegistrationEngine.ProcessorFactory {
+		private RecapturingMode mode = RecapturingMode.FEAUTURE_BASED;
+		private MatchingEngine engine = MatchingEngine.OPENCV_BRUTEFORCE;
+		private int detector = FeatureDetector.ORB;
+		private int extractor = DescriptorExtractor.ORB;
+		private int matcher = DescriptorMatcher.BRUTEFORCE_HAMMING;
+		private int distance = 20;
+		private HomographyMethod homography = HomographyMethod.OPENCV_RANSAC;
+		private File featureCache;
+
+		@Override
+		public RecapturingProcessor create() {
+			RecapturingProcessor processor = new RecapturingProcessor();
+			processor.setFeatureMethods(detector, extractor, matcher);
+			processor.setMatchingEngine(engine);
+			processor.setMode(mode);
+			processor.setDistance(distance);
+			processor.setHomographyMethod(homography);
+			if (featureCache != null) {
+				// one cache directory per worker, the cache is not shared
+				// between threads
+				File directory = new File(featureCache, Thread.currentThread().getName());
+				processor.setTemplateFeatureCache(new TemplateFeatureCache(directory, FEATURE_CACHE_BYTES));
+			}
+			return processor;
+		}
+	}
+}
@@ -0,0 +1,18 @@
+package de.stetro.recapturing.diagnostics;
+
+/**
+ * Counts the object allocations of the current thread between
+ * {@link #begin()} and {@link #end()}
+ * 
+ * @author Steffen Troester
+ * 
+ */
+public interface AllocationCounter {
+
+	void begin();
+
+	/**
+	 * @return allocations of the current thread since {@link #begin()}
+	 */
+	int end();
+}
@@ -0,0 +1,16 @@
+package de.stetro.recapturing.diagnostics;
+
+/**
+ * Destination of the messages of {@link RecapturingLog}
+ * 
+ * @author Steffen Troester
+ * 
+ */
+public interface LogSink {
+
+	void debug(String tag, String message);
+
+	void info(String tag, String message);
+
+	void error(String tag, String message);
+}
@@ -0,0 +1,55 @@
+package de.stetro.recapturing.diagnostics;
+
+/**
+ * Logging of the processing classes, which must not depend on the Android
+ * runtime. Messages go to the console until the application installs another
+ * {@link LogSink}.
+ * 
+ * @author Steffen Troester
+ * 
+ */
+public class RecapturingLog {
+
+	private static volatile LogSink sink = new ConsoleLogSink();
+
+	private RecapturingLog() {
+	}
+
+	public static void setSink(LogSink sink) {
+		RecapturingLog.sink = sink;
+	}
+
+	public static void d(String tag, String message) {
+		sink.debug(tag, message);
+	}
+
+	public static void i(String tag, String message) {
+		sink.info(tag, message);
+	}
+
+	public static void e(String tag, String message) {
+		sink.error(tag, message);
+	}
+
+	/**
+	 * Writes info and debug messages to standard out and errors to standard
+	 * error
+	 */
+	public static class ConsoleLogSink implements LogSink {
+
+		@Override
+		public void debug(String tag, String message) {
+			System.out.println("D/" + tag + ": " + message);
+		}
+
+		@Override
+		public void info(String tag, String message) {
+			System.out.println("I/" + tag + ": " + message);
+		}
+
+		@Override
+		public void error(String tag, String message) {
+			System.err.println("E/" + tag + ": " + message);
+		}
+	}
+}
@@ -0,0 +1,186 @@
+package de.stetro.recapturing.feature;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import org.opencv.features2d.DescriptorExtractor;
+import org.opencv.features2d.DescriptorMatcher;
+import org.opencv.features2d.FeatureDetector;
+
+/**
+ * Owns long living and pre configured {@link FeatureDetector},
+ * {@link DescriptorExtractor} and {@link DescriptorMatcher} instances, so
+ * that they are created and configured once instead of every frame. A new
+ * configuration is built completely before it replaces the current one.
+ * Components are only recreated if their type or the content of their
+ * configuration file changed.
+ *
+ * @author Steffen Troester
+ */
+public class FeatureComponentRegistry {
+
+	private volatile Components components;
+
+	/**
+	 * Creates and configures all components for the given types. Configuration
+	 * files are read only here and not while processing frames.
+	 *
+	 * @param detectorType
+	 *            {@link FeatureDetector} type constant
+	 * @param detectorConfiguration
+	 *            path of the detector configuration file or null
+	 * @param extractorType
+	 *            {@link DescriptorExtractor} type constant
+	 * @param extractorConfiguration
+	 *            path of the extractor configuration file or null
+	 * @param matcherType
+	 *            {@link DescriptorMatcher} type constant
+	 */
+	public void configure(int detectorType, String detectorConfiguration, int extractorType, String extractorConfiguration, int matcherType) {
+		Components current = components;
+		String detectorSettings = readConfiguration(detectorConfiguration);
+		String extractorSettings = readConfiguration(extractorConfiguration);
+		FeatureDetector detector;
+		DescriptorExtractor extractor;
+		DescriptorMatcher matcher;
+		if (current != null && current.detectorType == detectorType && equal(current.detectorSettings, detectorSettings)) {
+			detector = current.detector;
+		} else {
+			detector = FeatureDetector.create(detectorType);
+			if (detectorConfiguration != null)
+				detector.read(detectorConfiguration);
+		}
+		if (current != null && current.extractorType == extractorType && equal(current.extractorSettings, extractorSettings)) {
+			extractor = current.extractor;
+		} else {
+			extractor = DescriptorExtractor.create(extractorType);
+			if (extractorConfiguration != null)
+				extractor.read(extractorConfiguration);
+		}
+		if (current != null && current.matcherType == matcherType) {
+			matcher = current.matcher;
+		} else {
+			matcher = DescriptorMatcher.create(matcherType);
+		}
+		components = new Components(detectorType, detectorSettings, detector, extractorType, extractorSettings, extractor, matcherType, matcher);
+	}
+
+	public boolean isConfigured() {
+		return components != null;
+	}
+
+	public FeatureDetector getDetector() {
+		return requireComponents().detector;
+	}
+
+	public DescriptorExtractor getExtractor() {
+		return requireComponents().extractor;
+	}
+
+	public DescriptorMatcher getMatcher() {
+		return requireComponents().matcher;
+	}
+
+	/**
+	 * @return the current set of components, read once to get a consistent
+	 *         detector, extractor and matcher even while they are swapped
+	 */
+	public Components getComponents() {
+		return requireComponents();
+	}
+
+	private Components requireComponents() {
+		Components current = components;
+		if (current == null)
+			throw new IllegalStateException("FeatureComponentRegistry is not configured");
+		return current;
+	}
+
+	/**
+	 * @return content of the configuration file, null without a file
+	 */
+	private static String readConfiguration(String path) {
+		if (path == null)
+			return null;
+		File file = new File(path);
+		if (!file.isFile())
+			return null;
+		byte[] content = new byte[(int) file.length()];
+		try {
+			FileInputStream stream = new FileInputStream(file);
+			try {
+				int read = 0;
+				while (read < content.length) {
+					int count = stream.read(content, read, content.length - read);
+					if (count < 0)
+						break;
+					read += count;
+				}
+			} finally {
+				stream.close();
+			}
+		} catch (IOException e) {
+			// unreadable, the component reads nothing either
+			return null;
+		}
+		return new String(content);
+	}
+
+	private static boolean equal(String a, String b) {
+		return a == null ? b == null : a.equals(b);
+	}
+
+	/**
+	 * Immutable set of configured components
+	 */
+	public static final class Components {
+		private final int detectorType;
+		/**
+		 * content of the configuration files the components were read from
+		 */
+		private final String detectorSettings;
+		private final FeatureDetector detector;
+		private final int extractorType;
+		private final String extractorSettings;
+		private final DescriptorExtractor extractor;
+		private final int matcherType;
+		private final DescriptorMatcher matcher;
+
+		private Components(int detectorType, String detectorSettings, FeatureDetector detector, int extractorType, String extractorSettings, DescriptorExtractor extractor,
+				int matcherType, DescriptorMatcher matcher) {
+			this.detectorType = detectorType;
+			this.detectorSettings = detectorSettings;
+			this.detector = detector;
+			this.extractorType = extractorType;
+			this.extractorSettings = extractorSettings;
+			this.extractor = extractor;
+			this.matcherType = matcherType;
+			this.matcher = matcher;
+		}
+
+		public FeatureDetector getDetector() {
+			return detector;
+		}
+
+		public DescriptorExtractor getExtractor() {
+			return extractor;
+		}
+
+		public DescriptorMatcher getMatcher() {
+			return matcher;
+		}
+
+		public int getDetectorType() {
+			return detectorType;
+		}
+
+		public int getExtractorType() {
+			return extractorType;
+		}
+
+		public int getMatcherType() {
+			return matcherType;
+		}
+	}
+}
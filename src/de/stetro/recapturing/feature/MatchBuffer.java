@@ -0,0 +1,92 @@
+package de.stetro.recapturing.feature;
+
+import org.opencv.core.MatOfDMatch;
+
+/**
+ * Reusable primitive storage of descriptor matches between the template and
+ * the current frame. Replaces boxed {@link org.opencv.features2d.DMatch}
+ * lists in the per frame path.
+ *
+ * @author Steffen Troester
+ */
+public class MatchBuffer {
+
+	private int[] templateIndex = new int[0];
+	private int[] sceneIndex = new int[0];
+	private float[] distance = new float[0];
+	private float[] dMatchBuffer = new float[0];
+	private int size;
+
+	public void clear() {
+		size = 0;
+	}
+
+	/**
+	 * Makes sure that at least capacity matches fit without growing
+	 *
+	 * @param capacity
+	 */
+	public void ensureCapacity(int capacity) {
+		if (templateIndex.length >= capacity)
+			return;
+		int newCapacity = Math.max(capacity, templateIndex.length * 2);
+		int[] t = new int[newCapacity];
+		int[] s = new int[newCapacity];
+		float[] d = new float[newCapacity];
+		System.arraycopy(templateIndex, 0, t, 0, size);
+		System.arraycopy(sceneIndex, 0, s, 0, size);
+		System.arraycopy(distance, 0, d, 0, size);
+		templateIndex = t;
+		sceneIndex = s;
+		distance = d;
+	}
+
+	public void add(int template, int scene, float matchDistance) {
+		ensureCapacity(size + 1);
+		templateIndex[size] = template;
+		sceneIndex[size] = scene;
+		distance[size] = matchDistance;
+		size++;
+	}
+
+	/**
+	 * Reads the native buffer of a {@link MatOfDMatch} (query = template,
+	 * train = scene) without creating DMatch objects
+	 *
+	 * @param matches
+	 * @return this
+	 */
+	public MatchBuffer read(MatOfDMatch matches) {
+		clear();
+		int count = matches.rows();
+		if (count == 0)
+			return this;
+		if (dMatchBuffer.length < count * 4)
+			dMatchBuffer = new float[count * 4];
+		matches.get(0, 0, dMatchBuffer);
+		ensureCapacity(count);
+		for (int i = 0; i < count; i++) {
+			templateIndex[i] = (int) dMatchBuffer[i * 4];
+			sceneIndex[i] = (int) dMatchBuffer[i * 4 + 1];
+			distance[i] = dMatchBuffer[i * 4 + 3];
+		}
+		size = count;
+		return this;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int getTemplateIndex(int i) {
+		return templateIndex[i];
+	}
+
+	public int getSceneIndex(int i) {
+		return sceneIndex[i];
+	}
+
+	public float getDistance(int i) {
+		return distance[i];
+	}
+}
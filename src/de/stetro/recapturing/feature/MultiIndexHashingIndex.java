@@ -0,0 +1,230 @@
+package de.stetro.recapturing.feature;
+
+import java.util.Arrays;
+
+/**
+ * Multi index hashing over binary descriptors. Every descriptor is split into
+ * disjoint substrings, each substring is the key of one hash table. A query
+ * only compares the full hamming distance of descriptors that share at least
+ * one substring bucket (or a bucket within the probe radius) with it.
+ * <p>
+ * Recall and speed are tuned with the substring length (shorter substrings =
+ * more tables, more candidates, higher recall) and the probe radius (0 = exact
+ * bucket, 1 = additionally all buckets that differ in one bit). With m tables
+ * and probe radius r every neighbour closer than m * (r + 1) bits is found.
+ * Queries do not modify a built index, their buffers and statistics live in
+ * a {@link Search} of the caller, so one index can be queried from several
+ * threads that each own a search.
+ *
+ * @author Steffen Troester
+ */
+public class MultiIndexHashingIndex {
+
+	private final int substringBits;
+	private final int probeRadius;
+	private final int substringsPerWord;
+	private final long substringMask;
+
+	private PackedDescriptors data;
+	private int tables;
+	/**
+	 * bucket start offsets per table, bucket b of table t holds
+	 * ids[t][offsets[t][b] .. offsets[t][b + 1]]
+	 */
+	private int[][] offsets;
+	private int[][] ids;
+
+	/**
+	 * Visited marks, last distance and statistics of the queries of one
+	 * caller
+	 */
+	public static class Search {
+
+		private int[] visited = new int[0];
+		private int stamp;
+		private int lastDistance;
+		private int probeDistance;
+		private long candidates;
+		private long queries;
+
+		/**
+		 * @return distance of the last {@link MultiIndexHashingIndex#nearest}
+		 *         result
+		 */
+		public int getLastDistance() {
+			return lastDistance;
+		}
+
+		/**
+		 * @return average amount of full distance computations per query
+		 */
+		public double getAverageCandidates() {
+			return queries == 0 ? 0 : (double) candidates / queries;
+		}
+
+		public void resetStatistics() {
+			candidates = 0;
+			queries = 0;
+		}
+	}
+
+	/**
+	 * @param substringBits
+	 *            bits per hash table key, 8 or 16
+	 * @param probeRadius
+	 *            0 or 1
+	 */
+	public MultiIndexHashingIndex(int substringBits, int probeRadius) {
+		if (substringBits != 8 && substringBits != 16)
+			throw new IllegalArgumentException("substring length has to be 8 or 16 bits");
+		if (probeRadius < 0 || probeRadius > 1)
+			throw new IllegalArgumentException("probe radius has to be 0 or 1");
+		this.substringBits = substringBits;
+		this.probeRadius = probeRadius;
+		this.substringsPerWord = 64 / substringBits;
+		this.substringMask = (1L << substringBits) - 1;
+	}
+
+	/**
+	 * Builds all hash tables, the descriptors are referenced, not copied
+	 *
+	 * @param descriptors
+	 */
+	public void build(PackedDescriptors descriptors) {
+		data = descriptors;
+		int rows = descriptors.getRows();
+		int wordsPerRow = descriptors.getWordsPerRow();
+		long[] words = descriptors.getWords();
+		tables = wordsPerRow * substringsPerWord;
+		int buckets = 1 << substringBits;
+		offsets = new int[tables][];
+		ids = new int[tables][];
+		for (int table = 0; table < tables; table++) {
+			int[] counts = new int[buckets + 1];
+			for (int row = 0; row < rows; row++) {
+				counts[key(words, row * wordsPerRow, table) + 1]++;
+			}
+			for (int b = 0; b < buckets; b++) {
+				counts[b + 1] += counts[b];
+			}
+			int[] fill = new int[buckets];
+			System.arraycopy(counts, 0, fill, 0, buckets);
+			int[] tableIds = new int[rows];
+			for (int row = 0; row < rows; row++) {
+				tableIds[fill[key(words, row * wordsPerRow, table)]++] = row;
+			}
+			offsets[table] = counts;
+			ids[table] = tableIds;
+		}
+	}
+
+	public boolean isBuilt() {
+		return data != null;
+	}
+
+	/**
+	 * Finds the nearest indexed descriptor for every query row and writes it
+	 * as (template = indexed row, scene = query row) into the
+	 * {@link MatchBuffer}
+	 *
+	 * @param search
+	 *            buffers of the caller
+	 * @param scene
+	 *            query descriptors
+	 * @param matches
+	 *            destination, cleared first
+	 */
+	public void match(Search search, PackedDescriptors scene, MatchBuffer matches) {
+		matches.clear();
+		if (data == null || data.getRows() == 0)
+			return;
+		int rows = scene.getRows();
+		matches.ensureCapacity(rows);
+		for (int row = 0; row < rows; row++) {
+			int best = nearest(search, scene, row);
+			if (best >= 0)
+				matches.add(best, row, search.lastDistance);
+		}
+	}
+
+	/**
+	 * @param search
+	 *            buffers of the caller
+	 * @param query
+	 * @param row
+	 *            query row
+	 * @return index of the nearest candidate or -1 if no bucket matched, the
+	 *         distance is kept in {@link Search#getLastDistance()}
+	 */
+	public int nearest(Search search, PackedDescriptors query, int row) {
+		if (search.visited.length < data.getRows()) {
+			search.visited = new int[data.getRows()];
+			search.stamp = 0;
+		}
+		if (++search.stamp == Integer.MAX_VALUE) {
+			Arrays.fill(search.visited, 0);
+			search.stamp = 1;
+		}
+		search.queries++;
+		long[] words = query.getWords();
+		int queryOffset = row * query.getWordsPerRow();
+		int bestIndex = -1;
+		int bestDistance = Integer.MAX_VALUE;
+		for (int table = 0; table < tables; table++) {
+			int key = key(words, queryOffset, table);
+			int candidate = probe(search, table, key, query, row, bestDistance);
+			if (candidate >= 0) {
+				bestIndex = candidate;
+				bestDistance = search.probeDistance;
+			}
+			if (probeRadius > 0) {
+				for (int bit = 0; bit < substringBits; bit++) {
+					candidate = probe(search, table, key ^ (1 << bit), query, row, bestDistance);
+					if (candidate >= 0) {
+						bestIndex = candidate;
+						bestDistance = search.probeDistance;
+					}
+				}
+			}
+		}
+		search.lastDistance = bestDistance;
+		return bestIndex;
+	}
+
+	/**
+	 * Compares all not yet visited descriptors of one bucket
+	 *
+	 * @return index of a candidate closer than bestDistance or -1
+	 */
+	private int probe(Search search, int table, int key, PackedDescriptors query, int row, int bestDistance) {
+		int[] tableOffsets = offsets[table];
+		int[] tableIds = ids[table];
+		int[] visited = search.visited;
+		int stamp = search.stamp;
+		int bestIndex = -1;
+		for (int i = tableOffsets[key], end = tableOffsets[key + 1]; i < end; i++) {
+			int id = tableIds[i];
+			if (visited[id] == stamp)
+				continue;
+			visited[id] = stamp;
+			search.candidates++;
+			int distance = query.distance(row, data, id);
+			if (distance < bestDistance) {
+				bestDistance = distance;
+				bestIndex = id;
+			}
+		}
+		search.probeDistance = bestDistance;
+		return bestIndex;
+	}
+
+	private int key(long[] words, int rowOffset, int table) {
+		int word = table / substringsPerWord;
+		int shift = (table % substringsPerWord) * substringBits;
+		return (int) ((words[rowOffset + word] >>> shift) & substringMask);
+	}
+
+	public int getTables() {
+		return tables;
+	}
+}
@@ -0,0 +1,103 @@
+package de.stetro.recapturing.feature;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+/**
+ * Binary descriptors (e.g. ORB) packed into 64 bit words, one row per
+ * descriptor. Distances are computed with {@link Long#bitCount(long)}.
+ *
+ * @author Steffen Troester
+ */
+public class PackedDescriptors {
+
+	private long[] words = new long[0];
+	private byte[] bytes = new byte[0];
+	private int rows;
+	private int wordsPerRow;
+
+	/**
+	 * Packs a CV_8U descriptor {@link Mat} into this instance. The internal
+	 * buffers are reused and only grow.
+	 *
+	 * @param descriptors
+	 *            one descriptor per row
+	 * @return this
+	 */
+	public PackedDescriptors pack(Mat descriptors) {
+		if (descriptors.empty()) {
+			rows = 0;
+			return this;
+		}
+		if (descriptors.depth() != CvType.CV_8U)
+			throw new IllegalArgumentException("binary CV_8U descriptors expected");
+		int rowBytes = descriptors.cols() * descriptors.channels();
+		rows = descriptors.rows();
+		wordsPerRow = (rowBytes + 7) / 8;
+		int byteCount = rows * rowBytes;
+		if (bytes.length < byteCount)
+			bytes = new byte[byteCount];
+		if (words.length < rows * wordsPerRow)
+			words = new long[rows * wordsPerRow];
+		descriptors.get(0, 0, bytes);
+		for (int row = 0; row < rows; row++) {
+			int source = row * rowBytes;
+			int target = row * wordsPerRow;
+			for (int word = 0; word < wordsPerRow; word++) {
+				long value = 0;
+				int offset = word * 8;
+				int length = Math.min(8, rowBytes - offset);
+				for (int b = 0; b < length; b++) {
+					value |= (bytes[source + offset + b] & 0xFFL) << (b * 8);
+				}
+				words[target + word] = value;
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * Wraps already packed words without copying
+	 *
+	 * @param words
+	 * @param rows
+	 * @param wordsPerRow
+	 * @return this
+	 */
+	public PackedDescriptors wrap(long[] words, int rows, int wordsPerRow) {
+		this.words = words;
+		this.rows = rows;
+		this.wordsPerRow = wordsPerRow;
+		return this;
+	}
+
+	/**
+	 * @return hamming distance between row a of this and row b of other
+	 */
+	public int distance(int a, PackedDescriptors other, int b) {
+		long[] w1 = words;
+		long[] w2 = other.words;
+		int o1 = a * wordsPerRow;
+		int o2 = b * other.wordsPerRow;
+		int distance = 0;
+		for (int i = 0; i < wordsPerRow; i++) {
+			distance += Long.bitCount(w1[o1 + i] ^ w2[o2 + i]);
+		}
+		return distance;
+	}
+
+	public int getRows() {
+		return rows;
+	}
+
+	public int getWordsPerRow() {
+		return wordsPerRow;
+	}
+
+	/**
+	 * @return backing words, row r starts at r * {@link #getWordsPerRow()}
+	 */
+	public long[] getWords() {
+		return words;
+	}
+}
@@ -0,0 +1,191 @@
+package de.stetro.recapturing.feature;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Brute force hamming matcher on {@link PackedDescriptors}. The query rows are
+ * split into one chunk per core. Without ratio test and cross check the
+ * result equals OpenCV's BRUTEFORCE_HAMMING match (nearest train row, lowest
+ * index on ties).
+ *
+ * @author Steffen Troester
+ */
+public class PackedHammingMatcher {
+
+	/**
+	 * Below this amount of query rows the matching is not split
+	 */
+	private static final int MINIMUM_PARALLEL_ROWS = 64;
+
+	private final ExecutorService executor;
+	private final int threads;
+	private final List<Future<?>> futures = new ArrayList<Future<?>>();
+
+	private float ratio = 0;
+	private boolean crossCheck = false;
+
+	private int[] bestIndex = new int[0];
+	private int[] bestDistance = new int[0];
+	private int[] secondDistance = new int[0];
+	private int[] reverseIndex = new int[0];
+	private int[] reverseDistance = new int[0];
+	private int[] unusedSecond = new int[0];
+
+	public PackedHammingMatcher() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	public PackedHammingMatcher(int threads) {
+		this.threads = Math.max(1, threads);
+		this.executor = Executors.newFixedThreadPool(this.threads, new ThreadFactory() {
+			private int count;
+
+			@Override
+			public synchronized Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "hamming-matcher-" + count++);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Lowe ratio test, a match is only accepted if best distance &lt; ratio *
+	 * second best distance. Values &lt;= 0 disable the test.
+	 *
+	 * @param ratio
+	 */
+	public void setRatio(float ratio) {
+		this.ratio = ratio;
+	}
+
+	/**
+	 * Only accept matches that are also the nearest neighbour in the opposite
+	 * direction
+	 *
+	 * @param crossCheck
+	 */
+	public void setCrossCheck(boolean crossCheck) {
+		this.crossCheck = crossCheck;
+	}
+
+	/**
+	 * Matches every template row against all scene rows. Results are written in
+	 * template order into the {@link MatchBuffer}.
+	 *
+	 * @param template
+	 *            query descriptors
+	 * @param scene
+	 *            train descriptors
+	 * @param matches
+	 *            destination, cleared first
+	 */
+	public void match(PackedDescriptors template, PackedDescriptors scene, MatchBuffer matches) {
+		matches.clear();
+		int queryRows = template.getRows();
+		if (queryRows == 0 || scene.getRows() == 0)
+			return;
+		if (bestIndex.length < queryRows) {
+			bestIndex = new int[queryRows];
+			bestDistance = new int[queryRows];
+			secondDistance = new int[queryRows];
+		}
+		nearestNeighbours(template, scene, bestIndex, bestDistance, secondDistance);
+		if (crossCheck) {
+			int trainRows = scene.getRows();
+			if (reverseIndex.length < trainRows) {
+				reverseIndex = new int[trainRows];
+				reverseDistance = new int[trainRows];
+				unusedSecond = new int[trainRows];
+			}
+			nearestNeighbours(scene, template, reverseIndex, reverseDistance, unusedSecond);
+		}
+		matches.ensureCapacity(queryRows);
+		for (int q = 0; q < queryRows; q++) {
+			int t = bestIndex[q];
+			if (ratio > 0 && !(bestDistance[q] < ratio * secondDistance[q]))
+				continue;
+			if (crossCheck && reverseIndex[t] != q)
+				continue;
+			matches.add(q, t, bestDistance[q]);
+		}
+	}
+
+	/**
+	 * Finds the best and second best train row for each query row
+	 */
+	private void nearestNeighbours(final PackedDescriptors query, final PackedDescriptors train, final int[] index, final int[] best, final int[] second) {
+		int rows = query.getRows();
+		if (threads == 1 || rows < MINIMUM_PARALLEL_ROWS) {
+			search(query, train, 0, rows, index, best, second);
+			return;
+		}
+		int chunk = (rows + threads - 1) / threads;
+		futures.clear();
+		for (int start = chunk; start < rows; start += chunk) {
+			final int from = start;
+			final int to = Math.min(rows, start + chunk);
+			futures.add(executor.submit(new Callable<Void>() {
+				@Override
+				public Void call() {
+					search(query, train, from, to, index, best, second);
+					return null;
+				}
+			}));
+		}
+		// the calling thread takes the first chunk
+		search(query, train, 0, Math.min(rows, chunk), index, best, second);
+		try {
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Hamming matching failed", e.getCause());
+		}
+	}
+
+	private static void search(PackedDescriptors query, PackedDescriptors train, int from, int to, int[] index, int[] best, int[] second) {
+		long[] q = query.getWords();
+		long[] t = train.getWords();
+		int words = query.getWordsPerRow();
+		int trainRows = train.getRows();
+		for (int row = from; row < to; row++) {
+			int qo = row * words;
+			int bestD = Integer.MAX_VALUE;
+			int secondD = Integer.MAX_VALUE;
+			int bestI = -1;
+			for (int candidate = 0, offset = 0; candidate < trainRows; candidate++, offset += words) {
+				int d = 0;
+				for (int w = 0; w < words; w++) {
+					d += Long.bitCount(q[qo + w] ^ t[offset + w]);
+				}
+				if (d < bestD) {
+					secondD = bestD;
+					bestD = d;
+					bestI = candidate;
+				} else if (d < secondD) {
+					secondD = d;
+				}
+			}
+			index[row] = bestI;
+			best[row] = bestD;
+			second[row] = secondD;
+		}
+	}
+
+	/**
+	 * Stops the worker threads
+	 */
+	public void shutdown() {
+		executor.shutdown();
+	}
+}
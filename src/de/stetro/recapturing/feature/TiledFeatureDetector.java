@@ -0,0 +1,283 @@
+package de.stetro.recapturing.feature;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfKeyPoint;
+import org.opencv.features2d.FeatureDetector;
+
+/**
+ * Detects key points in a grid of cells in parallel. Every cell is detected
+ * with a margin around it, so detectors with a border (like ORB) still find
+ * key points close to the cell edges, but only key points inside the cell
+ * are kept. The key point budget is split evenly over the cells: every cell
+ * keeps its strongest responses up to its share, budget left by sparse cells
+ * is handed round robin to the cells with more candidates. The result is one
+ * {@link MatOfKeyPoint} in frame coordinates, spread over the frame and
+ * capped, so the matching and homography cost no longer depends on how
+ * textured the scene is.
+ * 
+ * @author Steffen Troester
+ * 
+ */
+public class TiledFeatureDetector {
+
+	/**
+	 * x, y, size, angle, response, octave and class id of a native key point
+	 */
+	private static final int KEY_POINT_FLOATS = 7;
+
+	private final int columns;
+	private final int rows;
+	private final int margin;
+	private final int threads;
+	private final ExecutorService executor;
+	private final Cell[] cells;
+	private final List<Cell> cellList;
+	/**
+	 * one detector per thread, OpenCV detectors are not shared between
+	 * threads
+	 */
+	private volatile BlockingQueue<FeatureDetector> detectors;
+	private float[] merged = new float[0];
+
+	/**
+	 * @param columns
+	 *            cells per row
+	 * @param rows
+	 *            cells per column
+	 * @param margin
+	 *            pixels detected around every cell, at least the detector
+	 *            border (31 for ORB)
+	 * @param threads
+	 *            detection threads, e.g. the available processors
+	 */
+	public TiledFeatureDetector(int columns, int rows, int margin, int threads) {
+		if (columns < 1 || rows < 1)
+			throw new IllegalArgumentException("grid needs at least one cell");
+		this.columns = columns;
+		this.rows = rows;
+		this.margin = margin;
+		this.threads = threads;
+		cells = new Cell[columns * rows];
+		for (int i = 0; i < cells.length; i++) {
+			cells[i] = new Cell();
+		}
+		cellList = Arrays.asList(cells);
+		executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private int count;
+
+			@Override
+			public synchronized Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "tile-detector-" + count++);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Creates the detectors of all threads, like the
+	 * {@link FeatureComponentRegistry}
+	 * 
+	 * @param detectorType
+	 *            {@link FeatureDetector} type constant
+	 * @param detectorConfiguration
+	 *            path of the detector configuration file or null, read by
+	 *            every cell, so a key point limit like the ORB nFeatures
+	 *            should cover one cell, not the whole frame
+	 */
+	public void configure(int detectorType, String detectorConfiguration) {
+		BlockingQueue<FeatureDetector> next = new ArrayBlockingQueue<FeatureDetector>(threads);
+		for (int i = 0; i < threads; i++) {
+			FeatureDetector detector = FeatureDetector.create(detectorType);
+			if (detectorConfiguration != null)
+				detector.read(detectorConfiguration);
+			next.add(detector);
+		}
+		detectors = next;
+	}
+
+	public boolean isConfigured() {
+		return detectors != null;
+	}
+
+	/**
+	 * Detects all cells in parallel and merges their strongest key points
+	 * 
+	 * @param grayPicture
+	 * @param keyPoints
+	 *            destination in frame coordinates
+	 * @param maximumKeyPoints
+	 *            budget of the whole frame, 0 keeps all key points
+	 * @return number of key points
+	 */
+	public synchronized int detect(Mat grayPicture, MatOfKeyPoint keyPoints, int maximumKeyPoints) {
+		BlockingQueue<FeatureDetector> frameDetectors = detectors;
+		if (frameDetectors == null)
+			throw new IllegalStateException("TiledFeatureDetector is not configured");
+		int width = grayPicture.cols(), height = grayPicture.rows();
+		for (int row = 0; row < rows; row++) {
+			for (int column = 0; column < columns; column++) {
+				Cell cell = cells[row * columns + column];
+				cell.x0 = column * width / columns;
+				cell.x1 = (column + 1) * width / columns;
+				cell.y0 = row * height / rows;
+				cell.y1 = (row + 1) * height / rows;
+				cell.picture = grayPicture;
+				cell.detectors = frameDetectors;
+			}
+		}
+		try {
+			for (Future<Void> future : executor.invokeAll(cellList)) {
+				future.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			keyPoints.create(0, 1, CvType.CV_32FC(KEY_POINT_FLOATS));
+			return 0;
+		} catch (ExecutionException e) {
+			throw new RuntimeException("Tile detection failed: " + e.getCause().getMessage(), e.getCause());
+		} finally {
+			for (Cell cell : cells) {
+				cell.picture = null;
+			}
+		}
+		int count = distributeBudget(maximumKeyPoints);
+		if (merged.length < count * KEY_POINT_FLOATS)
+			merged = new float[count * KEY_POINT_FLOATS];
+		int offset = 0;
+		for (Cell cell : cells) {
+			for (int i = 0; i < cell.kept; i++) {
+				System.arraycopy(cell.keyPoints, cell.order[i] * KEY_POINT_FLOATS, merged, offset, KEY_POINT_FLOATS);
+				offset += KEY_POINT_FLOATS;
+			}
+		}
+		keyPoints.create(count, 1, CvType.CV_32FC(KEY_POINT_FLOATS));
+		if (count > 0)
+			keyPoints.put(0, 0, merged);
+		return count;
+	}
+
+	/**
+	 * Sets the number of kept key points of every cell
+	 * 
+	 * @return total number of kept key points
+	 */
+	private int distributeBudget(int maximumKeyPoints) {
+		int total = 0;
+		if (maximumKeyPoints <= 0) {
+			for (Cell cell : cells) {
+				cell.kept = cell.candidates;
+				total += cell.kept;
+			}
+			return total;
+		}
+		int share = maximumKeyPoints / cells.length;
+		for (Cell cell : cells) {
+			cell.kept = Math.min(share, cell.candidates);
+			total += cell.kept;
+		}
+		// hand the rest to the cells with candidates left, one at a time
+		boolean added = true;
+		while (total < maximumKeyPoints && added) {
+			added = false;
+			for (int i = 0; i < cells.length && total < maximumKeyPoints; i++) {
+				Cell cell = cells[i];
+				if (cell.kept < cell.candidates) {
+					cell.kept++;
+					total++;
+					added = true;
+				}
+			}
+		}
+		return total;
+	}
+
+	/**
+	 * Stops the detection threads
+	 */
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	public int getColumns() {
+		return columns;
+	}
+
+	public int getRows() {
+		return rows;
+	}
+
+	/**
+	 * Detection task and reused buffers of one grid cell
+	 */
+	private class Cell implements Callable<Void> {
+		private int x0, y0, x1, y1;
+		private Mat picture;
+		private BlockingQueue<FeatureDetector> detectors;
+		private final MatOfKeyPoint detected = new MatOfKeyPoint();
+		private float[] keyPoints = new float[0];
+		private long[] sortKeys = new long[0];
+		/**
+		 * indices of the candidates, strongest response first
+		 */
+		private int[] order = new int[0];
+		private int candidates;
+		private int kept;
+
+		@Override
+		public Void call() throws InterruptedException {
+			int left = Math.max(0, x0 - margin), top = Math.max(0, y0 - margin);
+			int right = Math.min(picture.cols(), x1 + margin), bottom = Math.min(picture.rows(), y1 + margin);
+			Mat region = picture.submat(top, bottom, left, right);
+			FeatureDetector detector = detectors.take();
+			try {
+				detector.detect(region, detected);
+			} finally {
+				detectors.put(detector);
+				region.release();
+			}
+			int size = detected.rows();
+			if (keyPoints.length < size * KEY_POINT_FLOATS) {
+				keyPoints = new float[size * KEY_POINT_FLOATS];
+				sortKeys = new long[size];
+				order = new int[size];
+			}
+			if (size > 0)
+				detected.get(0, 0, keyPoints);
+			candidates = 0;
+			for (int i = 0; i < size; i++) {
+				int offset = i * KEY_POINT_FLOATS;
+				float x = keyPoints[offset] + left;
+				float y = keyPoints[offset + 1] + top;
+				// key points of the margin belong to the neighbour cell
+				if (x < x0 || x >= x1 || y < y0 || y >= y1)
+					continue;
+				keyPoints[offset] = x;
+				keyPoints[offset + 1] = y;
+				int bits = Float.floatToIntBits(keyPoints[offset + 4]);
+				// order preserving integer of the response, also for negative
+				// values
+				bits ^= (bits >> 31) & 0x7FFFFFFF;
+				sortKeys[candidates++] = ((long) bits << 32) | i;
+			}
+			Arrays.sort(sortKeys, 0, candidates);
+			for (int i = 0; i < candidates; i++) {
+				order[i] = (int) sortKeys[candidates - 1 - i];
+			}
+			return null;
+		}
+	}
+}
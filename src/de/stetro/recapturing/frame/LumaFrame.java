@@ -0,0 +1,27 @@
+package de.stetro.recapturing.frame;
+
+import org.opencv.core.Mat;
+
+/**
+ * Frame whose luma plane is accessible without a color conversion, like the
+ * Y plane of an NV21 camera buffer. The processor only works on
+ * {@link #gray()}, a color frame is only converted when it is requested for
+ * the output.
+ * 
+ * @author Steffen Troester
+ * 
+ */
+public interface LumaFrame {
+
+	/**
+	 * @return luma plane as CV_8UC1 {@link Mat} sharing the frame buffer,
+	 *         valid until the next frame
+	 */
+	Mat gray();
+
+	/**
+	 * @return RGBA conversion of the frame including everything drawn into
+	 *         the luma plane so far
+	 */
+	Mat rgba();
+}
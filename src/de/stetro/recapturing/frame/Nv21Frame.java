@@ -0,0 +1,69 @@
+package de.stetro.recapturing.frame;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * {@link LumaFrame} of an NV21 buffer in memory: the full resolution Y plane
+ * followed by the interleaved V and U planes at half resolution, like the
+ * Android camera preview. The luma plane is a sub matrix of the buffer, the
+ * RGBA frame is converted on request.
+ * 
+ * @author Steffen Troester
+ * 
+ */
+public class Nv21Frame implements LumaFrame {
+
+	private final int width;
+	private final int height;
+	private final Mat yuv;
+	private final Mat rgba = new Mat();
+
+	public Nv21Frame(int width, int height) {
+		this.width = width;
+		this.height = height;
+		yuv = new Mat(height + height / 2, width, CvType.CV_8UC1);
+	}
+
+	/**
+	 * @return size of an NV21 frame in bytes
+	 */
+	public static int getFrameSize(int width, int height) {
+		return width * (height + height / 2);
+	}
+
+	/**
+	 * Replaces the frame content
+	 * 
+	 * @param nv21
+	 *            {@link #getFrameSize(int, int)} bytes
+	 */
+	public void put(byte[] nv21) {
+		yuv.put(0, 0, nv21);
+	}
+
+	/**
+	 * A new header on every call like the camera frame, a processing step
+	 * that reallocates it (e.g. drawing key points) cannot detach the luma
+	 * plane of the following frames from the buffer
+	 */
+	@Override
+	public Mat gray() {
+		return yuv.submat(0, height, 0, width);
+	}
+
+	@Override
+	public Mat rgba() {
+		Imgproc.cvtColor(yuv, rgba, Imgproc.COLOR_YUV2RGBA_NV21, 4);
+		return rgba;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+}
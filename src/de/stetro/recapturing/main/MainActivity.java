@@ -2,20 +2,20 @@ package de.stetro.recapturing.main;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Locale;
 
 import org.opencv.android.BaseLoaderCallback;
 import org.opencv.android.CameraBridgeViewBase;
-import org.opencv.android.CameraBridgeViewBase.CvCameraViewListener;
+import org.opencv.android.CameraBridgeViewBase.CvCameraViewFrame;
+import org.opencv.android.CameraBridgeViewBase.CvCameraViewListener2;
 import org.opencv.android.OpenCVLoader;
 import org.opencv.core.Mat;
 
 import android.app.Activity;
-import android.content.ContextWrapper;
 import android.content.Intent;
 import android.graphics.Bitmap;
 import android.net.Uri;
 import android.os.Bundle;
-import android.provider.MediaStore;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MotionEvent;
@@ -27,11 +27,26 @@ import android.widget.SeekBar;
 import android.widget.TextView;
 import de.stetro.recapturing.R;
 import de.stetro.recapturing.RecapturingProcessor;
-import de.stetro.recapturing.main.util.ImageUtil;
+import de.stetro.recapturing.diagnostics.RecapturingLog;
+import de.stetro.recapturing.main.util.AndroidLogSink;
+import de.stetro.recapturing.main.util.CameraLumaFrame;
 import de.stetro.recapturing.main.util.OpenCVBaseLoaderCallbackListener;
 import de.stetro.recapturing.main.util.PickImageOnClickListener;
 import de.stetro.recapturing.main.util.SeekBarDistanceChangeListener;
+import de.stetro.recapturing.main.util.UriTemplateSource;
+import de.stetro.recapturing.memory.MatArena;
+import de.stetro.recapturing.metrics.MetricsSnapshot;
+import de.stetro.recapturing.metrics.Stage;
+import de.stetro.recapturing.metrics.TelemetryRecorder;
+import de.stetro.recapturing.pipeline.PipelinedProcessor;
 import de.stetro.recapturing.pojo.FramePackage;
+import de.stetro.recapturing.quality.AdaptiveQualityController;
+import de.stetro.recapturing.template.PreparedTemplate;
+import de.stetro.recapturing.template.TemplateFeatureCache;
+import de.stetro.recapturing.template.TemplateLoader;
+import de.stetro.recapturing.template.TemplateLoader.Step;
+import de.stetro.recapturing.template.TemplateLoader.TemplateSource;
+import de.stetro.recapturing.tracking.MotionGate;
 
 /**
  * Main view component of this application. Loads images and delegate them to
@@ -39,7 +54,7 @@ import de.stetro.recapturing.pojo.FramePackage;
  * 
  * @author Steffen Troester
  */
-public class MainActivity extends Activity implements CvCameraViewListener, View.OnTouchListener {
+public class MainActivity extends Activity implements CvCameraViewListener2, View.OnTouchListener {
 
 	/**
 	 * Maximum image size (width or height)
@@ -53,12 +68,62 @@ public class MainActivity extends Activity implements CvCameraViewListener, View
 	 * Maximum image height of camera preview
 	 */
 	private static final int MAX_HEIGHT = 460;
+	/**
+	 * Maximum size of the template feature cache in bytes
+	 */
+	private static final long FEATURE_CACHE_SIZE = 32 * 1024 * 1024;
+	/**
+	 * Run feature extraction and registration as pipelined stages on worker
+	 * threads instead of the camera thread
+	 */
+	private static final boolean PIPELINED_PROCESSING = true;
+	/**
+	 * Frames kept in the telemetry ring file, about ten minutes at 30 fps
+	 */
+	private static final int TELEMETRY_CAPACITY = 18000;
+	/**
+	 * Adapt the quality level to the frame budget instead of keeping the
+	 * default level
+	 */
+	private static final boolean ADAPTIVE_QUALITY = false;
+	/**
+	 * Frame time the adaptive quality controller holds, 30 fps
+	 */
+	private static final long FRAME_BUDGET_NANOS = 33000000L;
+	/**
+	 * Skip the registration of static frames and reuse the overlay of the
+	 * last registered frame
+	 */
+	private static final boolean MOTION_GATE = false;
+	/**
+	 * Remove matches that disagree with the dominant similarity transform
+	 * before the homography estimation
+	 */
+	private static final boolean CONSISTENCY_FILTER = false;
+	/**
+	 * Detect the frames in tiles instead of with one detector over the whole
+	 * frame
+	 */
+	private static final boolean TILED_DETECTION = false;
+	/**
+	 * Detection grid of the frames, spreads the key points over the frame and
+	 * the detection over the cores
+	 */
+	private static final int TILE_COLUMNS = 4;
+	private static final int TILE_ROWS = 3;
 
 	public static final String TAG = "Recapturing App";
-	private static ContextWrapper context;
 
 	private CameraBridgeViewBase openCvCameraView;
 	private RecapturingProcessor recapturingProcessor;
+	private PipelinedProcessor pipelinedProcessor;
+	private TemplateLoader templateLoader;
+	/**
+	 * step of the last template load, shown with the frame statistics
+	 */
+	private volatile String templateStatus = "";
+	private final CameraLumaFrame cameraFrame = new CameraLumaFrame();
+	private TelemetryRecorder telemetryRecorder;
 
 	private int viewWidth;
 	private int viewHeight;
@@ -77,7 +142,6 @@ public class MainActivity extends Activity implements CvCameraViewListener, View
 		prepareImagePicker();
 		prepareDistanceSeekBar();
 		fpsTextView = (TextView) findViewById(R.id.fps_textview);
-		MainActivity.context = this;
 	}
 
 	/**
@@ -110,7 +174,25 @@ public class MainActivity extends Activity implements CvCameraViewListener, View
 	}
 
 	private void prepareRecapturingProcessor() {
+		RecapturingLog.setSink(new AndroidLogSink());
 		recapturingProcessor = new RecapturingProcessor();
+		recapturingProcessor.setConfigurationDirectory(getCacheDir());
+		recapturingProcessor.setTemplateFeatureCache(new TemplateFeatureCache(new File(getCacheDir(), "template-features"), FEATURE_CACHE_SIZE));
+		if (ADAPTIVE_QUALITY)
+			recapturingProcessor.setQualityController(new AdaptiveQualityController(FRAME_BUDGET_NANOS));
+		if (MOTION_GATE)
+			recapturingProcessor.setMotionGate(new MotionGate());
+		recapturingProcessor.setConsistencyFilter(CONSISTENCY_FILTER);
+		if (TILED_DETECTION)
+			recapturingProcessor.setTiledDetection(TILE_COLUMNS, TILE_ROWS);
+		pipelinedProcessor = new PipelinedProcessor(recapturingProcessor);
+		templateLoader = new TemplateLoader(recapturingProcessor);
+		try {
+			telemetryRecorder = new TelemetryRecorder(new File(getFilesDir(), "telemetry.ring"), TELEMETRY_CAPACITY);
+			recapturingProcessor.setTelemetryRecorder(telemetryRecorder);
+		} catch (IOException e) {
+			Log.e(TAG, "Telemetry disabled: " + e.getMessage());
+		}
 	}
 
 	/**
@@ -140,6 +222,17 @@ public class MainActivity extends Activity implements CvCameraViewListener, View
 		super.onDestroy();
 		if (getOpenCvCameraView() != null)
 			getOpenCvCameraView().disableView();
+		pipelinedProcessor.stop();
+		templateLoader.shutdown();
+		recapturingProcessor.setTiledDetection(0, 0);
+		if (telemetryRecorder != null) {
+			recapturingProcessor.setTelemetryRecorder(null);
+			try {
+				telemetryRecorder.close();
+			} catch (IOException e) {
+				Log.e(TAG, "Telemetry could not be closed: " + e.getMessage());
+			}
+		}
 	}
 
 	@Override
@@ -154,10 +247,14 @@ public class MainActivity extends Activity implements CvCameraViewListener, View
 	public void onCameraViewStarted(int width, int height) {
 		viewWidth = width;
 		viewHeight = height;
-		recapturingProcessor.prepareViewSize(width, height);
+		if (PIPELINED_PROCESSING)
+			pipelinedProcessor.start(width, height);
+		else
+			recapturingProcessor.prepareViewSize(width, height);
 	}
 
 	public void onCameraViewStopped() {
+		pipelinedProcessor.stop();
 	}
 
 	/**
@@ -175,8 +272,20 @@ public class MainActivity extends Activity implements CvCameraViewListener, View
 		return false;
 	}
 
-	public Mat onCameraFrame(Mat inputFrame) {
-		FramePackage fp = recapturingProcessor.process(inputFrame);
+	/**
+	 * Processes the luma plane of the camera frame, RGBA is only converted
+	 * while the pipeline has no result yet
+	 */
+	public Mat onCameraFrame(CvCameraViewFrame inputFrame) {
+		FramePackage fp;
+		cameraFrame.wrap(inputFrame);
+		if (PIPELINED_PROCESSING) {
+			fp = pipelinedProcessor.process(cameraFrame);
+			if (fp == null)
+				return cameraFrame.rgba();
+		} else {
+			fp = recapturingProcessor.process(cameraFrame);
+		}
 		displayFPS(fp);
 		fp.getFrame();
 		return fp.getFrame();
@@ -186,8 +295,12 @@ public class MainActivity extends Activity implements CvCameraViewListener, View
 		this.runOnUiThread(new Runnable() {
 			@Override
 			public void run() {
-				fpsTextView.setText("FPS: " + fp.getDisplayRate() + "\n" + "Detection:" + fp.getDetectionTime() + "ms\n" + "Description:" + fp.getDescriptionTime() + "ms\n" + "Matching:"
-						+ fp.getMatchingTime() + "ms\n" + "Good Matches:" + fp.getMatches() + "\n" + "Filter:" + fp.getFilterTime() + "ms\n" + "Homography:" + fp.getDltTime() + "ms\n");
+				MetricsSnapshot metrics = recapturingProcessor.getMetrics().snapshot();
+				MatArena arena = recapturingProcessor.getMatArena();
+				fpsTextView.setText(String.format(Locale.US, "FPS: %.1f\nDetection: %.1fms\nDescription: %.1fms\nMatching: %.1fms\nGood Matches: %d\nFilter: %.2fms\nHomography: %.1fms\nFrame p95: %.1fms\nQuality: %d\nSkipped: %.0f%%\nNative: %d/%dKB",
+						fp.getDisplayRate(), fp.getDetectionNanos() / 1e6, fp.getDescriptionNanos() / 1e6, fp.getMatchingNanos() / 1e6, fp.getMatches(), fp.getFilterNanos() / 1e6,
+						fp.getHomographyNanos() / 1e6, metrics.getStage(Stage.FRAME).getP95() / 1e6, recapturingProcessor.getQualityController().getLevelIndex(),
+						metrics.getSkipRate() * 100, arena.getLiveBytes() / 1024, arena.getHighWaterBytes() / 1024) + templateStatus);
 
 			}
 		});
@@ -206,42 +319,38 @@ public class MainActivity extends Activity implements CvCameraViewListener, View
 			if (resultCode == RESULT_OK) {
 				Log.i(TAG, "Load template image ...");
 				Uri selectedImage = imageReturnedIntent.getData();
-				Bitmap bitmap, preview, templateBitmap;
-				try {
-					bitmap = MediaStore.Images.Media.getBitmap(this.getContentResolver(), selectedImage);
-					preview = ImageUtil.resize(bitmap, PREVIEW_SIZE);
-					templateBitmap = ImageUtil.resize(bitmap, MAX_WIDTH);
-					imagePicker.setImageBitmap(preview);
-					recapturingProcessor.setTemplateBitmap(templateBitmap);
-				} catch (Exception e) {
-					e.printStackTrace();
-				}
+				templateLoader.load(new UriTemplateSource(getContentResolver(), selectedImage, MAX_WIDTH, PREVIEW_SIZE), templateLoadListener);
 			}
 			break;
 		}
 	}
 
 	/**
-	 * Get temporary file path of application context with a specific file
-	 * extension.
-	 * 
-	 * @param extension
-	 * @return String file path
+	 * Shows the progress of the template loader and the preview of the
+	 * loaded template
 	 */
-	public static String getTempFileName(String extension) {
-		File cache = context.getCacheDir();
-		if (!extension.startsWith("."))
-			extension = "." + extension;
-		try {
-			File tmp = File.createTempFile("OpenCV", extension, cache);
-			String path = tmp.getAbsolutePath();
-			tmp.delete();
-			return path;
-		} catch (IOException e) {
-			Log.d("ERROR", "Failed to get temp file name. Exception is thrown: " + e);
+	private final TemplateLoader.Listener templateLoadListener = new TemplateLoader.Listener() {
+		@Override
+		public void onProgress(TemplateSource source, Step step) {
+			templateStatus = "\nTemplate: " + step.name().toLowerCase(Locale.US);
 		}
-		return null;
-	}
+
+		@Override
+		public void onLoaded(TemplateSource source, PreparedTemplate template) {
+			final Bitmap preview = ((UriTemplateSource) source).getPreview();
+			runOnUiThread(new Runnable() {
+				@Override
+				public void run() {
+					imagePicker.setImageBitmap(preview);
+				}
+			});
+		}
+
+		@Override
+		public void onFailed(TemplateSource source, Exception e) {
+			Log.e(TAG, "Template could not be loaded: " + e.getMessage());
+		}
+	};
 
 	public CameraBridgeViewBase getOpenCvCameraView() {
 		return openCvCameraView;
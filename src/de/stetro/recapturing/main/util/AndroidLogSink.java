@@ -0,0 +1,29 @@
+package de.stetro.recapturing.main.util;
+
+import android.util.Log;
+import de.stetro.recapturing.diagnostics.LogSink;
+import de.stetro.recapturing.diagnostics.RecapturingLog;
+
+/**
+ * Forwards {@link RecapturingLog} messages to logcat
+ * 
+ * @author Steffen Troester
+ * 
+ */
+public class AndroidLogSink implements LogSink {
+
+	@Override
+	public void debug(String tag, String message) {
+		Log.d(tag, message);
+	}
+
+	@Override
+	public void info(String tag, String message) {
+		Log.i(tag, message);
+	}
+
+	@Override
+	public void error(String tag, String message) {
+		Log.e(tag, message);
+	}
+}
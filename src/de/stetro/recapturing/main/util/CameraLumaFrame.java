@@ -0,0 +1,39 @@
+package de.stetro.recapturing.main.util;
+
+import org.opencv.android.CameraBridgeViewBase.CvCameraViewFrame;
+import org.opencv.core.Mat;
+
+import de.stetro.recapturing.frame.LumaFrame;
+
+/**
+ * {@link LumaFrame} of the camera view. The gray frame of the
+ * {@link CvCameraViewFrame} is the Y plane of the NV21 preview buffer, so no
+ * conversion or copy is necessary; RGBA is only converted on request.
+ * 
+ * @author Steffen Troester
+ * 
+ */
+public class CameraLumaFrame implements LumaFrame {
+
+	private CvCameraViewFrame frame;
+
+	/**
+	 * @param frame
+	 *            current camera frame
+	 * @return this, wrapping the frame
+	 */
+	public CameraLumaFrame wrap(CvCameraViewFrame frame) {
+		this.frame = frame;
+		return this;
+	}
+
+	@Override
+	public Mat gray() {
+		return frame.gray();
+	}
+
+	@Override
+	public Mat rgba() {
+		return frame.rgba();
+	}
+}
@@ -0,0 +1,27 @@
+package de.stetro.recapturing.main.util;
+
+import android.os.Debug;
+import de.stetro.recapturing.diagnostics.AllocationCounter;
+
+/**
+ * {@link AllocationCounter} based on the Dalvik allocation counters
+ * 
+ * @author Steffen Troester
+ * 
+ */
+public class DalvikAllocationCounter implements AllocationCounter {
+
+	public DalvikAllocationCounter() {
+		Debug.startAllocCounting();
+	}
+
+	@Override
+	public void begin() {
+		Debug.resetThreadAllocCount();
+	}
+
+	@Override
+	public int end() {
+		return Debug.getThreadAllocCount();
+	}
+}
@@ -0,0 +1,96 @@
+package de.stetro.recapturing.main.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.opencv.android.Utils;
+import org.opencv.core.Mat;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import de.stetro.recapturing.template.TemplateLoader.TemplateSource;
+
+/**
+ * Template picture of a content URI, e.g. picked from the gallery. The
+ * picture is subsampled while decoding instead of decoding it at full size,
+ * then scaled to the template and preview sizes.
+ * 
+ * @author Steffen Troester
+ * 
+ */
+public class UriTemplateSource implements TemplateSource {
+
+	private final ContentResolver contentResolver;
+	private final Uri uri;
+	private final int templateSize;
+	private final int previewSize;
+	private volatile Bitmap preview;
+
+	/**
+	 * @param contentResolver
+	 * @param uri
+	 * @param templateSize
+	 *            maximum width or height of the template
+	 * @param previewSize
+	 *            maximum width or height of the preview
+	 */
+	public UriTemplateSource(ContentResolver contentResolver, Uri uri, int templateSize, int previewSize) {
+		this.contentResolver = contentResolver;
+		this.uri = uri;
+		this.templateSize = templateSize;
+		this.previewSize = previewSize;
+	}
+
+	@Override
+	public Mat decode() throws IOException {
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inJustDecodeBounds = true;
+		decodeStream(options);
+		// largest power of two that keeps the picture above the template size
+		int longSide = Math.max(options.outWidth, options.outHeight);
+		int sampleSize = 1;
+		while (longSide / (sampleSize * 2) >= templateSize)
+			sampleSize *= 2;
+		options = new BitmapFactory.Options();
+		options.inSampleSize = sampleSize;
+		options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+		Bitmap bitmap = decodeStream(options);
+		if (bitmap == null)
+			throw new IOException("Could not decode " + uri);
+		preview = ImageUtil.resize(bitmap, previewSize);
+		Bitmap templateBitmap = ImageUtil.resize(bitmap, templateSize);
+		Mat picture = new Mat();
+		Utils.bitmapToMat(templateBitmap, picture);
+		// scaling to the same size returns the bitmap itself
+		if (templateBitmap != bitmap && templateBitmap != preview)
+			templateBitmap.recycle();
+		if (bitmap != preview)
+			bitmap.recycle();
+		return picture;
+	}
+
+	private Bitmap decodeStream(BitmapFactory.Options options) throws IOException {
+		InputStream stream = contentResolver.openInputStream(uri);
+		if (stream == null)
+			throw new IOException("Could not open " + uri);
+		try {
+			return BitmapFactory.decodeStream(stream, null, options);
+		} finally {
+			stream.close();
+		}
+	}
+
+	@Override
+	public String getName() {
+		return uri.toString();
+	}
+
+	/**
+	 * @return preview of the decoded picture, null before decoding
+	 */
+	public Bitmap getPreview() {
+		return preview;
+	}
+}
@@ -0,0 +1,314 @@
+package de.stetro.recapturing.memory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDMatch;
+import org.opencv.core.MatOfKeyPoint;
+import org.opencv.core.MatOfPoint2f;
+
+import de.stetro.recapturing.diagnostics.RecapturingLog;
+
+/**
+ * Frame scoped pool of native {@link Mat}s. Mats handed out between
+ * {@link #beginFrame()} and {@link #endFrame()} belong to the frame and are
+ * recycled when it ends, so their native buffers are reused by the next
+ * frames instead of waiting for the finalizer. Mats created by OpenCV, e.g.
+ * the result of <code>findHomography</code>, can be adopted by the frame and
+ * are released when it ends. Frames nest, only the outermost
+ * {@link #endFrame()} recycles.
+ * <p>
+ * The arena counts the native bytes it holds and their high water marks. In
+ * debug mode recycled Mats are released instead of reused and checked at the
+ * end of the next frame: a Mat that got a buffer again was used after its
+ * frame ended and is reported as leaked with the place it was acquired.
+ * 
+ * @author Steffen Troester
+ * 
+ */
+public class MatArena {
+
+	private static final String TAG = "MatArena";
+
+	private final Pool<Mat> mats = new Pool<Mat>() {
+		@Override
+		Mat create() {
+			return new Mat();
+		}
+	};
+	private final Pool<MatOfKeyPoint> keyPoints = new Pool<MatOfKeyPoint>() {
+		@Override
+		MatOfKeyPoint create() {
+			return new MatOfKeyPoint();
+		}
+	};
+	private final Pool<MatOfDMatch> matches = new Pool<MatOfDMatch>() {
+		@Override
+		MatOfDMatch create() {
+			return new MatOfDMatch();
+		}
+	};
+	private final Pool<MatOfPoint2f> points = new Pool<MatOfPoint2f>() {
+		@Override
+		MatOfPoint2f create() {
+			return new MatOfPoint2f();
+		}
+	};
+
+	/**
+	 * Mats of the current frame and the pool they are returned to, null for
+	 * adopted Mats
+	 */
+	private final List<Mat> frameMats = new ArrayList<Mat>();
+	private final List<Pool<? extends Mat>> framePools = new ArrayList<Pool<? extends Mat>>();
+	private final List<Throwable> frameSites = new ArrayList<Throwable>();
+	/**
+	 * released Mats of the last frame in debug mode, with their acquisition
+	 * site
+	 */
+	private final List<Mat> quarantine = new ArrayList<Mat>();
+	private final List<Throwable> quarantineSites = new ArrayList<Throwable>();
+
+	private int maximumFreeMats = 8;
+	private boolean debug;
+	private int depth;
+
+	private long pooledBytes;
+	private long liveBytes;
+	private long highWaterBytes;
+	private long frameHighWaterBytes;
+	private long createdMats;
+	private long reusedMats;
+	private long releasedMats;
+	private long leakedMats;
+	private long frames;
+
+	/**
+	 * Starts a frame, nested calls join the running frame
+	 */
+	public synchronized void beginFrame() {
+		depth++;
+	}
+
+	/**
+	 * Recycles the Mats of the frame if this ends the outermost frame
+	 */
+	public synchronized void endFrame() {
+		if (depth == 0)
+			throw new IllegalStateException("endFrame without beginFrame");
+		if (--depth > 0)
+			return;
+		frames++;
+		checkQuarantine();
+		long frameBytes = 0;
+		for (int i = 0; i < frameMats.size(); i++) {
+			frameBytes += bytes(frameMats.get(i));
+		}
+		liveBytes = pooledBytes + frameBytes;
+		highWaterBytes = Math.max(highWaterBytes, liveBytes);
+		frameHighWaterBytes = Math.max(frameHighWaterBytes, frameBytes);
+		for (int i = 0; i < frameMats.size(); i++) {
+			recycle(frameMats.get(i), framePools.get(i), debug ? frameSites.get(i) : null);
+		}
+		frameMats.clear();
+		framePools.clear();
+		frameSites.clear();
+		liveBytes = pooledBytes;
+	}
+
+	/**
+	 * @return Mat with the size and content of its last use, e.g. as OpenCV
+	 *         output that reuses the buffer
+	 */
+	public synchronized Mat acquire() {
+		return take(mats);
+	}
+
+	/**
+	 * @return Mat of the size and type, reuses the buffer of a recycled Mat
+	 *         of the same size
+	 */
+	public synchronized Mat acquire(int rows, int cols, int type) {
+		Mat mat = take(mats);
+		mat.create(rows, cols, type);
+		return mat;
+	}
+
+	public synchronized MatOfKeyPoint acquireKeyPoints() {
+		return take(keyPoints);
+	}
+
+	public synchronized MatOfDMatch acquireMatches() {
+		return take(matches);
+	}
+
+	public synchronized MatOfPoint2f acquirePoints() {
+		return take(points);
+	}
+
+	/**
+	 * Releases a Mat created outside of the arena at the end of the frame
+	 * 
+	 * @param mat
+	 *            Mat or null
+	 * @return mat
+	 */
+	public synchronized <T extends Mat> T adopt(T mat) {
+		if (mat != null)
+			track(mat, null);
+		return mat;
+	}
+
+	private <T extends Mat> T take(Pool<T> pool) {
+		T mat;
+		if (pool.free.isEmpty()) {
+			mat = pool.create();
+			createdMats++;
+		} else {
+			mat = pool.free.remove(pool.free.size() - 1);
+			pooledBytes -= bytes(mat);
+			reusedMats++;
+		}
+		track(mat, pool);
+		return mat;
+	}
+
+	private void track(Mat mat, Pool<? extends Mat> pool) {
+		if (depth == 0)
+			throw new IllegalStateException("Mat acquired outside of a frame");
+		frameMats.add(mat);
+		framePools.add(pool);
+		frameSites.add(debug ? new Throwable("acquired in frame " + frames) : null);
+	}
+
+	@SuppressWarnings("unchecked")
+	private void recycle(Mat mat, Pool<? extends Mat> pool, Throwable site) {
+		if (pool == null || debug || pool.free.size() >= maximumFreeMats) {
+			mat.release();
+			releasedMats++;
+			if (debug && pool != null) {
+				quarantine.add(mat);
+				quarantineSites.add(site);
+			}
+			return;
+		}
+		((Pool<Mat>) pool).free.add(mat);
+		pooledBytes += bytes(mat);
+	}
+
+	/**
+	 * Reports released Mats of the previous frame that were filled again
+	 */
+	private void checkQuarantine() {
+		for (int i = 0; i < quarantine.size(); i++) {
+			Mat mat = quarantine.get(i);
+			if (!mat.empty()) {
+				leakedMats++;
+				Throwable site = quarantineSites.get(i);
+				StackTraceElement[] trace = site.getStackTrace();
+				String caller = trace.length > 3 ? trace[3].toString() : "unknown";
+				RecapturingLog.e(TAG, "Mat " + mat.rows() + "x" + mat.cols() + " used after its frame ended, " + site.getMessage() + " at " + caller);
+				mat.release();
+			}
+		}
+		quarantine.clear();
+		quarantineSites.clear();
+	}
+
+	private static long bytes(Mat mat) {
+		return mat.total() * mat.elemSize();
+	}
+
+	/**
+	 * Releases all pooled Mats
+	 */
+	public synchronized void clear() {
+		clear(mats);
+		clear(keyPoints);
+		clear(matches);
+		clear(points);
+		pooledBytes = 0;
+		liveBytes = 0;
+	}
+
+	private void clear(Pool<? extends Mat> pool) {
+		for (Mat mat : pool.free) {
+			mat.release();
+			releasedMats++;
+		}
+		pool.free.clear();
+	}
+
+	/**
+	 * @param debug
+	 *            true releases recycled Mats instead of reusing them and
+	 *            reports Mats used after their frame ended
+	 */
+	public synchronized void setDebug(boolean debug) {
+		this.debug = debug;
+		if (debug)
+			clear();
+	}
+
+	/**
+	 * @param maximumFreeMats
+	 *            recycled Mats kept per type, further Mats are released
+	 */
+	public synchronized void setMaximumFreeMats(int maximumFreeMats) {
+		this.maximumFreeMats = maximumFreeMats;
+	}
+
+	/**
+	 * @return native bytes held by the pool after the last frame
+	 */
+	public synchronized long getLiveBytes() {
+		return liveBytes;
+	}
+
+	/**
+	 * @return maximum of pooled and frame bytes at the end of a frame
+	 */
+	public synchronized long getHighWaterBytes() {
+		return highWaterBytes;
+	}
+
+	/**
+	 * @return maximum native bytes used by a single frame
+	 */
+	public synchronized long getFrameHighWaterBytes() {
+		return frameHighWaterBytes;
+	}
+
+	/**
+	 * @return Mats created because no recycled Mat was free
+	 */
+	public synchronized long getCreatedMats() {
+		return createdMats;
+	}
+
+	public synchronized long getReusedMats() {
+		return reusedMats;
+	}
+
+	public synchronized long getReleasedMats() {
+		return releasedMats;
+	}
+
+	/**
+	 * @return Mats used after their frame ended, only counted in debug mode
+	 */
+	public synchronized long getLeakedMats() {
+		return leakedMats;
+	}
+
+	public synchronized long getFrames() {
+		return frames;
+	}
+
+	private abstract static class Pool<T extends Mat> {
+		private final List<T> free = new ArrayList<T>();
+
+		abstract T create();
+	}
+}
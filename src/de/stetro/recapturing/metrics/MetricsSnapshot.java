@@ -0,0 +1,106 @@
+package de.stetro.recapturing.metrics;
+
+import java.util.Locale;
+
+/**
+ * Immutable state of {@link StageMetrics} at one point in time
+ * 
+ * @author Steffen Troester
+ * 
+ */
+public class MetricsSnapshot {
+
+	private final Histogram.Distribution[] stages;
+	private final Histogram.Distribution matches;
+	private final Histogram.Distribution inliers;
+	private final Histogram.Distribution allocations;
+	private final long frames;
+	private final long skippedFrames;
+	private final double framesPerSecond;
+
+	MetricsSnapshot(Histogram.Distribution[] stages, Histogram.Distribution matches, Histogram.Distribution inliers, Histogram.Distribution allocations, long frames,
+			long skippedFrames, double framesPerSecond) {
+		this.stages = stages;
+		this.matches = matches;
+		this.inliers = inliers;
+		this.allocations = allocations;
+		this.frames = frames;
+		this.skippedFrames = skippedFrames;
+		this.framesPerSecond = framesPerSecond;
+	}
+
+	/**
+	 * @return latencies of the stage in nanoseconds
+	 */
+	public Histogram.Distribution getStage(Stage stage) {
+		return stages[stage.ordinal()];
+	}
+
+	public Histogram.Distribution getMatches() {
+		return matches;
+	}
+
+	public Histogram.Distribution getInliers() {
+		return inliers;
+	}
+
+	public Histogram.Distribution getAllocations() {
+		return allocations;
+	}
+
+	public long getFrames() {
+		return frames;
+	}
+
+	/**
+	 * @return frames whose registration was skipped by the motion gate
+	 */
+	public long getSkippedFrames() {
+		return skippedFrames;
+	}
+
+	/**
+	 * @return share of skipped frames between 0 and 1
+	 */
+	public double getSkipRate() {
+		return frames == 0 ? 0 : (double) skippedFrames / frames;
+	}
+
+	public double getFramesPerSecond() {
+		return framesPerSecond;
+	}
+
+	/**
+	 * @return stage latencies in microseconds and counts as JSON object
+	 */
+	public String toJson() {
+		StringBuilder json = new StringBuilder();
+		json.append("{\"fps\": ").append(String.format(Locale.US, "%.2f", framesPerSecond));
+		json.append(", \"frames\": ").append(frames);
+		json.append(", \"skippedFrames\": ").append(skippedFrames);
+		json.append(", \"skipRate\": ").append(String.format(Locale.US, "%.3f", getSkipRate()));
+		json.append(", \"stagesUs\": {");
+		for (Stage stage : Stage.values()) {
+			if (stage.ordinal() > 0)
+				json.append(", ");
+			json.append('"').append(stage.name().toLowerCase(Locale.US)).append("\": ");
+			appendDistribution(json, getStage(stage), 1000);
+		}
+		json.append("}, \"matches\": ");
+		appendDistribution(json, matches, 1);
+		json.append(", \"inliers\": ");
+		appendDistribution(json, inliers, 1);
+		json.append(", \"allocations\": ");
+		appendDistribution(json, allocations, 1);
+		return json.append('}').toString();
+	}
+
+	private static void appendDistribution(StringBuilder json, Histogram.Distribution distribution, long divisor) {
+		json.append("{\"count\": ").append(distribution.getCount());
+		json.append(", \"mean\": ").append(String.format(Locale.US, "%.1f", distribution.getMean() / divisor));
+		json.append(", \"p50\": ").append(distribution.getP50() / divisor);
+		json.append(", \"p95\": ").append(distribution.getP95() / divisor);
+		json.append(", \"p99\": ").append(distribution.getP99() / divisor);
+		json.append(", \"max\": ").append(distribution.getMax() / divisor).append('}');
+	}
+}
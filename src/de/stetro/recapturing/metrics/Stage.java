@@ -0,0 +1,15 @@
+package de.stetro.recapturing.metrics;
+
+/**
+ * Timed stages of one frame
+ * 
+ * @author Steffen Troester
+ * 
+ */
+public enum Stage {
+	DETECTION, DESCRIPTION, MATCHING, FILTER, HOMOGRAPHY,
+	/**
+	 * whole frame from input to result
+	 */
+	FRAME
+}
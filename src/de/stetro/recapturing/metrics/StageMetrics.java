@@ -0,0 +1,115 @@
+package de.stetro.recapturing.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.stetro.recapturing.pojo.FramePackage;
+
+/**
+ * Aggregated metrics of all processed frames: a latency {@link Histogram} per
+ * {@link Stage} in nanoseconds, histograms of match, inlier and allocation
+ * counts, the share of frames whose registration was skipped and the frame
+ * rate over the last frames. The processing threads record, any thread may
+ * take a {@link #snapshot()}.
+ * 
+ * @author Steffen Troester
+ * 
+ */
+public class StageMetrics {
+
+	/**
+	 * frames of the rolling frame rate
+	 */
+	private static final int RATE_WINDOW = 30;
+
+	private final Histogram[] stages = new Histogram[Stage.values().length];
+	private final Histogram matches = new Histogram();
+	private final Histogram inliers = new Histogram();
+	private final Histogram allocations = new Histogram();
+	private final AtomicLong frames = new AtomicLong();
+	private final AtomicLong skippedFrames = new AtomicLong();
+	private final long[] completions = new long[RATE_WINDOW];
+	private int completionCount;
+
+	public StageMetrics() {
+		for (int i = 0; i < stages.length; i++) {
+			stages[i] = new Histogram();
+		}
+	}
+
+	public void record(Stage stage, long nanos) {
+		stages[stage.ordinal()].record(nanos);
+	}
+
+	public void recordAllocations(long count) {
+		allocations.record(count);
+	}
+
+	/**
+	 * Records the stage timings and counts of a finished frame. Stages that
+	 * did not run for this frame (zero time) are skipped.
+	 * 
+	 * @param fp
+	 *            finished frame
+	 * @param completionNanos
+	 *            {@link System#nanoTime()} when the frame was finished
+	 */
+	public void recordFrame(FramePackage fp, long completionNanos) {
+		recordIfRun(Stage.DETECTION, fp.getDetectionNanos());
+		recordIfRun(Stage.DESCRIPTION, fp.getDescriptionNanos());
+		recordIfRun(Stage.MATCHING, fp.getMatchingNanos());
+		recordIfRun(Stage.FILTER, fp.getFilterNanos());
+		recordIfRun(Stage.HOMOGRAPHY, fp.getHomographyNanos());
+		recordIfRun(Stage.FRAME, fp.getTotalNanos());
+		matches.record(fp.getMatches());
+		inliers.record(fp.getInliers());
+		frames.incrementAndGet();
+		if (fp.isRegistrationSkipped())
+			skippedFrames.incrementAndGet();
+		synchronized (completions) {
+			completions[completionCount % RATE_WINDOW] = completionNanos;
+			completionCount++;
+		}
+	}
+
+	private void recordIfRun(Stage stage, long nanos) {
+		if (nanos > 0)
+			stages[stage.ordinal()].record(nanos);
+	}
+
+	/**
+	 * @return frames per second over the last completed frames
+	 */
+	public double getFramesPerSecond() {
+		synchronized (completions) {
+			int frames = Math.min(completionCount, RATE_WINDOW);
+			if (frames < 2)
+				return 0;
+			long newest = completions[(completionCount - 1) % RATE_WINDOW];
+			long oldest = completions[(completionCount - frames) % RATE_WINDOW];
+			return newest > oldest ? (frames - 1) * 1e9 / (newest - oldest) : 0;
+		}
+	}
+
+	public MetricsSnapshot snapshot() {
+		Histogram.Distribution[] distributions = new Histogram.Distribution[stages.length];
+		for (int i = 0; i < stages.length; i++) {
+			distributions[i] = stages[i].snapshot();
+		}
+		return new MetricsSnapshot(distributions, matches.snapshot(), inliers.snapshot(), allocations.snapshot(), frames.get(), skippedFrames.get(),
+				getFramesPerSecond());
+	}
+
+	public void reset() {
+		for (Histogram stage : stages) {
+			stage.reset();
+		}
+		matches.reset();
+		inliers.reset();
+		allocations.reset();
+		frames.set(0);
+		skippedFrames.set(0);
+		synchronized (completions) {
+			completionCount = 0;
+		}
+	}
+}
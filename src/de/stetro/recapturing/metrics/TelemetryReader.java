@@ -0,0 +1,183 @@
+package de.stetro.recapturing.metrics;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+
+/**
+ * Offline reader of the ring files of {@link TelemetryRecorder}. Converts the
+ * records in recording order to CSV and summarizes them:
+ * 
+ * <pre>
+ * java TelemetryReader telemetry.ring [telemetry.csv]
+ * </pre>
+ * 
+ * @author Steffen Troester
+ * 
+ */
+public class TelemetryReader {
+
+	private static final String[] STAGE_NAMES = { "detection", "description", "matching", "filter", "homography", "total" };
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.err.println("usage: TelemetryReader <ring file> [csv file]");
+			System.exit(1);
+		}
+		TelemetryReader reader = new TelemetryReader(new File(args[0]));
+		if (args.length > 1) {
+			Writer writer = new OutputStreamWriter(new FileOutputStream(args[1]), "UTF-8");
+			try {
+				reader.writeCsv(writer);
+			} finally {
+				writer.close();
+			}
+		}
+		System.out.print(reader.summary());
+	}
+
+	private final MappedByteBuffer buffer;
+	private final int capacity;
+	private final long nextSequence;
+
+	public TelemetryReader(File ringFile) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(ringFile, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			file.close();
+		}
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		if (buffer.getInt(0) != TelemetryRecorder.MAGIC || buffer.getInt(4) != TelemetryRecorder.VERSION || buffer.getInt(8) != TelemetryRecorder.RECORD_SIZE)
+			throw new IOException("Not a telemetry ring file: " + ringFile);
+		capacity = buffer.getInt(12);
+		nextSequence = buffer.getLong(TelemetryRecorder.NEXT_SEQUENCE_OFFSET);
+	}
+
+	/**
+	 * @return sequence of the oldest record still in the ring
+	 */
+	public long getFirstSequence() {
+		return Math.max(0, nextSequence - capacity);
+	}
+
+	public long getNextSequence() {
+		return nextSequence;
+	}
+
+	/**
+	 * @return position of the record or -1 if it was overwritten or not
+	 *         completely written
+	 */
+	private int position(long sequence) {
+		int position = TelemetryRecorder.HEADER_SIZE + (int) (sequence % capacity) * TelemetryRecorder.RECORD_SIZE;
+		return buffer.getLong(position + TelemetryRecorder.SEQUENCE) == sequence ? position : -1;
+	}
+
+	public void writeCsv(Writer writer) throws IOException {
+		StringBuilder line = new StringBuilder();
+		line.append("sequence,timestampNanos");
+		for (String stage : STAGE_NAMES) {
+			line.append(',').append(stage).append("Nanos");
+		}
+		line.append(",keyPoints,matches,inliers,homographyValid,registrationSkipped");
+		for (int i = 0; i < 9; i++) {
+			line.append(",h").append(i);
+		}
+		line.append(",mode,engine,detector,extractor,matcher,distanceLimit\n");
+		writer.write(line.toString());
+		for (long sequence = getFirstSequence(); sequence < nextSequence; sequence++) {
+			int position = position(sequence);
+			if (position < 0)
+				continue;
+			line.setLength(0);
+			line.append(sequence).append(',').append(buffer.getLong(position + TelemetryRecorder.TIMESTAMP));
+			for (int stage = 0; stage < STAGE_NAMES.length; stage++) {
+				line.append(',').append(buffer.getLong(position + TelemetryRecorder.STAGES + stage * 8));
+			}
+			line.append(',').append(buffer.getInt(position + TelemetryRecorder.KEY_POINTS));
+			line.append(',').append(buffer.getInt(position + TelemetryRecorder.MATCHES));
+			line.append(',').append(buffer.getInt(position + TelemetryRecorder.INLIERS));
+			int flags = buffer.getInt(position + TelemetryRecorder.FLAGS);
+			line.append(',').append(flags & TelemetryRecorder.FLAG_HOMOGRAPHY);
+			line.append(',').append((flags & TelemetryRecorder.FLAG_SKIPPED) != 0 ? 1 : 0);
+			for (int i = 0; i < 9; i++) {
+				line.append(',').append(buffer.getDouble(position + TelemetryRecorder.HOMOGRAPHY + i * 8));
+			}
+			line.append(',').append(buffer.get(position + TelemetryRecorder.CONFIGURATION));
+			line.append(',').append(buffer.get(position + TelemetryRecorder.CONFIGURATION + 1));
+			for (int i = 0; i < 3; i++) {
+				line.append(',').append(buffer.getShort(position + TelemetryRecorder.COMPONENTS + i * 2));
+			}
+			line.append(',').append(buffer.getShort(position + TelemetryRecorder.DISTANCE_LIMIT)).append('\n');
+			writer.write(line.toString());
+		}
+	}
+
+	/**
+	 * @return record count, frame rate, stage latency percentiles in
+	 *         microseconds, count percentiles, the registration rate and the
+	 *         rate of frames skipped by the motion gate
+	 */
+	public String summary() {
+		Histogram[] stages = new Histogram[STAGE_NAMES.length];
+		for (int i = 0; i < stages.length; i++) {
+			stages[i] = new Histogram();
+		}
+		Histogram keyPoints = new Histogram();
+		Histogram matches = new Histogram();
+		Histogram inliers = new Histogram();
+		long records = 0, registered = 0, skipped = 0, firstTimestamp = 0, lastTimestamp = 0;
+		for (long sequence = getFirstSequence(); sequence < nextSequence; sequence++) {
+			int position = position(sequence);
+			if (position < 0)
+				continue;
+			long timestamp = buffer.getLong(position + TelemetryRecorder.TIMESTAMP);
+			if (records == 0)
+				firstTimestamp = timestamp;
+			lastTimestamp = timestamp;
+			records++;
+			for (int stage = 0; stage < stages.length; stage++) {
+				long nanos = buffer.getLong(position + TelemetryRecorder.STAGES + stage * 8);
+				if (nanos > 0)
+					stages[stage].record(nanos);
+			}
+			keyPoints.record(buffer.getInt(position + TelemetryRecorder.KEY_POINTS));
+			matches.record(buffer.getInt(position + TelemetryRecorder.MATCHES));
+			inliers.record(buffer.getInt(position + TelemetryRecorder.INLIERS));
+			int flags = buffer.getInt(position + TelemetryRecorder.FLAGS);
+			if ((flags & TelemetryRecorder.FLAG_HOMOGRAPHY) != 0)
+				registered++;
+			if ((flags & TelemetryRecorder.FLAG_SKIPPED) != 0)
+				skipped++;
+		}
+		StringBuilder summary = new StringBuilder();
+		summary.append("records: ").append(records).append('\n');
+		if (records > 1 && lastTimestamp > firstTimestamp)
+			summary.append(String.format(Locale.US, "fps: %.2f%n", (records - 1) * 1e9 / (lastTimestamp - firstTimestamp)));
+		summary.append(String.format(Locale.US, "registered: %.1f%%%n", records > 0 ? registered * 100.0 / records : 0));
+		summary.append(String.format(Locale.US, "skipped: %.1f%%%n", records > 0 ? skipped * 100.0 / records : 0));
+		summary.append("stage\tcount\tmean(us)\tp50(us)\tp95(us)\tp99(us)\tmax(us)\n");
+		for (int stage = 0; stage < stages.length; stage++) {
+			appendLine(summary, STAGE_NAMES[stage], stages[stage].snapshot(), 1000);
+		}
+		appendLine(summary, "keyPoints", keyPoints.snapshot(), 1);
+		appendLine(summary, "matches", matches.snapshot(), 1);
+		appendLine(summary, "inliers", inliers.snapshot(), 1);
+		return summary.toString();
+	}
+
+	private static void appendLine(StringBuilder summary, String name, Histogram.Distribution distribution, long divisor) {
+		summary.append(name).append('\t').append(distribution.getCount()).append('\t').append(String.format(Locale.US, "%.1f", distribution.getMean() / divisor)).append('\t')
+				.append(distribution.getP50() / divisor).append('\t').append(distribution.getP95() / divisor).append('\t').append(distribution.getP99() / divisor).append('\t')
+				.append(distribution.getMax() / divisor).append('\n');
+	}
+}
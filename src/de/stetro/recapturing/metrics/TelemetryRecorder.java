@@ -0,0 +1,162 @@
+package de.stetro.recapturing.metrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import de.stetro.recapturing.pojo.FramePackage;
+
+/**
+ * Appends one fixed size binary record per frame to a memory mapped ring
+ * file, so the frames of a field session can be analyzed afterwards with
+ * {@link TelemetryReader}. Recording only writes into the mapping and never
+ * waits for the disk, the operating system writes the dirty pages back. When
+ * the ring is full the oldest records are overwritten.
+ * 
+ * <pre>
+ * header (64 bytes): int magic ('RCTL'), int version, int recordSize, int capacity,
+ *                    long nextSequence
+ * record (168 bytes): long sequence, long timestampNanos,
+ *                     long detection, description, matching, filter, homography, total (nanoseconds),
+ *                     int keyPoints, int matches, int inliers,
+ *                     int flags (1 = homography valid, 2 = registration skipped),
+ *                     double[9] homography,
+ *                     byte mode, byte engine, short distanceLimit,
+ *                     short detector, short extractor, short matcher, byte[6] reserved
+ * </pre>
+ * 
+ * All values are little endian. The OpenCV component types need shorts, e.g.
+ * GRID_ORB is 1005. Only one thread may record at a time.
+ * 
+ * @author Steffen Troester
+ * 
+ */
+public class TelemetryRecorder {
+
+	static final int MAGIC = 0x4C544352;
+	static final int VERSION = 2;
+	static final int HEADER_SIZE = 64;
+	static final int RECORD_SIZE = 168;
+	static final int NEXT_SEQUENCE_OFFSET = 16;
+
+	static final int SEQUENCE = 0;
+	static final int TIMESTAMP = 8;
+	static final int STAGES = 16;
+	static final int KEY_POINTS = 64;
+	static final int MATCHES = 68;
+	static final int INLIERS = 72;
+	static final int FLAGS = 76;
+	static final int HOMOGRAPHY = 80;
+	static final int CONFIGURATION = 152;
+	static final int DISTANCE_LIMIT = 154;
+	static final int COMPONENTS = 156;
+
+	static final int FLAG_HOMOGRAPHY = 1;
+	static final int FLAG_SKIPPED = 2;
+
+	private final RandomAccessFile file;
+	private final MappedByteBuffer buffer;
+	private final int capacity;
+	private long nextSequence;
+
+	/**
+	 * Opens the ring file, an existing ring of the same capacity is
+	 * continued
+	 * 
+	 * @param ringFile
+	 * @param capacity
+	 *            amount of records in the ring
+	 * @throws IOException
+	 */
+	public TelemetryRecorder(File ringFile, int capacity) throws IOException {
+		this.capacity = capacity;
+		file = new RandomAccessFile(ringFile, "rw");
+		long size = HEADER_SIZE + (long) capacity * RECORD_SIZE;
+		boolean continued = file.length() == size;
+		file.setLength(size);
+		buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		if (continued && buffer.getInt(0) == MAGIC && buffer.getInt(4) == VERSION && buffer.getInt(8) == RECORD_SIZE && buffer.getInt(12) == capacity) {
+			nextSequence = buffer.getLong(NEXT_SEQUENCE_OFFSET);
+		} else {
+			buffer.putInt(0, MAGIC);
+			buffer.putInt(4, VERSION);
+			buffer.putInt(8, RECORD_SIZE);
+			buffer.putInt(12, capacity);
+			buffer.putLong(NEXT_SEQUENCE_OFFSET, 0);
+			for (int i = 0; i < capacity; i++) {
+				buffer.putLong(HEADER_SIZE + i * RECORD_SIZE + SEQUENCE, -1);
+			}
+		}
+	}
+
+	/**
+	 * Writes the record of a finished frame
+	 * 
+	 * @param fp
+	 * @param timestampNanos
+	 *            {@link System#nanoTime()} when the frame was finished
+	 * @param mode
+	 *            ordinal of the registration mode
+	 * @param engine
+	 *            ordinal of the matching engine
+	 * @param detector
+	 *            feature detector type
+	 * @param extractor
+	 *            descriptor extractor type
+	 * @param matcher
+	 *            descriptor matcher type
+	 * @param distanceLimit
+	 */
+	public void record(FramePackage fp, long timestampNanos, int mode, int engine, int detector, int extractor, int matcher, int distanceLimit) {
+		long sequence = nextSequence;
+		int position = HEADER_SIZE + (int) (sequence % capacity) * RECORD_SIZE;
+		// invalidate the slot first, so a reader never sees a half written
+		// record with a valid sequence
+		buffer.putLong(position + SEQUENCE, -1);
+		buffer.putLong(position + TIMESTAMP, timestampNanos);
+		buffer.putLong(position + STAGES, fp.getDetectionNanos());
+		buffer.putLong(position + STAGES + 8, fp.getDescriptionNanos());
+		buffer.putLong(position + STAGES + 16, fp.getMatchingNanos());
+		buffer.putLong(position + STAGES + 24, fp.getFilterNanos());
+		buffer.putLong(position + STAGES + 32, fp.getHomographyNanos());
+		buffer.putLong(position + STAGES + 40, fp.getTotalNanos());
+		buffer.putInt(position + KEY_POINTS, (int) fp.getKeyPoints());
+		buffer.putInt(position + MATCHES, (int) fp.getMatches());
+		buffer.putInt(position + INLIERS, (int) fp.getInliers());
+		buffer.putInt(position + FLAGS, (fp.isHomographyValid() ? FLAG_HOMOGRAPHY : 0) | (fp.isRegistrationSkipped() ? FLAG_SKIPPED : 0));
+		double[] homography = fp.getHomography();
+		for (int i = 0; i < 9; i++) {
+			buffer.putDouble(position + HOMOGRAPHY + i * 8, fp.isHomographyValid() ? homography[i] : 0);
+		}
+		buffer.put(position + CONFIGURATION, (byte) mode);
+		buffer.put(position + CONFIGURATION + 1, (byte) engine);
+		buffer.putShort(position + DISTANCE_LIMIT, (short) distanceLimit);
+		buffer.putShort(position + COMPONENTS, (short) detector);
+		buffer.putShort(position + COMPONENTS + 2, (short) extractor);
+		buffer.putShort(position + COMPONENTS + 4, (short) matcher);
+		buffer.putLong(position + SEQUENCE, sequence);
+		nextSequence = sequence + 1;
+		buffer.putLong(NEXT_SEQUENCE_OFFSET, nextSequence);
+	}
+
+	/**
+	 * @return amount of records written since the ring was created
+	 */
+	public long getRecordCount() {
+		return nextSequence;
+	}
+
+	/**
+	 * Writes the dirty pages back and closes the file
+	 * 
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		buffer.force();
+		file.close();
+	}
+}
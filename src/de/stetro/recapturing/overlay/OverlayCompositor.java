@@ -0,0 +1,254 @@
+package de.stetro.recapturing.overlay;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Blends the warped template into the gray frame with the same result as a
+ * full frame <code>warpPerspective</code> followed by
+ * <code>addWeighted(frame, 0.5, blit, 0.5, 0)</code>, but only warps and blends
+ * inside the bounding box of the projected template. The rest of the frame is
+ * only halved, like the blend with the black border of the full frame warp.
+ * <p>
+ * The warped region is cached and reused while the projected template corners
+ * move less than the tolerance, e.g. on a static camera. The blend is done in
+ * fixed point with the round half to even of OpenCV's saturate cast, so it is
+ * bit exact to <code>addWeighted</code>.
+ *
+ * @author Steffen Troester
+ */
+public class OverlayCompositor {
+
+	/**
+	 * bilinear interpolation reaches one pixel beyond the template
+	 */
+	private static final int MARGIN = 1;
+
+	private double tolerance = 0.25;
+	private boolean dimBackground = true;
+
+	private Mat template;
+	private final Mat warpedRegion = new Mat();
+	private final Mat regionHomography = new Mat(3, 3, CvType.CV_64FC1);
+	private final double[] regionTransform = new double[9];
+	private final double[] cachedHomography = new double[9];
+	private boolean cacheValid;
+	private Rect region;
+	private final Size regionSize = new Size();
+	private byte[] warpedPixels = new byte[0];
+	private byte[] framePixels = new byte[0];
+
+	private boolean lastCached;
+	private long cacheHits;
+	private long warps;
+
+	/**
+	 * @param templateGray
+	 *            gray scale template, invalidates the cached warp
+	 */
+	public void setTemplate(Mat templateGray) {
+		this.template = templateGray;
+		cacheValid = false;
+	}
+
+	/**
+	 * Blends the template warped by the homography into the frame
+	 *
+	 * @param grayPicture
+	 *            frame, blended in place
+	 * @param homography
+	 *            row major homography from template to frame
+	 */
+	public void composite(Mat grayPicture, double[] homography) {
+		if (template == null)
+			return;
+		lastCached = cacheValid && region != null && cornersWithinTolerance(homography);
+		if (lastCached) {
+			cacheHits++;
+		} else {
+			warp(grayPicture.cols(), grayPicture.rows(), homography);
+		}
+		blend(grayPicture);
+	}
+
+	/**
+	 * Blends the last warped template again, e.g. into a static frame whose
+	 * registration was skipped
+	 *
+	 * @param grayPicture
+	 * @return false if nothing was warped yet
+	 */
+	public boolean compositeLast(Mat grayPicture) {
+		if (!cacheValid)
+			return false;
+		lastCached = true;
+		cacheHits++;
+		blend(grayPicture);
+		return true;
+	}
+
+	/**
+	 * Warps the template into the bounding box of its projection
+	 */
+	private void warp(int width, int height, double[] h) {
+		warps++;
+		System.arraycopy(h, 0, cachedHomography, 0, 9);
+		cacheValid = true;
+		region = projectedRegion(h, width, height);
+		if (region == null)
+			return;
+		// translate the frame origin to the region origin: T(-x, -y) * H
+		double x = region.x, y = region.y;
+		regionTransform[0] = h[0] - x * h[6];
+		regionTransform[1] = h[1] - x * h[7];
+		regionTransform[2] = h[2] - x * h[8];
+		regionTransform[3] = h[3] - y * h[6];
+		regionTransform[4] = h[4] - y * h[7];
+		regionTransform[5] = h[5] - y * h[8];
+		regionTransform[6] = h[6];
+		regionTransform[7] = h[7];
+		regionTransform[8] = h[8];
+		regionHomography.put(0, 0, regionTransform);
+		regionSize.width = region.width;
+		regionSize.height = region.height;
+		Imgproc.warpPerspective(template, warpedRegion, regionHomography, regionSize);
+		int pixels = region.width * region.height;
+		if (warpedPixels.length < pixels)
+			warpedPixels = new byte[pixels];
+		warpedRegion.get(0, 0, warpedPixels);
+	}
+
+	/**
+	 * Averages frame and warped template inside the region and halves the
+	 * frame outside of it
+	 */
+	private void blend(Mat grayPicture) {
+		int width = grayPicture.cols(), height = grayPicture.rows();
+		if (region == null) {
+			if (dimBackground)
+				halve(grayPicture, 0, 0, width, height);
+			return;
+		}
+		int x0 = region.x, y0 = region.y, x1 = region.x + region.width, y1 = region.y + region.height;
+		if (dimBackground) {
+			halve(grayPicture, 0, 0, width, y0);
+			halve(grayPicture, 0, y1, width, height - y1);
+			halve(grayPicture, 0, y0, x0, region.height);
+			halve(grayPicture, x1, y0, width - x1, region.height);
+		}
+		Mat roi = grayPicture.submat(region);
+		int pixels = region.width * region.height;
+		if (framePixels.length < pixels)
+			framePixels = new byte[pixels];
+		roi.get(0, 0, framePixels);
+		for (int i = 0; i < pixels; i++) {
+			int sum = (framePixels[i] & 0xFF) + (warpedPixels[i] & 0xFF);
+			int average = sum >> 1;
+			// x.5 rounds to the even neighbour like cvRound
+			average += sum & average & 1;
+			framePixels[i] = (byte) average;
+		}
+		roi.put(0, 0, framePixels);
+	}
+
+	private static void halve(Mat grayPicture, int x, int y, int width, int height) {
+		if (width <= 0 || height <= 0)
+			return;
+		Mat band = grayPicture.submat(y, y + height, x, x + width);
+		band.convertTo(band, -1, 0.5);
+	}
+
+	/**
+	 * @return bounding box of the projected template plus interpolation
+	 *         margin clipped to the frame, the whole frame if a corner is
+	 *         behind the camera, null if the template is outside the frame
+	 */
+	private Rect projectedRegion(double[] h, int width, int height) {
+		double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE, maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+		for (int corner = 0; corner < 4; corner++) {
+			double x = (corner & 1) == 0 ? -MARGIN : template.cols() - 1 + MARGIN;
+			double y = (corner & 2) == 0 ? -MARGIN : template.rows() - 1 + MARGIN;
+			double w = h[6] * x + h[7] * y + h[8];
+			if (w <= 0)
+				return new Rect(0, 0, width, height);
+			double px = (h[0] * x + h[1] * y + h[2]) / w;
+			double py = (h[3] * x + h[4] * y + h[5]) / w;
+			minX = Math.min(minX, px);
+			minY = Math.min(minY, py);
+			maxX = Math.max(maxX, px);
+			maxY = Math.max(maxY, py);
+		}
+		int x0 = (int) Math.max(0, Math.floor(minX) - MARGIN);
+		int y0 = (int) Math.max(0, Math.floor(minY) - MARGIN);
+		int x1 = (int) Math.min(width, Math.ceil(maxX) + MARGIN + 1);
+		int y1 = (int) Math.min(height, Math.ceil(maxY) + MARGIN + 1);
+		if (x1 <= x0 || y1 <= y0)
+			return null;
+		return new Rect(x0, y0, x1 - x0, y1 - y0);
+	}
+
+	/**
+	 * @return true if all template corners projected by both homographies are
+	 *         closer than the tolerance
+	 */
+	private boolean cornersWithinTolerance(double[] h) {
+		double[] c = cachedHomography;
+		double limit = tolerance * tolerance;
+		for (int corner = 0; corner < 4; corner++) {
+			double x = (corner & 1) == 0 ? 0 : template.cols();
+			double y = (corner & 2) == 0 ? 0 : template.rows();
+			double w1 = h[6] * x + h[7] * y + h[8];
+			double w2 = c[6] * x + c[7] * y + c[8];
+			double dx = (h[0] * x + h[1] * y + h[2]) / w1 - (c[0] * x + c[1] * y + c[2]) / w2;
+			double dy = (h[3] * x + h[4] * y + h[5]) / w1 - (c[3] * x + c[4] * y + c[5]) / w2;
+			if (!(dx * dx + dy * dy <= limit))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @param tolerance
+	 *            maximum movement of the projected template corners in pixels
+	 *            for which the cached warp is reused, 0 warps every frame
+	 */
+	public void setTolerance(double tolerance) {
+		this.tolerance = tolerance;
+	}
+
+	/**
+	 * @param dimBackground
+	 *            false leaves the frame outside the template untouched
+	 *            instead of halving it, so the compositing cost only depends
+	 *            on the template coverage
+	 */
+	public void setDimBackground(boolean dimBackground) {
+		this.dimBackground = dimBackground;
+	}
+
+	/**
+	 * @return bounding box of the last warp, null if the template was outside
+	 *         the frame
+	 */
+	public Rect getRegion() {
+		return region;
+	}
+
+	/**
+	 * @return true if the last composition reused the cached warp
+	 */
+	public boolean isLastCached() {
+		return lastCached;
+	}
+
+	public long getCacheHits() {
+		return cacheHits;
+	}
+
+	public long getWarps() {
+		return warps;
+	}
+}
@@ -0,0 +1,329 @@
+package de.stetro.recapturing.pipeline;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfKeyPoint;
+import org.opencv.imgproc.Imgproc;
+
+import de.stetro.recapturing.RecapturingMode;
+import de.stetro.recapturing.RecapturingProcessor;
+import de.stetro.recapturing.diagnostics.RecapturingLog;
+import de.stetro.recapturing.frame.LumaFrame;
+import de.stetro.recapturing.pojo.FramePackage;
+
+/**
+ * Runs the stages of the {@link RecapturingProcessor} on two worker threads:
+ * the feature stage (gray scale, detection, description) of frame N+1 runs
+ * while the registration stage (matching, filter, homography) handles frame
+ * N. Frames are handed over in preallocated slots through bounded queues.
+ * When a queue is full the oldest waiting frame is dropped, so latency never
+ * builds up. The camera thread never waits for a stage.
+ * <p>
+ * Only {@link RecapturingMode#FEAUTURE_BASED} is split into the two stages.
+ * Frames of the other modes are only converted to gray scale by the feature
+ * stage and processed completely by the registration stage.
+ *
+ * @author Steffen Troester
+ */
+public class PipelinedProcessor {
+
+	private static final String TAG = "Pipelined Processor";
+	/**
+	 * camera copy, feature queue, feature stage, registration queue,
+	 * registration stage and the latest result
+	 */
+	private static final int SLOT_COUNT = 6;
+
+	private final RecapturingProcessor processor;
+	private final BlockingQueue<FrameSlot> freeSlots = new ArrayBlockingQueue<FrameSlot>(SLOT_COUNT);
+	private final BlockingQueue<FrameSlot> featureQueue = new ArrayBlockingQueue<FrameSlot>(1);
+	private final BlockingQueue<FrameSlot> registrationQueue = new ArrayBlockingQueue<FrameSlot>(1);
+	private final Object outputLock = new Object();
+	private final AtomicLong droppedFrames = new AtomicLong();
+
+	private FrameSlot latest;
+	private Mat displayPicture;
+	private Thread featureWorker;
+	private Thread registrationWorker;
+	private volatile boolean running;
+
+	public PipelinedProcessor(RecapturingProcessor processor) {
+		this.processor = processor;
+	}
+
+	/**
+	 * Allocates all frame slots for the camera size and starts the stage
+	 * workers
+	 *
+	 * @param width
+	 * @param height
+	 */
+	public synchronized void start(int width, int height) {
+		stop();
+		processor.prepareViewSize(width, height);
+		freeSlots.clear();
+		featureQueue.clear();
+		registrationQueue.clear();
+		for (int i = 0; i < SLOT_COUNT; i++) {
+			freeSlots.add(new FrameSlot(width, height));
+		}
+		synchronized (outputLock) {
+			latest = null;
+			displayPicture = new Mat(height, width, CvType.CV_8UC1);
+		}
+		running = true;
+		featureWorker = new Thread(new FeatureStage(), "recapturing-features");
+		registrationWorker = new Thread(new RegistrationStage(), "recapturing-registration");
+		featureWorker.start();
+		registrationWorker.start();
+	}
+
+	/**
+	 * Stops both stage workers, waits for them to finish their current frame
+	 * and releases the frame slots
+	 */
+	public synchronized void stop() {
+		running = false;
+		joinWorker(featureWorker);
+		joinWorker(registrationWorker);
+		featureWorker = null;
+		registrationWorker = null;
+		releaseSlots(freeSlots);
+		releaseSlots(featureQueue);
+		releaseSlots(registrationQueue);
+		synchronized (outputLock) {
+			if (latest != null)
+				latest.release();
+			latest = null;
+			if (displayPicture != null)
+				displayPicture.release();
+			displayPicture = null;
+		}
+	}
+
+	private static void releaseSlots(BlockingQueue<FrameSlot> slots) {
+		FrameSlot slot;
+		while ((slot = slots.poll()) != null) {
+			slot.release();
+		}
+	}
+
+	/**
+	 * Hands a camera frame to the pipeline and returns the most recent
+	 * completed frame. Never blocks on the processing stages.
+	 *
+	 * @param inputPicture
+	 *            RGBA camera frame, copied before this method returns
+	 * @return most recent result or null if no frame completed yet
+	 */
+	public FramePackage process(Mat inputPicture) {
+		if (running) {
+			FrameSlot slot = acquireSlot();
+			if (slot != null) {
+				inputPicture.copyTo(slot.inputPicture);
+				slot.lumaInput = false;
+				submit(slot);
+			}
+		}
+		return latestResult();
+	}
+
+	/**
+	 * Hands the luma plane of a camera frame to the pipeline, the feature
+	 * stage skips the gray scale conversion. Never blocks on the processing
+	 * stages.
+	 *
+	 * @param frame
+	 *            camera frame, its luma plane is copied before this method
+	 *            returns
+	 * @return most recent result or null if no frame completed yet
+	 */
+	public FramePackage process(LumaFrame frame) {
+		if (running) {
+			FrameSlot slot = acquireSlot();
+			if (slot != null) {
+				frame.gray().copyTo(slot.grayPicture);
+				slot.lumaInput = true;
+				submit(slot);
+			}
+		}
+		return latestResult();
+	}
+
+	/**
+	 * @return free slot or the oldest slot waiting for the feature stage
+	 */
+	private FrameSlot acquireSlot() {
+		FrameSlot slot = freeSlots.poll();
+		if (slot == null) {
+			slot = featureQueue.poll();
+			if (slot != null)
+				droppedFrames.incrementAndGet();
+		}
+		return slot;
+	}
+
+	private void submit(FrameSlot slot) {
+		slot.framePackage = new FramePackage();
+		slot.inputNanos = System.nanoTime();
+		handOver(slot, featureQueue);
+	}
+
+	private FramePackage latestResult() {
+		synchronized (outputLock) {
+			if (latest == null)
+				return null;
+			latest.grayPicture.copyTo(displayPicture);
+			FramePackage fp = latest.framePackage;
+			fp.setFrame(displayPicture);
+			return fp;
+		}
+	}
+
+	/**
+	 * @return number of frames dropped because a stage was still busy
+	 */
+	public long getDroppedFrames() {
+		return droppedFrames.get();
+	}
+
+	/**
+	 * Offers a slot to the next stage and recycles the oldest waiting slot if
+	 * the queue is full
+	 */
+	private void handOver(FrameSlot slot, BlockingQueue<FrameSlot> queue) {
+		while (!queue.offer(slot)) {
+			FrameSlot dropped = queue.poll();
+			if (dropped != null) {
+				droppedFrames.incrementAndGet();
+				freeSlots.offer(dropped);
+			}
+		}
+	}
+
+	/**
+	 * Records the frame on the registration thread, including telemetry and
+	 * quality changes, and only holds the output lock for the slot swap, so
+	 * the camera thread never waits for the recording
+	 */
+	private void publish(FrameSlot slot) {
+		long now = System.nanoTime();
+		slot.framePackage.setTotalNanos(now - slot.inputNanos);
+		processor.recordFrame(slot.framePackage, now);
+		synchronized (outputLock) {
+			if (latest != null)
+				freeSlots.offer(latest);
+			latest = slot;
+		}
+	}
+
+	private static void joinWorker(Thread worker) {
+		if (worker == null)
+			return;
+		worker.interrupt();
+		try {
+			worker.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private class FeatureStage implements Runnable {
+		@Override
+		public void run() {
+			try {
+				while (running) {
+					FrameSlot slot = featureQueue.take();
+					try {
+						FramePackage fp = slot.framePackage;
+						// both stages of the frame use the configuration
+						// captured here, even if the mode changes in between
+						fp.setConfiguration(processor.getConfiguration());
+						slot.staged = fp.getConfiguration().getMode() == RecapturingMode.FEAUTURE_BASED;
+						if (!slot.staged) {
+							if (!slot.lumaInput)
+								Imgproc.cvtColor(slot.inputPicture, slot.grayPicture, Imgproc.COLOR_RGBA2GRAY);
+						} else if (slot.lumaInput) {
+							processor.extractFeatures(slot.grayPicture, slot.scaledPicture, slot.matOfKeyPoint, slot.descriptors, fp);
+						} else {
+							processor.extractFeatures(slot.inputPicture, slot.grayPicture, slot.scaledPicture, slot.matOfKeyPoint, slot.descriptors, fp);
+						}
+						handOver(slot, registrationQueue);
+					} catch (RuntimeException e) {
+						RecapturingLog.e(TAG, "Feature stage failed: " + e.getMessage());
+						freeSlots.offer(slot);
+					}
+				}
+			} catch (InterruptedException e) {
+				RecapturingLog.i(TAG, "feature stage stopped");
+			}
+		}
+	}
+
+	private class RegistrationStage implements Runnable {
+		@Override
+		public void run() {
+			try {
+				while (running) {
+					FrameSlot slot = registrationQueue.take();
+					try {
+						if (slot.staged)
+							processor.registerFeatures(slot.grayPicture, slot.matOfKeyPoint, slot.descriptors, slot.framePackage);
+						else
+							processor.processFrame(slot.grayPicture, slot.framePackage);
+						publish(slot);
+					} catch (RuntimeException e) {
+						RecapturingLog.e(TAG, "Registration stage failed: " + e.getMessage());
+						freeSlots.offer(slot);
+					}
+				}
+			} catch (InterruptedException e) {
+				RecapturingLog.i(TAG, "registration stage stopped");
+			}
+		}
+	}
+
+	/**
+	 * Preallocated buffers of one frame travelling through the pipeline
+	 */
+	private static class FrameSlot {
+		private final Mat inputPicture;
+		private final Mat grayPicture;
+		/**
+		 * frame at the processing scale of the feature stage
+		 */
+		private final Mat scaledPicture = new Mat();
+		private final MatOfKeyPoint matOfKeyPoint = new MatOfKeyPoint();
+		private final Mat descriptors = new Mat();
+		private FramePackage framePackage;
+		private long inputNanos;
+		/**
+		 * the frame was copied into the gray picture, the RGBA input picture
+		 * is unused
+		 */
+		private boolean lumaInput;
+		/**
+		 * the features were extracted by the feature stage, false for the
+		 * modes that are processed completely by the registration stage
+		 */
+		private boolean staged;
+
+		private FrameSlot(int width, int height) {
+			// allocated on the first RGBA frame, luma frames never need it
+			inputPicture = new Mat();
+			grayPicture = new Mat(height, width, CvType.CV_8UC1);
+		}
+
+		private void release() {
+			inputPicture.release();
+			grayPicture.release();
+			scaledPicture.release();
+			matOfKeyPoint.release();
+			descriptors.release();
+		}
+	}
+}
@@ -2,15 +2,34 @@ package de.stetro.recapturing.pojo;
 
 import org.opencv.core.Mat;
 
+import de.stetro.recapturing.ProcessorConfiguration;
+
+/**
+ * Result and timings of one processed frame. Times are measured with
+ * {@link System#nanoTime()}, a stage that did not run keeps 0.
+ * 
+ * @author Steffen Troester
+ * 
+ */
 public class FramePackage {
 	private Mat frame;
-	private long detectionTime;
-	private long descriptionTime;
-	private long matchingTime;
+	private long detectionNanos;
+	private long descriptionNanos;
+	private long matchingNanos;
+	private long filterNanos;
+	private long homographyNanos;
+	private long totalNanos;
+	private long keyPoints;
 	private long matches;
-	private long displayRate;
-	private long dltTime;
-	private long filterTime;
+	private long inliers;
+	private long rejectedMatches;
+	private double displayRate;
+	private long filterAllocations;
+	private double processingScale = 1;
+	private boolean registrationSkipped;
+	private final double[] homography = new double[9];
+	private boolean homographyValid;
+	private ProcessorConfiguration configuration;
 
 	public Mat getFrame() {
 		return frame;
@@ -20,20 +39,78 @@ public class FramePackage {
 		this.frame = frame;
 	}
 
-	public long getDetectionTime() {
-		return detectionTime;
+	/**
+	 * @return nanoseconds of the feature detection
+	 */
+	public long getDetectionNanos() {
+		return detectionNanos;
 	}
 
-	public void setDetectionTime(long detectionTime) {
-		this.detectionTime = detectionTime;
+	public void setDetectionNanos(long detectionNanos) {
+		this.detectionNanos = detectionNanos;
 	}
 
-	public long getDescriptionTime() {
-		return descriptionTime;
+	/**
+	 * @return nanoseconds of the descriptor extraction
+	 */
+	public long getDescriptionNanos() {
+		return descriptionNanos;
 	}
 
-	public void setDescriptionTime(long descriptionTime) {
-		this.descriptionTime = descriptionTime;
+	public void setDescriptionNanos(long descriptionNanos) {
+		this.descriptionNanos = descriptionNanos;
+	}
+
+	/**
+	 * @return nanoseconds of the descriptor matching
+	 */
+	public long getMatchingNanos() {
+		return matchingNanos;
+	}
+
+	public void setMatchingNanos(long matchingNanos) {
+		this.matchingNanos = matchingNanos;
+	}
+
+	/**
+	 * @return nanoseconds of the match filter
+	 */
+	public long getFilterNanos() {
+		return filterNanos;
+	}
+
+	public void setFilterNanos(long filterNanos) {
+		this.filterNanos = filterNanos;
+	}
+
+	/**
+	 * @return nanoseconds of the homography estimation and blending
+	 */
+	public long getHomographyNanos() {
+		return homographyNanos;
+	}
+
+	public void setHomographyNanos(long homographyNanos) {
+		this.homographyNanos = homographyNanos;
+	}
+
+	/**
+	 * @return nanoseconds from input to result of the whole frame
+	 */
+	public long getTotalNanos() {
+		return totalNanos;
+	}
+
+	public void setTotalNanos(long totalNanos) {
+		this.totalNanos = totalNanos;
+	}
+
+	public long getKeyPoints() {
+		return keyPoints;
+	}
+
+	public void setKeyPoints(long keyPoints) {
+		this.keyPoints = keyPoints;
 	}
 
 	public long getMatches() {
@@ -44,35 +121,111 @@ public class FramePackage {
 		this.matches = matches;
 	}
 
-	public long getDisplayRate() {
+	/**
+	 * @return homography inliers of the matches
+	 */
+	public long getInliers() {
+		return inliers;
+	}
+
+	public void setInliers(long inliers) {
+		this.inliers = inliers;
+	}
+
+	/**
+	 * @return matches removed by the geometric consistency filter
+	 */
+	public long getRejectedMatches() {
+		return rejectedMatches;
+	}
+
+	public void setRejectedMatches(long rejectedMatches) {
+		this.rejectedMatches = rejectedMatches;
+	}
+
+	/**
+	 * @return frames per second over the last frames
+	 */
+	public double getDisplayRate() {
 		return displayRate;
 	}
 
-	public void setDisplayRate(long displayTime) {
-		this.displayRate = displayTime;
+	public void setDisplayRate(double displayRate) {
+		this.displayRate = displayRate;
+	}
+
+	public long getFilterAllocations() {
+		return filterAllocations;
+	}
+
+	public void setFilterAllocations(long filterAllocations) {
+		this.filterAllocations = filterAllocations;
+	}
+
+	/**
+	 * @return scale of the frame the key points were detected in
+	 */
+	public double getProcessingScale() {
+		return processingScale;
+	}
+
+	public void setProcessingScale(double processingScale) {
+		this.processingScale = processingScale;
+	}
+
+	/**
+	 * @return true if the frame was static and the overlay of the last
+	 *         registered frame was reused
+	 */
+	public boolean isRegistrationSkipped() {
+		return registrationSkipped;
+	}
+
+	public void setRegistrationSkipped(boolean registrationSkipped) {
+		this.registrationSkipped = registrationSkipped;
 	}
 
-	public long getMatchingTime() {
-		return matchingTime;
+	/**
+	 * @return row major homography from template to frame, only valid if
+	 *         {@link #isHomographyValid()}
+	 */
+	public double[] getHomography() {
+		return homography;
 	}
 
-	public void setMatchingTime(long matchingTime) {
-		this.matchingTime = matchingTime;
+	public boolean isHomographyValid() {
+		return homographyValid;
 	}
 
-	public long getDltTime() {
-		return dltTime;
+	/**
+	 * Copies the values of a 3x3 homography
+	 * 
+	 * @param homography
+	 */
+	public void setHomography(Mat homography) {
+		homography.get(0, 0, this.homography);
+		homographyValid = true;
 	}
 
-	public void setDltTime(long dltTime) {
-		this.dltTime = dltTime;
+	/**
+	 * Copies a row major homography
+	 * 
+	 * @param homography
+	 */
+	public void setHomography(double[] homography) {
+		System.arraycopy(homography, 0, this.homography, 0, 9);
+		homographyValid = true;
 	}
 
-	public long getFilterTime() {
-		return filterTime;
+	/**
+	 * @return configuration the frame is processed with, read once when the
+	 *         frame starts
+	 */
+	public ProcessorConfiguration getConfiguration() {
+		return configuration;
 	}
 
-	public void setFilterTime(long filterTime) {
-		this.filterTime = filterTime;
+	public void setConfiguration(ProcessorConfiguration configuration) {
+		this.configuration = configuration;
 	}
 }
@@ -0,0 +1,186 @@
+package de.stetro.recapturing.quality;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import de.stetro.recapturing.metrics.Stage;
+import de.stetro.recapturing.pojo.FramePackage;
+
+/**
+ * Feedback controller that keeps the frame time within a budget by walking a
+ * ladder of {@link QualityLevel}s. The frame and stage times are smoothed
+ * exponentially. A smoothed frame time over the budget degrades one level,
+ * then the controller waits a few frames to see the effect. Only after a long
+ * period with enough headroom it upgrades one level again, so the quality
+ * changes slowly instead of oscillating.
+ * 
+ * @author Steffen Troester
+ * 
+ */
+public class AdaptiveQualityController {
+
+	/**
+	 * levels from best quality to cheapest processing
+	 */
+	public static final QualityLevel[] DEFAULT_LEVELS = { QualityLevel.DEFAULT, new QualityLevel(400, 140, 6, 1.0, 75), new QualityLevel(300, 150, 5, 0.85, 90),
+			new QualityLevel(250, 160, 4, 0.75, 105), new QualityLevel(200, 175, 3, 0.6, 120), new QualityLevel(150, 190, 2, 0.5, 150) };
+
+	/**
+	 * weight of the newest frame in the smoothed times
+	 */
+	private static final double SMOOTHING = 0.2;
+	/**
+	 * frames to wait after a change before degrading further
+	 */
+	private static final int COOLDOWN_FRAMES = 15;
+	/**
+	 * frames with headroom before upgrading
+	 */
+	private static final int UPGRADE_FRAMES = 90;
+	/**
+	 * fraction of the budget below which the frames count as headroom
+	 */
+	private static final double UPGRADE_HEADROOM = 0.7;
+	private static final int HISTORY_SIZE = 32;
+
+	/**
+	 * Notified on the processing thread when the level changes
+	 */
+	public interface Listener {
+		void onQualityChanged(QualityDecision decision);
+	}
+
+	private final QualityLevel[] levels;
+	private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+	private final LinkedList<QualityDecision> history = new LinkedList<QualityDecision>();
+	private final double[] smoothedStageNanos = new double[Stage.values().length];
+	private volatile long budgetNanos;
+	private double smoothedFrameNanos;
+	private int level;
+	private long frames;
+	private int framesSinceChange;
+	private int framesWithHeadroom;
+
+	/**
+	 * @param budgetNanos
+	 *            frame time budget, e.g. 33 ms for 30 fps
+	 */
+	public AdaptiveQualityController(long budgetNanos) {
+		this(budgetNanos, DEFAULT_LEVELS);
+	}
+
+	/**
+	 * @param budgetNanos
+	 * @param levels
+	 *            ladder from best quality to cheapest processing
+	 */
+	public AdaptiveQualityController(long budgetNanos, QualityLevel[] levels) {
+		if (levels.length == 0)
+			throw new IllegalArgumentException("at least one quality level is necessary");
+		this.budgetNanos = budgetNanos;
+		this.levels = levels.clone();
+	}
+
+	/**
+	 * Observes a finished frame
+	 * 
+	 * @param fp
+	 * @return the new quality level if it changed, otherwise null
+	 */
+	public synchronized QualityLevel onFrame(FramePackage fp) {
+		frames++;
+		framesSinceChange++;
+		long frameNanos = fp.getTotalNanos();
+		smoothedFrameNanos = frames == 1 ? frameNanos : smoothedFrameNanos + SMOOTHING * (frameNanos - smoothedFrameNanos);
+		smooth(Stage.DETECTION, fp.getDetectionNanos());
+		smooth(Stage.DESCRIPTION, fp.getDescriptionNanos());
+		smooth(Stage.MATCHING, fp.getMatchingNanos());
+		smooth(Stage.FILTER, fp.getFilterNanos());
+		smooth(Stage.HOMOGRAPHY, fp.getHomographyNanos());
+		smoothedStageNanos[Stage.FRAME.ordinal()] = smoothedFrameNanos;
+
+		long budget = budgetNanos;
+		if (smoothedFrameNanos < budget * UPGRADE_HEADROOM)
+			framesWithHeadroom++;
+		else
+			framesWithHeadroom = 0;
+
+		if (smoothedFrameNanos > budget && framesSinceChange >= COOLDOWN_FRAMES && level + 1 < levels.length)
+			return change(level + 1);
+		if (framesWithHeadroom >= UPGRADE_FRAMES && level > 0)
+			return change(level - 1);
+		return null;
+	}
+
+	private void smooth(Stage stage, long nanos) {
+		int index = stage.ordinal();
+		smoothedStageNanos[index] += SMOOTHING * (nanos - smoothedStageNanos[index]);
+	}
+
+	private QualityLevel change(int newLevel) {
+		QualityDecision decision = new QualityDecision(frames, level, newLevel, levels[newLevel], smoothedFrameNanos, dominantStage());
+		level = newLevel;
+		framesSinceChange = 0;
+		framesWithHeadroom = 0;
+		history.addLast(decision);
+		if (history.size() > HISTORY_SIZE)
+			history.removeFirst();
+		for (Listener listener : listeners) {
+			listener.onQualityChanged(decision);
+		}
+		return levels[newLevel];
+	}
+
+	private Stage dominantStage() {
+		Stage dominant = Stage.DETECTION;
+		for (Stage stage : Stage.values()) {
+			if (stage != Stage.FRAME && smoothedStageNanos[stage.ordinal()] > smoothedStageNanos[dominant.ordinal()])
+				dominant = stage;
+		}
+		return dominant;
+	}
+
+	public void addListener(Listener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeListener(Listener listener) {
+		listeners.remove(listener);
+	}
+
+	public void setBudgetNanos(long budgetNanos) {
+		this.budgetNanos = budgetNanos;
+	}
+
+	public long getBudgetNanos() {
+		return budgetNanos;
+	}
+
+	/**
+	 * @return index into the ladder, 0 is the best quality
+	 */
+	public synchronized int getLevelIndex() {
+		return level;
+	}
+
+	public synchronized QualityLevel getLevel() {
+		return levels[level];
+	}
+
+	public synchronized double getSmoothedFrameNanos() {
+		return smoothedFrameNanos;
+	}
+
+	public synchronized double getSmoothedStageNanos(Stage stage) {
+		return smoothedStageNanos[stage.ordinal()];
+	}
+
+	/**
+	 * @return the last level changes, oldest first
+	 */
+	public synchronized List<QualityDecision> getDecisions() {
+		return new ArrayList<QualityDecision>(history);
+	}
+}
@@ -0,0 +1,67 @@
+package de.stetro.recapturing.quality;
+
+import de.stetro.recapturing.metrics.Stage;
+
+/**
+ * One level change of the {@link AdaptiveQualityController}
+ * 
+ * @author Steffen Troester
+ * 
+ */
+public class QualityDecision {
+
+	private final long frame;
+	private final int fromLevel;
+	private final int toLevel;
+	private final QualityLevel quality;
+	private final double smoothedFrameNanos;
+	private final Stage dominantStage;
+
+	QualityDecision(long frame, int fromLevel, int toLevel, QualityLevel quality, double smoothedFrameNanos, Stage dominantStage) {
+		this.frame = frame;
+		this.fromLevel = fromLevel;
+		this.toLevel = toLevel;
+		this.quality = quality;
+		this.smoothedFrameNanos = smoothedFrameNanos;
+		this.dominantStage = dominantStage;
+	}
+
+	/**
+	 * @return frames observed by the controller before the decision
+	 */
+	public long getFrame() {
+		return frame;
+	}
+
+	public int getFromLevel() {
+		return fromLevel;
+	}
+
+	/**
+	 * @return new level, higher levels are cheaper
+	 */
+	public int getToLevel() {
+		return toLevel;
+	}
+
+	public QualityLevel getQuality() {
+		return quality;
+	}
+
+	public double getSmoothedFrameNanos() {
+		return smoothedFrameNanos;
+	}
+
+	/**
+	 * @return slowest stage when the decision was made
+	 */
+	public Stage getDominantStage() {
+		return dominantStage;
+	}
+
+	@Override
+	public String toString() {
+		return (toLevel > fromLevel ? "degrade " : "upgrade ") + fromLevel + " -> " + toLevel + " at frame " + frame + " (" + Math.round(smoothedFrameNanos / 1e5) / 10.0 + "ms, "
+				+ dominantStage + "): " + quality;
+	}
+}
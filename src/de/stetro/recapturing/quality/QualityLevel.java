@@ -0,0 +1,76 @@
+package de.stetro.recapturing.quality;
+
+/**
+ * Immutable set of the quality parameters of the processing
+ * 
+ * @author Steffen Troester
+ * 
+ */
+public class QualityLevel {
+
+	/**
+	 * the fixed parameters used before the quality became adaptive
+	 */
+	public static final QualityLevel DEFAULT = new QualityLevel(500, 130, 8, 1.0, 60);
+
+	private final int maxKeyPoints;
+	private final int fastThreshold;
+	private final int pyramidLevels;
+	private final double processingScale;
+	private final int keyframeInterval;
+
+	/**
+	 * @param maxKeyPoints
+	 *            maximum key points of the ORB detector
+	 * @param fastThreshold
+	 *            threshold of the FAST detector
+	 * @param pyramidLevels
+	 *            scale pyramid levels of the ORB detector
+	 * @param processingScale
+	 *            scale of the frame for detection and description, at most 1
+	 * @param keyframeInterval
+	 *            maximum tracked frames between two full registrations
+	 */
+	public QualityLevel(int maxKeyPoints, int fastThreshold, int pyramidLevels, double processingScale, int keyframeInterval) {
+		if (processingScale <= 0 || processingScale > 1)
+			throw new IllegalArgumentException("processing scale has to be in (0, 1]");
+		this.maxKeyPoints = maxKeyPoints;
+		this.fastThreshold = fastThreshold;
+		this.pyramidLevels = pyramidLevels;
+		this.processingScale = processingScale;
+		this.keyframeInterval = keyframeInterval;
+	}
+
+	public int getMaxKeyPoints() {
+		return maxKeyPoints;
+	}
+
+	public int getFastThreshold() {
+		return fastThreshold;
+	}
+
+	public int getPyramidLevels() {
+		return pyramidLevels;
+	}
+
+	public double getProcessingScale() {
+		return processingScale;
+	}
+
+	public int getKeyframeInterval() {
+		return keyframeInterval;
+	}
+
+	/**
+	 * @return true if the detector has to be configured again to switch
+	 *         between the levels
+	 */
+	public boolean differsInDetection(QualityLevel other) {
+		return maxKeyPoints != other.maxKeyPoints || fastThreshold != other.fastThreshold || pyramidLevels != other.pyramidLevels;
+	}
+
+	@Override
+	public String toString() {
+		return "keyPoints=" + maxKeyPoints + " fast=" + fastThreshold + " levels=" + pyramidLevels + " scale=" + processingScale + " keyframes=" + keyframeInterval;
+	}
+}
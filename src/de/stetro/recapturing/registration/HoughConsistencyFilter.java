@@ -0,0 +1,207 @@
+package de.stetro.recapturing.registration;
+
+import java.util.Arrays;
+
+/**
+ * Geometric consistency check of matches before the robust homography
+ * estimation (the Hough transform step of Lowe 2004). Size and orientation of
+ * both key points give every match a similarity transform from the template
+ * to the frame. Each match votes with rotation, scale and the translation of
+ * the template origin into a coarse Hough space, in the two closest bins of
+ * every dimension. Only matches of the dominant bins are kept, so RANSAC
+ * samples from a set with a much higher inlier ratio.
+ * <p>
+ * The matches are left untouched if the key points have no orientation (e.g.
+ * FAST) or no bin collects enough votes, the homography estimation decides
+ * then like before.
+ *
+ * @author Steffen Troester
+ */
+public class HoughConsistencyFilter {
+
+	private static final int VOTES_PER_MATCH = 16;
+	private static final long EMPTY = -1;
+
+	private double orientationBin = 30;
+	private double scaleBin = 1;
+	private double locationBin = 0.25;
+	private double peakRatio = 0.5;
+	private int minimumVotes = 4;
+
+	private long[] keys = new long[0];
+	private int[] votes = new int[0];
+	private int[] slots = new int[0];
+	private int mask;
+	private int rejected;
+
+	/**
+	 * Keeps the matches of the dominant bins and moves them to the front of
+	 * the arrays, in their original order
+	 *
+	 * @param objectPoints
+	 *            x and y of the template key point of every match
+	 * @param scenePoints
+	 *            x and y of the frame key point of every match
+	 * @param objectShapes
+	 *            size and angle in degrees of the template key point
+	 * @param sceneShapes
+	 *            size and angle in degrees of the frame key point, in the
+	 *            coordinates of the scene points
+	 * @param distances
+	 *            descriptor distances, reordered like the points
+	 * @param count
+	 *            amount of matches
+	 * @return amount of kept matches
+	 */
+	public int filter(float[] objectPoints, float[] scenePoints, float[] objectShapes, float[] sceneShapes, float[] distances, int count) {
+		rejected = 0;
+		if (count < minimumVotes)
+			return count;
+		float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE, maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE;
+		for (int i = 0; i < count; i++) {
+			if (!(objectShapes[i * 2] > 0 && sceneShapes[i * 2] > 0 && objectShapes[i * 2 + 1] >= 0 && sceneShapes[i * 2 + 1] >= 0))
+				return count;
+			minX = Math.min(minX, objectPoints[i * 2]);
+			maxX = Math.max(maxX, objectPoints[i * 2]);
+			minY = Math.min(minY, objectPoints[i * 2 + 1]);
+			maxY = Math.max(maxY, objectPoints[i * 2 + 1]);
+		}
+		double dimension = Math.max(maxX - minX, maxY - minY);
+		if (dimension <= 0)
+			return count;
+		prepareTable(count);
+
+		int orientationBins = (int) Math.round(360 / orientationBin);
+		int peak = 0;
+		for (int i = 0; i < count; i++) {
+			double scale = sceneShapes[i * 2] / objectShapes[i * 2];
+			double rotation = sceneShapes[i * 2 + 1] - objectShapes[i * 2 + 1];
+			if (rotation < 0)
+				rotation += 360;
+			double radians = Math.toRadians(rotation);
+			double cos = Math.cos(radians) * scale, sin = Math.sin(radians) * scale;
+			double ox = objectPoints[i * 2], oy = objectPoints[i * 2 + 1];
+			// frame position of the template origin under the similarity
+			double tx = scenePoints[i * 2] - (cos * ox - sin * oy);
+			double ty = scenePoints[i * 2 + 1] - (sin * ox + cos * oy);
+			double location = locationBin * dimension * scale;
+
+			int o = (int) Math.floor(rotation / orientationBin - 0.5);
+			int s = (int) Math.floor(Math.log(scale) / Math.log(2) / scaleBin - 0.5);
+			int x = clamp(Math.floor(tx / location - 0.5));
+			int y = clamp(Math.floor(ty / location - 0.5));
+			int vote = i * VOTES_PER_MATCH;
+			for (int combination = 0; combination < VOTES_PER_MATCH; combination++) {
+				int bo = ((o + (combination & 1)) % orientationBins + orientationBins) % orientationBins;
+				int bs = s + ((combination >> 1) & 1);
+				int bx = x + ((combination >> 2) & 1);
+				int by = y + ((combination >> 3) & 1);
+				long key = ((long) bo << 48) | ((long) (bs & 0xFFFF) << 32) | ((long) (bx & 0xFFFF) << 16) | (by & 0xFFFF);
+				int slot = slot(key);
+				slots[vote + combination] = slot;
+				peak = Math.max(peak, ++votes[slot]);
+			}
+		}
+		if (peak < minimumVotes)
+			return count;
+
+		int threshold = Math.max(minimumVotes, (int) Math.ceil(peak * peakRatio));
+		int kept = 0;
+		for (int i = 0; i < count; i++) {
+			boolean dominant = false;
+			for (int vote = i * VOTES_PER_MATCH; vote < (i + 1) * VOTES_PER_MATCH && !dominant; vote++) {
+				dominant = votes[slots[vote]] >= threshold;
+			}
+			if (!dominant)
+				continue;
+			objectPoints[kept * 2] = objectPoints[i * 2];
+			objectPoints[kept * 2 + 1] = objectPoints[i * 2 + 1];
+			scenePoints[kept * 2] = scenePoints[i * 2];
+			scenePoints[kept * 2 + 1] = scenePoints[i * 2 + 1];
+			distances[kept] = distances[i];
+			kept++;
+		}
+		rejected = count - kept;
+		return kept;
+	}
+
+	/**
+	 * Clears the open addressing table, sized for a load below one half
+	 */
+	private void prepareTable(int count) {
+		int capacity = Integer.highestOneBit(count * VOTES_PER_MATCH) * 4;
+		if (keys.length < capacity) {
+			keys = new long[capacity];
+			votes = new int[capacity];
+		}
+		Arrays.fill(keys, 0, capacity, EMPTY);
+		Arrays.fill(votes, 0, capacity, 0);
+		if (slots.length < count * VOTES_PER_MATCH)
+			slots = new int[count * VOTES_PER_MATCH];
+		mask = capacity - 1;
+	}
+
+	private int slot(long key) {
+		long hash = key * 0x9E3779B97F4A7C15L;
+		int slot = (int) (hash >>> 40) & mask;
+		while (keys[slot] != EMPTY && keys[slot] != key) {
+			slot = (slot + 1) & mask;
+		}
+		keys[slot] = key;
+		return slot;
+	}
+
+	private static int clamp(double bin) {
+		return (int) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE - 1, bin));
+	}
+
+	/**
+	 * @return matches removed by the last {@link #filter}
+	 */
+	public int getRejected() {
+		return rejected;
+	}
+
+	/**
+	 * @param orientationBin
+	 *            width of the rotation bins in degrees
+	 */
+	public void setOrientationBin(double orientationBin) {
+		this.orientationBin = orientationBin;
+	}
+
+	/**
+	 * @param scaleBin
+	 *            width of the scale bins in octaves
+	 */
+	public void setScaleBin(double scaleBin) {
+		this.scaleBin = scaleBin;
+	}
+
+	/**
+	 * @param locationBin
+	 *            width of the translation bins as fraction of the projected
+	 *            template size
+	 */
+	public void setLocationBin(double locationBin) {
+		this.locationBin = locationBin;
+	}
+
+	/**
+	 * @param peakRatio
+	 *            bins with at least this fraction of the votes of the
+	 *            strongest bin are dominant
+	 */
+	public void setPeakRatio(double peakRatio) {
+		this.peakRatio = peakRatio;
+	}
+
+	/**
+	 * @param minimumVotes
+	 *            votes a bin needs to be dominant, at least the four matches
+	 *            of a homography
+	 */
+	public void setMinimumVotes(int minimumVotes) {
+		this.minimumVotes = Math.max(4, minimumVotes);
+	}
+}
@@ -0,0 +1,367 @@
+package de.stetro.recapturing.registration;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.opencv.core.Core;
+import org.opencv.core.Core.MinMaxLocResult;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import de.stetro.recapturing.pojo.FramePackage;
+
+/**
+ * Area based registration by phase correlation (Fourier-Mellin). Template and
+ * frame are scaled into a square canvas of an optimal DFT size. Rotation and
+ * scale are found by correlating the log-polar resampled magnitude spectra,
+ * the translation by correlating the frame, aligned by that rotation and
+ * scale, with the template. The windowed template spectrum and its log-polar
+ * spectrum are computed once per template, all per frame buffers are reused.
+ *
+ * @author Steffen Troester
+ */
+public class PhaseCorrelationRegistration {
+
+	/**
+	 * longer side of the working resolution
+	 */
+	private static final int DEFAULT_WORKING_SIZE = 256;
+	/**
+	 * minimum energy of the translation peak to accept a registration
+	 */
+	private static final double MINIMUM_RESPONSE = 0.03;
+	private static final double MINIMUM_SCALE = 0.25;
+	private static final double MAXIMUM_SCALE = 4;
+
+	private int workingSize = DEFAULT_WORKING_SIZE;
+	private int frameWidth;
+	private int frameHeight;
+	/**
+	 * side length of the square canvas
+	 */
+	private int size;
+	private double logBase;
+
+	private Mat templateGray;
+	/**
+	 * scale x, scale y, offset x, offset y into the canvas
+	 */
+	private final double[] templateTransform = new double[4];
+	private final double[] frameTransform = new double[4];
+
+	private final Mat window = new Mat();
+	private final Mat logPolarMapX = new Mat();
+	private final Mat logPolarMapY = new Mat();
+	private final Mat templateSpectrum = new Mat();
+	private final Mat templateLogPolarSpectrum = new Mat();
+
+	private final Mat scaled = new Mat();
+	private final Mat frameCanvas = new Mat();
+	private final Mat windowed = new Mat();
+	private final Mat aligned = new Mat();
+	private final Mat spectrum = new Mat();
+	private final Mat logPolar = new Mat();
+	private final Mat logPolarSpectrum = new Mat();
+	private final Mat magnitude = new Mat();
+	private final Mat shifted = new Mat();
+	private final Mat crossPower = new Mat();
+	private final Mat crossMagnitude = new Mat();
+	private final Mat correlation = new Mat();
+	private final Mat rotation = new Mat(2, 3, CvType.CV_64FC1);
+	private final Mat homography = new Mat(3, 3, CvType.CV_64FC1);
+	private final List<Mat> planes = new ArrayList<Mat>(2);
+	private final Scalar epsilon = new Scalar(1e-9);
+	private final Scalar one = new Scalar(1);
+	private final Scalar zero = new Scalar(0);
+	private final float[] peakValue = new float[1];
+	private final double[] shift = new double[3];
+	private final double[] candidate = new double[3];
+	private final double[] h = new double[9];
+
+	private double lastRotation;
+	private double lastScale;
+	private double lastResponse;
+
+	/**
+	 * @param workingSize
+	 *            longer side of the working resolution, frames are scaled
+	 *            down to it
+	 */
+	public void setWorkingSize(int workingSize) {
+		this.workingSize = workingSize;
+		if (frameWidth > 0)
+			setFrameSize(frameWidth, frameHeight);
+	}
+
+	/**
+	 * Allocates the canvas, window and log-polar maps for a frame size
+	 *
+	 * @param width
+	 * @param height
+	 */
+	public void setFrameSize(int width, int height) {
+		frameWidth = width;
+		frameHeight = height;
+		double scale = Math.min(1, (double) workingSize / Math.max(width, height));
+		size = evenOptimalDFTSize((int) Math.ceil(Math.max(width, height) * scale));
+		fit(width, height, frameTransform);
+		Imgproc.createHanningWindow(window, new Size(size, size), CvType.CV_32F);
+		createLogPolarMaps();
+		if (templateGray != null)
+			computeTemplateSpectra();
+	}
+
+	/**
+	 * Computes the windowed template spectrum and its log-polar spectrum
+	 *
+	 * @param grayPicture
+	 *            gray scale template
+	 */
+	public void setTemplate(Mat grayPicture) {
+		templateGray = grayPicture;
+		if (size > 0)
+			computeTemplateSpectra();
+	}
+
+	/**
+	 * Registers the template in a gray scale frame. The spectra and log-polar
+	 * resampling are reported as detection time, the correlations as
+	 * matching time and the warp estimation as homography time.
+	 *
+	 * @param grayPicture
+	 *            full resolution frame
+	 * @param fp
+	 *            receives the stage timings
+	 * @return homography from template to frame or null
+	 */
+	public Mat register(Mat grayPicture, FramePackage fp) {
+		if (templateGray == null || size == 0)
+			return null;
+		long begin = System.nanoTime();
+		toCanvas(grayPicture, frameTransform, frameCanvas);
+		Core.multiply(frameCanvas, window, windowed);
+		Core.dft(windowed, spectrum, Core.DFT_COMPLEX_OUTPUT, 0);
+		logPolar(spectrum, logPolar);
+		Core.dft(logPolar, logPolarSpectrum, Core.DFT_COMPLEX_OUTPUT, 0);
+		fp.setDetectionNanos(System.nanoTime() - begin);
+
+		begin = System.nanoTime();
+		correlate(logPolarSpectrum, templateLogPolarSpectrum, shift);
+		// the frame spectrum is the template spectrum rotated by the angle and
+		// scaled by the inverse scale
+		double angle = shift[1] * Math.PI / size;
+		double scale = Math.exp(-shift[0] * logBase);
+		if (scale < MINIMUM_SCALE || scale > MAXIMUM_SCALE) {
+			fp.setMatchingNanos(System.nanoTime() - begin);
+			return null;
+		}
+		// magnitude spectra are point symmetric, so the angle is only known
+		// modulo 180 degrees
+		double bestResponse = -1, bestX = 0, bestY = 0, bestAngle = 0;
+		for (int turn = 0; turn < 2; turn++) {
+			double candidateAngle = angle + turn * Math.PI;
+			align(candidateAngle, scale);
+			Core.multiply(aligned, window, windowed);
+			Core.dft(windowed, spectrum, Core.DFT_COMPLEX_OUTPUT, 0);
+			correlate(spectrum, templateSpectrum, candidate);
+			if (candidate[2] > bestResponse) {
+				bestResponse = candidate[2];
+				bestX = candidate[0];
+				bestY = candidate[1];
+				bestAngle = candidateAngle;
+			}
+		}
+		fp.setMatchingNanos(System.nanoTime() - begin);
+		lastRotation = bestAngle;
+		lastScale = scale;
+		lastResponse = bestResponse;
+		if (bestResponse < MINIMUM_RESPONSE)
+			return null;
+
+		begin = System.nanoTime();
+		composeHomography(bestAngle, scale, bestX, bestY);
+		fp.setHomographyNanos(System.nanoTime() - begin);
+		return homography;
+	}
+
+	private void computeTemplateSpectra() {
+		fit(templateGray.cols(), templateGray.rows(), templateTransform);
+		toCanvas(templateGray, templateTransform, frameCanvas);
+		Core.multiply(frameCanvas, window, windowed);
+		Core.dft(windowed, templateSpectrum, Core.DFT_COMPLEX_OUTPUT, 0);
+		logPolar(templateSpectrum, logPolar);
+		Core.dft(logPolar, templateLogPolarSpectrum, Core.DFT_COMPLEX_OUTPUT, 0);
+	}
+
+	/**
+	 * Warps the frame canvas into the template orientation around the canvas
+	 * center
+	 */
+	private void align(double angle, double scale) {
+		double center = size / 2.0;
+		double cos = Math.cos(angle) * scale;
+		double sin = Math.sin(angle) * scale;
+		rotation.put(0, 0, cos, -sin, center - cos * center + sin * center, sin, cos, center - sin * center - cos * center);
+		// inverse map: aligned(p) = frame(R * p)
+		Imgproc.warpAffine(frameCanvas, aligned, rotation, new Size(size, size), Imgproc.INTER_LINEAR | Imgproc.WARP_INVERSE_MAP, Imgproc.BORDER_CONSTANT, zero);
+	}
+
+	/**
+	 * H = F^-1 * R * T * A with the template canvas transform A, the
+	 * translation T, the rotation and scale R around the canvas center and the
+	 * frame canvas transform F
+	 */
+	private void composeHomography(double angle, double scale, double x, double y) {
+		double center = size / 2.0;
+		double cos = Math.cos(angle) * scale;
+		double sin = Math.sin(angle) * scale;
+		// R * T in canvas coordinates
+		double tx = center - cos * center + sin * center + cos * x - sin * y;
+		double ty = center - sin * center - cos * center + sin * x + cos * y;
+		double ax = templateTransform[0], ay = templateTransform[1], ox = templateTransform[2], oy = templateTransform[3];
+		double fx = frameTransform[0], fy = frameTransform[1], fox = frameTransform[2], foy = frameTransform[3];
+		h[0] = cos * ax / fx;
+		h[1] = -sin * ay / fx;
+		h[2] = (cos * ox - sin * oy + tx - fox) / fx;
+		h[3] = sin * ax / fy;
+		h[4] = cos * ay / fy;
+		h[5] = (sin * ox + cos * oy + ty - foy) / fy;
+		h[6] = 0;
+		h[7] = 0;
+		h[8] = 1;
+		homography.put(0, 0, h);
+	}
+
+	/**
+	 * Log-polar resampled log magnitude of a complex spectrum, rows are
+	 * angles over 180 degrees and columns logarithmic radii
+	 */
+	private void logPolar(Mat complexSpectrum, Mat destination) {
+		Core.split(complexSpectrum, planes);
+		Core.magnitude(planes.get(0), planes.get(1), magnitude);
+		Core.add(magnitude, one, magnitude);
+		Core.log(magnitude, magnitude);
+		shiftQuadrants(magnitude, shifted);
+		Imgproc.remap(shifted, destination, logPolarMapX, logPolarMapY, Imgproc.INTER_LINEAR, Imgproc.BORDER_CONSTANT, zero);
+	}
+
+	/**
+	 * Normalized cross power spectrum of a and b. Writes the shift of a
+	 * against b with sub pixel precision and the energy around the peak.
+	 */
+	private void correlate(Mat a, Mat b, double[] result) {
+		Core.mulSpectrums(a, b, crossPower, 0, true);
+		Core.split(crossPower, planes);
+		Core.magnitude(planes.get(0), planes.get(1), crossMagnitude);
+		Core.add(crossMagnitude, epsilon, crossMagnitude);
+		Core.divide(planes.get(0), crossMagnitude, planes.get(0));
+		Core.divide(planes.get(1), crossMagnitude, planes.get(1));
+		Core.merge(planes, crossPower);
+		Core.idft(crossPower, correlation, Core.DFT_REAL_OUTPUT | Core.DFT_SCALE, 0);
+		MinMaxLocResult peak = Core.minMaxLoc(correlation);
+		int peakX = (int) peak.maxLoc.x;
+		int peakY = (int) peak.maxLoc.y;
+		// weighted centroid of the 3x3 neighbourhood, wrapped at the borders
+		double sum = 0, sumX = 0, sumY = 0;
+		for (int dy = -1; dy <= 1; dy++) {
+			for (int dx = -1; dx <= 1; dx++) {
+				correlation.get((peakY + dy + size) % size, (peakX + dx + size) % size, peakValue);
+				sum += peakValue[0];
+				sumX += peakValue[0] * dx;
+				sumY += peakValue[0] * dy;
+			}
+		}
+		double x = peakX + (sum != 0 ? sumX / sum : 0);
+		double y = peakY + (sum != 0 ? sumY / sum : 0);
+		result[0] = x > size / 2 ? x - size : x;
+		result[1] = y > size / 2 ? y - size : y;
+		result[2] = sum;
+	}
+
+	/**
+	 * Scales a picture into the center of the float canvas, the border is
+	 * filled with the mean to avoid edges
+	 */
+	private void toCanvas(Mat gray, double[] transform, Mat destination) {
+		int width = (int) Math.round(gray.cols() * transform[0]);
+		int height = (int) Math.round(gray.rows() * transform[1]);
+		int x = (int) transform[2];
+		int y = (int) transform[3];
+		Imgproc.resize(gray, scaled, new Size(width, height), 0, 0, Imgproc.INTER_AREA);
+		destination.create(size, size, CvType.CV_32FC1);
+		destination.setTo(Core.mean(scaled));
+		scaled.convertTo(destination.submat(y, y + height, x, x + width), CvType.CV_32F);
+	}
+
+	private void fit(int width, int height, double[] transform) {
+		double scale = Math.min((double) size / width, (double) size / height);
+		int scaledWidth = Math.max(1, (int) Math.round(width * scale));
+		int scaledHeight = Math.max(1, (int) Math.round(height * scale));
+		transform[0] = (double) scaledWidth / width;
+		transform[1] = (double) scaledHeight / height;
+		transform[2] = (size - scaledWidth) / 2;
+		transform[3] = (size - scaledHeight) / 2;
+	}
+
+	private void shiftQuadrants(Mat source, Mat destination) {
+		int half = size / 2;
+		destination.create(size, size, source.type());
+		source.submat(0, half, 0, half).copyTo(destination.submat(half, size, half, size));
+		source.submat(half, size, half, size).copyTo(destination.submat(0, half, 0, half));
+		source.submat(0, half, half, size).copyTo(destination.submat(half, size, 0, half));
+		source.submat(half, size, 0, half).copyTo(destination.submat(0, half, half, size));
+	}
+
+	private void createLogPolarMaps() {
+		double center = size / 2.0;
+		logBase = Math.log(center) / size;
+		float[] mapX = new float[size * size];
+		float[] mapY = new float[size * size];
+		for (int row = 0; row < size; row++) {
+			double angle = Math.PI * row / size;
+			double cos = Math.cos(angle);
+			double sin = Math.sin(angle);
+			for (int col = 0; col < size; col++) {
+				double radius = Math.exp(col * logBase);
+				mapX[row * size + col] = (float) (center + radius * cos);
+				mapY[row * size + col] = (float) (center + radius * sin);
+			}
+		}
+		logPolarMapX.create(size, size, CvType.CV_32FC1);
+		logPolarMapX.put(0, 0, mapX);
+		logPolarMapY.create(size, size, CvType.CV_32FC1);
+		logPolarMapY.put(0, 0, mapY);
+	}
+
+	/**
+	 * The quadrant shift needs an even size
+	 */
+	private static int evenOptimalDFTSize(int minimum) {
+		int size = Core.getOptimalDFTSize(minimum);
+		while (size % 2 != 0) {
+			size = Core.getOptimalDFTSize(size + 1);
+		}
+		return size;
+	}
+
+	/**
+	 * @return rotation in radians of the last registration
+	 */
+	public double getLastRotation() {
+		return lastRotation;
+	}
+
+	public double getLastScale() {
+		return lastScale;
+	}
+
+	/**
+	 * @return peak energy of the last translation correlation
+	 */
+	public double getLastResponse() {
+		return lastResponse;
+	}
+}
@@ -0,0 +1,627 @@
+package de.stetro.recapturing.registration;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Robust homography estimation with progressive sampling (PROSAC, Chum and
+ * Matas 2005). The matches are sorted by their descriptor distance and the
+ * minimal samples are drawn from a growing set of the best matches, so a good
+ * hypothesis is usually found after few iterations. Sampling stops as soon
+ * as the standard RANSAC bound for the best inlier ratio reaches the
+ * confidence. A homography of the previous frame can seed the search. The
+ * best hypothesis is refined by a normalized least squares fit on its
+ * inliers.
+ * <p>
+ * Hypotheses are scored in batches split across the cores once there are
+ * enough matches to pay for the hand off.
+ *
+ * @author Steffen Troester
+ */
+public class ProsacHomographyEstimator {
+
+	private static final int SAMPLE_SIZE = 4;
+	/**
+	 * Below this amount of matches the hypotheses are scored on the calling
+	 * thread, one at a time
+	 */
+	private static final int MINIMUM_PARALLEL_MATCHES = 200;
+	private static final int HYPOTHESES_PER_THREAD = 4;
+	private static final int REFINEMENT_PASSES = 3;
+	/**
+	 * z score of the 5% significance level of the non randomness test
+	 */
+	private static final double NON_RANDOMNESS_Z = 1.645;
+	/**
+	 * twice the minimum triangle area of a sample in square pixels
+	 */
+	private static final double MINIMUM_AREA = 1;
+
+	private final ExecutorService executor;
+	private final int threads;
+	private final List<Future<?>> futures = new ArrayList<Future<?>>();
+	private final ScoreTask[] tasks;
+	private final Random random = new Random(1);
+
+	private double threshold = 10;
+	private double confidence = 0.995;
+	private int maximumIterations = 2000;
+	private boolean progressive = true;
+
+	private float[] objectPoints;
+	private float[] scenePoints;
+	private int count;
+	/**
+	 * probability that an outlier is within the threshold by chance
+	 */
+	private double randomInlierProbability;
+	private long[] order = new long[0];
+	private int[] sorted = new int[0];
+	private double[] hypotheses = new double[0];
+	private boolean[] valid = new boolean[0];
+	private int[] scores = new int[0];
+	private final int[] sample = new int[SAMPLE_SIZE];
+	private final double[] system = new double[8 * 9];
+	private final double[] best = new double[9];
+	private final double[] refined = new double[9];
+	private final double[] row = new double[9];
+	private final double[] normalized = new double[9];
+	private final double[] objectTransform = new double[9];
+	private final double[] sceneInverse = new double[9];
+	private final double[] product = new double[9];
+
+	private int iterations;
+	private int inliers;
+
+	public ProsacHomographyEstimator() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	public ProsacHomographyEstimator(int threads) {
+		this.threads = Math.max(1, threads);
+		this.executor = Executors.newFixedThreadPool(this.threads, new ThreadFactory() {
+			private int count;
+
+			@Override
+			public synchronized Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "prosac-" + count++);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		tasks = new ScoreTask[this.threads];
+		for (int i = 0; i < tasks.length; i++) {
+			tasks[i] = new ScoreTask();
+		}
+	}
+
+	/**
+	 * @param threshold
+	 *            maximum reprojection error of an inlier in scene pixels
+	 */
+	public void setThreshold(double threshold) {
+		this.threshold = threshold;
+	}
+
+	/**
+	 * @param confidence
+	 *            probability that an outlier free sample was drawn before
+	 *            sampling stops
+	 */
+	public void setConfidence(double confidence) {
+		this.confidence = confidence;
+	}
+
+	public void setMaximumIterations(int maximumIterations) {
+		this.maximumIterations = maximumIterations;
+	}
+
+	/**
+	 * @param progressive
+	 *            false draws uniform samples from all matches like plain
+	 *            RANSAC, for comparison
+	 */
+	public void setProgressive(boolean progressive) {
+		this.progressive = progressive;
+	}
+
+	/**
+	 * Estimates the homography from template to scene points
+	 *
+	 * @param objectPoints
+	 *            interleaved x, y template points
+	 * @param scenePoints
+	 *            interleaved x, y scene points
+	 * @param distances
+	 *            descriptor distance of each match, lower is better
+	 * @param count
+	 *            amount of matches
+	 * @param seed
+	 *            row major homography of the previous frame or null
+	 * @param homography
+	 *            receives the row major homography
+	 * @param mask
+	 *            receives 1 for inliers and 0 for outliers, at least count
+	 *            long
+	 * @return amount of inliers, 0 if no homography was found
+	 */
+	public int estimate(float[] objectPoints, float[] scenePoints, float[] distances, int count, double[] seed, double[] homography, byte[] mask) {
+		this.objectPoints = objectPoints;
+		this.scenePoints = scenePoints;
+		this.count = count;
+		iterations = 0;
+		inliers = 0;
+		Arrays.fill(mask, 0, count, (byte) 0);
+		if (count < SAMPLE_SIZE)
+			return 0;
+		sortByDistance(distances);
+		randomInlierProbability = randomInlierProbability();
+		int batch = threads > 1 && count >= MINIMUM_PARALLEL_MATCHES ? threads * HYPOTHESES_PER_THREAD : 1;
+		if (hypotheses.length < batch * 9) {
+			hypotheses = new double[batch * 9];
+			valid = new boolean[batch];
+			scores = new int[batch];
+		}
+
+		int bestScore = 0;
+		if (seed != null) {
+			System.arraycopy(seed, 0, hypotheses, 0, 9);
+			valid[0] = true;
+			scoreRange(0, 1, 0);
+			iterations++;
+			if (scores[0] >= SAMPLE_SIZE) {
+				bestScore = scores[0];
+				System.arraycopy(seed, 0, best, 0, 9);
+			}
+		}
+
+		// PROSAC growth function: the sampling set grows from the best
+		// SAMPLE_SIZE matches to all matches within maximumIterations samples
+		int n = progressive ? SAMPLE_SIZE : count;
+		double tn = maximumIterations;
+		for (int i = 0; i < SAMPLE_SIZE; i++) {
+			tn *= (double) (SAMPLE_SIZE - i) / (count - i);
+		}
+		long tnPrime = 1;
+		long t = 0;
+		int required = Math.min(maximumIterations, requiredIterations(bestScore, mask));
+		while (iterations < required) {
+			int generated = 0;
+			while (generated < batch && iterations + generated < required) {
+				t++;
+				while (t >= tnPrime && n < count) {
+					double next = tn * (n + 1) / (n + 1 - SAMPLE_SIZE);
+					n++;
+					tnPrime += (long) Math.ceil(next - tn);
+					tn = next;
+				}
+				drawSample(n, progressive && t < tnPrime);
+				valid[generated] = solveSample(generated * 9);
+				generated++;
+			}
+			scoreBatch(generated, bestScore);
+			iterations += generated;
+			for (int h = 0; h < generated; h++) {
+				if (valid[h] && scores[h] > bestScore) {
+					bestScore = scores[h];
+					System.arraycopy(hypotheses, h * 9, best, 0, 9);
+				}
+			}
+			required = Math.min(maximumIterations, requiredIterations(bestScore, mask));
+		}
+		if (bestScore < SAMPLE_SIZE)
+			return 0;
+
+		System.arraycopy(best, 0, homography, 0, 9);
+		inliers = markInliers(best, mask);
+		// the inliers of the refined homography may change, so the fit is
+		// repeated a few times
+		for (int pass = 0; pass < REFINEMENT_PASSES && refine(mask, refined); pass++) {
+			int refinedInliers = countInliers(refined, 0, 0);
+			if (refinedInliers < inliers)
+				break;
+			System.arraycopy(refined, 0, homography, 0, 9);
+			inliers = markInliers(refined, mask);
+		}
+		if (inliers < SAMPLE_SIZE) {
+			Arrays.fill(mask, 0, count, (byte) 0);
+			inliers = 0;
+		}
+		return inliers;
+	}
+
+	/**
+	 * Sorts the match indices by distance. Both values are packed into one
+	 * long, the int bits of a non negative float keep its order.
+	 */
+	private void sortByDistance(float[] distances) {
+		if (order.length < count) {
+			order = new long[count];
+			sorted = new int[count];
+		}
+		for (int i = 0; i < count; i++) {
+			order[i] = ((long) Float.floatToIntBits(Math.max(0f, distances[i])) << 32) | i;
+		}
+		Arrays.sort(order, 0, count);
+		for (int i = 0; i < count; i++) {
+			sorted[i] = (int) order[i];
+		}
+	}
+
+	/**
+	 * Draws a minimal sample from the best n matches
+	 *
+	 * @param withLast
+	 *            the n-th match is part of the sample, as in PROSAC while
+	 *            the sampling set grows
+	 */
+	private void drawSample(int n, boolean withLast) {
+		int drawn = 0;
+		if (withLast)
+			sample[drawn++] = sorted[n - 1];
+		int range = withLast ? n - 1 : n;
+		while (drawn < SAMPLE_SIZE) {
+			int candidate = sorted[random.nextInt(range)];
+			boolean duplicate = false;
+			for (int i = 0; i < drawn; i++) {
+				duplicate |= sample[i] == candidate;
+			}
+			if (!duplicate)
+				sample[drawn++] = candidate;
+		}
+	}
+
+	/**
+	 * Solves the homography through the four sample correspondences with
+	 * h33 = 1
+	 *
+	 * @return false for degenerate samples
+	 */
+	private boolean solveSample(int offset) {
+		if (collinear(objectPoints) || collinear(scenePoints))
+			return false;
+		for (int i = 0; i < SAMPLE_SIZE; i++) {
+			int p = sample[i] * 2;
+			double x = objectPoints[p], y = objectPoints[p + 1];
+			double u = scenePoints[p], v = scenePoints[p + 1];
+			int row = i * 2 * 9;
+			setRow(system, row, x, y, 1, 0, 0, 0, -u * x, -u * y, u);
+			setRow(system, row + 9, 0, 0, 0, x, y, 1, -v * x, -v * y, v);
+		}
+		return solve(system, 8, hypotheses, offset);
+	}
+
+	private boolean collinear(float[] points) {
+		for (int skip = 0; skip < SAMPLE_SIZE; skip++) {
+			int a = sample[skip == 0 ? 1 : 0] * 2;
+			int b = sample[skip <= 1 ? 2 : 1] * 2;
+			int c = sample[skip <= 2 ? 3 : 2] * 2;
+			double area = (points[b] - points[a]) * (points[c + 1] - points[a + 1]) - (points[b + 1] - points[a + 1]) * (points[c] - points[a]);
+			if (Math.abs(area) < MINIMUM_AREA)
+				return true;
+		}
+		return false;
+	}
+
+	private static void setRow(double[] system, int row, double a0, double a1, double a2, double a3, double a4, double a5, double a6, double a7, double b) {
+		system[row] = a0;
+		system[row + 1] = a1;
+		system[row + 2] = a2;
+		system[row + 3] = a3;
+		system[row + 4] = a4;
+		system[row + 5] = a5;
+		system[row + 6] = a6;
+		system[row + 7] = a7;
+		system[row + 8] = b;
+	}
+
+	/**
+	 * Gaussian elimination with partial pivoting of an augmented n x (n + 1)
+	 * system, the solution is written with h33 = 1 appended
+	 */
+	private static boolean solve(double[] system, int n, double[] destination, int offset) {
+		int width = n + 1;
+		for (int column = 0; column < n; column++) {
+			int pivot = column;
+			for (int row = column + 1; row < n; row++) {
+				if (Math.abs(system[row * width + column]) > Math.abs(system[pivot * width + column]))
+					pivot = row;
+			}
+			if (Math.abs(system[pivot * width + column]) < 1e-10)
+				return false;
+			if (pivot != column) {
+				for (int k = column; k < width; k++) {
+					double swap = system[column * width + k];
+					system[column * width + k] = system[pivot * width + k];
+					system[pivot * width + k] = swap;
+				}
+			}
+			double diagonal = system[column * width + column];
+			for (int row = column + 1; row < n; row++) {
+				double factor = system[row * width + column] / diagonal;
+				if (factor == 0)
+					continue;
+				for (int k = column; k < width; k++) {
+					system[row * width + k] -= factor * system[column * width + k];
+				}
+			}
+		}
+		for (int row = n - 1; row >= 0; row--) {
+			double sum = system[row * width + n];
+			for (int k = row + 1; k < n; k++) {
+				sum -= system[row * width + k] * destination[offset + k];
+			}
+			destination[offset + row] = sum / system[row * width + row];
+		}
+		destination[offset + 8] = 1;
+		return true;
+	}
+
+	private void scoreBatch(int generated, int bestScore) {
+		if (generated == 1) {
+			scoreRange(0, 1, bestScore);
+			return;
+		}
+		int chunk = (generated + threads - 1) / threads;
+		futures.clear();
+		int task = 1;
+		for (int start = chunk; start < generated; start += chunk) {
+			tasks[task].set(start, Math.min(generated, start + chunk), bestScore);
+			futures.add(executor.submit(tasks[task++]));
+		}
+		// the calling thread takes the first chunk
+		scoreRange(0, Math.min(generated, chunk), bestScore);
+		try {
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Homography scoring failed", e.getCause());
+		}
+	}
+
+	private void scoreRange(int from, int to, int bestScore) {
+		for (int h = from; h < to; h++) {
+			scores[h] = valid[h] ? countInliers(hypotheses, h * 9, bestScore) : 0;
+		}
+	}
+
+	/**
+	 * Counts the matches within the threshold, gives up as soon as the
+	 * hypothesis can not beat the best score anymore
+	 */
+	private int countInliers(double[] h, int o, int bestScore) {
+		double limit = threshold * threshold;
+		int inliers = 0;
+		for (int i = 0, p = 0; i < count; i++, p += 2) {
+			if (inliers + count - i <= bestScore)
+				return 0;
+			double x = objectPoints[p], y = objectPoints[p + 1];
+			double w = h[o + 6] * x + h[o + 7] * y + h[o + 8];
+			double dx = (h[o] * x + h[o + 1] * y + h[o + 2]) / w - scenePoints[p];
+			double dy = (h[o + 3] * x + h[o + 4] * y + h[o + 5]) / w - scenePoints[p + 1];
+			if (dx * dx + dy * dy <= limit)
+				inliers++;
+		}
+		return inliers;
+	}
+
+	private int markInliers(double[] h, byte[] mask) {
+		double limit = threshold * threshold;
+		int inliers = 0;
+		for (int i = 0, p = 0; i < count; i++, p += 2) {
+			double x = objectPoints[p], y = objectPoints[p + 1];
+			double w = h[6] * x + h[7] * y + h[8];
+			double dx = (h[0] * x + h[1] * y + h[2]) / w - scenePoints[p];
+			double dy = (h[3] * x + h[4] * y + h[5]) / w - scenePoints[p + 1];
+			boolean inlier = dx * dx + dy * dy <= limit;
+			mask[i] = (byte) (inlier ? 1 : 0);
+			if (inlier)
+				inliers++;
+		}
+		return inliers;
+	}
+
+	/**
+	 * Least squares fit over all inliers, with both point sets moved to
+	 * their centroid and scaled to a mean distance of sqrt(2) for a well
+	 * conditioned system
+	 */
+	private boolean refine(byte[] mask, double[] destination) {
+		double ocx = 0, ocy = 0, scx = 0, scy = 0;
+		int n = 0;
+		for (int i = 0, p = 0; i < count; i++, p += 2) {
+			if (mask[i] != 0) {
+				ocx += objectPoints[p];
+				ocy += objectPoints[p + 1];
+				scx += scenePoints[p];
+				scy += scenePoints[p + 1];
+				n++;
+			}
+		}
+		if (n < SAMPLE_SIZE)
+			return false;
+		ocx /= n;
+		ocy /= n;
+		scx /= n;
+		scy /= n;
+		double od = 0, sd = 0;
+		for (int i = 0, p = 0; i < count; i++, p += 2) {
+			if (mask[i] != 0) {
+				od += Math.hypot(objectPoints[p] - ocx, objectPoints[p + 1] - ocy);
+				sd += Math.hypot(scenePoints[p] - scx, scenePoints[p + 1] - scy);
+			}
+		}
+		if (od == 0 || sd == 0)
+			return false;
+		double os = Math.sqrt(2) * n / od;
+		double ss = Math.sqrt(2) * n / sd;
+
+		// normal equations of the 2n x 8 system
+		Arrays.fill(system, 0);
+		for (int i = 0, p = 0; i < count; i++, p += 2) {
+			if (mask[i] == 0)
+				continue;
+			double x = (objectPoints[p] - ocx) * os, y = (objectPoints[p + 1] - ocy) * os;
+			double u = (scenePoints[p] - scx) * ss, v = (scenePoints[p + 1] - scy) * ss;
+			setRow(row, 0, x, y, 1, 0, 0, 0, -u * x, -u * y, u);
+			accumulate(row);
+			setRow(row, 0, 0, 0, 0, x, y, 1, -v * x, -v * y, v);
+			accumulate(row);
+		}
+		if (!solve(system, 8, normalized, 0))
+			return false;
+
+		// H = T_scene^-1 * Hn * T_object
+		setTransform(objectTransform, os, -os * ocx, -os * ocy);
+		setTransform(sceneInverse, 1 / ss, scx, scy);
+		multiply(normalized, objectTransform, product);
+		multiply(sceneInverse, product, normalized);
+		System.arraycopy(normalized, 0, product, 0, 9);
+		if (Math.abs(product[8]) < 1e-12)
+			return false;
+		for (int i = 0; i < 9; i++) {
+			destination[i] = product[i] / product[8];
+		}
+		return true;
+	}
+
+	private void accumulate(double[] row) {
+		for (int r = 0; r < 8; r++) {
+			for (int c = 0; c < 8; c++) {
+				system[r * 9 + c] += row[r] * row[c];
+			}
+			system[r * 9 + 8] += row[r] * row[8];
+		}
+	}
+
+	private static void setTransform(double[] transform, double scale, double x, double y) {
+		Arrays.fill(transform, 0);
+		transform[0] = scale;
+		transform[2] = x;
+		transform[4] = scale;
+		transform[5] = y;
+		transform[8] = 1;
+	}
+
+	private static void multiply(double[] a, double[] b, double[] result) {
+		for (int r = 0; r < 3; r++) {
+			for (int c = 0; c < 3; c++) {
+				result[r * 3 + c] = a[r * 3] * b[c] + a[r * 3 + 1] * b[3 + c] + a[r * 3 + 2] * b[6 + c];
+			}
+		}
+	}
+
+	/**
+	 * Iterations after which an outlier free sample was drawn with the
+	 * configured confidence. Progressive sampling draws from the best n
+	 * matches, so the inlier ratio of every prefix of the sorted matches
+	 * counts, as long as its inliers are unlikely to be random. The amount of
+	 * samples drawn from each prefix is approximated by all samples.
+	 *
+	 * @param mask
+	 *            scratch buffer for the inliers of the best hypothesis
+	 */
+	private int requiredIterations(int bestScore, byte[] mask) {
+		if (bestScore < SAMPLE_SIZE)
+			return maximumIterations;
+		int required = iterationsFor((double) bestScore / count);
+		if (!progressive)
+			return required;
+		markInliers(best, mask);
+		int prefixInliers = 0;
+		for (int n = 1; n <= count; n++) {
+			prefixInliers += mask[sorted[n - 1]];
+			if (prefixInliers >= 2 * SAMPLE_SIZE && prefixInliers >= minimumPrefixInliers(n))
+				required = Math.min(required, iterationsFor((double) prefixInliers / n));
+		}
+		return required;
+	}
+
+	private int iterationsFor(double inlierRatio) {
+		double outlierFree = Math.pow(inlierRatio, SAMPLE_SIZE);
+		if (outlierFree >= 1)
+			return 0;
+		double iterations = Math.log(1 - confidence) / Math.log(1 - outlierFree);
+		return (int) Math.min(maximumIterations, Math.ceil(iterations));
+	}
+
+	/**
+	 * Inliers among the best n matches that a hypothesis from a random
+	 * sample reaches only with 5% probability: the sample itself plus a
+	 * binomial amount of the others, normal approximated
+	 */
+	private double minimumPrefixInliers(int n) {
+		double others = n - SAMPLE_SIZE;
+		double p = randomInlierProbability;
+		return SAMPLE_SIZE + others * p + NON_RANDOMNESS_Z * Math.sqrt(others * p * (1 - p));
+	}
+
+	/**
+	 * Ratio of the threshold circle to the bounding box of the scene points
+	 */
+	private double randomInlierProbability() {
+		float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE, maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE;
+		for (int p = 0; p < count * 2; p += 2) {
+			minX = Math.min(minX, scenePoints[p]);
+			maxX = Math.max(maxX, scenePoints[p]);
+			minY = Math.min(minY, scenePoints[p + 1]);
+			maxY = Math.max(maxY, scenePoints[p + 1]);
+		}
+		double area = (double) (maxX - minX) * (maxY - minY);
+		return area <= 0 ? 1 : Math.min(1, Math.PI * threshold * threshold / area);
+	}
+
+	/**
+	 * @return hypotheses scored in the last {@link #estimate} call,
+	 *         including the seed
+	 */
+	public int getIterations() {
+		return iterations;
+	}
+
+	/**
+	 * @return inliers of the last {@link #estimate} call
+	 */
+	public int getInliers() {
+		return inliers;
+	}
+
+	/**
+	 * Stops the worker threads
+	 */
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	/**
+	 * Scores a range of the current batch, reused for every batch
+	 */
+	private class ScoreTask implements Callable<Void> {
+		private int from;
+		private int to;
+		private int bestScore;
+
+		void set(int from, int to, int bestScore) {
+			this.from = from;
+			this.to = to;
+			this.bestScore = bestScore;
+		}
+
+		@Override
+		public Void call() {
+			scoreRange(from, to, bestScore);
+			return null;
+		}
+	}
+}
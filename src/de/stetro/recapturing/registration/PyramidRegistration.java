@@ -0,0 +1,301 @@
+package de.stetro.recapturing.registration;
+
+import org.opencv.calib3d.Calib3d;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDMatch;
+import org.opencv.core.MatOfKeyPoint;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Rect;
+import org.opencv.imgproc.Imgproc;
+
+import de.stetro.recapturing.feature.FeatureComponentRegistry;
+import de.stetro.recapturing.feature.MatchBuffer;
+import de.stetro.recapturing.pojo.FramePackage;
+import de.stetro.recapturing.template.TemplateFeatures;
+
+/**
+ * Coarse to fine registration: features are detected and matched on a
+ * downscaled pyramid level to get a coarse homography quickly. The
+ * homography is then refined at full resolution, but only inside the region
+ * where the coarse homography predicts the template and only with matches
+ * close to their predicted position.
+ *
+ * @author Steffen Troester
+ */
+public class PyramidRegistration {
+
+	private static final int KEY_POINT_FLOATS = 7;
+	/**
+	 * margin around the predicted template region in full resolution pixels
+	 */
+	private static final int REGION_MARGIN = 24;
+	/**
+	 * maximum distance of a refined match to its predicted position in
+	 * coarse level pixels
+	 */
+	private static final double PREDICTION_RADIUS = 4;
+
+	private final FeatureComponentRegistry featureComponents;
+	private int levels = 2;
+	private int distanceLimit = 20;
+
+	private TemplateFeatures template;
+	private final MatOfKeyPoint coarseTemplateKeyPoints = new MatOfKeyPoint();
+	private final Mat coarseTemplateDescriptors = new Mat();
+	private float[] templateKeyPoints = new float[0];
+	private float[] coarseTemplatePoints = new float[0];
+	private double templateWidth;
+	private double templateHeight;
+
+	private final Mat coarsePicture = new Mat();
+	private final Mat pyramidBuffer = new Mat();
+	private final MatOfKeyPoint keyPoints = new MatOfKeyPoint();
+	private final Mat descriptors = new Mat();
+	private final MatOfDMatch matches = new MatOfDMatch();
+	private final MatchBuffer matchBuffer = new MatchBuffer();
+	private final MatOfPoint2f objectPoints = new MatOfPoint2f();
+	private final MatOfPoint2f scenePoints = new MatOfPoint2f();
+	private float[] sceneKeyPoints = new float[0];
+	private float[] objectBuffer = new float[0];
+	private float[] sceneBuffer = new float[0];
+	private final double[] coarse = new double[9];
+
+	private int coarseMatches;
+	private int refinedMatches;
+
+	public PyramidRegistration(FeatureComponentRegistry featureComponents) {
+		this.featureComponents = featureComponents;
+	}
+
+	/**
+	 * @param levels
+	 *            pyramid levels between the full resolution and the coarse
+	 *            level, each halves the resolution
+	 */
+	public void setLevels(int levels) {
+		if (levels < 1)
+			throw new IllegalArgumentException("at least one pyramid level is necessary");
+		this.levels = levels;
+		if (template != null)
+			setTemplate(template);
+	}
+
+	public int getLevels() {
+		return levels;
+	}
+
+	public void setDistanceLimit(int distanceLimit) {
+		this.distanceLimit = distanceLimit;
+	}
+
+	/**
+	 * Computes the coarse template features, the full resolution features are
+	 * taken from the template
+	 *
+	 * @param template
+	 */
+	public void setTemplate(TemplateFeatures template) {
+		this.template = template;
+		Mat gray = template.getGrayPicture();
+		templateWidth = gray.cols();
+		templateHeight = gray.rows();
+		downscale(gray, coarsePicture);
+		synchronized (featureComponents) {
+			featureComponents.getDetector().detect(coarsePicture, coarseTemplateKeyPoints);
+			featureComponents.getExtractor().compute(coarsePicture, coarseTemplateKeyPoints, coarseTemplateDescriptors);
+		}
+		coarseTemplatePoints = readKeyPoints(coarseTemplateKeyPoints, coarseTemplatePoints);
+		templateKeyPoints = readKeyPoints(template.getKeyPoints(), templateKeyPoints);
+	}
+
+	/**
+	 * Registers the template in a gray scale frame
+	 *
+	 * @param grayPicture
+	 *            full resolution frame
+	 * @param fp
+	 *            receives the stage timings
+	 * @return homography from template to frame or null
+	 */
+	public Mat register(Mat grayPicture, FramePackage fp) {
+		if (template == null || coarseTemplateDescriptors.empty())
+			return null;
+		double factor = 1 << levels;
+
+		long begin = System.nanoTime();
+		downscale(grayPicture, coarsePicture);
+		detect(coarsePicture, keyPoints);
+		fp.setDetectionNanos(System.nanoTime() - begin);
+		fp.setKeyPoints(keyPoints.rows());
+		if (keyPoints.empty())
+			return null;
+		begin = System.nanoTime();
+		describe(coarsePicture, keyPoints, descriptors);
+		fp.setDescriptionNanos(System.nanoTime() - begin);
+
+		begin = System.nanoTime();
+		featureComponents.getMatcher().match(coarseTemplateDescriptors, descriptors, matches);
+		matchBuffer.read(matches);
+		fp.setMatchingNanos(System.nanoTime() - begin);
+
+		begin = System.nanoTime();
+		sceneKeyPoints = readKeyPoints(keyPoints, sceneKeyPoints);
+		coarseMatches = collectPoints(coarseTemplatePoints, sceneKeyPoints, 0, 0, null, 0);
+		if (coarseMatches < 4)
+			return null;
+		Mat coarseHomography = Calib3d.findHomography(objectPoints, scenePoints, Calib3d.RANSAC, 3);
+		if (coarseHomography.empty())
+			return null;
+		// the template is scaled like the frame, so only the translation part
+		// and the projective row change: H = S * Hc * S^-1
+		coarseHomography.get(0, 0, coarse);
+		coarseHomography.release();
+		coarse[2] *= factor;
+		coarse[5] *= factor;
+		coarse[6] /= factor;
+		coarse[7] /= factor;
+
+		Mat refined = refine(grayPicture, coarse, factor);
+		fp.setHomographyNanos(System.nanoTime() - begin);
+		fp.setMatches(Math.max(refinedMatches, coarseMatches));
+		if (refined != null)
+			return refined;
+		Mat homography = new Mat(3, 3, CvType.CV_64FC1);
+		homography.put(0, 0, coarse);
+		return homography;
+	}
+
+	/**
+	 * Matches full resolution features inside the predicted template region
+	 */
+	private Mat refine(Mat grayPicture, double[] h, double factor) {
+		refinedMatches = 0;
+		Rect region = predictedRegion(h, grayPicture.cols(), grayPicture.rows());
+		if (region == null)
+			return null;
+		Mat roi = grayPicture.submat(region);
+		detect(roi, keyPoints);
+		if (keyPoints.empty())
+			return null;
+		describe(roi, keyPoints, descriptors);
+		featureComponents.getMatcher().match(template.getDescriptors(), descriptors, matches);
+		matchBuffer.read(matches);
+		sceneKeyPoints = readKeyPoints(keyPoints, sceneKeyPoints);
+		refinedMatches = collectPoints(templateKeyPoints, sceneKeyPoints, region.x, region.y, h, PREDICTION_RADIUS * factor);
+		if (refinedMatches < 4)
+			return null;
+		Mat refined = Calib3d.findHomography(objectPoints, scenePoints, Calib3d.RANSAC, 3);
+		return refined.empty() ? null : refined;
+	}
+
+	/**
+	 * Bounding box of the projected template corners plus margin, clipped to
+	 * the frame
+	 */
+	private Rect predictedRegion(double[] h, int width, int height) {
+		double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE, maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+		for (int corner = 0; corner < 4; corner++) {
+			double x = (corner & 1) == 0 ? 0 : templateWidth;
+			double y = (corner & 2) == 0 ? 0 : templateHeight;
+			double w = h[6] * x + h[7] * y + h[8];
+			if (w <= 0)
+				return null;
+			double px = (h[0] * x + h[1] * y + h[2]) / w;
+			double py = (h[3] * x + h[4] * y + h[5]) / w;
+			minX = Math.min(minX, px);
+			minY = Math.min(minY, py);
+			maxX = Math.max(maxX, px);
+			maxY = Math.max(maxY, py);
+		}
+		int x0 = (int) Math.max(0, Math.floor(minX) - REGION_MARGIN);
+		int y0 = (int) Math.max(0, Math.floor(minY) - REGION_MARGIN);
+		int x1 = (int) Math.min(width, Math.ceil(maxX) + REGION_MARGIN);
+		int y1 = (int) Math.min(height, Math.ceil(maxY) + REGION_MARGIN);
+		if (x1 - x0 < 32 || y1 - y0 < 32)
+			return null;
+		return new Rect(x0, y0, x1 - x0, y1 - y0);
+	}
+
+	/**
+	 * Fills the object and scene point Mats with the matches below the
+	 * distance limit. With a prediction homography only matches within the
+	 * radius of their predicted position are kept.
+	 *
+	 * @return amount of collected matches
+	 */
+	private int collectPoints(float[] objectKeyPoints, float[] sceneKeyPoints, int offsetX, int offsetY, double[] prediction, double radius) {
+		int size = matchBuffer.size();
+		if (objectBuffer.length < size * 2) {
+			objectBuffer = new float[size * 2];
+			sceneBuffer = new float[size * 2];
+		}
+		int count = 0;
+		for (int i = 0; i < size; i++) {
+			if (matchBuffer.getDistance(i) > distanceLimit)
+				continue;
+			int t = matchBuffer.getTemplateIndex(i) * KEY_POINT_FLOATS;
+			int s = matchBuffer.getSceneIndex(i) * KEY_POINT_FLOATS;
+			float ox = objectKeyPoints[t];
+			float oy = objectKeyPoints[t + 1];
+			float sx = sceneKeyPoints[s] + offsetX;
+			float sy = sceneKeyPoints[s + 1] + offsetY;
+			if (prediction != null) {
+				double w = prediction[6] * ox + prediction[7] * oy + prediction[8];
+				double dx = (prediction[0] * ox + prediction[1] * oy + prediction[2]) / w - sx;
+				double dy = (prediction[3] * ox + prediction[4] * oy + prediction[5]) / w - sy;
+				if (dx * dx + dy * dy > radius * radius)
+					continue;
+			}
+			objectBuffer[count * 2] = ox;
+			objectBuffer[count * 2 + 1] = oy;
+			sceneBuffer[count * 2] = sx;
+			sceneBuffer[count * 2 + 1] = sy;
+			count++;
+		}
+		if (count > 0) {
+			objectPoints.create(count, 1, CvType.CV_32FC2);
+			objectPoints.put(0, 0, objectBuffer);
+			scenePoints.create(count, 1, CvType.CV_32FC2);
+			scenePoints.put(0, 0, sceneBuffer);
+		}
+		return count;
+	}
+
+	private void downscale(Mat source, Mat destination) {
+		Imgproc.pyrDown(source, destination);
+		for (int level = 1; level < levels; level++) {
+			Imgproc.pyrDown(destination, pyramidBuffer);
+			pyramidBuffer.copyTo(destination);
+		}
+	}
+
+	private void detect(Mat picture, MatOfKeyPoint keyPoints) {
+		synchronized (featureComponents) {
+			featureComponents.getDetector().detect(picture, keyPoints);
+		}
+	}
+
+	private void describe(Mat picture, MatOfKeyPoint keyPoints, Mat descriptors) {
+		synchronized (featureComponents) {
+			featureComponents.getExtractor().compute(picture, keyPoints, descriptors);
+		}
+	}
+
+	private static float[] readKeyPoints(MatOfKeyPoint keyPoints, float[] buffer) {
+		int size = keyPoints.rows() * KEY_POINT_FLOATS;
+		if (buffer.length < size)
+			buffer = new float[size];
+		if (size > 0)
+			keyPoints.get(0, 0, buffer);
+		return buffer;
+	}
+
+	public int getCoarseMatches() {
+		return coarseMatches;
+	}
+
+	public int getRefinedMatches() {
+		return refinedMatches;
+	}
+}
@@ -0,0 +1,34 @@
+package de.stetro.recapturing.replay;
+
+import java.io.IOException;
+
+import org.opencv.core.Mat;
+
+/**
+ * Sequence of recorded frames that replaces the camera when the
+ * {@link de.stetro.recapturing.RecapturingProcessor} runs headless
+ * 
+ * @author Steffen Troester
+ * 
+ */
+public interface FrameSource {
+
+	/**
+	 * Reads the next frame
+	 * 
+	 * @param rgbaFrame
+	 *            destination, reallocated as RGBA frame if necessary
+	 * @return false if there are no more frames
+	 * @throws IOException
+	 */
+	boolean next(Mat rgbaFrame) throws IOException;
+
+	/**
+	 * Starts again with the first frame
+	 * 
+	 * @throws IOException
+	 */
+	void rewind() throws IOException;
+
+	void close() throws IOException;
+}
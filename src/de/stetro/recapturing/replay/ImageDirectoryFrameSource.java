@@ -0,0 +1,61 @@
+package de.stetro.recapturing.replay;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.opencv.core.Mat;
+import org.opencv.highgui.Highgui;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Replays the PNG and JPEG pictures of a directory in file name order
+ * 
+ * @author Steffen Troester
+ * 
+ */
+public class ImageDirectoryFrameSource implements FrameSource {
+
+	private final File[] files;
+	private int position;
+
+	public ImageDirectoryFrameSource(File directory) throws IOException {
+		files = directory.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				String lower = name.toLowerCase();
+				return lower.endsWith(".png") || lower.endsWith(".jpg") || lower.endsWith(".jpeg");
+			}
+		});
+		if (files == null)
+			throw new IOException("Not a directory: " + directory);
+		Arrays.sort(files);
+	}
+
+	@Override
+	public boolean next(Mat rgbaFrame) throws IOException {
+		if (position >= files.length)
+			return false;
+		File file = files[position++];
+		Mat picture = Highgui.imread(file.getAbsolutePath(), Highgui.CV_LOAD_IMAGE_COLOR);
+		if (picture.empty())
+			throw new IOException("Could not decode " + file);
+		Imgproc.cvtColor(picture, rgbaFrame, Imgproc.COLOR_BGR2RGBA);
+		picture.release();
+		return true;
+	}
+
+	@Override
+	public void rewind() {
+		position = 0;
+	}
+
+	@Override
+	public void close() {
+	}
+
+	public int size() {
+		return files.length;
+	}
+}
@@ -0,0 +1,24 @@
+package de.stetro.recapturing.replay;
+
+import java.io.IOException;
+
+import de.stetro.recapturing.frame.LumaFrame;
+
+/**
+ * {@link FrameSource} that can hand out its frames as {@link LumaFrame}, so
+ * the replay skips the RGBA conversion like the camera path
+ * 
+ * @author Steffen Troester
+ * 
+ */
+public interface LumaFrameSource extends FrameSource {
+
+	/**
+	 * Reads the next frame
+	 * 
+	 * @return frame valid until the next call, null if there are no more
+	 *         frames
+	 * @throws IOException
+	 */
+	LumaFrame nextLuma() throws IOException;
+}
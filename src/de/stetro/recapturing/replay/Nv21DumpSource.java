@@ -0,0 +1,96 @@
+package de.stetro.recapturing.replay;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import org.opencv.core.Mat;
+
+import de.stetro.recapturing.frame.LumaFrame;
+import de.stetro.recapturing.frame.Nv21Frame;
+
+/**
+ * Replays a dump of raw NV21 camera preview buffers. The dump is a little
+ * endian header followed by the frames as delivered by the camera:
+ * 
+ * <pre>
+ * int magic ('RCNV'), int width, int height
+ * byte[width * height * 3 / 2] frames ...
+ * </pre>
+ * 
+ * @author Steffen Troester
+ * 
+ */
+public class Nv21DumpSource implements LumaFrameSource {
+
+	public static final int MAGIC = 0x564E4352;
+	private static final int HEADER_SIZE = 12;
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final ByteBuffer frameBuffer;
+	private final byte[] frameBytes;
+	private final Nv21Frame frame;
+
+	public Nv21DumpSource(File dump) throws IOException {
+		file = new RandomAccessFile(dump, "r");
+		channel = file.getChannel();
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		while (header.hasRemaining() && channel.read(header) >= 0) {
+		}
+		header.flip();
+		if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC) {
+			file.close();
+			throw new IOException("Not an NV21 dump: " + dump);
+		}
+		int width = header.getInt();
+		int height = header.getInt();
+		if (width <= 0 || height <= 0 || width % 2 != 0 || height % 2 != 0) {
+			file.close();
+			throw new IOException("Unsupported NV21 frame size " + width + "x" + height);
+		}
+		frameBytes = new byte[Nv21Frame.getFrameSize(width, height)];
+		frameBuffer = ByteBuffer.wrap(frameBytes);
+		frame = new Nv21Frame(width, height);
+	}
+
+	@Override
+	public LumaFrame nextLuma() throws IOException {
+		frameBuffer.clear();
+		while (frameBuffer.hasRemaining()) {
+			if (channel.read(frameBuffer) < 0)
+				return null;
+		}
+		frame.put(frameBytes);
+		return frame;
+	}
+
+	@Override
+	public boolean next(Mat rgbaFrame) throws IOException {
+		if (nextLuma() == null)
+			return false;
+		frame.rgba().copyTo(rgbaFrame);
+		return true;
+	}
+
+	@Override
+	public void rewind() throws IOException {
+		channel.position(HEADER_SIZE);
+	}
+
+	@Override
+	public void close() throws IOException {
+		file.close();
+	}
+
+	public int getWidth() {
+		return frame.getWidth();
+	}
+
+	public int getHeight() {
+		return frame.getHeight();
+	}
+}
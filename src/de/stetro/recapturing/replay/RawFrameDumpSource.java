@@ -0,0 +1,95 @@
+package de.stetro.recapturing.replay;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Replays a raw frame dump without any image decoding. The dump is a little
+ * endian header followed by the uncompressed frames:
+ * 
+ * <pre>
+ * int magic ('RCFD'), int width, int height, int channels (1 = gray, 4 = RGBA)
+ * byte[width * height * channels] frames ...
+ * </pre>
+ * 
+ * @author Steffen Troester
+ * 
+ */
+public class RawFrameDumpSource implements FrameSource {
+
+	public static final int MAGIC = 0x44464352;
+	private static final int HEADER_SIZE = 16;
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final int width;
+	private final int height;
+	private final int channels;
+	private final ByteBuffer frameBuffer;
+	private final byte[] frameBytes;
+	private final Mat raw;
+
+	public RawFrameDumpSource(File dump) throws IOException {
+		file = new RandomAccessFile(dump, "r");
+		channel = file.getChannel();
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		while (header.hasRemaining() && channel.read(header) >= 0) {
+		}
+		header.flip();
+		if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC) {
+			file.close();
+			throw new IOException("Not a raw frame dump: " + dump);
+		}
+		width = header.getInt();
+		height = header.getInt();
+		channels = header.getInt();
+		if (channels != 1 && channels != 4) {
+			file.close();
+			throw new IOException("Unsupported channel count " + channels);
+		}
+		frameBytes = new byte[width * height * channels];
+		frameBuffer = ByteBuffer.wrap(frameBytes);
+		raw = new Mat(height, width, CvType.CV_8UC(channels));
+	}
+
+	@Override
+	public boolean next(Mat rgbaFrame) throws IOException {
+		frameBuffer.clear();
+		while (frameBuffer.hasRemaining()) {
+			if (channel.read(frameBuffer) < 0)
+				return false;
+		}
+		raw.put(0, 0, frameBytes);
+		if (channels == 4)
+			raw.copyTo(rgbaFrame);
+		else
+			Imgproc.cvtColor(raw, rgbaFrame, Imgproc.COLOR_GRAY2RGBA);
+		return true;
+	}
+
+	@Override
+	public void rewind() throws IOException {
+		channel.position(HEADER_SIZE);
+	}
+
+	@Override
+	public void close() throws IOException {
+		file.close();
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+}
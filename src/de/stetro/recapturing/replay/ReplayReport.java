@@ -0,0 +1,160 @@
+package de.stetro.recapturing.replay;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import de.stetro.recapturing.memory.MatArena;
+import de.stetro.recapturing.pojo.FramePackage;
+
+/**
+ * Collects the stage timings and match counts of replayed frames and writes
+ * them as JSON report with percentiles, so runs of different configurations
+ * or commits can be compared by scripts
+ * 
+ * @author Steffen Troester
+ * 
+ */
+public class ReplayReport {
+
+	private static final String[] STAGES = { "detection", "description", "matching", "filter", "homography", "total" };
+
+	private final Map<String, String> configuration = new LinkedHashMap<String, String>();
+	private long[][] stageTimes = new long[STAGES.length][64];
+	private long[] matches = new long[64];
+	private long[] inliers = new long[64];
+	private long[] rejectedMatches = new long[64];
+	private int frames;
+	private int skippedFrames;
+	private long processingNanos;
+	private MatArena matArena;
+
+	public void putConfiguration(String key, Object value) {
+		configuration.put(key, String.valueOf(value));
+	}
+
+	/**
+	 * @param fp
+	 *            result of one frame
+	 * @param totalNanos
+	 *            processing time of the frame
+	 */
+	public void add(FramePackage fp, long totalNanos) {
+		if (frames == matches.length) {
+			matches = Arrays.copyOf(matches, frames * 2);
+			inliers = Arrays.copyOf(inliers, frames * 2);
+			rejectedMatches = Arrays.copyOf(rejectedMatches, frames * 2);
+			for (int stage = 0; stage < STAGES.length; stage++) {
+				stageTimes[stage] = Arrays.copyOf(stageTimes[stage], frames * 2);
+			}
+		}
+		stageTimes[0][frames] = fp.getDetectionNanos();
+		stageTimes[1][frames] = fp.getDescriptionNanos();
+		stageTimes[2][frames] = fp.getMatchingNanos();
+		stageTimes[3][frames] = fp.getFilterNanos();
+		stageTimes[4][frames] = fp.getHomographyNanos();
+		stageTimes[5][frames] = totalNanos;
+		matches[frames] = fp.getMatches();
+		inliers[frames] = fp.getInliers();
+		rejectedMatches[frames] = fp.getRejectedMatches();
+		if (fp.isRegistrationSkipped())
+			skippedFrames++;
+		frames++;
+	}
+
+	/**
+	 * @param processingNanos
+	 *            summed processing time of the reported frames, for the
+	 *            throughput
+	 */
+	public void setProcessingNanos(long processingNanos) {
+		this.processingNanos = processingNanos;
+	}
+
+	/**
+	 * @param matArena
+	 *            arena of the processor, its native memory counters are
+	 *            reported
+	 */
+	public void setMatArena(MatArena matArena) {
+		this.matArena = matArena;
+	}
+
+	public int getFrames() {
+		return frames;
+	}
+
+	public String toJson() {
+		StringBuilder json = new StringBuilder();
+		json.append("{\n  \"configuration\": {");
+		boolean first = true;
+		for (Map.Entry<String, String> entry : configuration.entrySet()) {
+			json.append(first ? "\n" : ",\n");
+			json.append("    ").append(quote(entry.getKey())).append(": ").append(quote(entry.getValue()));
+			first = false;
+		}
+		json.append("\n  },\n");
+		json.append("  \"frames\": ").append(frames).append(",\n");
+		json.append("  \"skippedFrames\": ").append(skippedFrames).append(",\n");
+		json.append("  \"skipRate\": ").append(format(frames > 0 ? (double) skippedFrames / frames : 0)).append(",\n");
+		json.append("  \"processingTimeMs\": ").append(format(processingNanos / 1e6)).append(",\n");
+		json.append("  \"throughputFps\": ").append(format(processingNanos > 0 ? frames * 1e9 / processingNanos : 0)).append(",\n");
+		json.append("  \"stagesUs\": {\n");
+		for (int stage = 0; stage < STAGES.length; stage++) {
+			json.append("    ").append(quote(STAGES[stage])).append(": ");
+			appendDistribution(json, stageTimes[stage], 1000);
+			json.append(stage + 1 < STAGES.length ? ",\n" : "\n");
+		}
+		json.append("  },\n");
+		json.append("  \"matches\": ");
+		appendDistribution(json, matches, 1);
+		json.append(",\n  \"inliers\": ");
+		appendDistribution(json, inliers, 1);
+		json.append(",\n  \"rejectedMatches\": ");
+		appendDistribution(json, rejectedMatches, 1);
+		if (matArena != null) {
+			json.append(",\n  \"nativeMemory\": {\"liveBytes\": ").append(matArena.getLiveBytes());
+			json.append(", \"highWaterBytes\": ").append(matArena.getHighWaterBytes());
+			json.append(", \"frameHighWaterBytes\": ").append(matArena.getFrameHighWaterBytes());
+			json.append(", \"createdMats\": ").append(matArena.getCreatedMats());
+			json.append(", \"reusedMats\": ").append(matArena.getReusedMats());
+			json.append(", \"leakedMats\": ").append(matArena.getLeakedMats()).append('}');
+		}
+		json.append("\n}\n");
+		return json.toString();
+	}
+
+	private void appendDistribution(StringBuilder json, long[] values, long divisor) {
+		long[] sorted = Arrays.copyOf(values, frames);
+		Arrays.sort(sorted);
+		long sum = 0;
+		for (long value : sorted) {
+			sum += value;
+		}
+		json.append("{\"mean\": ").append(format(frames > 0 ? (double) sum / frames / divisor : 0));
+		json.append(", \"p50\": ").append(percentile(sorted, 0.5) / divisor);
+		json.append(", \"p90\": ").append(percentile(sorted, 0.9) / divisor);
+		json.append(", \"p99\": ").append(percentile(sorted, 0.99) / divisor);
+		json.append(", \"min\": ").append((frames > 0 ? sorted[0] : 0) / divisor);
+		json.append(", \"max\": ").append((frames > 0 ? sorted[frames - 1] : 0) / divisor).append('}');
+	}
+
+	/**
+	 * nearest rank percentile
+	 */
+	private static long percentile(long[] sorted, double fraction) {
+		if (sorted.length == 0)
+			return 0;
+		int rank = (int) Math.ceil(fraction * sorted.length);
+		return sorted[Math.max(0, Math.min(sorted.length - 1, rank - 1))];
+	}
+
+	private static String format(double value) {
+		return String.format(Locale.US, "%.3f", value);
+	}
+
+	private static String quote(String value) {
+		return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+	}
+}
@@ -0,0 +1,238 @@
+package de.stetro.recapturing.replay;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.features2d.DescriptorExtractor;
+import org.opencv.features2d.DescriptorMatcher;
+import org.opencv.features2d.FeatureDetector;
+import org.opencv.highgui.Highgui;
+import org.opencv.imgproc.Imgproc;
+
+import de.stetro.recapturing.HomographyMethod;
+import de.stetro.recapturing.MatchingEngine;
+import de.stetro.recapturing.RecapturingMode;
+import de.stetro.recapturing.RecapturingProcessor;
+import de.stetro.recapturing.frame.LumaFrame;
+import de.stetro.recapturing.pojo.FramePackage;
+import de.stetro.recapturing.tracking.MotionGate;
+
+/**
+ * Runs the {@link RecapturingProcessor} on recorded frames with the desktop
+ * OpenCV Java bindings and writes a {@link ReplayReport}:
+ * 
+ * <pre>
+ * java -Djava.library.path=... ReplayRunner &lt;frame directory | dump.rcfd | dump.rcnv&gt; &lt;template image&gt;
+ *     [--mode FEAUTURE_BASED] [--engine OPENCV_BRUTEFORCE] [--detector 5] [--extractor 3]
+ *     [--matcher 4] [--distance 20] [--homography OPENCV_RANSAC] [--motion-threshold 3]
+ *     [--consistency-filter true] [--input luma] [--tiles 4x3] [--mat-debug true] [--warmup 10] [--repeat 1] [--report report.json]
+ * </pre>
+ * 
+ * Detector, extractor and matcher are the OpenCV type constants. A motion
+ * threshold enables the {@link MotionGate}, the consistency filter removes
+ * geometrically inconsistent matches before the homography estimation. NV21
+ * dumps are processed on their luma plane like camera frames, <code>--input
+ * rgba</code> converts them to RGBA first for comparison. Tiles detect the
+ * frames in a grid of cells on all cores, see {@link
+ * RecapturingProcessor#setTiledDetection(int, int)}. Mat debug reports
+ * native Mats that are used after their frame ended. The first warmup frames
+ * are processed but not reported.
+ * 
+ * @author Steffen Troester
+ * 
+ */
+public class ReplayRunner {
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.err.println("usage: ReplayRunner <frame directory | raw dump> <template image> [--mode m] [--engine e] [--detector d] [--extractor x] [--matcher m] [--distance n] [--homography h] [--motion-threshold t] [--consistency-filter true|false] [--input luma|rgba] [--tiles cxr] [--mat-debug true|false] [--warmup n] [--repeat n] [--report file]");
+			System.exit(1);
+		}
+		System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+		ReplayRunner runner = new ReplayRunner();
+		String reportFile = null;
+		for (int i = 2; i + 1 < args.length; i += 2) {
+			String option = args[i];
+			String value = args[i + 1];
+			if (option.equals("--mode"))
+				runner.mode = RecapturingMode.valueOf(value);
+			else if (option.equals("--engine"))
+				runner.engine = MatchingEngine.valueOf(value);
+			else if (option.equals("--detector"))
+				runner.detector = Integer.parseInt(value);
+			else if (option.equals("--extractor"))
+				runner.extractor = Integer.parseInt(value);
+			else if (option.equals("--matcher"))
+				runner.matcher = Integer.parseInt(value);
+			else if (option.equals("--distance"))
+				runner.distance = Integer.parseInt(value);
+			else if (option.equals("--homography"))
+				runner.homography = HomographyMethod.valueOf(value);
+			else if (option.equals("--motion-threshold"))
+				runner.motionThreshold = Double.parseDouble(value);
+			else if (option.equals("--consistency-filter"))
+				runner.consistencyFilter = Boolean.parseBoolean(value);
+			else if (option.equals("--input"))
+				runner.lumaInput = value.equalsIgnoreCase("luma");
+			else if (option.equals("--tiles")) {
+				String[] grid = value.split("x");
+				runner.tileColumns = Integer.parseInt(grid[0]);
+				runner.tileRows = Integer.parseInt(grid[1]);
+			}
+			else if (option.equals("--mat-debug"))
+				runner.matDebug = Boolean.parseBoolean(value);
+			else if (option.equals("--warmup"))
+				runner.warmupFrames = Integer.parseInt(value);
+			else if (option.equals("--repeat"))
+				runner.repeat = Integer.parseInt(value);
+			else if (option.equals("--report"))
+				reportFile = value;
+			else
+				throw new IllegalArgumentException("Unknown option " + option);
+		}
+		File frames = new File(args[0]);
+		FrameSource source = openSource(frames);
+		Mat template = Highgui.imread(args[1], Highgui.CV_LOAD_IMAGE_COLOR);
+		if (template.empty())
+			throw new IOException("Could not decode template " + args[1]);
+		Imgproc.cvtColor(template, template, Imgproc.COLOR_BGR2RGBA);
+		ReplayReport report;
+		try {
+			report = runner.run(source, template);
+		} finally {
+			source.close();
+		}
+		report.putConfiguration("frames", frames.getAbsolutePath());
+		report.putConfiguration("template", new File(args[1]).getAbsolutePath());
+		if (reportFile == null) {
+			System.out.print(report.toJson());
+		} else {
+			Writer writer = new OutputStreamWriter(new FileOutputStream(reportFile), "UTF-8");
+			try {
+				writer.write(report.toJson());
+			} finally {
+				writer.close();
+			}
+		}
+	}
+
+	/**
+	 * @param frames
+	 *            image directory, raw frame dump or NV21 dump
+	 * @return frame source matching the directory or the dump magic
+	 * @throws IOException
+	 */
+	public static FrameSource openSource(File frames) throws IOException {
+		if (frames.isDirectory())
+			return new ImageDirectoryFrameSource(frames);
+		DataInputStream stream = new DataInputStream(new FileInputStream(frames));
+		int magic;
+		try {
+			magic = Integer.reverseBytes(stream.readInt());
+		} finally {
+			stream.close();
+		}
+		if (magic == Nv21DumpSource.MAGIC)
+			return new Nv21DumpSource(frames);
+		return new RawFrameDumpSource(frames);
+	}
+
+	private RecapturingMode mode = RecapturingMode.FEAUTURE_BASED;
+	private MatchingEngine engine = MatchingEngine.OPENCV_BRUTEFORCE;
+	private int detector = FeatureDetector.ORB;
+	private int extractor = DescriptorExtractor.ORB;
+	private int matcher = DescriptorMatcher.BRUTEFORCE_HAMMING;
+	private int distance = 20;
+	private HomographyMethod homography = HomographyMethod.OPENCV_RANSAC;
+	private double motionThreshold = 0;
+	private boolean consistencyFilter;
+	private boolean lumaInput = true;
+	private int tileColumns;
+	private int tileRows;
+	private boolean matDebug;
+	private int warmupFrames = 10;
+	private int repeat = 1;
+
+	/**
+	 * Replays all frames of the source repeat times through a new processor
+	 * 
+	 * @param source
+	 * @param rgbaTemplate
+	 * @return report of the frames after the warmup
+	 * @throws IOException
+	 */
+	public ReplayReport run(FrameSource source, Mat rgbaTemplate) throws IOException {
+		RecapturingProcessor processor = new RecapturingProcessor();
+		processor.setFeatureMethods(detector, extractor, matcher);
+		processor.setMatchingEngine(engine);
+		processor.setMode(mode);
+		processor.setDistance(distance);
+		processor.setHomographyMethod(homography);
+		processor.setConsistencyFilter(consistencyFilter);
+		processor.setTiledDetection(tileColumns, tileRows);
+		processor.getMatArena().setDebug(matDebug);
+		if (motionThreshold > 0) {
+			MotionGate gate = new MotionGate();
+			gate.setThreshold(motionThreshold);
+			processor.setMotionGate(gate);
+		}
+
+		ReplayReport report = new ReplayReport();
+		report.putConfiguration("mode", mode);
+		report.putConfiguration("engine", engine);
+		report.putConfiguration("detector", detector);
+		report.putConfiguration("extractor", extractor);
+		report.putConfiguration("matcher", matcher);
+		report.putConfiguration("distance", distance);
+		report.putConfiguration("homography", homography);
+		report.putConfiguration("motionThreshold", motionThreshold);
+		report.putConfiguration("consistencyFilter", consistencyFilter);
+		boolean luma = lumaInput && source instanceof LumaFrameSource;
+		report.putConfiguration("input", luma ? "luma" : "rgba");
+		report.putConfiguration("tiles", tileColumns + "x" + tileRows);
+		report.putConfiguration("matDebug", matDebug);
+		report.setMatArena(processor.getMatArena());
+		report.putConfiguration("warmupFrames", warmupFrames);
+		report.putConfiguration("repeat", repeat);
+
+		Mat frame = new Mat();
+		int processed = 0;
+		long measuredNanos = 0;
+		for (int run = 0; run < repeat; run++) {
+			source.rewind();
+			while (true) {
+				LumaFrame lumaFrame = null;
+				if (luma) {
+					lumaFrame = ((LumaFrameSource) source).nextLuma();
+					if (lumaFrame == null)
+						break;
+					frame = lumaFrame.gray();
+				} else if (!source.next(frame)) {
+					break;
+				}
+				if (processed == 0) {
+					processor.prepareViewSize(frame.cols(), frame.rows());
+					processor.setTemplatePicture(rgbaTemplate);
+				}
+				long begin = System.nanoTime();
+				FramePackage fp = luma ? processor.process(lumaFrame) : processor.process(frame);
+				long time = System.nanoTime() - begin;
+				if (processed >= warmupFrames) {
+					report.add(fp, time);
+					measuredNanos += time;
+				}
+				processed++;
+			}
+		}
+		report.setProcessingNanos(measuredNanos);
+		processor.setTiledDetection(0, 0);
+		return report;
+	}
+}
@@ -0,0 +1,86 @@
+package de.stetro.recapturing.template;
+
+import org.opencv.core.MatOfKeyPoint;
+
+import de.stetro.recapturing.feature.MultiIndexHashingIndex;
+import de.stetro.recapturing.feature.PackedDescriptors;
+
+/**
+ * {@link TemplateFeatures} with everything the matching reads per frame: the
+ * key points as floats, the packed descriptors and optionally the
+ * {@link MultiIndexHashingIndex}. It is prepared by the thread that changes
+ * the template and never modified afterwards, so frames can use it without
+ * a lock. Index queries keep their buffers in a
+ * {@link MultiIndexHashingIndex.Search} of the caller, so one template can be
+ * shared by several processors.
+ * 
+ * @author Steffen Troester
+ * 
+ */
+public class PreparedTemplate {
+
+	private final TemplateFeatures features;
+	private final float[] keyPoints;
+	private final PackedDescriptors packedDescriptors;
+	private final MultiIndexHashingIndex index;
+	private final int indexSubstringBits;
+	private final int indexProbeRadius;
+
+	public PreparedTemplate(TemplateFeatures features) {
+		this.features = features;
+		MatOfKeyPoint matOfKeyPoint = features.getKeyPoints();
+		keyPoints = new float[(int) matOfKeyPoint.total() * matOfKeyPoint.channels()];
+		if (keyPoints.length > 0)
+			matOfKeyPoint.get(0, 0, keyPoints);
+		packedDescriptors = new PackedDescriptors().pack(features.getDescriptors());
+		index = null;
+		indexSubstringBits = 0;
+		indexProbeRadius = 0;
+	}
+
+	private PreparedTemplate(PreparedTemplate template, MultiIndexHashingIndex index, int substringBits, int probeRadius) {
+		this.features = template.features;
+		this.keyPoints = template.keyPoints;
+		this.packedDescriptors = template.packedDescriptors;
+		this.index = index;
+		this.indexSubstringBits = substringBits;
+		this.indexProbeRadius = probeRadius;
+	}
+
+	/**
+	 * @param substringBits
+	 * @param probeRadius
+	 * @return this template with a {@link MultiIndexHashingIndex} of the
+	 *         parameters, built if this template has none with them
+	 */
+	public PreparedTemplate withIndex(int substringBits, int probeRadius) {
+		if (index != null && indexSubstringBits == substringBits && indexProbeRadius == probeRadius)
+			return this;
+		MultiIndexHashingIndex index = new MultiIndexHashingIndex(substringBits, probeRadius);
+		index.build(packedDescriptors);
+		return new PreparedTemplate(this, index, substringBits, probeRadius);
+	}
+
+	public TemplateFeatures getFeatures() {
+		return features;
+	}
+
+	/**
+	 * @return x, y, size, angle, response, octave and class id of every key
+	 *         point
+	 */
+	public float[] getKeyPoints() {
+		return keyPoints;
+	}
+
+	public PackedDescriptors getPackedDescriptors() {
+		return packedDescriptors;
+	}
+
+	/**
+	 * @return index of the packed descriptors, null if it was not built
+	 */
+	public MultiIndexHashingIndex getIndex() {
+		return index;
+	}
+}
@@ -0,0 +1,211 @@
+package de.stetro.recapturing.template;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.opencv.core.Mat;
+
+/**
+ * On disk cache of {@link TemplateFeatures}, keyed by a hash of the template
+ * pixels and the feature configuration. Entries are files in one directory;
+ * the least recently used ones are deleted when the cache grows beyond its
+ * size limit. A hit is read with NIO and decoded by
+ * {@link TemplateFeaturesCodec}, so no image decoding and no feature
+ * extraction is necessary. Entries are written to a temporary file and
+ * renamed into place, so a crash never leaves a truncated entry.
+ *
+ * @author Steffen Troester
+ *
+ */
+public class TemplateFeatureCache {
+
+	private static final String SUFFIX = ".features";
+	private static final String TEMPORARY_SUFFIX = ".tmp";
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final File directory;
+	private final long maximumBytes;
+	/**
+	 * cache files in access order, eldest first
+	 */
+	private final LinkedHashMap<String, Long> entries = new LinkedHashMap<String, Long>(16, 0.75f, true);
+	private long totalBytes;
+	private int hits;
+	private int misses;
+
+	/**
+	 * @param directory
+	 *            cache directory, created if missing
+	 * @param maximumBytes
+	 *            size limit of all cache files
+	 */
+	public TemplateFeatureCache(File directory, long maximumBytes) {
+		this.directory = directory;
+		this.maximumBytes = maximumBytes;
+		directory.mkdirs();
+		File[] files = directory.listFiles();
+		if (files == null)
+			return;
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				long difference = a.lastModified() - b.lastModified();
+				return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+			}
+		});
+		for (File file : files) {
+			if (file.getName().endsWith(TEMPORARY_SUFFIX)) {
+				// left over by a put that did not finish
+				file.delete();
+			} else if (file.getName().endsWith(SUFFIX)) {
+				entries.put(file.getName(), file.length());
+				totalBytes += file.length();
+			}
+		}
+	}
+
+	/**
+	 * @param rgbaPicture
+	 *            template pixels
+	 * @param configuration
+	 *            description of detector and extractor configuration
+	 * @return cache key
+	 */
+	public String key(Mat rgbaPicture, String configuration) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			byte[] pixels = new byte[(int) (rgbaPicture.total() * rgbaPicture.elemSize())];
+			rgbaPicture.get(0, 0, pixels);
+			digest.update(ByteBuffer.allocate(8).putInt(rgbaPicture.cols()).putInt(rgbaPicture.rows()).array());
+			digest.update(pixels);
+			digest.update(configuration.getBytes(UTF8));
+			byte[] hash = digest.digest();
+			StringBuilder key = new StringBuilder(hash.length * 2);
+			for (byte b : hash) {
+				key.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+			}
+			return key.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-1 not available", e);
+		}
+	}
+
+	/**
+	 * @param key
+	 * @return cached features or null on a miss
+	 */
+	public synchronized TemplateFeatures get(String key) {
+		String name = key + SUFFIX;
+		File file = new File(directory, name);
+		// get() also marks the entry as recently used
+		if (entries.get(name) == null || !file.exists()) {
+			misses++;
+			return null;
+		}
+		try {
+			RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+			try {
+				FileChannel channel = randomAccessFile.getChannel();
+				MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+				TemplateFeatures template = TemplateFeaturesCodec.read(buffer, TemplateFeaturesCodec.readLayout(buffer, 0));
+				file.setLastModified(System.currentTimeMillis());
+				hits++;
+				return template;
+			} finally {
+				randomAccessFile.close();
+			}
+		} catch (IOException e) {
+			remove(name);
+			misses++;
+			return null;
+		} catch (RuntimeException e) {
+			// a damaged entry fails in the codec, e.g. with a
+			// BufferUnderflowException
+			remove(name);
+			misses++;
+			return null;
+		}
+	}
+
+	/**
+	 * Stores the features and evicts least recently used entries. The entry
+	 * only replaces a previous one when it is completely written.
+	 *
+	 * @param key
+	 * @param template
+	 * @throws IOException
+	 */
+	public synchronized void put(String key, TemplateFeatures template) throws IOException {
+		String name = key + SUFFIX;
+		File file = new File(directory, name);
+		File temporaryFile = new File(directory, name + TEMPORARY_SUFFIX);
+		ByteBuffer buffer = ByteBuffer.allocate(TemplateFeaturesCodec.recordSize(template));
+		TemplateFeaturesCodec.write(template, buffer);
+		buffer.flip();
+		RandomAccessFile randomAccessFile = new RandomAccessFile(temporaryFile, "rw");
+		try {
+			randomAccessFile.setLength(0);
+			FileChannel channel = randomAccessFile.getChannel();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			channel.force(false);
+		} finally {
+			randomAccessFile.close();
+		}
+		// renameTo does not replace an existing file on every platform
+		if (!temporaryFile.renameTo(file) && !(file.delete() && temporaryFile.renameTo(file))) {
+			temporaryFile.delete();
+			remove(name);
+			throw new IOException("Could not move " + temporaryFile + " to " + file);
+		}
+		Long previous = entries.put(name, file.length());
+		if (previous != null)
+			totalBytes -= previous;
+		totalBytes += file.length();
+		evict(name);
+	}
+
+	private void evict(String keep) {
+		Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+		while (totalBytes > maximumBytes && iterator.hasNext()) {
+			Map.Entry<String, Long> eldest = iterator.next();
+			if (eldest.getKey().equals(keep))
+				continue;
+			new File(directory, eldest.getKey()).delete();
+			totalBytes -= eldest.getValue();
+			iterator.remove();
+		}
+	}
+
+	private void remove(String name) {
+		Long size = entries.remove(name);
+		if (size != null)
+			totalBytes -= size;
+		new File(directory, name).delete();
+	}
+
+	public synchronized int getHits() {
+		return hits;
+	}
+
+	public synchronized int getMisses() {
+		return misses;
+	}
+
+	public synchronized long getTotalBytes() {
+		return totalBytes;
+	}
+}
@@ -0,0 +1,40 @@
+package de.stetro.recapturing.template;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfKeyPoint;
+
+/**
+ * Gray scale image, key points and descriptors of one template
+ * 
+ * @author Steffen Troester
+ * 
+ */
+public class TemplateFeatures {
+	private final String name;
+	private final Mat grayPicture;
+	private final MatOfKeyPoint keyPoints;
+	private final Mat descriptors;
+
+	public TemplateFeatures(String name, Mat grayPicture, MatOfKeyPoint keyPoints, Mat descriptors) {
+		this.name = name;
+		this.grayPicture = grayPicture;
+		this.keyPoints = keyPoints;
+		this.descriptors = descriptors;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public Mat getGrayPicture() {
+		return grayPicture;
+	}
+
+	public MatOfKeyPoint getKeyPoints() {
+		return keyPoints;
+	}
+
+	public Mat getDescriptors() {
+		return descriptors;
+	}
+}
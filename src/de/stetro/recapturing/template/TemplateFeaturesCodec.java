@@ -0,0 +1,244 @@
+package de.stetro.recapturing.template;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfKeyPoint;
+
+import de.stetro.recapturing.feature.PackedDescriptors;
+
+/**
+ * Binary (little endian) record format of {@link TemplateFeatures}. The
+ * descriptor rows are padded to 8 bytes and start 8 byte aligned, so they can
+ * be read as packed 64 bit words without conversion:
+ *
+ * <pre>
+ * int nameLength, byte[nameLength] name (padded to 4)
+ * int width, int height
+ * int keyPointCount, int descriptorRows, int descriptorCols, int descriptorType
+ * (padded to 8) byte[descriptorRows * rowStride] descriptors
+ * float[keyPointCount * 7] key points (x, y, size, angle, response, octave, class id)
+ * byte[width * height] gray picture (padded to 8)
+ * </pre>
+ *
+ * @author Steffen Troester
+ *
+ */
+public class TemplateFeaturesCodec {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int KEY_POINT_FLOATS = 7;
+
+	/**
+	 * @return size in bytes of the encoded record
+	 */
+	public static int recordSize(TemplateFeatures template) {
+		Mat gray = template.getGrayPicture();
+		Mat descriptors = template.getDescriptors();
+		int size = align(4 + template.getName().getBytes(UTF8).length, 4);
+		size += 6 * 4;
+		size = align(size, 8);
+		size += descriptors.rows() * rowStride(descriptors.cols() * descriptors.channels());
+		size += template.getKeyPoints().rows() * KEY_POINT_FLOATS * 4;
+		size += gray.rows() * gray.cols();
+		return align(size, 8);
+	}
+
+	/**
+	 * Writes the record at the current position of the buffer, which has to be
+	 * 8 byte aligned
+	 *
+	 * @param template
+	 * @param buffer
+	 */
+	public static void write(TemplateFeatures template, ByteBuffer buffer) {
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		int start = buffer.position();
+		Mat gray = template.getGrayPicture();
+		Mat descriptors = template.getDescriptors();
+		MatOfKeyPoint keyPoints = template.getKeyPoints();
+		byte[] name = template.getName().getBytes(UTF8);
+		int descriptorCols = descriptors.cols() * descriptors.channels();
+		int stride = rowStride(descriptorCols);
+
+		buffer.putInt(name.length);
+		buffer.put(name);
+		pad(buffer, start, 4);
+		buffer.putInt(gray.cols());
+		buffer.putInt(gray.rows());
+		buffer.putInt(keyPoints.rows());
+		buffer.putInt(descriptors.rows());
+		buffer.putInt(descriptorCols);
+		buffer.putInt(descriptors.type());
+		pad(buffer, start, 8);
+
+		byte[] descriptorBytes = new byte[descriptors.rows() * descriptorCols];
+		if (descriptorBytes.length > 0)
+			descriptors.get(0, 0, descriptorBytes);
+		for (int row = 0; row < descriptors.rows(); row++) {
+			buffer.put(descriptorBytes, row * descriptorCols, descriptorCols);
+			for (int i = descriptorCols; i < stride; i++) {
+				buffer.put((byte) 0);
+			}
+		}
+
+		float[] keyPointFloats = new float[keyPoints.rows() * KEY_POINT_FLOATS];
+		if (keyPointFloats.length > 0)
+			keyPoints.get(0, 0, keyPointFloats);
+		buffer.asFloatBuffer().put(keyPointFloats);
+		buffer.position(buffer.position() + keyPointFloats.length * 4);
+
+		byte[] grayBytes = new byte[gray.rows() * gray.cols()];
+		gray.get(0, 0, grayBytes);
+		buffer.put(grayBytes);
+		pad(buffer, start, 8);
+	}
+
+	/**
+	 * Reads only the header of a record, the data sections stay in the buffer
+	 *
+	 * @param buffer
+	 * @param position
+	 *            start of the record
+	 * @return layout of the record
+	 */
+	public static Layout readLayout(ByteBuffer buffer, int position) {
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		Layout layout = new Layout();
+		int nameLength = buffer.getInt(position);
+		byte[] name = new byte[nameLength];
+		for (int i = 0; i < nameLength; i++) {
+			name[i] = buffer.get(position + 4 + i);
+		}
+		layout.name = new String(name, UTF8);
+		int header = position + align(4 + nameLength, 4);
+		layout.width = buffer.getInt(header);
+		layout.height = buffer.getInt(header + 4);
+		layout.keyPointCount = buffer.getInt(header + 8);
+		layout.descriptorRows = buffer.getInt(header + 12);
+		layout.descriptorCols = buffer.getInt(header + 16);
+		layout.descriptorType = buffer.getInt(header + 20);
+		layout.descriptorOffset = position + align(header + 24 - position, 8);
+		layout.keyPointOffset = layout.descriptorOffset + layout.descriptorRows * rowStride(layout.descriptorCols);
+		layout.grayOffset = layout.keyPointOffset + layout.keyPointCount * KEY_POINT_FLOATS * 4;
+		layout.end = position + align(layout.grayOffset + layout.width * layout.height - position, 8);
+		return layout;
+	}
+
+	/**
+	 * Creates the {@link Mat}s of one record
+	 *
+	 * @param buffer
+	 * @param layout
+	 * @return decoded template
+	 */
+	public static TemplateFeatures read(ByteBuffer buffer, Layout layout) {
+		ByteBuffer view = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+
+		Mat descriptors = new Mat(layout.descriptorRows, layout.descriptorCols, layout.descriptorType);
+		int stride = rowStride(layout.descriptorCols);
+		byte[] descriptorBytes = new byte[layout.descriptorRows * layout.descriptorCols];
+		for (int row = 0; row < layout.descriptorRows; row++) {
+			view.position(layout.descriptorOffset + row * stride);
+			view.get(descriptorBytes, row * layout.descriptorCols, layout.descriptorCols);
+		}
+		if (descriptorBytes.length > 0)
+			descriptors.put(0, 0, descriptorBytes);
+
+		MatOfKeyPoint keyPoints = new MatOfKeyPoint();
+		float[] keyPointFloats = new float[layout.keyPointCount * KEY_POINT_FLOATS];
+		view.position(layout.keyPointOffset);
+		view.asFloatBuffer().get(keyPointFloats);
+		if (layout.keyPointCount > 0) {
+			keyPoints.create(layout.keyPointCount, 1, CvType.CV_32FC(KEY_POINT_FLOATS));
+			keyPoints.put(0, 0, keyPointFloats);
+		}
+
+		Mat gray = new Mat(layout.height, layout.width, CvType.CV_8UC1);
+		byte[] grayBytes = new byte[layout.width * layout.height];
+		view.position(layout.grayOffset);
+		view.get(grayBytes);
+		gray.put(0, 0, grayBytes);
+		return new TemplateFeatures(layout.name, gray, keyPoints, descriptors);
+	}
+
+	/**
+	 * Reads the descriptor rows as packed words into words starting at
+	 * wordOffset, without creating any {@link Mat}
+	 *
+	 * @return amount of words read
+	 */
+	public static int readPackedDescriptors(ByteBuffer buffer, Layout layout, long[] words, int wordOffset) {
+		ByteBuffer view = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		view.position(layout.descriptorOffset);
+		int count = layout.descriptorRows * wordsPerRow(layout.descriptorCols);
+		view.asLongBuffer().get(words, wordOffset, count);
+		return count;
+	}
+
+	/**
+	 * @return packed descriptors of one record
+	 */
+	public static PackedDescriptors readPackedDescriptors(ByteBuffer buffer, Layout layout) {
+		long[] words = new long[layout.descriptorRows * wordsPerRow(layout.descriptorCols)];
+		readPackedDescriptors(buffer, layout, words, 0);
+		return new PackedDescriptors().wrap(words, layout.descriptorRows, wordsPerRow(layout.descriptorCols));
+	}
+
+	public static int wordsPerRow(int descriptorCols) {
+		return rowStride(descriptorCols) / 8;
+	}
+
+	private static int rowStride(int descriptorCols) {
+		return align(descriptorCols, 8);
+	}
+
+	private static int align(int value, int alignment) {
+		return (value + alignment - 1) / alignment * alignment;
+	}
+
+	private static void pad(ByteBuffer buffer, int start, int alignment) {
+		while ((buffer.position() - start) % alignment != 0) {
+			buffer.put((byte) 0);
+		}
+	}
+
+	/**
+	 * Offsets of the sections of one encoded record
+	 */
+	public static class Layout {
+		private String name;
+		private int width;
+		private int height;
+		private int keyPointCount;
+		private int descriptorRows;
+		private int descriptorCols;
+		private int descriptorType;
+		private int descriptorOffset;
+		private int keyPointOffset;
+		private int grayOffset;
+		private int end;
+
+		public String getName() {
+			return name;
+		}
+
+		public int getDescriptorRows() {
+			return descriptorRows;
+		}
+
+		public int getDescriptorCols() {
+			return descriptorCols;
+		}
+
+		/**
+		 * @return position behind this record
+		 */
+		public int getEnd() {
+			return end;
+		}
+	}
+}
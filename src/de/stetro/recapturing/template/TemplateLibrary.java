@@ -0,0 +1,165 @@
+package de.stetro.recapturing.template;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import de.stetro.recapturing.feature.MultiIndexHashingIndex;
+import de.stetro.recapturing.feature.PackedDescriptors;
+
+/**
+ * Memory mapped library of many templates written by
+ * {@link TemplateLibraryWriter}. Only the descriptors of all templates are
+ * read on open to build one shared {@link MultiIndexHashingIndex}; gray
+ * pictures and key points stay in the mapped file until a template is
+ * selected. Every scene descriptor votes for the template of its nearest
+ * indexed descriptor, so the per template homography only runs for the
+ * template that is most likely visible.
+ *
+ * @author Steffen Troester
+ *
+ */
+public class TemplateLibrary {
+
+	private final MappedByteBuffer buffer;
+	private final TemplateFeaturesCodec.Layout[] layouts;
+	private final PackedDescriptors descriptors = new PackedDescriptors();
+	private final MultiIndexHashingIndex index;
+	private final MultiIndexHashingIndex.Search search = new MultiIndexHashingIndex.Search();
+	/**
+	 * template id of each descriptor row of the shared index
+	 */
+	private final int[] descriptorOwner;
+	/**
+	 * first descriptor row of each template in the shared index
+	 */
+	private final int[] firstDescriptor;
+	private final int[] votes;
+
+	private int cachedId = -1;
+	private TemplateFeatures cachedTemplate;
+
+	private TemplateLibrary(MappedByteBuffer buffer, MultiIndexHashingIndex index) throws IOException {
+		this.buffer = buffer;
+		this.index = index;
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		if (buffer.getInt(0) != TemplateLibraryWriter.MAGIC || buffer.getInt(4) != TemplateLibraryWriter.VERSION)
+			throw new IOException("Not a template library");
+		int count = buffer.getInt(8);
+		layouts = new TemplateFeaturesCodec.Layout[count];
+		firstDescriptor = new int[count + 1];
+		int wordsPerRow = -1;
+		for (int i = 0; i < count; i++) {
+			int offset = (int) buffer.getLong(TemplateLibraryWriter.HEADER_SIZE + i * 8);
+			layouts[i] = TemplateFeaturesCodec.readLayout(buffer, offset);
+			int templateWords = TemplateFeaturesCodec.wordsPerRow(layouts[i].getDescriptorCols());
+			if (layouts[i].getDescriptorRows() > 0) {
+				if (wordsPerRow >= 0 && wordsPerRow != templateWords)
+					throw new IOException("Templates with different descriptor sizes");
+				wordsPerRow = templateWords;
+			}
+			firstDescriptor[i + 1] = firstDescriptor[i] + layouts[i].getDescriptorRows();
+		}
+		int rows = firstDescriptor[count];
+		wordsPerRow = Math.max(wordsPerRow, 0);
+		long[] words = new long[rows * wordsPerRow];
+		descriptorOwner = new int[rows];
+		for (int i = 0; i < count; i++) {
+			TemplateFeaturesCodec.readPackedDescriptors(buffer, layouts[i], words, firstDescriptor[i] * wordsPerRow);
+			for (int row = firstDescriptor[i]; row < firstDescriptor[i + 1]; row++) {
+				descriptorOwner[row] = i;
+			}
+		}
+		descriptors.wrap(words, rows, wordsPerRow);
+		if (rows > 0)
+			index.build(descriptors);
+		votes = new int[count];
+	}
+
+	/**
+	 * Maps the library file read only
+	 *
+	 * @param file
+	 * @param index
+	 *            unbuilt index, used for the descriptors of all templates
+	 * @return opened library
+	 * @throws IOException
+	 */
+	public static TemplateLibrary open(File file, MultiIndexHashingIndex index) throws IOException {
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = randomAccessFile.getChannel();
+			// the mapping stays valid after the channel is closed
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			return new TemplateLibrary(buffer, index);
+		} finally {
+			randomAccessFile.close();
+		}
+	}
+
+	/**
+	 * Votes for the visible template
+	 *
+	 * @param scene
+	 *            descriptors of the current frame
+	 * @param distanceLimit
+	 *            maximum hamming distance of a voting match
+	 * @param minimumVotes
+	 *            votes needed to accept a template
+	 * @return template id or -1 if no template got enough votes
+	 */
+	public int recognize(PackedDescriptors scene, int distanceLimit, int minimumVotes) {
+		if (!index.isBuilt())
+			return -1;
+		for (int i = 0; i < votes.length; i++) {
+			votes[i] = 0;
+		}
+		for (int row = 0; row < scene.getRows(); row++) {
+			int nearest = index.nearest(search, scene, row);
+			if (nearest >= 0 && search.getLastDistance() <= distanceLimit)
+				votes[descriptorOwner[nearest]]++;
+		}
+		int best = -1;
+		int bestVotes = minimumVotes - 1;
+		for (int i = 0; i < votes.length; i++) {
+			if (votes[i] > bestVotes) {
+				bestVotes = votes[i];
+				best = i;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Decodes one template from the mapped file, the last decoded template is
+	 * cached
+	 *
+	 * @param id
+	 * @return template features
+	 */
+	public synchronized TemplateFeatures getTemplate(int id) {
+		if (id != cachedId) {
+			cachedTemplate = TemplateFeaturesCodec.read(buffer, layouts[id]);
+			cachedId = id;
+		}
+		return cachedTemplate;
+	}
+
+	/**
+	 * @return votes of each template of the last {@link #recognize} call
+	 */
+	public int getVotes(int id) {
+		return votes[id];
+	}
+
+	public String getName(int id) {
+		return layouts[id].getName();
+	}
+
+	public int size() {
+		return layouts.length;
+	}
+}
@@ -0,0 +1,71 @@
+package de.stetro.recapturing.template;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+/**
+ * Writes {@link TemplateFeatures} into the binary file read by
+ * {@link TemplateLibrary}:
+ *
+ * <pre>
+ * int magic, int version, int templateCount, int reserved
+ * long[templateCount] record offsets
+ * records, see {@link TemplateFeaturesCodec}
+ * </pre>
+ *
+ * @author Steffen Troester
+ *
+ */
+public class TemplateLibraryWriter {
+
+	public static final int MAGIC = 0x52435446;
+	public static final int VERSION = 1;
+	static final int HEADER_SIZE = 16;
+
+	/**
+	 * Writes all templates into one library file, an existing file is
+	 * replaced
+	 *
+	 * @param file
+	 * @param templates
+	 * @throws IOException
+	 */
+	public static void write(File file, List<TemplateFeatures> templates) throws IOException {
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+		try {
+			randomAccessFile.setLength(0);
+			FileChannel channel = randomAccessFile.getChannel();
+			int count = templates.size();
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + count * 8).order(ByteOrder.LITTLE_ENDIAN);
+			header.putInt(MAGIC);
+			header.putInt(VERSION);
+			header.putInt(count);
+			header.putInt(0);
+			long offset = header.capacity();
+			for (TemplateFeatures template : templates) {
+				header.putLong(offset);
+				offset += TemplateFeaturesCodec.recordSize(template);
+			}
+			header.flip();
+			channel.write(header, 0);
+			long position = header.capacity();
+			for (TemplateFeatures template : templates) {
+				// one record at a time keeps memory bounded for large libraries
+				ByteBuffer record = ByteBuffer.allocate(TemplateFeaturesCodec.recordSize(template));
+				TemplateFeaturesCodec.write(template, record);
+				record.flip();
+				while (record.hasRemaining()) {
+					position += channel.write(record, position);
+				}
+			}
+			channel.force(false);
+		} finally {
+			randomAccessFile.close();
+		}
+	}
+}
@@ -0,0 +1,158 @@
+package de.stetro.recapturing.template;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.opencv.core.Mat;
+
+import de.stetro.recapturing.MatchingEngine;
+import de.stetro.recapturing.ProcessorConfiguration;
+import de.stetro.recapturing.RecapturingProcessor;
+import de.stetro.recapturing.diagnostics.RecapturingLog;
+
+/**
+ * Loads templates on a background thread: decoding, feature extraction and
+ * (for the indexed matching) the index build. The ready template is swapped
+ * into the processor atomically, frames keep using the previous template
+ * until then. A load is abandoned after its current step when a newer load
+ * is started, so only the last picked template is activated.
+ * 
+ * @author Steffen Troester
+ * 
+ */
+public class TemplateLoader {
+
+	private static final String TAG = "Template Loader";
+
+	public enum Step {
+		DECODING, FEATURES, INDEX, READY, FAILED, CANCELLED
+	}
+
+	/**
+	 * Picture of a template, e.g. a gallery image
+	 */
+	public interface TemplateSource {
+		/**
+		 * Called on the loader thread
+		 * 
+		 * @return RGBA picture at the template size
+		 * @throws IOException
+		 */
+		Mat decode() throws IOException;
+
+		String getName();
+	}
+
+	/**
+	 * Progress of a load, called on the loader thread
+	 */
+	public interface Listener {
+		void onProgress(TemplateSource source, Step step);
+
+		/**
+		 * @param source
+		 * @param template
+		 *            swapped into the processor
+		 */
+		void onLoaded(TemplateSource source, PreparedTemplate template);
+
+		void onFailed(TemplateSource source, Exception e);
+	}
+
+	private final RecapturingProcessor processor;
+	private final ExecutorService executor;
+	private final AtomicLong generation = new AtomicLong();
+	private Future<?> pending;
+
+	public TemplateLoader(RecapturingProcessor processor) {
+		this.processor = processor;
+		executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "template-loader");
+				thread.setDaemon(true);
+				thread.setPriority(Thread.MIN_PRIORITY);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Starts loading a template and abandons a load in progress
+	 * 
+	 * @param source
+	 * @param listener
+	 *            progress listener or null
+	 * @return future of the load
+	 */
+	public synchronized Future<?> load(final TemplateSource source, final Listener listener) {
+		final long id = generation.incrementAndGet();
+		if (pending != null)
+			pending.cancel(false);
+		pending = executor.submit(new Runnable() {
+			@Override
+			public void run() {
+				load(id, source, listener);
+			}
+		});
+		return pending;
+	}
+
+	private void load(long id, TemplateSource source, Listener listener) {
+		try {
+			if (!progress(id, source, listener, Step.DECODING))
+				return;
+			long begin = System.nanoTime();
+			Mat picture = source.decode();
+			long decoded = System.nanoTime();
+			if (!progress(id, source, listener, Step.FEATURES))
+				return;
+			PreparedTemplate template = processor.prepareTemplate(picture, source.getName());
+			picture.release();
+			long extracted = System.nanoTime();
+			ProcessorConfiguration configuration = processor.getConfiguration();
+			if (configuration.getMatchingEngine() == MatchingEngine.INDEXED_HAMMING) {
+				if (!progress(id, source, listener, Step.INDEX))
+					return;
+				template = template.withIndex(configuration.getIndexSubstringBits(), configuration.getIndexProbeRadius());
+			}
+			if (!progress(id, source, listener, Step.READY))
+				return;
+			processor.setPreparedTemplate(template);
+			RecapturingLog.i(TAG, String.format("loaded %s: decode %.1fms, features %.1fms, total %.1fms", source.getName(), (decoded - begin) / 1e6, (extracted - decoded) / 1e6,
+					(System.nanoTime() - begin) / 1e6));
+			if (listener != null)
+				listener.onLoaded(source, template);
+		} catch (Exception e) {
+			RecapturingLog.e(TAG, "Template " + source.getName() + " could not be loaded: " + e.getMessage());
+			if (listener != null) {
+				listener.onProgress(source, Step.FAILED);
+				listener.onFailed(source, e);
+			}
+		}
+	}
+
+	/**
+	 * Reports the next step
+	 * 
+	 * @return false if a newer load was started
+	 */
+	private boolean progress(long id, TemplateSource source, Listener listener, Step step) {
+		boolean current = generation.get() == id;
+		if (listener != null)
+			listener.onProgress(source, current ? step : Step.CANCELLED);
+		return current;
+	}
+
+	/**
+	 * Abandons a load in progress and stops the loader thread
+	 */
+	public synchronized void shutdown() {
+		generation.incrementAndGet();
+		executor.shutdownNow();
+	}
+}
@@ -0,0 +1,271 @@
+package de.stetro.recapturing.tracking;
+
+import java.util.Arrays;
+
+import org.opencv.calib3d.Calib3d;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.MatOfFloat;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Size;
+import org.opencv.video.Video;
+
+/**
+ * Tracks the homography inliers of a keyframe with pyramidal Lucas-Kanade
+ * optical flow, so the full feature registration only has to run on
+ * keyframes. Tracking is given up when too few points survive or the
+ * reprojection error grows.
+ *
+ * @author Steffen Troester
+ */
+public class KeyframeTracker {
+
+	private static final Size WINDOW_SIZE = new Size(21, 21);
+	private static final int PYRAMID_LEVELS = 3;
+	private static final double RANSAC_THRESHOLD = 3;
+
+	private int minimumInliers = 12;
+	private double minimumInlierRatio = 0.5;
+	private double maximumReprojectionError = 2.5;
+	private int maximumFramesBetweenKeyframes = 60;
+
+	private Mat previousGray = new Mat();
+	private Mat currentGray = new Mat();
+	private final MatOfPoint2f previousScenePoints = new MatOfPoint2f();
+	private final MatOfPoint2f nextScenePoints = new MatOfPoint2f();
+	private final MatOfPoint2f trackedScenePoints = new MatOfPoint2f();
+	private final MatOfPoint2f trackedObjectPoints = new MatOfPoint2f();
+	private final MatOfByte status = new MatOfByte();
+	private final MatOfFloat error = new MatOfFloat();
+	private final Mat inlierMask = new Mat();
+
+	private float[] objectPoints = new float[0];
+	private float[] scenePoints = new float[0];
+	private float[] nextPoints = new float[0];
+	private byte[] statusBuffer = new byte[0];
+	private byte[] maskBuffer = new byte[0];
+	private float[] errorBuffer = new float[0];
+	private final double[] homographyBuffer = new double[9];
+
+	private boolean tracking;
+	private int keyframeInliers;
+	private int framesSinceKeyframe;
+	private int trackedPoints;
+	private double reprojectionError;
+
+	/**
+	 * Copies the gray scale frame before anything is drawn into it. Must be
+	 * called once per frame before {@link #track()} or
+	 * {@link #startTracking}.
+	 *
+	 * @param grayPicture
+	 */
+	public void setFrame(Mat grayPicture) {
+		Mat swap = previousGray;
+		previousGray = currentGray;
+		currentGray = swap;
+		grayPicture.copyTo(currentGray);
+	}
+
+	/**
+	 * @return true if a keyframe is tracked and {@link #track()} may be used
+	 */
+	public boolean isTracking() {
+		return tracking;
+	}
+
+	/**
+	 * Starts tracking on the current frame with the inliers of a full
+	 * registration
+	 *
+	 * @param objectPoints
+	 *            matched points in template coordinates
+	 * @param scenePoints
+	 *            matched points in frame coordinates
+	 * @param inlierMask
+	 *            RANSAC inlier mask of the matches
+	 */
+	public void startTracking(MatOfPoint2f objectPoints, MatOfPoint2f scenePoints, Mat inlierMask) {
+		int count = scenePoints.rows();
+		this.objectPoints = ensureCapacity(this.objectPoints, count * 2);
+		this.scenePoints = ensureCapacity(this.scenePoints, count * 2);
+		maskBuffer = ensureCapacity(maskBuffer, count);
+		objectPoints.get(0, 0, this.objectPoints);
+		scenePoints.get(0, 0, this.scenePoints);
+		inlierMask.get(0, 0, maskBuffer);
+		int inliers = 0;
+		for (int i = 0; i < count; i++) {
+			if (maskBuffer[i] != 0) {
+				this.objectPoints[inliers * 2] = this.objectPoints[i * 2];
+				this.objectPoints[inliers * 2 + 1] = this.objectPoints[i * 2 + 1];
+				this.scenePoints[inliers * 2] = this.scenePoints[i * 2];
+				this.scenePoints[inliers * 2 + 1] = this.scenePoints[i * 2 + 1];
+				inliers++;
+			}
+		}
+		if (inliers < minimumInliers) {
+			tracking = false;
+			return;
+		}
+		previousScenePoints.create(inliers, 1, CvType.CV_32FC2);
+		previousScenePoints.put(0, 0, this.scenePoints);
+		trackedPoints = inliers;
+		keyframeInliers = inliers;
+		framesSinceKeyframe = 0;
+		reprojectionError = 0;
+		tracking = true;
+	}
+
+	/**
+	 * Tracks the points of the previous frame into the current frame
+	 *
+	 * @return updated homography or null if a full registration is necessary
+	 */
+	public Mat track() {
+		if (!tracking)
+			return null;
+		if (++framesSinceKeyframe > maximumFramesBetweenKeyframes)
+			return lost();
+		Video.calcOpticalFlowPyrLK(previousGray, currentGray, previousScenePoints, nextScenePoints, status, error, WINDOW_SIZE, PYRAMID_LEVELS);
+
+		int count = trackedPoints;
+		statusBuffer = ensureCapacity(statusBuffer, count);
+		nextPoints = ensureCapacity(nextPoints, count * 2);
+		status.get(0, 0, statusBuffer);
+		nextScenePoints.get(0, 0, nextPoints);
+		int survived = 0;
+		for (int i = 0; i < count; i++) {
+			if (statusBuffer[i] != 0) {
+				objectPoints[survived * 2] = objectPoints[i * 2];
+				objectPoints[survived * 2 + 1] = objectPoints[i * 2 + 1];
+				scenePoints[survived * 2] = nextPoints[i * 2];
+				scenePoints[survived * 2 + 1] = nextPoints[i * 2 + 1];
+				survived++;
+			}
+		}
+		if (!enoughPoints(survived))
+			return lost();
+
+		trackedObjectPoints.create(survived, 1, CvType.CV_32FC2);
+		trackedObjectPoints.put(0, 0, objectPoints);
+		trackedScenePoints.create(survived, 1, CvType.CV_32FC2);
+		trackedScenePoints.put(0, 0, scenePoints);
+		Mat updated = Calib3d.findHomography(trackedObjectPoints, trackedScenePoints, Calib3d.RANSAC, RANSAC_THRESHOLD, inlierMask);
+		if (updated.empty())
+			return lost();
+
+		reprojectionError = medianReprojectionError(updated, survived);
+		if (reprojectionError > maximumReprojectionError) {
+			updated.release();
+			return lost();
+		}
+
+		int inliers = keepInliers(survived);
+		if (!enoughPoints(inliers)) {
+			updated.release();
+			return lost();
+		}
+
+		previousScenePoints.create(inliers, 1, CvType.CV_32FC2);
+		previousScenePoints.put(0, 0, scenePoints);
+		trackedPoints = inliers;
+		return updated;
+	}
+
+	/**
+	 * Median distance of all tracked points to their template points mapped
+	 * by the updated homography. Unlike the error of the RANSAC inliers it
+	 * grows when the flow drifts away from the plane, the median ignores
+	 * single lost points.
+	 */
+	private double medianReprojectionError(Mat updated, int count) {
+		errorBuffer = ensureCapacity(errorBuffer, count);
+		updated.get(0, 0, homographyBuffer);
+		double[] h = homographyBuffer;
+		for (int i = 0; i < count; i++) {
+			double ox = objectPoints[i * 2];
+			double oy = objectPoints[i * 2 + 1];
+			double w = h[6] * ox + h[7] * oy + h[8];
+			double dx = (h[0] * ox + h[1] * oy + h[2]) / w - scenePoints[i * 2];
+			double dy = (h[3] * ox + h[4] * oy + h[5]) / w - scenePoints[i * 2 + 1];
+			errorBuffer[i] = (float) Math.sqrt(dx * dx + dy * dy);
+		}
+		Arrays.sort(errorBuffer, 0, count);
+		return errorBuffer[count / 2];
+	}
+
+	/**
+	 * Compacts the point buffers to the RANSAC inliers
+	 */
+	private int keepInliers(int count) {
+		maskBuffer = ensureCapacity(maskBuffer, count);
+		inlierMask.get(0, 0, maskBuffer);
+		int inliers = 0;
+		for (int i = 0; i < count; i++) {
+			if (maskBuffer[i] == 0)
+				continue;
+			objectPoints[inliers * 2] = objectPoints[i * 2];
+			objectPoints[inliers * 2 + 1] = objectPoints[i * 2 + 1];
+			scenePoints[inliers * 2] = scenePoints[i * 2];
+			scenePoints[inliers * 2 + 1] = scenePoints[i * 2 + 1];
+			inliers++;
+		}
+		return inliers;
+	}
+
+	private boolean enoughPoints(int count) {
+		return count >= minimumInliers && count >= keyframeInliers * minimumInlierRatio;
+	}
+
+	private Mat lost() {
+		tracking = false;
+		return null;
+	}
+
+	private static float[] ensureCapacity(float[] buffer, int size) {
+		return buffer.length >= size ? buffer : new float[size];
+	}
+
+	private static byte[] ensureCapacity(byte[] buffer, int size) {
+		return buffer.length >= size ? buffer : new byte[size];
+	}
+
+	public int getTrackedPoints() {
+		return trackedPoints;
+	}
+
+	/**
+	 * @return median reprojection error of the last tracked frame in pixels
+	 */
+	public double getReprojectionError() {
+		return reprojectionError;
+	}
+
+	public int getFramesSinceKeyframe() {
+		return framesSinceKeyframe;
+	}
+
+	public void setMinimumInliers(int minimumInliers) {
+		this.minimumInliers = minimumInliers;
+	}
+
+	public void setMinimumInlierRatio(double minimumInlierRatio) {
+		this.minimumInlierRatio = minimumInlierRatio;
+	}
+
+	public void setMaximumReprojectionError(double maximumReprojectionError) {
+		this.maximumReprojectionError = maximumReprojectionError;
+	}
+
+	public void setMaximumFramesBetweenKeyframes(int maximumFramesBetweenKeyframes) {
+		this.maximumFramesBetweenKeyframes = maximumFramesBetweenKeyframes;
+	}
+
+	/**
+	 * Stops tracking, the next frame will be a keyframe
+	 */
+	public void reset() {
+		tracking = false;
+	}
+}
@@ -0,0 +1,91 @@
+package de.stetro.recapturing.tracking;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Cheap motion estimate on a small thumbnail of the gray frame. The mean
+ * absolute difference to the thumbnail of the last registered frame decides
+ * whether the frame is static, so the registration can be skipped and the
+ * last overlay reused. Comparing against the registered frame instead of the
+ * previous frame keeps slow drift from accumulating unnoticed. A frame is
+ * never static once the time limit since the last registration is reached.
+ *
+ * @author Steffen Troester
+ */
+public class MotionGate {
+
+	private static final Size THUMBNAIL_SIZE = new Size(80, 60);
+
+	private double threshold = 3;
+	private long maximumReuseNanos = 1000000000L;
+
+	private final Mat thumbnail = new Mat();
+	private final Mat reference = new Mat();
+	private final Mat difference = new Mat();
+	private boolean referenceValid;
+	private long referenceNanos;
+	private double lastDifference;
+
+	/**
+	 * Decides whether the registration of the frame can be skipped. If not,
+	 * the frame becomes the new reference.
+	 *
+	 * @param grayPicture
+	 *            gray scale frame before anything is drawn into it
+	 * @param nowNanos
+	 *            {@link System#nanoTime()} of the frame
+	 * @return true if the frame barely differs from the last registered frame
+	 */
+	public synchronized boolean isStatic(Mat grayPicture, long nowNanos) {
+		Imgproc.resize(grayPicture, thumbnail, THUMBNAIL_SIZE, 0, 0, Imgproc.INTER_AREA);
+		if (referenceValid && nowNanos - referenceNanos < maximumReuseNanos) {
+			Core.absdiff(thumbnail, reference, difference);
+			lastDifference = Core.mean(difference).val[0];
+			if (lastDifference < threshold)
+				return true;
+		} else {
+			lastDifference = Double.NaN;
+		}
+		thumbnail.copyTo(reference);
+		referenceValid = true;
+		referenceNanos = nowNanos;
+		return false;
+	}
+
+	/**
+	 * Forces the registration of the next frame, e.g. when the last
+	 * registration failed
+	 */
+	public synchronized void invalidate() {
+		referenceValid = false;
+	}
+
+	/**
+	 * @param threshold
+	 *            mean absolute gray value difference of the thumbnails below
+	 *            which a frame is static
+	 */
+	public synchronized void setThreshold(double threshold) {
+		this.threshold = threshold;
+	}
+
+	/**
+	 * @param maximumReuseNanos
+	 *            time after which a frame is registered again, even without
+	 *            motion
+	 */
+	public synchronized void setMaximumReuseNanos(long maximumReuseNanos) {
+		this.maximumReuseNanos = maximumReuseNanos;
+	}
+
+	/**
+	 * @return mean absolute difference of the last compared frame, NaN if it
+	 *         was not compared
+	 */
+	public synchronized double getLastDifference() {
+		return lastDifference;
+	}
+}